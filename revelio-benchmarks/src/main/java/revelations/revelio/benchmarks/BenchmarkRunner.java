@@ -0,0 +1,174 @@
+package revelations.revelio.benchmarks;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the analysis benchmarks with the GC profiler and reports tokens/sec, ns/token and bytes allocated per
+ * token. Every run can be saved as a named baseline and compared against an earlier one.
+ * <p>
+ * Usage: <code>java -jar benchmarks.jar [-save name] [-compare name] [-dir baselines] [-quick] [regex ...]</code>
+ * </p>
+ * A baseline is written as two files in the baseline directory: <code>name.json</code> holds the raw JMH results
+ * and <code>name.tsv</code> holds the per-token summary that <code>-compare</code> reads back.
+ */
+public final class BenchmarkRunner {
+
+    private static final String HEADER = "benchmark\ttokens/sec\tns/token\tbytes/token";
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        String save = null;
+        String compare = null;
+        File dir = new File("baselines");
+        boolean quick = false;
+        List<String> includes = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-save".equals(args[i])) {
+                save = args[++i];
+            } else if ("-compare".equals(args[i])) {
+                compare = args[++i];
+            } else if ("-dir".equals(args[i])) {
+                dir = new File(args[++i]);
+            } else if ("-quick".equals(args[i])) {
+                quick = true;
+            } else {
+                includes.add(args[i]);
+            }
+        }
+        if (includes.isEmpty()) {
+            includes.add(BenchmarkRunner.class.getPackage().getName() + ".*");
+        }
+
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .addProfiler(GCProfiler.class)
+                .timeUnit(TimeUnit.SECONDS)
+                .forks(1);
+        for (String include : includes) {
+            options.include(include);
+        }
+        if (quick) {
+            options.warmupIterations(1).warmupTime(TimeValue.seconds(1))
+                    .measurementIterations(2).measurementTime(TimeValue.seconds(1));
+        } else {
+            options.warmupIterations(3).warmupTime(TimeValue.seconds(2))
+                    .measurementIterations(5).measurementTime(TimeValue.seconds(2));
+        }
+        if (save != null) {
+            dir.mkdirs();
+            options.resultFormat(ResultFormatType.JSON).result(new File(dir, save + ".json").getPath());
+        }
+
+        Map<String, double[]> summary = summarize(new Runner(options.build()).run());
+        Map<String, double[]> baseline = (compare == null) ? null : read(new File(dir, compare + ".tsv"));
+        print(summary, baseline);
+        if (save != null) {
+            write(new File(dir, save + ".tsv"), summary);
+        }
+    }
+
+    /**
+     * Turns the raw results into tokens/sec, ns/token and bytes/token keyed by benchmark and corpus.
+     */
+    static Map<String, double[]> summarize(Collection<RunResult> results) {
+        Map<String, double[]> summary = new LinkedHashMap<String, double[]>();
+        for (RunResult result : results) {
+            BenchmarkParams params = result.getParams();
+            String name = params.getBenchmark();
+            name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1);
+            if (params.getParam("corpus") != null) {
+                name += ":" + params.getParam("corpus");
+            }
+            double opsPerSec = result.getPrimaryResult().getScore();
+            double tokensPerSec = secondary(result, "tokens");
+            double bytesPerOp = secondary(result, "gc.alloc.rate.norm");
+            double nsPerToken = (tokensPerSec > 0) ? 1e9 / tokensPerSec : Double.NaN;
+            double bytesPerToken = (tokensPerSec > 0) ? bytesPerOp * opsPerSec / tokensPerSec : Double.NaN;
+            summary.put(name, new double[]{tokensPerSec, nsPerToken, bytesPerToken});
+        }
+        return summary;
+    }
+
+    private static double secondary(RunResult result, String suffix) {
+        for (String name : result.getSecondaryResults().keySet()) {
+            if (name.endsWith(suffix)) {
+                final Result<?> secondary = result.getSecondaryResults().get(name);
+                return secondary.getScore();
+            }
+        }
+        return Double.NaN;
+    }
+
+    static void print(Map<String, double[]> summary, Map<String, double[]> baseline) {
+        System.out.println();
+        System.out.println(HEADER + ((baseline == null) ? "" : "\tvs baseline (tokens/sec, bytes/token)"));
+        for (Map.Entry<String, double[]> entry : summary.entrySet()) {
+            double[] v = entry.getValue();
+            StringBuilder line = new StringBuilder(entry.getKey());
+            line.append(String.format("\t%.0f\t%.2f\t%.2f", v[0], v[1], v[2]));
+            double[] b = (baseline == null) ? null : baseline.get(entry.getKey());
+            if (b != null) {
+                line.append(String.format("\t%+.1f%%\t%+.2f", 100 * (v[0] - b[0]) / b[0], v[2] - b[2]));
+            } else if (baseline != null) {
+                line.append("\tnot in baseline");
+            }
+            System.out.println(line);
+        }
+    }
+
+    static void write(File file, Map<String, double[]> summary) throws IOException {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.println(HEADER);
+            for (Map.Entry<String, double[]> entry : summary.entrySet()) {
+                double[] v = entry.getValue();
+                out.println(entry.getKey() + "\t" + v[0] + "\t" + v[1] + "\t" + v[2]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static Map<String, double[]> read(File file) throws IOException {
+        Map<String, double[]> summary = new LinkedHashMap<String, double[]>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line = in.readLine(); // header
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length == 4) {
+                    summary.put(fields[0], new double[]{
+                            Double.parseDouble(fields[1]), Double.parseDouble(fields[2]), Double.parseDouble(fields[3])});
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return summary;
+    }
+}
@@ -0,0 +1,53 @@
+package revelations.revelio.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the benchmark corpora from the classpath. Each corpus is a UTF-8 file with one document per line:
+ * <ul>
+ *     <li>tweets - short, noisy social media text with hashtags, mentions, urls and emoji</li>
+ *     <li>wikipedia - long encyclopedia paragraphs without markup</li>
+ *     <li>tagged - sentences dense with ENAMEX, TIMEX and NUMEX markup</li>
+ * </ul>
+ */
+public final class Corpora {
+
+    public static final String TWEETS = "tweets";
+    public static final String WIKIPEDIA = "wikipedia";
+    public static final String TAGGED = "tagged";
+
+    private Corpora() {
+    }
+
+    /**
+     * Returns every document of the named corpus.
+     */
+    public static String[] load(String name) {
+        InputStream in = Corpora.class.getResourceAsStream("/corpus/" + name + ".txt");
+        if (in == null) {
+            throw new IllegalArgumentException("Unknown corpus: " + name);
+        }
+        List<String> documents = new ArrayList<String>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() > 0) {
+                        documents.add(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read corpus: " + name, e);
+        }
+        return documents.toArray(new String[documents.size()]);
+    }
+}
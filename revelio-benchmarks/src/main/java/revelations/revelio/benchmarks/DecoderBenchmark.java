@@ -0,0 +1,108 @@
+package revelations.revelio.benchmarks;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.FeatureVectorSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.LabelAlphabet;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import revelations.revelio.features.TermFeature;
+import revelations.revelio.mallet.TokenStreamPipe;
+import revelations.revelio.tagger.BilouDecoder;
+import revelations.revelio.train.CrfTrainingDriver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.EnumSet;
+
+/**
+ * Compares decoding with the generic lattice of mallet with a {@link BilouDecoder}. A CRF is trained on the tagged
+ * corpus once and the documents are featurized up front so only decoding is measured.
+ */
+@State(Scope.Benchmark)
+public class DecoderBenchmark {
+
+    @Param({Corpora.TWEETS, Corpora.WIKIPEDIA})
+    public String corpus;
+
+    private CRF crf;
+    private FeatureVectorSequence[] documents;
+    private int tokens;
+    private BilouDecoder decoder;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        Logger.getRootLogger().setLevel(Level.WARN);
+        File shard = File.createTempFile("tagged", ".txt");
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(shard), "UTF-8");
+            try {
+                for (String document : Corpora.load(Corpora.TAGGED)) {
+                    out.write(document);
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+            CrfTrainingDriver driver = new CrfTrainingDriver();
+            driver.setIterations(50);
+            driver.setTermFeatures(EnumSet.allOf(TermFeature.class));
+            crf = driver.train(Collections.singletonList(shard));
+        } finally {
+            shard.delete();
+        }
+
+        TokenStreamPipe trained = (TokenStreamPipe) crf.getInputPipe();
+        TokenStreamPipe pipe = new TokenStreamPipe(trained.getDataAlphabet(),
+                (LabelAlphabet) trained.getTargetAlphabet(), trained.getEntityTags());
+        pipe.setTermFeatures(trained.getTermFeatures());
+        pipe.setTargetProcessing(false);
+        String[] texts = Corpora.load(corpus);
+        documents = new FeatureVectorSequence[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            documents[i] = (FeatureVectorSequence) pipe.pipe(new Instance(texts[i], null, i, null)).getData();
+            tokens += documents[i].size();
+        }
+        decoder = new BilouDecoder(crf);
+    }
+
+    @State(Scope.Thread)
+    public static class Lattice {
+        BilouDecoder.Lattice lattice;
+
+        @Setup
+        public void setUp(DecoderBenchmark benchmark) {
+            lattice = benchmark.decoder.lattice();
+        }
+    }
+
+    @Benchmark
+    public long malletTransduce(TokenCounter counter) {
+        long labels = 0;
+        for (FeatureVectorSequence document : documents) {
+            labels += crf.transduce(document).size();
+        }
+        counter.tokens += tokens;
+        return labels;
+    }
+
+    @Benchmark
+    public long bilouDecode(Lattice state, TokenCounter counter) {
+        long labels = 0;
+        for (FeatureVectorSequence document : documents) {
+            state.lattice.decode(document);
+            labels += state.lattice.label(0);
+        }
+        counter.tokens += tokens;
+        return labels;
+    }
+}
@@ -0,0 +1,67 @@
+package revelations.revelio.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import revelations.revelio.common.EntityAttributeImpl;
+
+/**
+ * Measures {@link EntityAttributeImpl#toEntityTag()}, {@link EntityAttributeImpl#hashCode()} and
+ * {@link EntityAttributeImpl#getLabel()} over a mix of
+ * attribute states that looks like the output of the filter on tagged text: mostly OUTSIDE tokens with BILOU
+ * spans of a few entity types in between. Each attribute counts as one token.
+ */
+@State(Scope.Thread)
+public class EntityAttributeBenchmark {
+
+    private static final String[] TYPES = {"PERSON", "GPE", "ORGANIZATION", "DATE", "MONEY"};
+
+    private EntityAttributeImpl[] attributes;
+
+    @Setup
+    public void setUp() {
+        attributes = new EntityAttributeImpl[64];
+        for (int i = 0; i < attributes.length; i++) {
+            EntityAttributeImpl attr = new EntityAttributeImpl();
+            switch (i % 8) {
+                case 1: attr.setEntityBegin(); break;
+                case 2: attr.setEntityInside(); break;
+                case 3: attr.setEntityLast(); break;
+                case 5: attr.setEntityUnit(); break;
+                default: attr.setEntityOutside();
+            }
+            if (attr.isEntity()) {
+                attr.setEntityType(TYPES[i % TYPES.length]);
+            }
+            attr.setIsCapitalized(i % 3 == 0);
+            attr.setIsPunctuationMark(i % 7 == 0);
+            attributes[i] = attr;
+        }
+    }
+
+    @Benchmark
+    public void toEntityTag(TokenCounter counter, Blackhole bh) {
+        for (EntityAttributeImpl attr : attributes) {
+            bh.consume(attr.toEntityTag());
+        }
+        counter.tokens += attributes.length;
+    }
+
+    @Benchmark
+    public void entityHashCode(TokenCounter counter, Blackhole bh) {
+        for (EntityAttributeImpl attr : attributes) {
+            bh.consume(attr.hashCode());
+        }
+        counter.tokens += attributes.length;
+    }
+
+    @Benchmark
+    public void getLabel(TokenCounter counter, Blackhole bh) {
+        for (EntityAttributeImpl attr : attributes) {
+            bh.consume(attr.getLabel());
+        }
+        counter.tokens += attributes.length;
+    }
+}
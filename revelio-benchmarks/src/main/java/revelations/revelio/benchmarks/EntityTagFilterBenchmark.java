@@ -0,0 +1,53 @@
+package revelations.revelio.benchmarks;
+
+import org.apache.lucene.util.Version;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import revelations.revelio.common.EntityTagFilter;
+import revelations.revelio.common.TaggedTokenizer;
+
+import java.io.IOException;
+
+/**
+ * Measures {@link EntityTagFilter#incrementToken()} on top of the {@link TaggedTokenizer}, a whole corpus per
+ * operation. Subtracting the {@link TaggedTokenizerBenchmark} result gives the cost of the filter itself.
+ */
+@State(Scope.Thread)
+public class EntityTagFilterBenchmark {
+
+    @Param({Corpora.TWEETS, Corpora.WIKIPEDIA, Corpora.TAGGED})
+    public String corpus;
+
+    private String[] documents;
+    private ReusableStringReader reader;
+    private TaggedTokenizer tokenizer;
+    private EntityTagFilter filter;
+
+    @Setup
+    public void setUp() {
+        documents = Corpora.load(corpus);
+        reader = new ReusableStringReader();
+        reader.setValue("");
+        tokenizer = new TaggedTokenizer(Version.LUCENE_36, reader);
+        filter = new EntityTagFilter(tokenizer);
+    }
+
+    @Benchmark
+    public long incrementToken(TokenCounter counter) throws IOException {
+        long tokens = 0;
+        for (String document : documents) {
+            reader.setValue(document);
+            tokenizer.reset(reader);
+            filter.reset();
+            while (filter.incrementToken()) {
+                tokens++;
+            }
+            filter.end();
+        }
+        counter.tokens += tokens;
+        return tokens;
+    }
+}
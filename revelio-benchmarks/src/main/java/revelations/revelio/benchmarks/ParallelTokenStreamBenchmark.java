@@ -0,0 +1,94 @@
+package revelations.revelio.benchmarks;
+
+import org.apache.lucene.util.Version;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import revelations.revelio.common.EntityTagFilter;
+import revelations.revelio.common.ParallelTokenStream;
+import revelations.revelio.common.TaggedTokenizer;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures {@link ParallelTokenStream} over a whole corpus joined into one document per operation, on a pool of
+ * each number of threads, next to the {@link TaggedTokenizer} and {@link EntityTagFilter} going through the same
+ * document on one thread. The speedup for a number of cores is the tokens/sec of <code>parallel</code> with that
+ * many threads over the tokens/sec of <code>sequential</code>.
+ */
+@State(Scope.Thread)
+public class ParallelTokenStreamBenchmark {
+
+    /*
+     * The corpus is repeated until the document is at least this long, so there are enough chunks for every thread
+     */
+    private static final int MIN_CHARS = 8 * 1024 * 1024;
+
+    @Param({Corpora.WIKIPEDIA, Corpora.TAGGED})
+    public String corpus;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private String document;
+    private ReusableStringReader reader;
+    private TaggedTokenizer tokenizer;
+    private EntityTagFilter filter;
+    private ForkJoinPool pool;
+    private ParallelTokenStream stream;
+
+    @Setup
+    public void setUp() {
+        String[] documents = Corpora.load(corpus);
+        StringBuilder text = new StringBuilder(MIN_CHARS + 64 * 1024);
+        while (text.length() < MIN_CHARS) {
+            for (String line : documents) {
+                text.append(line).append('\n');
+            }
+        }
+        document = text.toString();
+        reader = new ReusableStringReader();
+        reader.setValue("");
+        tokenizer = new TaggedTokenizer(Version.LUCENE_36, reader);
+        filter = new EntityTagFilter(tokenizer);
+        pool = new ForkJoinPool(threads);
+        stream = new ParallelTokenStream(Version.LUCENE_36, pool);
+    }
+
+    @TearDown
+    public void tearDown() {
+        stream.close();
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public long sequential(TokenCounter counter) throws IOException {
+        long tokens = 0;
+        reader.setValue(document);
+        tokenizer.reset(reader);
+        filter.reset();
+        while (filter.incrementToken()) {
+            tokens++;
+        }
+        filter.end();
+        counter.tokens += tokens;
+        return tokens;
+    }
+
+    @Benchmark
+    public long parallel(TokenCounter counter) throws IOException {
+        long tokens = 0;
+        stream.setDocument(document);
+        stream.reset();
+        while (stream.incrementToken()) {
+            tokens++;
+        }
+        stream.end();
+        counter.tokens += tokens;
+        return tokens;
+    }
+}
@@ -0,0 +1,39 @@
+package revelations.revelio.benchmarks;
+
+import java.io.Reader;
+
+/**
+ * A {@link Reader} over a String which can be pointed at a new String without allocating, so the benchmarks
+ * only measure what the analysis chain allocates.
+ */
+final class ReusableStringReader extends Reader {
+    private String s;
+    private int pos, size;
+
+    void setValue(String s) {
+        this.s = s;
+        this.size = s.length();
+        this.pos = 0;
+    }
+
+    @Override
+    public int read() {
+        return (pos < size) ? s.charAt(pos++) : -1;
+    }
+
+    @Override
+    public int read(char[] c, int off, int len) {
+        if (pos >= size) {
+            return -1;
+        }
+        int count = Math.min(len, size - pos);
+        s.getChars(pos, pos + count, c, off);
+        pos += count;
+        return count;
+    }
+
+    @Override
+    public void close() {
+        pos = size;
+    }
+}
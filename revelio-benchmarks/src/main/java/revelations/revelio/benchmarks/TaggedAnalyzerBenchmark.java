@@ -0,0 +1,68 @@
+package revelations.revelio.benchmarks;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.util.Version;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import revelations.revelio.common.EntityTagFilter;
+import revelations.revelio.common.TaggedAnalyzer;
+import revelations.revelio.common.TaggedTokenizer;
+
+import java.io.IOException;
+
+/**
+ * Compares building a new {@link TaggedTokenizer} and {@link EntityTagFilter} for every document with reusing the
+ * chain of a {@link TaggedAnalyzer}, a whole corpus per operation.
+ */
+@State(Scope.Thread)
+public class TaggedAnalyzerBenchmark {
+
+    @Param({Corpora.TWEETS, Corpora.WIKIPEDIA})
+    public String corpus;
+
+    private String[] documents;
+    private ReusableStringReader reader;
+    private TaggedAnalyzer analyzer;
+
+    @Setup
+    public void setUp() {
+        documents = Corpora.load(corpus);
+        reader = new ReusableStringReader();
+        analyzer = new TaggedAnalyzer(Version.LUCENE_36);
+    }
+
+    @Benchmark
+    public long newChainPerDocument(TokenCounter counter) throws IOException {
+        long tokens = 0;
+        for (String document : documents) {
+            reader.setValue(document);
+            tokens += consume(new EntityTagFilter(new TaggedTokenizer(Version.LUCENE_36, reader)));
+        }
+        counter.tokens += tokens;
+        return tokens;
+    }
+
+    @Benchmark
+    public long reusableTokenStream(TokenCounter counter) throws IOException {
+        long tokens = 0;
+        for (String document : documents) {
+            reader.setValue(document);
+            tokens += consume(analyzer.reusableTokenStream("text", reader));
+        }
+        counter.tokens += tokens;
+        return tokens;
+    }
+
+    private static long consume(TokenStream stream) throws IOException {
+        long tokens = 0;
+        stream.reset();
+        while (stream.incrementToken()) {
+            tokens++;
+        }
+        stream.end();
+        return tokens;
+    }
+}
@@ -0,0 +1,49 @@
+package revelations.revelio.benchmarks;
+
+import org.apache.lucene.util.Version;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import revelations.revelio.common.TaggedTokenizer;
+
+import java.io.IOException;
+
+/**
+ * Measures {@link TaggedTokenizer#incrementToken()} over a whole corpus per operation. The tokenizer is reused
+ * through {@link TaggedTokenizer#reset(java.io.Reader)} so construction cost is not part of the measurement.
+ */
+@State(Scope.Thread)
+public class TaggedTokenizerBenchmark {
+
+    @Param({Corpora.TWEETS, Corpora.WIKIPEDIA, Corpora.TAGGED})
+    public String corpus;
+
+    private String[] documents;
+    private ReusableStringReader reader;
+    private TaggedTokenizer tokenizer;
+
+    @Setup
+    public void setUp() {
+        documents = Corpora.load(corpus);
+        reader = new ReusableStringReader();
+        reader.setValue("");
+        tokenizer = new TaggedTokenizer(Version.LUCENE_36, reader);
+    }
+
+    @Benchmark
+    public long incrementToken(TokenCounter counter) throws IOException {
+        long tokens = 0;
+        for (String document : documents) {
+            reader.setValue(document);
+            tokenizer.reset(reader);
+            while (tokenizer.incrementToken()) {
+                tokens++;
+            }
+            tokenizer.end();
+        }
+        counter.tokens += tokens;
+        return tokens;
+    }
+}
@@ -0,0 +1,108 @@
+package revelations.revelio.benchmarks;
+
+import cc.mallet.types.Alphabet;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.Version;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import revelations.revelio.common.TaggedAnalyzer;
+import revelations.revelio.features.HashedAlphabet;
+import revelations.revelio.features.TermFeature;
+import revelations.revelio.features.TermFeatureExtractor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Compares computing every feature of every token, by name or by hashing the chars into a {@link HashedAlphabet},
+ * with looking the features up in the cache of a {@link TermFeatureExtractor}. The terms of the corpus are tokenized
+ * up front so only feature extraction is measured.
+ */
+@State(Scope.Thread)
+public class TermFeatureBenchmark {
+
+    @Param({Corpora.TWEETS, Corpora.WIKIPEDIA})
+    public String corpus;
+
+    private char[][] terms;
+    private Alphabet alphabet;
+    private TermFeatureExtractor cached;
+    private UncachedExtractor uncached;
+    private TermFeatureExtractor hashed;
+
+    @Setup
+    public void setUp() throws IOException {
+        TaggedAnalyzer analyzer = new TaggedAnalyzer(Version.LUCENE_36);
+        List<char[]> tokens = new ArrayList<char[]>();
+        ReusableStringReader reader = new ReusableStringReader();
+        for (String document : Corpora.load(corpus)) {
+            reader.setValue(document);
+            TokenStream stream = analyzer.reusableTokenStream("text", reader);
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add(term.toString().toCharArray());
+            }
+            stream.end();
+        }
+        terms = tokens.toArray(new char[tokens.size()][]);
+        alphabet = new Alphabet();
+        cached = new TermFeatureExtractor(alphabet);
+        uncached = new UncachedExtractor(alphabet);
+        hashed = new TermFeatureExtractor(new HashedAlphabet(), EnumSet.allOf(TermFeature.class), 1);
+    }
+
+    @Benchmark
+    public long computeEveryToken(TokenCounter counter) {
+        long features = 0;
+        for (char[] term : terms) {
+            features += uncached.compute(term);
+        }
+        counter.tokens += terms.length;
+        return features;
+    }
+
+    @Benchmark
+    public long hashEveryToken(TokenCounter counter) {
+        long features = 0;
+        for (char[] term : terms) {
+            features += hashed.extract(term, term.length).length;
+        }
+        counter.tokens += terms.length;
+        return features;
+    }
+
+    @Benchmark
+    public long cachedByTerm(TokenCounter counter) {
+        long features = 0;
+        for (char[] term : terms) {
+            features += cached.extract(term, term.length).length;
+        }
+        counter.tokens += terms.length;
+        return features;
+    }
+
+    private static class UncachedExtractor extends TermFeatureExtractor {
+        private final List<String> names = new ArrayList<String>();
+
+        UncachedExtractor(Alphabet alphabet) {
+            super(alphabet, EnumSet.allOf(TermFeature.class), 1);
+        }
+
+        int compute(char[] term) {
+            names.clear();
+            computeFeatures(term, term.length, names);
+            long ids = 0;
+            for (String name : names) {
+                ids += getAlphabet().lookupIndex(name);
+            }
+            return (int) ids;
+        }
+    }
+}
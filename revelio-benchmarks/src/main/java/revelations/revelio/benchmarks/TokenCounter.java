@@ -0,0 +1,22 @@
+package revelations.revelio.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the tokens produced during a measurement iteration. JMH reports the public field as a secondary
+ * throughput result, which gives tokens/sec next to the documents/sec of the primary result.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class TokenCounter {
+    public long tokens;
+
+    @Setup(Level.Iteration)
+    public void clean() {
+        tokens = 0;
+    }
+}
@@ -16,4 +16,21 @@ public interface BilouTags {
      * Tag for the Tokenizer to tell if it's a tag.
      */
     public static final String ENTITY_TYPE = "entity";
+
+    /*
+     * Compact codes of the span types. BEGIN through UNIT are in the same order as in a model label.
+     */
+    public final static byte OUTSIDE_SPAN = 0;
+    public final static byte BEGIN_SPAN = 1;
+    public final static byte INSIDE_SPAN = 2;
+    public final static byte LAST_SPAN = 3;
+    public final static byte UNIT_SPAN = 4;
+    /**
+     * Code of the {@link #ENTITY_TYPE} span
+     */
+    public final static byte ENTITY_SPAN = 5;
+    /**
+     * Code of a free form span type which is not one of the above
+     */
+    public final static byte CUSTOM_SPAN = 6;
 }
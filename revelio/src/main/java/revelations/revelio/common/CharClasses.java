@@ -0,0 +1,309 @@
+package revelations.revelio.common;
+
+import com.ibm.icu.lang.UScript;
+import com.ibm.icu.text.UnicodeSet;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The classes of characters the {@link TaggedTokenizer} splits text by and the {@link EntityTagFilter} checks the
+ * capitalization of words with, compiled into lookup tables once so the tokenizer never asks ICU about a code point
+ * while it scans. Every code point gets a byte of flags:
+ * <ul>
+ *     <li>{@link #WHITESPACE}, which ends a token and is not part of any,</li>
+ *     <li>{@link #PUNCTUATION} and {@link #MATH_SYMBOL}, which are tokens of their own,</li>
+ *     <li>{@link #SPLIT}, for scripts written without spaces between words, such as Chinese, whose chars are each a
+ *     token of their own, and</li>
+ *     <li>{@link #UPPERCASE}, which marks a word as capitalized when it is its first char.</li>
+ * </ul>
+ * Anything else is a token char. The flags of Latin text, which is most of the text in most corpora, are looked up in
+ * a flat array, and those of the rest of Unicode in a two level table of blocks of 256 code points, where blocks with
+ * the same flags, such as the many unassigned ones, share one copy. Looking up a code point takes one or two array
+ * loads either way.
+ * <p>
+ * The classes start out as the Unicode properties White_Space, the punctuation categories, Sm and Uppercase, which is
+ * what {@link #getDefault()} uses, and the classes for a language or script change some of them. Latin, Cyrillic,
+ * Greek and other cased alphabets written with spaces are split well by the defaults. Chinese and Japanese are
+ * written without spaces, so {@link #forScript(int)} splits Han, Hiragana and Katakana chars into tokens of their own,
+ * and Arabic and Hebrew are often mixed with bidi control chars, which would otherwise be glued to the words around
+ * them and are whitespace in the classes of those scripts. Other configurations are built from sets in the ICU
+ * {@link UnicodeSet} syntax:
+ * </p>
+ * <pre>
+ * CharClasses classes = CharClasses.builder("tweets").punctuation("[#@]").build();
+ * </pre>
+ * The classes are immutable and are shared by any number of tokenizers and filters.
+ */
+public final class CharClasses {
+    public static final byte PUNCTUATION = 1, MATH_SYMBOL = 2, WHITESPACE = 4, UPPERCASE = 8, SPLIT = 16;
+
+    /**
+     * The code points of the flat table, Basic Latin through Latin Extended-B
+     */
+    public static final int LATIN_SIZE = 0x250;
+
+    private static final int BLOCK_SHIFT = 8;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int CODE_POINTS = Character.MAX_CODE_POINT + 1;
+
+    /*
+     * The sets the default classes are compiled from
+     */
+    private static final String PUNCTUATION_SET = "[:P:]";
+    private static final String MATH_SYMBOL_SET = "[:Sm:]";
+    private static final String WHITESPACE_SET = "[:White_Space:]";
+    private static final String UPPERCASE_SET = "[:Uppercase:]";
+
+    /*
+     * The sets the classes of scripts change
+     */
+    private static final String IDEOGRAPHIC_SET = "[[:Han:][:Hiragana:][:Katakana:]]";
+    private static final String BIDI_CONTROL_SET = "[\\u061C\\u200E\\u200F\\u202A-\\u202E\\u2066-\\u2069]";
+
+    private static final CharClasses DEFAULT = new Builder("default").build();
+    private static final ConcurrentMap<String, CharClasses> SCRIPTS = new ConcurrentHashMap<String, CharClasses>();
+
+    private final String name;
+    private final byte[] latin;
+    private final char[] blockIndex;
+    private final byte[] blocks;
+
+    private CharClasses(String name, byte[] flags) {
+        this.name = name;
+        latin = Arrays.copyOf(flags, LATIN_SIZE);
+        blockIndex = new char[CODE_POINTS >> BLOCK_SHIFT];
+        Map<ByteBuffer, Integer> unique = new HashMap<ByteBuffer, Integer>();
+        byte[] compiled = new byte[16 * BLOCK_SIZE];
+        for (int block = 0; block < blockIndex.length; block++) {
+            ByteBuffer key = ByteBuffer.wrap(flags, block << BLOCK_SHIFT, BLOCK_SIZE).slice();
+            Integer id = unique.get(key);
+            if (id == null) {
+                id = unique.size();
+                unique.put(key, id);
+                if (compiled.length < (id + 1) << BLOCK_SHIFT) {
+                    compiled = Arrays.copyOf(compiled, 2 * compiled.length);
+                }
+                System.arraycopy(flags, block << BLOCK_SHIFT, compiled, id << BLOCK_SHIFT, BLOCK_SIZE);
+            }
+            blockIndex[block] = (char) id.intValue();
+        }
+        blocks = Arrays.copyOf(compiled, unique.size() << BLOCK_SHIFT);
+    }
+
+    /**
+     * @return the classes of the Unicode properties, which the tokenizer and filter use unless they are given others
+     */
+    public static CharClasses getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Gets the classes for text in a script.
+     *
+     * @param script an ICU {@link UScript} code, such as UScript.HAN
+     * @return the classes which split Han, Hiragana and Katakana chars for those scripts, the ones which make bidi
+     * controls whitespace for Arabic, Hebrew, Syriac and Thaana, and the defaults for any other script
+     */
+    public static CharClasses forScript(int script) {
+        switch (script) {
+            case UScript.HAN:
+            case UScript.HIRAGANA:
+            case UScript.KATAKANA:
+                return shared("ideographic", IDEOGRAPHIC_SET, null);
+            case UScript.ARABIC:
+            case UScript.HEBREW:
+            case UScript.SYRIAC:
+            case UScript.THAANA:
+                return shared("right-to-left", null, BIDI_CONTROL_SET);
+            default:
+                return DEFAULT;
+        }
+    }
+
+    /**
+     * Gets the classes for text in a language, which are those of the first of its scripts which has classes of its
+     * own. Japanese, which is written in Katakana, Hiragana and Han, gets the classes of Han, and Korean, which is
+     * written in Hangul with spaces and some Han, splits its Han chars.
+     *
+     * @param language an ISO 639 language code such as ja, or a locale such as zh_TW
+     * @return the classes of its scripts, or the defaults for a language ICU doesn't know the scripts of
+     */
+    public static CharClasses forLanguage(String language) {
+        final int[] scripts = UScript.getCode(language);
+        if (scripts != null) {
+            for (int script : scripts) {
+                final CharClasses classes = forScript(script);
+                if (classes != DEFAULT) {
+                    return classes;
+                }
+            }
+        }
+        return DEFAULT;
+    }
+
+    private static CharClasses shared(String name, String split, String whitespace) {
+        CharClasses classes = SCRIPTS.get(name);
+        if (classes == null) {
+            Builder builder = new Builder(name);
+            if (split != null) {
+                builder.split(split);
+            }
+            if (whitespace != null) {
+                builder.whitespace(whitespace);
+            }
+            final CharClasses built = builder.build();
+            classes = SCRIPTS.putIfAbsent(name, built);
+            if (classes == null) {
+                classes = built;
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * @param name what to call the classes, such as the language they are for
+     * @return a builder which starts from the default classes
+     */
+    public static Builder builder(String name) {
+        return new Builder(name);
+    }
+
+    /**
+     * @param c a code point
+     * @return the flags of the code point, 0 for a token char
+     */
+    public int flags(int c) {
+        return (c < LATIN_SIZE) ? latin[c] : blocks[(blockIndex[c >>> BLOCK_SHIFT] << BLOCK_SHIFT) | (c & 0xFF)];
+    }
+
+    public boolean isTokenChar(int c) {
+        return (flags(c) & WHITESPACE) == 0;
+    }
+
+    public boolean isPunctuation(int c) {
+        return (flags(c) & PUNCTUATION) != 0;
+    }
+
+    public boolean isMathSymbol(int c) {
+        return (flags(c) & MATH_SYMBOL) != 0;
+    }
+
+    public boolean isUppercase(int c) {
+        return (flags(c) & UPPERCASE) != 0;
+    }
+
+    /**
+     * @return true if the code point is a token of its own even when it's next to token chars
+     */
+    public boolean isSplit(int c) {
+        return (flags(c) & SPLIT) != 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return about how many bytes of the heap the tables take
+     */
+    public long ramBytesUsed() {
+        return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + latin.length) +
+                RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER +
+                        RamUsageEstimator.NUM_BYTES_CHAR * blockIndex.length) +
+                RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + blocks.length);
+    }
+
+    /**
+     * @return the number of distinct blocks of 256 code points in the two level table
+     */
+    int blockCount() {
+        return blocks.length >> BLOCK_SHIFT;
+    }
+
+    @Override
+    public String toString() {
+        return "CharClasses(" + name + ", " + blockCount() + " blocks, " +
+                RamUsageEstimator.humanReadableUnits(ramBytesUsed()) + ")";
+    }
+
+    /**
+     * Changes the default classes of sets of chars, each given in the ICU {@link UnicodeSet} syntax such as
+     * <code>[[:Han:][:Hiragana:]]</code> or <code>[#@]</code>, and compiles them into tables. The changes are made in
+     * the order they are given, so a later one wins over an earlier one for the chars both of them take in.
+     */
+    public static final class Builder {
+        private final String name;
+        private final byte[] flags = new byte[CODE_POINTS];
+
+        private Builder(String name) {
+            this.name = name;
+            add(WHITESPACE_SET, WHITESPACE);
+            add(PUNCTUATION_SET, PUNCTUATION);
+            add(MATH_SYMBOL_SET, MATH_SYMBOL);
+            add(UPPERCASE_SET, UPPERCASE);
+        }
+
+        /**
+         * Makes chars tokens of their own, the way the chars of a script written without spaces are.
+         */
+        public Builder split(String set) {
+            return set(set, SPLIT);
+        }
+
+        /**
+         * Makes chars end tokens without being a part of any.
+         */
+        public Builder whitespace(String set) {
+            return set(set, WHITESPACE);
+        }
+
+        /**
+         * Makes chars punctuation marks, which are tokens of their own.
+         */
+        public Builder punctuation(String set) {
+            return set(set, PUNCTUATION);
+        }
+
+        /**
+         * Makes chars plain token chars which go in words with the token chars around them.
+         */
+        public Builder tokenChars(String set) {
+            return set(set, 0);
+        }
+
+        /**
+         * @return the compiled classes
+         */
+        public CharClasses build() {
+            return new CharClasses(name, flags);
+        }
+
+        /*
+         * Replaces the class of the chars of a set, keeping whether they are uppercase
+         */
+        private Builder set(String pattern, int flag) {
+            final UnicodeSet set = new UnicodeSet(pattern);
+            for (int range = 0; range < set.getRangeCount(); range++) {
+                for (int c = set.getRangeStart(range); c <= set.getRangeEnd(range); c++) {
+                    flags[c] = (byte) ((flags[c] & UPPERCASE) | flag);
+                }
+            }
+            return this;
+        }
+
+        private void add(String pattern, int flag) {
+            final UnicodeSet set = new UnicodeSet(pattern);
+            for (int range = 0; range < set.getRangeCount(); range++) {
+                for (int c = set.getRangeStart(range); c <= set.getRangeEnd(range); c++) {
+                    flags[c] |= flag;
+                }
+            }
+        }
+    }
+}
@@ -10,6 +10,7 @@ import org.apache.lucene.util.Attribute;
  *     <li>If the token is a punctuation mark</li>
  *     <li>The entityType of entity which is free form. An example entity entityType might be PERSON, LOCATION, etc ...</li>
  *     <li>The prefix of the entity entityType if it is desired to span multiple tokens</li>
+ *     <li>The BILOU label of a gazetteer entry the token is part of, as a dictionary feature</li>
  * </ul>
  *
  * An example of the prefix of the entity entityType might be using the BILOU format where:
@@ -125,4 +126,54 @@ public interface EntityAttribute extends Attribute {
      * @return The prefix of the entity entityType
      */
     String getEntitySpanType();
+
+    /**
+     * Sets the span as one of the compact span codes in {@link BilouTags}, such as BEGIN_SPAN.
+     * @param span the code of the span. CUSTOM_SPAN can only be set through setEntitySpanType
+     */
+    void setEntitySpan(byte span);
+
+    /**
+     * Gets the compact code of the span, such as BEGIN_SPAN. Spans which are set as a free form string are
+     * CUSTOM_SPAN.
+     * @return the code of the span
+     */
+    byte getEntitySpan();
+
+    /**
+     * Sets the entity type by its id in the {@link EntityLabels} registry.
+     * @param typeId the id of the entity type. 0 means no entity type
+     */
+    void setEntityTypeId(int typeId);
+
+    /**
+     * Gets the id of the entity type in the {@link EntityLabels} registry.
+     * @return the id of the entity type or 0 if it isn't set
+     */
+    int getEntityTypeId();
+
+    /**
+     * Sets the span and entity type from a model label. See {@link EntityLabels} for how labels are laid out.
+     * @param label the model label
+     */
+    void setLabel(int label);
+
+    /**
+     * Gets the model label of the span and entity type. See {@link EntityLabels} for how labels are laid out.
+     * @return the model label or -1 if the span isn't a BILOU span
+     */
+    int getLabel();
+
+    /**
+     * Sets the label of the dictionary entry the token is part of, such as B-PERSON for the first token of a
+     * person's name in a gazetteer. It is a feature of the token and has nothing to do with its entity span.
+     * @param label the model label of the span in the entry and the type of the entry. 0 means no entry
+     */
+    void setDictionaryLabel(int label);
+
+    /**
+     * Gets the label of the dictionary entry the token is part of.
+     * @return the model label or 0 if the token isn't part of an entry
+     */
+    int getDictionaryLabel();
 }
@@ -41,23 +41,28 @@ import org.apache.lucene.util.AttributeImpl;
  *         Date: 5/9/12
  */
 public class EntityAttributeImpl extends AttributeImpl implements EntityAttribute, BilouTags{
+    private static final EntityLabels labels = EntityLabels.getInstance();
+    private static final String[] spanTypes = {OUTSIDE, BEGIN, INSIDE, LAST, UNIT, ENTITY_TYPE};
+
     private boolean isCapitalized;
     private boolean isPunctuation;
-    private String entitySpanType = OUTSIDE;
-    private String entityType;
+    private byte entitySpan = OUTSIDE_SPAN;
+    private int entityTypeId;
+    private String customSpanType;
+    private int dictionaryLabel;
 
     @Override
     public String toEntityTag() {
-        StringBuilder tag = new StringBuilder(entitySpanType);
-        if (entityType != null){
-            tag.append("-").append(entityType);
+        if (entitySpan <= UNIT_SPAN) {
+            return labels.tag(entitySpan, entityTypeId);
         }
-        return tag.toString();
+        String spanType = getEntitySpanType();
+        return (entityTypeId == 0) ? spanType : spanType + "-" + labels.typeName(entityTypeId);
     }
 
     @Override
     public boolean isEntity() {
-        return !entitySpanType.equals(OUTSIDE);
+        return entitySpan != OUTSIDE_SPAN;
     }
 
     @Override
@@ -82,71 +87,137 @@ public class EntityAttributeImpl extends AttributeImpl implements EntityAttribut
 
     @Override
     public void setEntityType(String type) {
-        entityType = type;
+        entityTypeId = labels.typeId(type);
     }
 
     @Override
     public String getEntityType() {
-        return entityType;
+        return labels.typeName(entityTypeId);
+    }
+
+    @Override
+    public void setEntityTypeId(int typeId) {
+        entityTypeId = typeId;
+    }
+
+    @Override
+    public int getEntityTypeId() {
+        return entityTypeId;
     }
 
     @Override
     public void setEntityBegin() {
-        entitySpanType = BEGIN;
+        entitySpan = BEGIN_SPAN;
     }
 
     @Override
     public void setEntityInside() {
-        entitySpanType = INSIDE;
+        entitySpan = INSIDE_SPAN;
     }
 
     @Override
     public void setEntityLast() {
-        entitySpanType = LAST;
+        entitySpan = LAST_SPAN;
     }
 
     @Override
     public void setEntityOutside() {
-        entitySpanType = OUTSIDE;
+        entitySpan = OUTSIDE_SPAN;
     }
 
     @Override
     public void setEntityUnit() {
-        entitySpanType = UNIT;
+        entitySpan = UNIT_SPAN;
+    }
+
+    @Override
+    public void setEntitySpan(byte span) {
+        if (span < OUTSIDE_SPAN || span > ENTITY_SPAN) {
+            throw new IllegalArgumentException("Not a span code: " + span);
+        }
+        entitySpan = span;
+    }
+
+    @Override
+    public byte getEntitySpan() {
+        return entitySpan;
+    }
+
+    @Override
+    public void setLabel(int label) {
+        entitySpan = EntityLabels.spanOf(label);
+        entityTypeId = EntityLabels.typeIdOf(label);
+    }
+
+    @Override
+    public int getLabel() {
+        return EntityLabels.label(entitySpan, entityTypeId);
+    }
+
+    @Override
+    public void setDictionaryLabel(int label) {
+        dictionaryLabel = label;
+    }
+
+    @Override
+    public int getDictionaryLabel() {
+        return dictionaryLabel;
     }
 
     @Override
     public String getEntitySpanType() {
-        return entitySpanType;  //To change body of implemented methods use File | Settings | File Templates.
+        return (entitySpan == CUSTOM_SPAN) ? customSpanType : spanTypes[entitySpan];
     }
 
     @Override
     public void clear() {
-        setIsCapitalized(false);
-        setIsPunctuationMark(false);
-        setEntityOutside();
-        setEntityType(null  );
+        isCapitalized = false;
+        isPunctuation = false;
+        entitySpan = OUTSIDE_SPAN;
+        entityTypeId = 0;
+        customSpanType = null;
+        dictionaryLabel = 0;
     }
 
     @Override
     public void setEntitySpanType(String spanType){
-        this.entitySpanType = spanType;
+        for (byte span = OUTSIDE_SPAN; span < spanTypes.length; span++) {
+            if (spanTypes[span].equals(spanType)) {
+                entitySpan = span;
+                customSpanType = null;
+                return;
+            }
+        }
+        entitySpan = CUSTOM_SPAN;
+        customSpanType = spanType;
     }
 
     @Override
     public void copyTo(AttributeImpl target) {
-        EntityAttribute attr = (EntityAttribute) target;
-        attr.setEntitySpanType(entitySpanType);
-        attr.setEntityType(entityType);
-        attr.setIsCapitalized(isCapitalized);
-        attr.setIsPunctuationMark(isPunctuation);
+        if (target instanceof EntityAttributeImpl) {
+            EntityAttributeImpl attr = (EntityAttributeImpl) target;
+            attr.isCapitalized = isCapitalized;
+            attr.isPunctuation = isPunctuation;
+            attr.entitySpan = entitySpan;
+            attr.entityTypeId = entityTypeId;
+            attr.customSpanType = customSpanType;
+            attr.dictionaryLabel = dictionaryLabel;
+        } else {
+            EntityAttribute attr = (EntityAttribute) target;
+            attr.setEntitySpanType(getEntitySpanType());
+            attr.setEntityType(getEntityType());
+            attr.setIsCapitalized(isCapitalized);
+            attr.setIsPunctuationMark(isPunctuation);
+            attr.setDictionaryLabel(dictionaryLabel);
+        }
     }
 
     @Override
     public int hashCode(){
         int capitalHash = (isCapitalized) ? 31 : 37;
         int punctuationHash = (isPunctuation) ? 41: 43;
-        return toEntityTag().hashCode() + capitalHash + punctuationHash;
+        int spanHash = (entitySpan == CUSTOM_SPAN && customSpanType != null) ? customSpanType.hashCode() : entitySpan;
+        return ((spanHash * 31 + entityTypeId) * 31 + capitalHash + punctuationHash) * 31 + dictionaryLabel;
     }
 
     @Override
@@ -0,0 +1,143 @@
+package revelations.revelio.common;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry which interns entity types as small integer ids and maps every BILOU span and entity type combination
+ * to a label index a model can use directly:
+ * <ul>
+ *     <li>0 is O</li>
+ *     <li>1 to 4 are B, I, L and U without an entity type</li>
+ *     <li>typeId * 4 + span are B, I, L and U of the entity type with that id</li>
+ * </ul>
+ * Entity type ids start at 1 and are handed out in the order the types are first seen, so labels never change
+ * once they are handed out. The tag strings, such as B-PERSON, are built once per entity type so tagging does not
+ * need to build strings.
+ */
+public final class EntityLabels implements BilouTags {
+
+    private static final String[] SPANS = {OUTSIDE, BEGIN, INSIDE, LAST, UNIT};
+    private static final EntityLabels INSTANCE = new EntityLabels();
+
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private volatile String[] types = {null};
+    private volatile String[][] tags = {SPANS};
+
+    /**
+     * Returns the registry shared by every {@link EntityAttribute}
+     */
+    public static EntityLabels getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the id of an entity type, registering the type if it has not been seen before.
+     * @param type the entity type such as PERSON. null has the id 0
+     */
+    public int typeId(String type) {
+        if (type == null) {
+            return 0;
+        }
+        Integer id = ids.get(type);
+        return (id != null) ? id : register(type);
+    }
+
+    private synchronized int register(String type) {
+        Integer id = ids.get(type);
+        if (id == null) {
+            String[] types = this.types;
+            String[][] tags = this.tags;
+            id = types.length;
+            String[] newTypes = new String[id + 1];
+            System.arraycopy(types, 0, newTypes, 0, id);
+            newTypes[id] = type;
+            String[][] newTags = new String[id + 1][];
+            System.arraycopy(tags, 0, newTags, 0, id);
+            newTags[id] = new String[SPANS.length];
+            for (int span = 0; span < SPANS.length; span++) {
+                newTags[id][span] = SPANS[span] + "-" + type;
+            }
+            this.tags = newTags;
+            this.types = newTypes;
+            ids.put(type, id);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the entity type with the given id, or null for 0.
+     */
+    public String typeName(int typeId) {
+        return types[typeId];
+    }
+
+    /**
+     * Returns the number of entity types registered so far.
+     */
+    public int typeCount() {
+        return types.length - 1;
+    }
+
+    /**
+     * Returns the number of labels of all of the entity types registered so far, including O.
+     */
+    public int labelCount() {
+        return 1 + (typeCount() + 1) * UNIT_SPAN;
+    }
+
+    /**
+     * Returns the tag of a span and entity type, such as B-PERSON, or just the span if there is no entity type.
+     * @param span one of OUTSIDE_SPAN through UNIT_SPAN
+     */
+    public String tag(byte span, int typeId) {
+        return tags[typeId][span];
+    }
+
+    /**
+     * Returns the tag of a label, such as B-PERSON.
+     */
+    public String tag(int label) {
+        return tag(spanOf(label), typeIdOf(label));
+    }
+
+    /**
+     * Returns the label of a tag such as B-PERSON or O, registering its entity type if needed.
+     * @return the label or -1 if the tag does not start with a BILOU span
+     */
+    public int label(String tag) {
+        int dash = tag.indexOf('-');
+        String span = (dash < 0) ? tag : tag.substring(0, dash);
+        for (byte i = 0; i < SPANS.length; i++) {
+            if (SPANS[i].equals(span)) {
+                return label(i, (dash < 0) ? 0 : typeId(tag.substring(dash + 1)));
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the model label of a span and entity type.
+     * @return the label or -1 if the span is not one of OUTSIDE_SPAN through UNIT_SPAN
+     */
+    public static int label(byte span, int typeId) {
+        if (span == OUTSIDE_SPAN) {
+            return 0;
+        }
+        return (span <= UNIT_SPAN) ? typeId * UNIT_SPAN + span : -1;
+    }
+
+    /**
+     * Returns the span of a model label
+     */
+    public static byte spanOf(int label) {
+        return (label == 0) ? OUTSIDE_SPAN : (byte) ((label - 1) % UNIT_SPAN + 1);
+    }
+
+    /**
+     * Returns the entity type id of a model label
+     */
+    public static int typeIdOf(int label) {
+        return (label == 0) ? 0 : (label - 1) / UNIT_SPAN;
+    }
+}
@@ -1,87 +1,287 @@
 package revelations.revelio.common;
 
-import com.ibm.icu.lang.UCharacter;
+import org.apache.lucene.analysis.CharArrayMap;
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.Version;
+import revelations.revelio.metrics.AnalysisMetrics;
+import revelations.revelio.metrics.DocumentCounts;
+import revelations.revelio.metrics.StageMetrics;
 
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
+ * Expands the entity tags found by the {@link TaggedTokenizer}, such as
+ * <code>&lt;ENAMEX TYPE="PERSON"&gt;David Lynch&lt;/ENAMEX&gt;</code>, into one token per word of the entity marked
+ * with its BILOU span and entity type. Each of those tokens gets the offsets of the word in the original text.
+ * The tag is parsed in a single pass over the term buffer and the ids of the entity types are cached, so
+ * expanding an entity does not allocate.
+ * <p>
+ * With {@link AnalysisMetrics} turned on the filter counts the tokens it emits, the entities it expands and the
+ * entity tags it could not parse, which are passed through as they are.
+ * </p>
+ *
  * @author Christian Hargraves
  *         Date: 5/8/12
  */
 public class EntityTagFilter extends TokenFilter {
+    /**
+     * The name of the metrics of the filter and of its counters
+     */
+    public static final String METRICS_NAME = "EntityTagFilter";
+    public static final String ENTITIES = "entities";
+    public static final String MALFORMED_TAGS = "malformedTags";
+
+    private static final char[] TYPE_ATTRIBUTE = " TYPE=\"".toCharArray();
+    private static final int MAX_CACHED_TYPES = 1024;
 
     private EntityAttribute entityAtt = addAttribute(EntityAttribute.class);
     private CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
-    private static final Pattern regex = Pattern.compile("<[A-Z]+ TYPE=\"([^\"]+)\">([^<]+)</[A-Z]+>");
-    private String[] subTokens;
+    private OffsetAttribute offsetAttribute = addAttribute(OffsetAttribute.class);
+    private final CharArrayMap<Integer> entityTypes = new CharArrayMap<Integer>(Version.LUCENE_36, 16, false);
+    private final CharClasses classes;
+
+    /*
+     * The words of the entity being expanded and where the next one starts
+     */
+    private char[] entity = new char[32];
+    private int entityLength;
+    private int entityOffset;
+    private int position;
     private int index;
-    private String entityType;
+    private int entityTypeId;
 
+    private static final int TOKEN_COUNT = 0, ENTITY_COUNT = 1, MALFORMED_COUNT = 2;
+    private final DocumentCounts counts = new DocumentCounts(AnalysisMetrics.stageIfEnabled(METRICS_NAME),
+            StageMetrics.TOKENS, ENTITIES, MALFORMED_TAGS);
 
+    /**
+     * Creates a filter which splits entities and checks capitalization with the {@link CharClasses} of the tokenizer
+     * when its input is a {@link TaggedTokenizer}, and with the default classes otherwise.
+     */
     public EntityTagFilter(TokenStream in) {
+        this(in, (in instanceof TaggedTokenizer) ? ((TaggedTokenizer) in).getCharClasses() : CharClasses.getDefault());
+    }
+
+    /**
+     * @param in      the tokens of a {@link TaggedTokenizer}
+     * @param classes the classes of chars the tokenizer splits by, which the words of entities are split by as well
+     */
+    public EntityTagFilter(TokenStream in, CharClasses classes) {
         super(in);
+        this.classes = classes;
+    }
+
+    public void setMetrics(StageMetrics metrics) {
+        counts.setMetrics(metrics);
+    }
+
+    public StageMetrics getMetrics() {
+        return counts.getMetrics();
     }
 
     @Override
     public final boolean incrementToken() throws IOException {
-        boolean increment = (subTokens != null && index < subTokens.length);
+        boolean increment = (position < entityLength);
         if (increment){
-            recordNextEntity(subTokens);
+            recordNextEntity();
         }else if(input.incrementToken()){
             increment = true;
-            CharSequence token = termAttribute.subSequence(0, termAttribute.length());
             if (entityAtt.isEntity()) {
-                Matcher matcher = regex.matcher(token);
-                if (matcher.matches()){
-                    entityType = matcher.group(1);
-                    //TODO: I should use the whitespace tokenizer for this instead.
-                    subTokens = matcher.group(2).split("\\s+");
-                    index = 0;
-                    recordNextEntity(subTokens);
+                if (parseEntity()){
+                    recordNextEntity();
+                    counts.increment(ENTITY_COUNT);
+                }else{
+                    counts.increment(MALFORMED_COUNT);
                 }
             }else{
-                checkCapitalization(token.toString(), entityAtt);
+                checkCapitalization(termAttribute.buffer(), 0, termAttribute.length(), entityAtt, classes);
             }
         }else{
-            increment = false;
+            return false;
         }
+        counts.increment(TOKEN_COUNT);
         return increment;
     }
 
-    protected void recordNextEntity(String[] subTokens){
-        //TODO: Need to add support for capitalization detection
-        if (index < subTokens.length){
-            String token = subTokens[index];
-            if (subTokens.length == 1){
-                entityAtt.setEntityUnit();
-            }else if (index == 0){
-                entityAtt.setEntityBegin();
-            }else if (index < (subTokens.length - 1)){
-                entityAtt.setEntityInside();
-            }else{
-                entityAtt.setEntityLast();
+    /**
+     * Adds the counts of the document to the metrics.
+     */
+    @Override
+    public void end() throws IOException {
+        super.end();
+        counts.flush();
+    }
+
+    /**
+     * Drops whatever is left of the entity being expanded so nothing carries over to the next document.
+     */
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        counts.flush();
+        entityLength = 0;
+        entityOffset = 0;
+        entityTypeId = 0;
+        position = 0;
+        index = 0;
+    }
+
+    /**
+     * Parses a tag of the form <code>&lt;[A-Z]+ TYPE="type"&gt;words&lt;/[A-Z]+&gt;</code> in the term buffer and
+     * keeps its words to be recorded one at a time.
+     *
+     * @return false if the term is not an entity tag, in which case it is left alone.
+     */
+    private boolean parseEntity() {
+        final char[] term = termAttribute.buffer();
+        final int length = termAttribute.length();
+        if (length == 0 || term[0] != '<') {
+            return false;
+        }
+        int i = skipTagName(term, 1, length);
+        if (i == 1 || !regionMatches(term, i, length, TYPE_ATTRIBUTE)) {
+            return false;
+        }
+        final int typeStart = i += TYPE_ATTRIBUTE.length;
+        while (i < length && term[i] != '"') {
+            i++;
+        }
+        final int typeEnd = i++;
+        if (typeEnd == typeStart || i >= length || term[i++] != '>') {
+            return false;
+        }
+        final int wordsStart = i;
+        while (i < length && term[i] != '<') {
+            i++;
+        }
+        final int wordsEnd = i++;
+        if (wordsEnd == wordsStart || i >= length || term[i++] != '/') {
+            return false;
+        }
+        final int nameStart = i;
+        i = skipTagName(term, i, length);
+        if (i == nameStart || i != length - 1 || term[i] != '>') {
+            return false;
+        }
+        final int start = skipWhitespace(term, wordsStart, wordsEnd);
+        if (start == wordsEnd) {
+            return false;
+        }
+
+        entityLength = wordsEnd - start;
+        if (entity.length < entityLength) {
+            entity = new char[ArrayUtil.oversize(entityLength, RamUsageEstimator.NUM_BYTES_CHAR)];
+        }
+        System.arraycopy(term, start, entity, 0, entityLength);
+        entityOffset = offsetAttribute.startOffset() + start;
+        entityTypeId = entityTypeId(term, typeStart, typeEnd - typeStart);
+        position = 0;
+        index = 0;
+        return true;
+    }
+
+    /**
+     * Records the next word of the entity being expanded as the current token. Words end at whitespace, and a char
+     * of a script written without spaces is a word of its own, the way the tokenizer splits text outside of entities.
+     */
+    protected void recordNextEntity(){
+        final int start = position;
+        int end = start;
+        while (end < entityLength) {
+            final int c = Character.codePointAt(entity, end, entityLength);
+            final int flags = classes.flags(c);
+            if ((flags & CharClasses.WHITESPACE) != 0 || ((flags & CharClasses.SPLIT) != 0 && end > start)) {
+                break;
             }
-            entityAtt.setEntityType(entityType);
-            for (int i = 0; i < token.length(); i++){
-                termAttribute.buffer()[i] = token.charAt(i);
+            end += Character.charCount(c);
+            if ((flags & CharClasses.SPLIT) != 0) {
+                break;
             }
-            termAttribute.setLength(token.length());
-            checkCapitalization(token, entityAtt);
-            index++;
+        }
+        position = skipWhitespace(entity, end, entityLength);
+        final boolean last = position >= entityLength;
+        if (index == 0 && last){
+            entityAtt.setEntityUnit();
+        }else if (index == 0){
+            entityAtt.setEntityBegin();
+        }else if (!last){
+            entityAtt.setEntityInside();
         }else{
-            index = 0;
+            entityAtt.setEntityLast();
+        }
+        entityAtt.setEntityTypeId(entityTypeId);
+        termAttribute.copyBuffer(entity, start, end - start);
+        offsetAttribute.setOffset(entityOffset + start, entityOffset + end);
+        checkCapitalization(entity, start, end - start, entityAtt, classes);
+        index++;
+    }
+
+    private int entityTypeId(char[] term, int start, int length) {
+        Integer id = entityTypes.get(term, start, length);
+        if (id == null) {
+            String type = new String(term, start, length);
+            id = EntityLabels.getInstance().typeId(type);
+            if (entityTypes.size() < MAX_CACHED_TYPES) {
+                entityTypes.put(type, id);
+            }
+        }
+        return id;
+    }
+
+    private static int skipTagName(char[] term, int i, int length) {
+        while (i < length && term[i] >= 'A' && term[i] <= 'Z') {
+            i++;
+        }
+        return i;
+    }
+
+    private int skipWhitespace(char[] chars, int i, int end) {
+        while (i < end && !classes.isTokenChar(chars[i])) {
+            i++;
         }
+        return i;
+    }
+
+    private static boolean regionMatches(char[] term, int i, int length, char[] expected) {
+        if (length - i < expected.length) {
+            return false;
+        }
+        for (int j = 0; j < expected.length; j++) {
+            if (term[i + j] != expected[j]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     protected static void checkCapitalization(String token, EntityAttribute entityAtt){
         if (token != null && entityAtt != null){
-            int codePoint = UCharacter.codePointAt(token, 0);
-            entityAtt.setIsCapitalized(UCharacter.isUUppercase(codePoint));
+            int codePoint = token.codePointAt(0);
+            entityAtt.setIsCapitalized(CharClasses.getDefault().isUppercase(codePoint));
+        }
+    }
+
+    protected static void checkCapitalization(char[] buffer, int length, EntityAttribute entityAtt){
+        checkCapitalization(buffer, 0, length, entityAtt);
+    }
+
+    protected static void checkCapitalization(char[] buffer, int start, int length, EntityAttribute entityAtt){
+        checkCapitalization(buffer, start, length, entityAtt, CharClasses.getDefault());
+    }
+
+    /**
+     * Marks a word as capitalized if its first char is uppercase in the classes of chars.
+     */
+    protected static void checkCapitalization(char[] buffer, int start, int length, EntityAttribute entityAtt,
+                                              CharClasses classes){
+        if (buffer != null && length > 0 && entityAtt != null){
+            int codePoint = Character.codePointAt(buffer, start, start + length);
+            entityAtt.setIsCapitalized(classes.isUppercase(codePoint));
         }
     }
 }
@@ -0,0 +1,531 @@
+package revelations.revelio.common;
+
+import org.apache.lucene.analysis.CharStream;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.Version;
+import revelations.revelio.metrics.AnalysisMetrics;
+import revelations.revelio.metrics.StageMetrics;
+import revelations.revelio.metrics.StripedCounter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Tokenizes one large document, such as a whole Wikipedia page or a corpus file read as one text, on all the threads
+ * of a {@link ForkJoinPool} and streams the tokens in order, as if the {@link TaggedTokenizer} and the
+ * {@link EntityTagFilter} had gone through it on one thread.
+ * <pre>
+ * stream.setDocument(text);
+ * stream.reset();
+ * while (stream.incrementToken()) {
+ *     ...
+ * }
+ * stream.end();
+ * </pre>
+ * The document is cut into chunks of about {@link #getChunkChars()} chars, each of which ends outside entity markup
+ * at a whitespace char or before a char which the {@link CharClasses} split, so no token or entity tag ever spans two
+ * chunks and Chinese or Japanese text written without spaces is cut as well. Where the markup is is found
+ * with the same rules the tokenizer uses to recognize a tag, so a broken tag which the tokenizer scans as text again
+ * doesn't keep a chunk from being cut. Each chunk is read by a tokenizer and filter of the worker thread which takes
+ * it, whose offsets are corrected by where the chunk starts, and its tokens are kept in a few arrays until they are
+ * replayed through the same attributes the filter sets: {@link CharTermAttribute}, {@link OffsetAttribute} and
+ * {@link EntityAttribute}. Cutting the chunks is the only part of the work done on the calling thread, and only a
+ * couple of chunks per worker are tokenized ahead of the one being replayed, so the tokens of the whole document are
+ * never held at once.
+ * <p>
+ * With {@link AnalysisMetrics} turned on the stream counts the documents and chunks it tokenizes and records the
+ * latency of every document from {@link #reset()} to {@link #end()}. The tokenizer and filter of the chunks count
+ * their tokens and chars as usual, so each chunk counts as one of their documents.
+ * </p>
+ */
+public final class ParallelTokenStream extends TokenStream {
+    /**
+     * The name of the metrics of the stream and of its counters
+     */
+    public static final String METRICS_NAME = "ParallelTokenStream";
+    public static final String CHUNKS = "chunks";
+
+    public static final int DEFAULT_CHUNK_CHARS = 64 * 1024;
+
+    /*
+     * States of the entity tag recognizer, the same as those of the tokenizer
+     */
+    private static final int TAG_BODY = 1, TAG_BODY_LT = 2, END_TAG = 3;
+
+    /*
+     * Flags of a token besides its span, which takes the low bits
+     */
+    private static final byte SPAN_MASK = 0x0F, CAPITALIZED = 0x10, PUNCTUATION = 0x20;
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    private final EntityAttribute entityAtt = addAttribute(EntityAttribute.class);
+
+    private final ForkJoinPool pool;
+    private final char[][] entityTags;
+    private final int chunkChars;
+    private final CharClasses classes;
+    private final ThreadLocal<ChunkTokenizer> tokenizers;
+
+    /*
+     * The document, where the next chunk starts and the next entity tag from there on
+     */
+    private CharSequence text;
+    private int length;
+    private int nextStart;
+    private int tagStart, tagEnd;
+
+    /*
+     * The chunks being tokenized, in order, and the one being replayed
+     */
+    private final ForkJoinTask<Chunk>[] pending;
+    private int first, count;
+    private Chunk chunk;
+    private int token;
+    private int chunks;
+
+    private final StageMetrics metrics;
+    private final StripedCounter documentCounter, chunkCounter;
+    private long documentStart;
+
+    /**
+     * Creates a stream which recognizes the {@link TaggedTokenizer#DEFAULT_ENTITY_TAGS} and cuts chunks of
+     * {@link #DEFAULT_CHUNK_CHARS}.
+     *
+     * @param matchVersion Lucene version to match
+     * @param pool         the pool to tokenize the chunks on
+     */
+    public ParallelTokenStream(Version matchVersion, ForkJoinPool pool) {
+        this(matchVersion, pool, TaggedTokenizer.DEFAULT_ENTITY_TAGS, DEFAULT_CHUNK_CHARS);
+    }
+
+    /**
+     * @param matchVersion Lucene version to match
+     * @param pool         the pool to tokenize the chunks on
+     * @param entityTags   the names of the tags to recognize as entity markup, such as ENAMEX
+     * @param chunkChars   about how many chars to tokenize at a time. A chunk is longer when its end falls in a word
+     *                     or an entity tag.
+     */
+    public ParallelTokenStream(Version matchVersion, ForkJoinPool pool, Set<String> entityTags, int chunkChars) {
+        this(matchVersion, pool, entityTags, chunkChars, CharClasses.getDefault());
+    }
+
+    /**
+     * @param matchVersion Lucene version to match
+     * @param pool         the pool to tokenize the chunks on
+     * @param entityTags   the names of the tags to recognize as entity markup, such as ENAMEX
+     * @param chunkChars   about how many chars to tokenize at a time. A chunk is longer when its end falls in a word
+     *                     or an entity tag.
+     * @param classes      the classes of chars to split the document by, such as those of its language
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ParallelTokenStream(final Version matchVersion, ForkJoinPool pool, final Set<String> entityTags,
+                               int chunkChars, final CharClasses classes) {
+        if (chunkChars < 1) {
+            throw new IllegalArgumentException("chunkChars must be at least 1 but was " + chunkChars);
+        }
+        this.pool = pool;
+        this.chunkChars = chunkChars;
+        this.classes = classes;
+        this.entityTags = new char[entityTags.size()][];
+        int i = 0;
+        for (String tag : entityTags) {
+            this.entityTags[i++] = tag.toCharArray();
+        }
+        tokenizers = new ThreadLocal<ChunkTokenizer>() {
+            @Override
+            protected ChunkTokenizer initialValue() {
+                return new ChunkTokenizer(matchVersion, entityTags, classes);
+            }
+        };
+        pending = new ForkJoinTask[2 * pool.getParallelism()];
+        metrics = AnalysisMetrics.stageIfEnabled(METRICS_NAME);
+        documentCounter = (metrics == null) ? null : metrics.counter(StageMetrics.DOCUMENTS);
+        chunkCounter = (metrics == null) ? null : metrics.counter(CHUNKS);
+    }
+
+    /**
+     * Sets the document to tokenize next. Tokenizing starts with {@link #reset()}.
+     *
+     * @param text the whole text of the document
+     */
+    public void setDocument(CharSequence text) {
+        cancel();
+        this.text = text;
+        length = text.length();
+        nextStart = length;
+    }
+
+    /**
+     * Starts tokenizing the document from its beginning, which puts the first chunks on the pool.
+     */
+    @Override
+    public void reset() {
+        if (text == null) {
+            throw new IllegalStateException("No document was set");
+        }
+        cancel();
+        documentStart = System.nanoTime();
+        nextStart = 0;
+        tagEnd = 0;
+        findTag();
+        chunks = 0;
+        while (count < pending.length && submit()) {
+            // fill the window
+        }
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        while (chunk == null || token >= chunk.size) {
+            if (count == 0) {
+                chunk = null;
+                return false;
+            }
+            chunk = pending[first].join();
+            pending[first] = null;
+            first = (first + 1) % pending.length;
+            count--;
+            token = 0;
+            submit();
+        }
+        clearAttributes();
+        final int termStart = (token == 0) ? 0 : chunk.termEnds[token - 1];
+        termAtt.copyBuffer(chunk.chars, termStart, chunk.termEnds[token] - termStart);
+        offsetAtt.setOffset(chunk.offsets[2 * token], chunk.offsets[2 * token + 1]);
+        final byte flags = chunk.flags[token];
+        entityAtt.setEntitySpan((byte) (flags & SPAN_MASK));
+        entityAtt.setEntityTypeId(chunk.typeIds[token]);
+        entityAtt.setIsCapitalized((flags & CAPITALIZED) != 0);
+        entityAtt.setIsPunctuationMark((flags & PUNCTUATION) != 0);
+        token++;
+        return true;
+    }
+
+    @Override
+    public void end() {
+        offsetAtt.setOffset(length, length);
+        if (metrics != null && documentStart != 0) {
+            metrics.getLatency().record(System.nanoTime() - documentStart);
+            documentCounter.increment();
+            chunkCounter.add(chunks);
+        }
+        documentStart = 0;
+    }
+
+    /**
+     * Stops tokenizing the chunks which haven't been replayed yet.
+     */
+    @Override
+    public void close() {
+        cancel();
+        text = null;
+    }
+
+    private void cancel() {
+        for (; count > 0; count--) {
+            pending[first].cancel(false);
+            pending[first] = null;
+            first = (first + 1) % pending.length;
+        }
+        first = 0;
+        chunk = null;
+        token = 0;
+    }
+
+    /**
+     * Cuts the next chunk and puts it on the pool.
+     *
+     * @return false once the whole document is cut
+     */
+    private boolean submit() {
+        if (nextStart >= length) {
+            return false;
+        }
+        final int start = nextStart;
+        final int end = cut(start);
+        final CharSequence document = text;
+        nextStart = end;
+        pending[(first + count) % pending.length] = pool.submit(new Callable<Chunk>() {
+            @Override
+            public Chunk call() throws IOException {
+                return tokenizers.get().tokenize(document, start, end);
+            }
+        });
+        count++;
+        chunks++;
+        return true;
+    }
+
+    /**
+     * Finds where the chunk which starts at a char ends: at the first whitespace char at least {@link #chunkChars}
+     * chars in which isn't inside an entity tag, or before the first split char there, which the tokenizer always
+     * starts a token at, or at the end of the document. A split char right after a math symbol such as &lt; or &gt;
+     * is never cut before, as the tokenizer marks a math symbol at the end of its input as a punctuation mark but not
+     * one followed by a split char.
+     */
+    int cut(int start) {
+        int i = (int) Math.min(length, (long) start + chunkChars);
+        while (i < length) {
+            while (tagEnd <= i && tagStart < length) {
+                findTag();
+            }
+            if (tagStart <= i) {
+                i = tagEnd;
+                continue;
+            }
+            while (i < tagStart && !isBoundary(i)) {
+                i++;
+            }
+            if (i < tagStart) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private boolean isBoundary(int i) {
+        final int flags = classes.flags(Character.codePointAt(text, i));
+        if ((flags & CharClasses.WHITESPACE) != 0) {
+            return true;
+        }
+        return (flags & CharClasses.SPLIT) != 0 &&
+                (classes.flags(Character.codePointBefore(text, i)) & CharClasses.MATH_SYMBOL) == 0;
+    }
+
+    /**
+     * Finds the first entity tag which the tokenizer recognizes from the end of the last one on.
+     */
+    private void findTag() {
+        for (int i = tagEnd; i < length; i++) {
+            if (text.charAt(i) == '<') {
+                final int end = tagEnd(i);
+                if (end > 0) {
+                    tagStart = i;
+                    tagEnd = end;
+                    return;
+                }
+            }
+        }
+        tagStart = length;
+        tagEnd = length;
+    }
+
+    /**
+     * Follows the tokenizer's recognizer of entity tags from a &lt; it scans as the start of a token.
+     *
+     * @return the index just past the &gt; which ends the tag, or -1 if the tokenizer won't take it as a tag
+     */
+    private int tagEnd(int lt) {
+        if (lt + 1 < length && (classes.flags(Character.codePointAt(text, lt + 1)) &
+                (CharClasses.PUNCTUATION | CharClasses.MATH_SYMBOL | CharClasses.SPLIT)) != 0) {
+            return -1; // the < is a token of its own
+        }
+        final int limit = (int) Math.min(length, (long) lt + TaggedTokenizer.MAX_TAG_LEN);
+        int i = lt + 1;
+        while (i < limit && (classes.flags(text.charAt(i)) & CharClasses.WHITESPACE) == 0) {
+            if (!isEntityTag(lt + 1, i + 1, true)) {
+                return -1;
+            }
+            i++;
+        }
+        if (i == limit || !isEntityTag(lt + 1, i, false)) {
+            return -1;
+        }
+        int state = TAG_BODY;
+        for (i++; i < limit; i++) {
+            final char c = text.charAt(i);
+            if (state == TAG_BODY) {
+                if (c == '<') {
+                    state = TAG_BODY_LT;
+                }
+            } else if (state == TAG_BODY_LT) {
+                if (c == '/') {
+                    state = END_TAG;
+                } else if (c != '<') {
+                    state = TAG_BODY;
+                }
+            } else if (c == '>') {
+                return i + 1;
+            } else if ((classes.flags(c) & CharClasses.WHITESPACE) != 0) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the chars of the document between start and end are the name of one of the entity tags, or
+     * the beginning of one.
+     */
+    private boolean isEntityTag(int start, int end, boolean prefix) {
+        final int nameLength = end - start;
+        for (char[] tag : entityTags) {
+            if (tag.length == nameLength || (prefix && tag.length > nameLength)) {
+                int i = 0;
+                while (i < nameLength && tag[i] == text.charAt(start + i)) {
+                    i++;
+                }
+                if (i == nameLength) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of chunks the current document was cut into so far
+     */
+    public int getChunks() {
+        return chunks;
+    }
+
+    public int getChunkChars() {
+        return chunkChars;
+    }
+
+    public CharClasses getCharClasses() {
+        return classes;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public StageMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The tokens of a chunk: their terms one after the other, the offsets of each token in the document, and the
+     * span, type and flags of its {@link EntityAttribute}
+     */
+    private static final class Chunk {
+        char[] chars;
+        int[] termEnds;
+        int[] offsets;
+        int[] typeIds;
+        byte[] flags;
+        int size;
+
+        /**
+         * @param length the number of chars of the chunk, which its terms never take more than, and which is about
+         * five times the number of its tokens in most text
+         */
+        Chunk(int length) {
+            final int tokens = length / 5 + 16;
+            chars = new char[length];
+            termEnds = new int[tokens];
+            offsets = new int[2 * tokens];
+            typeIds = new int[tokens];
+            flags = new byte[tokens];
+        }
+
+        void add(CharTermAttribute term, OffsetAttribute offset, EntityAttribute entity) {
+            final int termStart = (size == 0) ? 0 : termEnds[size - 1];
+            final int termEnd = termStart + term.length();
+            if (termEnd > chars.length) {
+                chars = ArrayUtil.grow(chars, termEnd);
+            }
+            System.arraycopy(term.buffer(), 0, chars, termStart, term.length());
+            if (size == flags.length) {
+                final int capacity = ArrayUtil.oversize(size + 1, RamUsageEstimator.NUM_BYTES_INT);
+                termEnds = Arrays.copyOf(termEnds, capacity);
+                offsets = Arrays.copyOf(offsets, 2 * capacity);
+                typeIds = Arrays.copyOf(typeIds, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+            }
+            termEnds[size] = termEnd;
+            offsets[2 * size] = offset.startOffset();
+            offsets[2 * size + 1] = offset.endOffset();
+            typeIds[size] = entity.getEntityTypeId();
+            flags[size] = (byte) (entity.getEntitySpan() | (entity.isCapitalized() ? CAPITALIZED : 0) |
+                    (entity.isPunctuationMark() ? PUNCTUATION : 0));
+            size++;
+        }
+    }
+
+    /**
+     * The tokenizer and filter of a worker thread, which it resets onto every chunk it takes
+     */
+    private static final class ChunkTokenizer {
+        private final ChunkReader reader = new ChunkReader();
+        private final TaggedTokenizer tokenizer;
+        private final EntityTagFilter filter;
+        private final CharTermAttribute termAtt;
+        private final OffsetAttribute offsetAtt;
+        private final EntityAttribute entityAtt;
+
+        ChunkTokenizer(Version matchVersion, Set<String> entityTags, CharClasses classes) {
+            tokenizer = new TaggedTokenizer(matchVersion, reader, entityTags, classes);
+            filter = new EntityTagFilter(tokenizer, classes);
+            termAtt = filter.getAttribute(CharTermAttribute.class);
+            offsetAtt = filter.getAttribute(OffsetAttribute.class);
+            entityAtt = filter.getAttribute(EntityAttribute.class);
+        }
+
+        Chunk tokenize(CharSequence text, int start, int end) throws IOException {
+            final Chunk chunk = new Chunk(end - start);
+            reader.set(text, start, end);
+            tokenizer.reset(reader);
+            filter.reset();
+            while (filter.incrementToken()) {
+                chunk.add(termAtt, offsetAtt, entityAtt);
+            }
+            filter.end();
+            reader.set(null, 0, 0);
+            return chunk;
+        }
+    }
+
+    /**
+     * Reads the chars of a chunk and corrects the offsets of the tokenizer by where the chunk starts, so the tokens
+     * get their offsets in the whole document
+     */
+    private static final class ChunkReader extends CharStream {
+        private CharSequence text;
+        private int start, position, end;
+
+        void set(CharSequence text, int start, int end) {
+            this.text = text;
+            this.start = start;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int correctOffset(int offset) {
+            return start + offset;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int len) {
+            final int n = Math.min(len, end - position);
+            if (n <= 0) {
+                return (len == 0) ? 0 : -1;
+            }
+            if (text instanceof String) {
+                ((String) text).getChars(position, position + n, buffer, offset);
+            } else {
+                for (int i = 0; i < n; i++) {
+                    buffer[offset + i] = text.charAt(position + i);
+                }
+            }
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package revelations.revelio.common;
+
+import org.apache.lucene.util.Attribute;
+
+/**
+ * Marks the token which ends a sentence, as set by a {@link SentenceFilter}. A consumer reads tokens up to and
+ * including a marked one to get a sentence. The end of a stream also ends its last sentence, whether or not its last
+ * token is marked.
+ */
+public interface SentenceAttribute extends Attribute {
+
+    /**
+     * @param sentenceEnd true if the token is the last token of a sentence. The default should be false.
+     */
+    void setSentenceEnd(boolean sentenceEnd);
+
+    /**
+     * @return true if the token is the last token of a sentence
+     */
+    boolean isSentenceEnd();
+}
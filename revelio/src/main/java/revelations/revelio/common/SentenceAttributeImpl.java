@@ -0,0 +1,46 @@
+package revelations.revelio.common;
+
+import org.apache.lucene.util.AttributeImpl;
+
+/**
+ * Marks the token which ends a sentence.
+ */
+public class SentenceAttributeImpl extends AttributeImpl implements SentenceAttribute {
+
+    private boolean sentenceEnd;
+
+    @Override
+    public void setSentenceEnd(boolean sentenceEnd) {
+        this.sentenceEnd = sentenceEnd;
+    }
+
+    @Override
+    public boolean isSentenceEnd() {
+        return sentenceEnd;
+    }
+
+    @Override
+    public void clear() {
+        sentenceEnd = false;
+    }
+
+    @Override
+    public void copyTo(AttributeImpl target) {
+        ((SentenceAttribute) target).setSentenceEnd(sentenceEnd);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof SentenceAttributeImpl && ((SentenceAttributeImpl) other).sentenceEnd == sentenceEnd;
+    }
+
+    @Override
+    public int hashCode() {
+        return sentenceEnd ? 31 : 37;
+    }
+
+    @Override
+    public String toString() {
+        return sentenceEnd ? "SENTENCE_END" : "";
+    }
+}
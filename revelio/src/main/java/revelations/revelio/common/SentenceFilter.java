@@ -0,0 +1,250 @@
+package revelations.revelio.common;
+
+import com.ibm.icu.lang.UCharacter;
+import com.ibm.icu.lang.UCharacterCategory;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.util.Version;
+import revelations.revelio.metrics.AnalysisMetrics;
+import revelations.revelio.metrics.DocumentCounts;
+import revelations.revelio.metrics.StageMetrics;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Marks the last token of every sentence with a {@link SentenceAttribute} as the tokens pass through, so a consumer
+ * can take a document a sentence at a time. It goes after the {@link EntityTagFilter} and, if there is one, the
+ * {@link revelations.revelio.gazetteer.GazetteerFilter}, since a sentence never ends on a token which begins or is
+ * inside the span of an entity or of a gazetteer name.
+ * <p>
+ * A sentence ends with a run of terminal punctuation marks, as the {@link TaggedTokenizer} marks them, such as
+ * <code>.</code>, <code>?!</code> or <code>&#x3002;</code>, and the closing quotes and brackets right after them.
+ * The run only ends the sentence if whitespace comes after it and the next token doesn't start with a lowercase
+ * letter, so numbers such as 3.14 and host names keep their dots. A period right after a single letter or a title
+ * such as Mr or Dr is taken to end an abbreviation. Deciding that takes the next token, so the filter reads one token
+ * ahead, with its state captured, but only after a terminal punctuation mark. A sentence which reaches the most
+ * tokens a sentence may have is ended at the next token which isn't inside a span, which bounds the length of the
+ * sequences a CRF has to label.
+ * </p>
+ * <p>
+ * With {@link AnalysisMetrics} turned on the filter counts the tokens it emits, the sentences it ends and the ones it
+ * cuts off at the most tokens.
+ * </p>
+ */
+public final class SentenceFilter extends TokenFilter implements BilouTags {
+    /**
+     * The name of the metrics of the filter and of its counters
+     */
+    public static final String METRICS_NAME = "SentenceFilter";
+    public static final String SENTENCES = "sentences";
+    public static final String LONG_SENTENCES = "longSentences";
+
+    public static final int DEFAULT_MAX_LENGTH = 256;
+
+    private static final CharArraySet TITLES = new CharArraySet(Version.LUCENE_36, Arrays.asList("Mr", "Mrs", "Ms",
+            "Dr", "Prof", "St", "Mt", "Ft", "Jr", "Sr", "Gen", "Col", "Lt", "Sgt", "Capt", "Gov", "Sen", "Rep", "Rev",
+            "Hon", "vs"), false);
+    private static final int MAX_TITLE_LENGTH = 4;
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    private final EntityAttribute entityAtt = addAttribute(EntityAttribute.class);
+    private final SentenceAttribute sentenceAtt = addAttribute(SentenceAttribute.class);
+    private final int maxLength;
+
+    /*
+     * The token read ahead of the current one, the tokens of the current sentence and whether it has had a terminal
+     * punctuation mark followed by nothing but closing marks
+     */
+    private State next;
+    private boolean exhausted;
+    private int length;
+    private boolean terminated;
+
+    /*
+     * The term of the token before the current one, if it could be a title, and where it ends
+     */
+    private final char[] previous = new char[MAX_TITLE_LENGTH];
+    private int previousLength;
+    private int previousEnd = -1;
+
+    private static final int TOKEN_COUNT = 0, SENTENCE_COUNT = 1, LONG_COUNT = 2;
+    private final DocumentCounts counts = new DocumentCounts(AnalysisMetrics.stageIfEnabled(METRICS_NAME),
+            StageMetrics.TOKENS, SENTENCES, LONG_SENTENCES);
+
+    public SentenceFilter(TokenStream input) {
+        this(input, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param input the tokens
+     * @param maxLength the most tokens a sentence has unless a span goes on past them
+     */
+    public SentenceFilter(TokenStream input, int maxLength) {
+        super(input);
+        if (maxLength < 1) {
+            throw new IllegalArgumentException("maxLength must be at least 1 but was " + maxLength);
+        }
+        this.maxLength = maxLength;
+    }
+
+    public void setMetrics(StageMetrics metrics) {
+        counts.setMetrics(metrics);
+    }
+
+    public StageMetrics getMetrics() {
+        return counts.getMetrics();
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (next != null) {
+            restoreState(next);
+            next = null;
+        } else if (exhausted || !input.incrementToken()) {
+            exhausted = true;
+            return false;
+        }
+        counts.increment(TOKEN_COUNT);
+        length++;
+        final int start = offsetAtt.startOffset();
+        final boolean terminal = isTerminal() && !isAbbreviation(start);
+        final boolean closing = terminated && isClosing(start == previousEnd);
+        terminated = terminal || closing;
+        boolean end = false;
+        if (!isInsideSpan()) {
+            if (terminated) {
+                end = endsSentence();
+            }
+            if (!end && length >= maxLength) {
+                end = true;
+                counts.increment(LONG_COUNT);
+            }
+        }
+        sentenceAtt.setSentenceEnd(end);
+        if (end) {
+            counts.increment(SENTENCE_COUNT);
+            length = 0;
+            terminated = false;
+        }
+        remember();
+        return true;
+    }
+
+    /**
+     * Reads the token after the current run of terminal and closing marks to see whether the run ends the sentence.
+     * The end of the stream ends it too.
+     */
+    private boolean endsSentence() throws IOException {
+        final int end = offsetAtt.endOffset();
+        final State current = captureState();
+        if (!input.incrementToken()) {
+            exhausted = true;
+            restoreState(current);
+            return true;
+        }
+        final int start = offsetAtt.startOffset();
+        final boolean ends = start > end && !isTerminal() && !isClosing(false) && !startsLowercase();
+        next = captureState();
+        restoreState(current);
+        return ends;
+    }
+
+    private boolean isTerminal() {
+        if (!entityAtt.isPunctuationMark() || termAtt.length() != 1) {
+            return false;
+        }
+        switch (termAtt.buffer()[0]) {
+            case '.':
+            case '!':
+            case '?':
+            case '\u2026': // ellipsis
+            case '\u203c': // double exclamation mark
+            case '\u2047': // double question mark
+            case '\u2048': // question exclamation mark
+            case '\u2049': // exclamation question mark
+            case '\u061f': // Arabic question mark
+            case '\u0964': // Devanagari danda
+            case '\u0965': // Devanagari double danda
+            case '\u3002': // ideographic full stop
+            case '\uff01': // fullwidth exclamation mark
+            case '\uff0e': // fullwidth full stop
+            case '\uff1f': // fullwidth question mark
+            case '\uff61': // halfwidth ideographic full stop
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param attached true if the token starts where the one before it ends, in which case a straight quote closes
+     * what comes before it rather than opening what comes after it
+     */
+    private boolean isClosing(boolean attached) {
+        if (!entityAtt.isPunctuationMark() || termAtt.length() != 1) {
+            return false;
+        }
+        final char c = termAtt.buffer()[0];
+        final int type = UCharacter.getType(c);
+        return type == UCharacterCategory.END_PUNCTUATION || type == UCharacterCategory.FINAL_QUOTE_PUNCTUATION ||
+                (attached && (c == '"' || c == '\''));
+    }
+
+    private boolean isAbbreviation(int start) {
+        return termAtt.buffer()[0] == '.' && previousEnd == start && previousLength > 0 &&
+                ((previousLength == 1 && UCharacter.isLetter(previous[0])) ||
+                        TITLES.contains(previous, 0, previousLength));
+    }
+
+    private boolean startsLowercase() {
+        return termAtt.length() > 0 && UCharacter.isLowerCase(termAtt.buffer()[0]);
+    }
+
+    private boolean isInsideSpan() {
+        final byte span = entityAtt.getEntitySpan();
+        final byte dictionarySpan = EntityLabels.spanOf(entityAtt.getDictionaryLabel());
+        return span == BEGIN_SPAN || span == INSIDE_SPAN || dictionarySpan == BEGIN_SPAN ||
+                dictionarySpan == INSIDE_SPAN;
+    }
+
+    /**
+     * Keeps the term of the current token if it is short enough to be a title.
+     */
+    private void remember() {
+        final int termLength = termAtt.length();
+        if (termLength <= MAX_TITLE_LENGTH) {
+            System.arraycopy(termAtt.buffer(), 0, previous, 0, termLength);
+            previousLength = termLength;
+        } else {
+            previousLength = 0;
+        }
+        previousEnd = offsetAtt.endOffset();
+    }
+
+    @Override
+    public void end() throws IOException {
+        super.end();
+        counts.flush();
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        counts.flush();
+        next = null;
+        exhausted = false;
+        length = 0;
+        terminated = false;
+        previousLength = 0;
+        previousEnd = -1;
+    }
+}
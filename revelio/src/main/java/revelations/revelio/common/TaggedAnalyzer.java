@@ -0,0 +1,82 @@
+package revelations.revelio.common;
+
+import org.apache.lucene.analysis.ReusableAnalyzerBase;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.util.Version;
+import revelations.revelio.gazetteer.Gazetteer;
+import revelations.revelio.gazetteer.GazetteerFilter;
+
+import java.io.Reader;
+import java.util.Set;
+
+/**
+ * Analyzes tagged text with a {@link TaggedTokenizer} followed by an {@link EntityTagFilter} and, when the analyzer
+ * has a {@link Gazetteer}, a {@link GazetteerFilter}. The chain is built once
+ * per thread and reused for every document through {@link #reusableTokenStream(String, Reader)}, which resets the
+ * tokenizer with the new reader instead of setting up new attributes and buffers. One analyzer can be shared by any
+ * number of threads.
+ * <pre>
+ * TokenStream stream = analyzer.reusableTokenStream("text", reader);
+ * stream.reset();
+ * while (stream.incrementToken()) {
+ *     ...
+ * }
+ * stream.end();
+ * </pre>
+ */
+public final class TaggedAnalyzer extends ReusableAnalyzerBase {
+
+    private final Version matchVersion;
+    private final Set<String> entityTags;
+    private final Gazetteer gazetteer;
+    private final CharClasses classes;
+
+    /**
+     * Creates an analyzer which recognizes the {@link TaggedTokenizer#DEFAULT_ENTITY_TAGS}
+     *
+     * @param matchVersion Lucene version to match
+     */
+    public TaggedAnalyzer(Version matchVersion) {
+        this(matchVersion, TaggedTokenizer.DEFAULT_ENTITY_TAGS);
+    }
+
+    /**
+     * @param matchVersion Lucene version to match
+     * @param entityTags   the names of the tags to recognize as entity markup, such as ENAMEX
+     */
+    public TaggedAnalyzer(Version matchVersion, Set<String> entityTags) {
+        this(matchVersion, entityTags, null);
+    }
+
+    /**
+     * @param matchVersion Lucene version to match
+     * @param entityTags   the names of the tags to recognize as entity markup, such as ENAMEX
+     * @param gazetteer    the gazetteer to mark names with or null for none
+     */
+    public TaggedAnalyzer(Version matchVersion, Set<String> entityTags, Gazetteer gazetteer) {
+        this(matchVersion, entityTags, gazetteer, CharClasses.getDefault());
+    }
+
+    /**
+     * @param matchVersion Lucene version to match
+     * @param entityTags   the names of the tags to recognize as entity markup, such as ENAMEX
+     * @param gazetteer    the gazetteer to mark names with or null for none
+     * @param classes      the classes of chars to split text by, such as {@link CharClasses#forLanguage(String)}
+     */
+    public TaggedAnalyzer(Version matchVersion, Set<String> entityTags, Gazetteer gazetteer, CharClasses classes) {
+        this.matchVersion = matchVersion;
+        this.entityTags = entityTags;
+        this.gazetteer = gazetteer;
+        this.classes = classes;
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+        TaggedTokenizer source = new TaggedTokenizer(matchVersion, reader, entityTags, classes);
+        TokenStream sink = new EntityTagFilter(source, classes);
+        if (gazetteer != null) {
+            sink = new GazetteerFilter(sink, gazetteer);
+        }
+        return new TokenStreamComponents(source, sink);
+    }
+}
@@ -1,30 +1,85 @@
 package revelations.revelio.common;
 
 import static revelations.revelio.common.BilouTags.*;
+import static revelations.revelio.common.CharClasses.MATH_SYMBOL;
+import static revelations.revelio.common.CharClasses.PUNCTUATION;
+import static revelations.revelio.common.CharClasses.SPLIT;
+import static revelations.revelio.common.CharClasses.WHITESPACE;
 
 import java.io.IOException;
 import java.io.Reader;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
-import com.ibm.icu.lang.UCharacter;
-import com.ibm.icu.lang.UCharacterCategory;
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.CharacterUtils;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.apache.lucene.util.Version;
 import org.apache.lucene.util.CharacterUtils.CharacterBuffer;
+import revelations.revelio.metrics.AnalysisMetrics;
+import revelations.revelio.metrics.ByteCounter;
+import revelations.revelio.metrics.DocumentCounts;
+import revelations.revelio.metrics.StageMetrics;
 
 /**
+ * Splits text into words and punctuation marks and keeps entity markup such as
+ * <code>&lt;ENAMEX TYPE="PERSON"&gt;David Lynch&lt;/ENAMEX&gt;</code> together as a single token whose entity span
+ * type is {@link BilouTags#ENTITY_TYPE}.
+ * <p>
+ * Markup is recognized by a small state machine which keeps its state while the io buffer is refilled, so a tag
+ * is recognized wherever it falls in the input and however long the entity is. When a candidate tag turns out not
+ * to be entity markup, the characters after the <code>&lt;</code> are scanned again as plain text.
+ * </p>
+ * <p>
+ * Whitespace, punctuation and the chars of scripts written without spaces are looked up in the {@link CharClasses}
+ * of the tokenizer, which are compiled into tables up front, so the tokenizer is set up for a language by giving it
+ * the classes of the language, such as {@link CharClasses#forLanguage(String)}, and doesn't get any slower for it.
+ * The classes are the one place to change which chars are punctuation marks, whitespace or words of their own; a
+ * {@link CharClasses.Builder} starts from the default classes and changes sets of chars.
+ * </p>
+ * <p>
+ * With {@link AnalysisMetrics} turned on the tokenizer counts the tokens it emits, the entity tags it recognizes
+ * and rejects, the tokens it cuts at the maximum word length and the chars it reads, as well as the bytes for a
+ * reader which is a {@link ByteCounter}, and records the latency of every document from its first token to
+ * {@link #end()}.
+ * </p>
+ *
  * @author Christian Hargraves
  *         Date: 5/3/12
  */
 public final class TaggedTokenizer extends Tokenizer {
+    /**
+     * The name of the metrics of the tokenizer and of its counters
+     */
+    public static final String METRICS_NAME = "TaggedTokenizer";
+    public static final String ENTITY_TAGS = "entityTags";
+    public static final String REJECTED_TAGS = "rejectedTags";
+    public static final String TRUNCATED_TOKENS = "truncatedTokens";
+
+    /**
+     * The names of the tags which are recognized as entity markup when no others are given.
+     */
+    public static final Set<String> DEFAULT_ENTITY_TAGS =
+            Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList("ENAMEX", "TIMEX", "NUMEX")));
 
     private int offset = 0, bufferIndex = 0, dataLen = 0, finalOffset = 0;
     private static final int MAX_WORD_LEN = 255;
     private static final int IO_BUFFER_SIZE = 4096;
+    /**
+     * Markup which is not closed within this many chars is treated as text. This keeps a broken tag from pulling
+     * the rest of a large file into the term buffer.
+     */
+    static final int MAX_TAG_LEN = 1 << 20;
+
+    /*
+     * States of the entity tag recognizer
+     */
+    private static final int TAG_NAME = 0, TAG_BODY = 1, TAG_BODY_LT = 2, END_TAG = 3;
 
     private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
     private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
@@ -32,12 +87,41 @@ public final class TaggedTokenizer extends Tokenizer {
 
     private final CharacterUtils charUtils;
     private final CharacterBuffer ioBuffer = CharacterUtils.newCharacterBuffer(IO_BUFFER_SIZE);
-    private static final Set<String> entityTypes = new HashSet<String>();
+    private final char[][] entityTags;
+    private final CharClasses classes;
+
+    /*
+     * The chars currently being scanned. This is the io buffer, or the replay buffer while chars of a rejected
+     * tag are scanned again. The offset is the position of the first char of the buffer in the input.
+     */
+    private char[] buffer = ioBuffer.getBuffer();
+    private char[] replay;
+    private boolean replaying;
+    private int ioIndex, ioLen, ioOffset;
+    private int fills;
+
+    /*
+     * State of the token being built. It is reused for every token so the scanning loop does not allocate.
+     */
+    private char[] termBuffer;
+    private int tokenStart, tokenEnd, tokenLength;
+
+    private static final int TOKEN_COUNT = 0, ENTITY_TAG_COUNT = 1, REJECTED_TAG_COUNT = 2, TRUNCATED_COUNT = 3,
+            CHAR_COUNT = 4, BYTE_COUNT = 5, DOCUMENT_COUNT = 6;
+    private final DocumentCounts counts = new DocumentCounts(AnalysisMetrics.stageIfEnabled(METRICS_NAME),
+            StageMetrics.TOKENS, ENTITY_TAGS, REJECTED_TAGS, TRUNCATED_TOKENS, StageMetrics.CHARS_READ,
+            StageMetrics.BYTES_READ, StageMetrics.DOCUMENTS);
+    private long bytesAtStart, documentStart;
+    private boolean documentStarted;
 
-    static {
-        entityTypes.add("<ENAMEX");
-        entityTypes.add("<TIMEX");
-        entityTypes.add("<NUMEX");
+    /**
+     * Creates a new {@link TaggedTokenizer} instance which recognizes the {@link #DEFAULT_ENTITY_TAGS}
+     *
+     * @param matchVersion Lucene version to match See {@link <a href="#version">above</a>}
+     * @param input        the input to split up into tokens
+     */
+    public TaggedTokenizer(Version matchVersion, Reader input) {
+        this(matchVersion, input, DEFAULT_ENTITY_TAGS);
     }
 
     /**
@@ -45,11 +129,44 @@ public final class TaggedTokenizer extends Tokenizer {
      *
      * @param matchVersion Lucene version to match See {@link <a href="#version">above</a>}
      * @param input        the input to split up into tokens
+     * @param entityTags   the names of the tags to recognize as entity markup, such as ENAMEX
      */
-    public TaggedTokenizer(Version matchVersion, Reader input) {
+    public TaggedTokenizer(Version matchVersion, Reader input, Set<String> entityTags) {
+        this(matchVersion, input, entityTags, CharClasses.getDefault());
+    }
+
+    /**
+     * Creates a new {@link TaggedTokenizer} instance
+     *
+     * @param matchVersion Lucene version to match See {@link <a href="#version">above</a>}
+     * @param input        the input to split up into tokens
+     * @param entityTags   the names of the tags to recognize as entity markup, such as ENAMEX
+     * @param classes      the classes of chars to split the input by, such as those of its language
+     */
+    public TaggedTokenizer(Version matchVersion, Reader input, Set<String> entityTags, CharClasses classes) {
         super(input);
+        this.classes = classes;
         charUtils = CharacterUtils.getInstance(matchVersion);
+        this.entityTags = new char[entityTags.size()][];
+        int i = 0;
+        for (String tag : entityTags) {
+            this.entityTags[i++] = tag.toCharArray();
+        }
+    }
+
+    public void setMetrics(StageMetrics metrics) {
+        counts.setMetrics(metrics);
+    }
+
+    public StageMetrics getMetrics() {
+        return counts.getMetrics();
+    }
 
+    /**
+     * @return the classes of chars the tokenizer splits the input by
+     */
+    public CharClasses getCharClasses() {
+        return classes;
     }
 
     /**
@@ -59,193 +176,274 @@ public final class TaggedTokenizer extends Tokenizer {
      * boundaries and are not included in tokens.
      */
     protected boolean isTokenChar(int c) {
-        return !UCharacter.isUWhiteSpace(c);
-    }
-
-    /**
-     * Returns true if a codepoint should be considered a punctuation mark. This
-     * tells the tokenizer to include this as a separate token.
-     */
-    protected boolean isPunctuationChar(int type) {
-        return ((type >= UCharacterCategory.DASH_PUNCTUATION &&
-                type <= UCharacterCategory.OTHER_PUNCTUATION)
-                ||
-                (type >= UCharacterCategory.INITIAL_PUNCTUATION &&
-                        type <= UCharacterCategory.FINAL_QUOTE_PUNCTUATION
-                ));
+        return classes.isTokenChar(c);
     }
 
     @Override
     public final boolean incrementToken() throws IOException {
-        //TODO: Need to make this shorter.
         clearAttributes();
-        final TokenMetaData meta = new TokenMetaData(termAtt.buffer(), -1, 0, -1);
+        termBuffer = termAtt.buffer();
+        tokenStart = -1;
+        tokenEnd = -1;
+        tokenLength = 0;
+        if (counts.getMetrics() != null && !documentStarted) {
+            startDocument();
+        }
         while (true) {
-            if (bufferIndex >= dataLen) {
-                offset += dataLen;
-                if (!charUtils.fill(ioBuffer, input)) { // read supplementary char aware with CharacterUtils
-                    dataLen = 0; // so next startOffset += dataLen won't decrement startOffset
-                    if (meta.length > 0) {
-                        break;
-                    } else {
-                        finalOffset = correctOffset(offset);
-                        return false;
-                    }
+            if (bufferIndex >= dataLen && !fill()) {
+                if (tokenLength > 0) {
+                    break;
+                } else {
+                    finalOffset = correctOffset(offset);
+                    return false;
                 }
-                dataLen = ioBuffer.getLength();
-                bufferIndex = 0;
             }
-            // use CharacterUtils here to support < 3.1 UTF-16 code unit behavior if the char based methods are gone
-            final TokenHelper tokenHelper = new TokenHelper(bufferIndex);
-            bufferIndex += tokenHelper.charCount;
+            final int c = Character.codePointAt(buffer, bufferIndex, dataLen);
+            final int charCount = Character.charCount(c);
+            final int cFlags = classes.flags(c);
+            final int position = offset + bufferIndex;
+            bufferIndex += charCount;
 
-            if (isPunctuationChar(tokenHelper.currentType)) {
-                addChar(meta, meta.buffer, tokenHelper.c, tokenHelper.charCount);
+            if ((cFlags & PUNCTUATION) != 0) {
+                addChar(c, position, charCount);
                 entityAtt.setIsPunctuationMark(true);
                 break;
-            } else if (isTokenChar(tokenHelper.c)) {               // if it's a token char
-                addChar(meta, meta.buffer, tokenHelper.c, tokenHelper.charCount);
-                if (meta.length >= MAX_WORD_LEN || // buffer overflow! make sure to check for >= surrogate pair could break == test
-                        ((isPunctuationChar(UCharacter.getType(tokenHelper.nc)) || UCharacter.getType(tokenHelper.nc) == UCharacterCategory.MATH_SYMBOL)))
+            } else if ((cFlags & SPLIT) != 0) {   // a char of a script written without spaces is a word of its own
+                addChar(c, position, charCount);
+                break;
+            } else if ((cFlags & WHITESPACE) == 0) {               // if it's a token char
+                addChar(c, position, charCount);
+                if (tokenLength >= MAX_WORD_LEN) { // buffer overflow! make sure to check for >= surrogate pair could break == test
+                    counts.increment(TRUNCATED_COUNT);
+                    break;
+                }
+                if ((peekFlags() & (PUNCTUATION | MATH_SYMBOL | SPLIT)) != 0)
                     break;
-//                if (tokenHelper.charCount == 1) {
                 //Loop until you you know for sure it's an entity tag.
-                if (tokenHelper.chars[0] == '<') {//detect if it's a start tag or an end tag.
-                    lookForTag(meta, tokenHelper);
+                if (c == '<') {//detect if it's a start tag or an end tag.
+                    if (lookForTag()) {
+                        entityAtt.setEntitySpan(ENTITY_SPAN);
+                        counts.increment(ENTITY_TAG_COUNT);
+                    } else {
+                        entityAtt.setIsPunctuationMark(true);
+                        counts.increment(REJECTED_TAG_COUNT);
+                    }
                     break;
-                }else if (tokenHelper.currentType == UCharacterCategory.MATH_SYMBOL){
+                } else if ((cFlags & MATH_SYMBOL) != 0) {
                     entityAtt.setIsPunctuationMark(true);
                     break;
                 }
-            } else if (meta.length > 0) { // at non-Letter, non-punctuation, but possibly math symbol [<,=,>] w/ chars
+            } else if (tokenLength > 0) { // at non-Letter, non-punctuation, but possibly math symbol [<,=,>] w/ chars
                 break;
             }
         }
-        termAtt.setLength(meta.length);
+        termAtt.setLength(tokenLength);
+
+        assert tokenStart != -1;
+        offsetAtt.setOffset(correctOffset(tokenStart), finalOffset = correctOffset(tokenEnd));
+        counts.increment(TOKEN_COUNT);
+        return true;
+    }
 
-        assert meta.start != -1;
-        offsetAtt.setOffset(correctOffset(meta.start), finalOffset = correctOffset(meta.end));
+    /**
+     * Moves on to the next chars to scan once the current buffer is used up. Chars which are being replayed are
+     * used up first, then the io buffer picks up where it left off and is refilled from the input.
+     *
+     * @return false at the end of the input
+     */
+    private boolean fill() throws IOException {
+        fills++;
+        if (replaying) {
+            replaying = false;
+            buffer = ioBuffer.getBuffer();
+            bufferIndex = ioIndex;
+            dataLen = ioLen;
+            offset = ioOffset;
+            if (bufferIndex < dataLen) {
+                return true;
+            }
+        }
+        offset += dataLen;
+        bufferIndex = 0;
+        if (!charUtils.fill(ioBuffer, input)) { // read supplementary char aware with CharacterUtils
+            dataLen = 0; // so next startOffset += dataLen won't decrement startOffset
+            return false;
+        }
+        dataLen = ioBuffer.getLength();
+        counts.add(CHAR_COUNT, dataLen);
         return true;
     }
 
-    private void lookForTag(TokenMetaData meta, TokenHelper tokenHelper) {
-        //TODO: We shouldn't need a token. This is just me being lazy...
-
-        StringBuilder token = new StringBuilder();
-        token.appendCodePoint(tokenHelper.c);
-        int index = bufferIndex;
-        final TokenMetaData subMeta = new TokenMetaData(termAtt.buffer(), meta.start, meta.length, meta.end);
-        while (index < ioBuffer.getLength()) {
-            final TokenHelper subTokenHelper = new TokenHelper(index++);
-            addChar(subMeta, meta.buffer, subTokenHelper.c, subTokenHelper.charCount);
-            if (!meta.isPossibleEntityEnd && meta.isEntityStart &&
-                    subTokenHelper.chars[0] == '<' && subTokenHelper.nchars.length > 0 && subTokenHelper.nchars[0] == '/') {
-                token.appendCodePoint(subTokenHelper.c);
-                meta.isPossibleEntityEnd = true;
-                meta.isEntityStart = false;
-            } else if (meta.isPossibleEntityEnd && isTokenChar(subTokenHelper.c) && subTokenHelper.c == '>') {
-                token.appendCodePoint(subTokenHelper.c);
-                meta.isEntityEnd = true;
-                meta.isPossibleEntityEnd = false;
+    /**
+     * Returns the character class flags of the next code point without consuming it, refilling the buffer if the
+     * next code point has not been read yet.
+     */
+    private int peekFlags() throws IOException {
+        if (bufferIndex >= dataLen && !fill()) {
+            return 0;
+        }
+        return classes.flags(Character.codePointAt(buffer, bufferIndex, dataLen));
+    }
+
+    /**
+     * Tries to read the rest of an entity tag after its opening &lt; has been added to the token. The tag may
+     * span any number of buffer refills.
+     *
+     * @return true if the token is now a complete entity tag. Otherwise the token is left as the &lt; and the
+     * chars after it are scanned again.
+     */
+    private boolean lookForTag() throws IOException {
+        final int length = tokenLength;
+        final int end = tokenEnd;
+        final int startIndex = bufferIndex;
+        final int startFills = fills;
+        int state = TAG_NAME;
+        while (bufferIndex < dataLen || fill()) {
+            final int c = Character.codePointAt(buffer, bufferIndex, dataLen);
+            final int charCount = Character.charCount(c);
+            addChar(c, offset + bufferIndex, charCount);
+            bufferIndex += charCount;
+            if (tokenLength - length >= MAX_TAG_LEN) {
                 break;
-            } else if (!meta.isEntityStart && !isTokenChar(subTokenHelper.c)) { //we get one try at this.
-                String tagName = token.toString();
-                if (entityTypes.contains(tagName)) {
-                    meta.isEntityStart = true;
-                    token.appendCodePoint(subTokenHelper.c);
-                } else {
+            }
+            if (state == TAG_NAME) {
+                if (!isTokenChar(c)) { //we get one try at this.
+                    if (!isEntityTag(length, tokenLength - 1, false)) {
+                        break;
+                    }
+                    state = TAG_BODY;
+                } else if (!isEntityTag(length, tokenLength, true)) {
                     break;
                 }
-            }else{
-                token.appendCodePoint(subTokenHelper.c);
+            } else if (state == TAG_BODY) {
+                if (c == '<') {
+                    state = TAG_BODY_LT;
+                }
+            } else if (state == TAG_BODY_LT) {
+                if (c == '/') {
+                    state = END_TAG;
+                } else if (c != '<') {
+                    state = TAG_BODY;
+                }
+            } else if (c == '>') {
+                return true;
+            } else if (!isTokenChar(c)) {
+                break;
             }
+        }
+        // not a tag, so scan everything after the < again
+        if (fills == startFills) {
+            bufferIndex = startIndex;
+        } else if (tokenLength > length) {
+            replay(length, tokenLength, end);
+        }
+        tokenLength = length;
+        tokenEnd = end;
+        return false;
+    }
 
+    /**
+     * Returns true if the term buffer chars between start and end are the name of one of the entity tags, or the
+     * beginning of one.
+     */
+    private boolean isEntityTag(int start, int end, boolean prefix) {
+        final int length = end - start;
+        for (char[] tag : entityTags) {
+            if (tag.length == length || (prefix && tag.length > length)) {
+                int i = 0;
+                while (i < length && tag[i] == termBuffer[start + i]) {
+                    i++;
+                }
+                if (i == length) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Puts the term buffer chars between start and end in front of the chars which are still to be scanned.
+     *
+     * @param position the offset of the first of the chars in the input
+     */
+    private void replay(int start, int end, int position) {
+        final int length = end - start;
+        final int remaining = dataLen - bufferIndex;
+        if (!replaying) {
+            ioIndex = bufferIndex;
+            ioLen = dataLen;
+            ioOffset = offset;
         }
-        if (meta.isEntityEnd) {
-            meta.buffer = subMeta.buffer;
-            meta.end = subMeta.end;
-            meta.length = subMeta.length;
-            bufferIndex += subMeta.length - 1;
-            entityAtt.setEntitySpanType(ENTITY_TYPE);
-        }else{
-            entityAtt.setIsPunctuationMark(true);
+        if (replay == null || replay.length < length + (replaying ? remaining : 0)) {
+            char[] grown = new char[ArrayUtil.oversize(length + remaining, RamUsageEstimator.NUM_BYTES_CHAR)];
+            if (replaying) {
+                System.arraycopy(buffer, bufferIndex, grown, length, remaining);
+            }
+            replay = grown;
+        } else if (replaying) {
+            System.arraycopy(replay, bufferIndex, replay, length, remaining);
         }
+        System.arraycopy(termBuffer, start, replay, 0, length);
+        dataLen = length + (replaying ? remaining : 0);
+        replaying = true;
+        buffer = replay;
+        bufferIndex = 0;
+        offset = position;
     }
 
-    protected void addChar(TokenMetaData meta, char[] buffer, int c, int charCount) {
-        if (meta.length == 0) {                // start of token
-            assert meta.start == -1;
-            meta.start = offset + bufferIndex - charCount;
-            meta.end = meta.start;
-        } else if (meta.length >= buffer.length - 1) { // check if a supplementary could run out of bounds
-            buffer = termAtt.resizeBuffer(2 + meta.length); // make sure a supplementary fits in the buffer
+    private void addChar(int c, int position, int charCount) {
+        if (tokenLength == 0) {                // start of token
+            assert tokenStart == -1;
+            tokenStart = position;
+            tokenEnd = tokenStart;
+        } else if (tokenLength >= termBuffer.length - 1) { // check if a supplementary could run out of bounds
+            termBuffer = termAtt.resizeBuffer(2 + tokenLength); // make sure a supplementary fits in the buffer
         }
-        meta.end += charCount;
-        meta.length += UCharacter.toChars(c, buffer, meta.length); // buffer it, normalized
+        tokenEnd += charCount;
+        tokenLength += Character.toChars(c, termBuffer, tokenLength); // buffer it, normalized
     }
 
     @Override
     public final void end() {
         // set final startOffset
         offsetAtt.setOffset(finalOffset, finalOffset);
+        final StageMetrics metrics = counts.getMetrics();
+        if (metrics != null && documentStarted) {
+            metrics.getLatency().record(System.nanoTime() - documentStart);
+            counts.increment(DOCUMENT_COUNT);
+        }
+        flushMetrics();
+    }
+
+    private void startDocument() {
+        documentStarted = true;
+        documentStart = System.nanoTime();
+        bytesAtStart = (input instanceof ByteCounter) ? ((ByteCounter) input).getBytesRead() : 0;
+    }
+
+    /**
+     * Counts the bytes the document was read from, when the reader counts them, before the counts are flushed.
+     */
+    private void flushMetrics() {
+        if (documentStarted && input instanceof ByteCounter) {
+            counts.add(BYTE_COUNT, ((ByteCounter) input).getBytesRead() - bytesAtStart);
+        }
+        counts.flush();
+        documentStarted = false;
     }
 
     @Override
     public void reset(Reader input) throws IOException {
+        flushMetrics();
         super.reset(input);
         bufferIndex = 0;
         offset = 0;
         dataLen = 0;
         finalOffset = 0;
+        replaying = false;
+        buffer = ioBuffer.getBuffer();
         ioBuffer.reset(); // make sure to reset the IO buffer!!
     }
 
-    private class TokenMetaData {
-        private int length;
-        private int start = -1;
-        private int end = -1;
-        private char[] buffer;
-        private boolean isEntityStart;
-        private boolean isEntityEnd;
-        private boolean isPossibleEntityEnd;
-
-        TokenMetaData(char[] b, int start, int length, int end) {
-            this.buffer = b;
-            this.start = start;
-            this.end = end;
-            this.length = length;
-        }
-    }
-
-    private class TokenHelper {
-        final int c;
-        final int nc;
-        final char[] chars;
-        final char[] nchars;
-        final int charCount;
-        final int ncharCount;
-        final int currentType;
-        final int nextType;
-
-        public TokenHelper(int bufferIndex) {
-            c = UCharacter.codePointAt(ioBuffer.getBuffer(), bufferIndex);
-            chars = UCharacter.toChars(c);
-            charCount = UCharacter.charCount(c);
-            currentType = UCharacter.getType(c);
-            if (ioBuffer.getLength() > (bufferIndex + 1)){
-                nc = UCharacter.codePointAt(ioBuffer.getBuffer(), bufferIndex + 1);
-                nchars = UCharacter.toChars(nc);
-                ncharCount = UCharacter.charCount(nc);
-                nextType = UCharacter.getType(nc);
-            }else{
-                nc = -1;
-                nchars = new char[0];
-                ncharCount = 0;
-                nextType = -1;
-            }
-
-        }
-
-    }
-
-}
\ No newline at end of file
+}
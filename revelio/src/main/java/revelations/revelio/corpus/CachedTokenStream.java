@@ -0,0 +1,250 @@
+package revelations.revelio.corpus;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+import revelations.revelio.common.EntityAttribute;
+import revelations.revelio.common.EntityLabels;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static revelations.revelio.common.BilouTags.CUSTOM_SPAN;
+
+/**
+ * Replays a cache written by {@link TokenCacheWriter} one document at a time through the same attributes the
+ * tokenizer and filter set: {@link CharTermAttribute}, {@link OffsetAttribute} and {@link EntityAttribute}.
+ * <pre>
+ * while (stream.nextDocument()) {
+ *     stream.reset();
+ *     while (stream.incrementToken()) {
+ *         ...
+ *     }
+ *     stream.end();
+ * }
+ * stream.close();
+ * </pre>
+ * A document is read into memory as one block and its terms are copied out of a dictionary, so replaying does not
+ * allocate except for terms, entity types and span types the first time they show up. {@link #reset()} starts the
+ * current document over.
+ */
+public final class CachedTokenStream extends TokenStream implements TokenCacheFormat {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    private final EntityAttribute entityAtt = addAttribute(EntityAttribute.class);
+
+    private final InputStream in;
+    private final ByteArrayDataInput block = new ByteArrayDataInput();
+    private byte[] bytes = new byte[1024];
+    private int blockLength;
+    private int tokensStart;
+
+    /*
+     * The dictionaries, which grow as the cache is read. The counts at the start of the current document let
+     * reset() read the document's own definitions again.
+     */
+    private char[][] terms = new char[1024][];
+    private int termCount, documentTermCount;
+    private int[] typeIds = new int[16];
+    private int typeCount, documentTypeCount;
+    private String[] spanTypes = new String[4];
+    private int spanTypeCount, documentSpanTypeCount;
+
+    private int documentNumber;
+    private int documentTokens;
+    private int finalOffset;
+    private int token;
+    private int lastEnd;
+
+    /**
+     * @param in the cache. It is closed when the stream is.
+     */
+    public CachedTokenStream(InputStream in) throws IOException {
+        this.in = new BufferedInputStream(in, 64 * 1024);
+        InputStreamDataInput header = new InputStreamDataInput(this.in);
+        if (header.readInt() != MAGIC) {
+            throw new IOException("Not a token cache");
+        }
+        int version = header.readVInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported token cache version " + version);
+        }
+    }
+
+    /**
+     * Moves to the next document in the cache.
+     *
+     * @return false if there are no more documents
+     */
+    public boolean nextDocument() throws IOException {
+        // the rest of the current document may define terms which later documents use
+        while (token < documentTokens) {
+            incrementToken();
+        }
+        clearAttributes();
+        int length = readDocumentLength();
+        if (length < 0) {
+            documentTokens = 0;
+            token = 0;
+            return false;
+        }
+        readBlock(length);
+        documentTokens = block.readVInt();
+        finalOffset = block.readVInt();
+        tokensStart = block.getPosition();
+        documentTermCount = termCount;
+        documentTypeCount = typeCount;
+        documentSpanTypeCount = spanTypeCount;
+        token = 0;
+        lastEnd = 0;
+        documentNumber++;
+        return true;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (token >= documentTokens) {
+            return false;
+        }
+        clearAttributes();
+        final int termId = block.readVInt();
+        if (termId == termCount) {
+            addTerm(block.readString());
+        }
+        final char[] term = terms[termId];
+        termAtt.copyBuffer(term, 0, term.length);
+
+        final int flags = block.readByte() & 0xFF;
+        int start = lastEnd + 1;
+        if ((flags & HAS_GAP) != 0) {
+            final int zigZag = block.readVInt();
+            start = lastEnd + ((zigZag >>> 1) ^ -(zigZag & 1));
+        }
+        final int length = ((flags & HAS_LENGTH) != 0) ? block.readVInt() : term.length;
+        lastEnd = start + length;
+        offsetAtt.setOffset(start, lastEnd);
+
+        entityAtt.setIsCapitalized((flags & CAPITALIZED) != 0);
+        entityAtt.setIsPunctuationMark((flags & PUNCTUATION) != 0);
+        if ((flags & HAS_TYPE) != 0) {
+            entityAtt.setEntityTypeId(readType());
+        }
+        final byte span = (byte) ((flags >>> SPAN_SHIFT) & SPAN_MASK);
+        if (span == CUSTOM_SPAN) {
+            entityAtt.setEntitySpanType(readSpanType());
+        } else {
+            entityAtt.setEntitySpan(span);
+        }
+        token++;
+        return true;
+    }
+
+    private void addTerm(String term) {
+        if (termCount == terms.length) {
+            char[][] grown = new char[ArrayUtil.oversize(termCount + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF)][];
+            System.arraycopy(terms, 0, grown, 0, termCount);
+            terms = grown;
+        }
+        terms[termCount++] = term.toCharArray();
+    }
+
+    private int readType() throws IOException {
+        final int id = block.readVInt();
+        if (id == typeCount) {
+            if (typeCount == typeIds.length) {
+                typeIds = ArrayUtil.grow(typeIds, typeCount + 1);
+            }
+            typeIds[typeCount++] = EntityLabels.getInstance().typeId(block.readString());
+        }
+        return typeIds[id];
+    }
+
+    private String readSpanType() throws IOException {
+        final int id = block.readVInt();
+        if (id == spanTypeCount) {
+            if (spanTypeCount == spanTypes.length) {
+                String[] grown = new String[spanTypeCount * 2];
+                System.arraycopy(spanTypes, 0, grown, 0, spanTypeCount);
+                spanTypes = grown;
+            }
+            spanTypes[spanTypeCount++] = block.readString();
+        }
+        return spanTypes[id];
+    }
+
+    /**
+     * Starts the current document over.
+     */
+    @Override
+    public void reset() {
+        block.reset(bytes, tokensStart, blockLength - tokensStart);
+        termCount = documentTermCount;
+        typeCount = documentTypeCount;
+        spanTypeCount = documentSpanTypeCount;
+        token = 0;
+        lastEnd = 0;
+    }
+
+    @Override
+    public void end() {
+        offsetAtt.setOffset(finalOffset, finalOffset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * @return the number of the current document, starting at 1
+     */
+    public int getDocumentNumber() {
+        return documentNumber;
+    }
+
+    /**
+     * @return the number of tokens in the current document
+     */
+    public int getDocumentTokens() {
+        return documentTokens;
+    }
+
+    private int readDocumentLength() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            return -1;
+        }
+        int length = b & 0x7F;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException("Token cache ends in the middle of a document length");
+            }
+            length |= (b & 0x7F) << shift;
+        }
+        return length;
+    }
+
+    private void readBlock(int length) throws IOException {
+        if (bytes.length < length) {
+            bytes = new byte[ArrayUtil.oversize(length, RamUsageEstimator.NUM_BYTES_BYTE)];
+        }
+        int read = 0;
+        while (read < length) {
+            int n = in.read(bytes, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Token cache ends in the middle of a document");
+            }
+            read += n;
+        }
+        blockLength = length;
+        block.reset(bytes, 0, length);
+    }
+}
@@ -0,0 +1,58 @@
+package revelations.revelio.corpus;
+
+/**
+ * A range of whole lines of a {@link MappedCorpus} which can be tokenized on its own.
+ */
+public class CorpusRange {
+
+    private final MappedCorpus corpus;
+    private final long byteStart;
+    private final long byteEnd;
+    private final long charStart;
+
+    CorpusRange(MappedCorpus corpus, long byteStart, long byteEnd, long charStart) {
+        this.corpus = corpus;
+        this.byteStart = byteStart;
+        this.byteEnd = byteEnd;
+        this.charStart = charStart;
+    }
+
+    /**
+     * Creates a reader which decodes this range. It reports offsets as positions in the whole file.
+     *
+     * @return a new reader starting at the beginning of the range
+     */
+    public MappedCorpusReader reader() {
+        return new MappedCorpusReader(corpus, byteStart, byteEnd, charStart);
+    }
+
+    public MappedCorpus getCorpus() {
+        return corpus;
+    }
+
+    /**
+     * @return the position in the file of the first byte of the range
+     */
+    public long getByteStart() {
+        return byteStart;
+    }
+
+    /**
+     * @return the position in the file right after the last byte of the range
+     */
+    public long getByteEnd() {
+        return byteEnd;
+    }
+
+    /**
+     * @return the number of chars in the file in front of the range
+     */
+    public long getCharStart() {
+        return charStart;
+    }
+
+    @Override
+    public String toString() {
+        return corpus.getFile().getName() + "[" + byteStart + ", " + byteEnd + ")";
+    }
+}
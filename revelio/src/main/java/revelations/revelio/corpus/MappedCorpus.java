@@ -0,0 +1,230 @@
+package revelations.revelio.corpus;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A UTF-8 corpus file with one document per line which is read through memory mapped segments instead of an
+ * InputStreamReader. {@link #reader()} decodes the whole file and {@link #split(int)} cuts it at line breaks into
+ * ranges which threads can tokenize independently. Either way the {@link MappedCorpusReader} decodes straight from
+ * the mapped file into the buffer of the tokenizer and reports offsets as positions in the whole file.
+ * <p>
+ * Offsets are counted in chars, so splitting a file has to count the chars in front of each range. That is a single
+ * scan over the bytes of the file which can run on an executor, one range per task. The count is exact for valid
+ * UTF-8.
+ * </p>
+ */
+public class MappedCorpus implements Closeable {
+
+    static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final long size;
+    private final int segmentSize;
+
+    public MappedCorpus(File file) throws IOException {
+        this(file, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize the most bytes to map at a time
+     */
+    MappedCorpus(File file, int segmentSize) throws IOException {
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("segmentSize must be at least 1 but was " + segmentSize);
+        }
+        this.file = file;
+        this.segmentSize = segmentSize;
+        this.randomAccessFile = new RandomAccessFile(file, "r");
+        this.channel = randomAccessFile.getChannel();
+        this.size = channel.size();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the size of the file in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Creates a reader over the whole file.
+     *
+     * @return a new reader starting at the beginning of the file
+     */
+    public MappedCorpusReader reader() {
+        return new CorpusRange(this, 0, size, 0).reader();
+    }
+
+    /**
+     * Splits the file into about equal ranges which start right after a line break, counting the chars in front of
+     * each range on the calling thread.
+     *
+     * @param parts the number of ranges wanted. There are fewer if the file has fewer lines.
+     * @return the ranges in the order of the file
+     */
+    public List<CorpusRange> split(int parts) throws IOException {
+        long[] bounds = bounds(parts);
+        List<CorpusRange> ranges = new ArrayList<CorpusRange>(bounds.length - 1);
+        long charStart = 0;
+        for (int i = 0; i < bounds.length - 1; i++) {
+            ranges.add(new CorpusRange(this, bounds[i], bounds[i + 1], charStart));
+            charStart += countChars(bounds[i], bounds[i + 1]);
+        }
+        return ranges;
+    }
+
+    /**
+     * Splits the file into about equal ranges which start right after a line break, counting the chars of each range
+     * as a task on the executor.
+     *
+     * @param parts the number of ranges wanted. There are fewer if the file has fewer lines.
+     * @param executor runs the scans of the ranges
+     * @return the ranges in the order of the file
+     */
+    public List<CorpusRange> split(int parts, ExecutorService executor) throws IOException, InterruptedException {
+        final long[] bounds = bounds(parts);
+        List<Callable<Long>> counts = new ArrayList<Callable<Long>>(bounds.length - 1);
+        for (int i = 0; i < bounds.length - 1; i++) {
+            final int range = i;
+            counts.add(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return countChars(bounds[range], bounds[range + 1]);
+                }
+            });
+        }
+        List<CorpusRange> ranges = new ArrayList<CorpusRange>(bounds.length - 1);
+        long charStart = 0;
+        int i = 0;
+        for (Future<Long> count : executor.invokeAll(counts)) {
+            ranges.add(new CorpusRange(this, bounds[i], bounds[i + 1], charStart));
+            try {
+                charStart += count.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException("Unable to count the chars of " + file, cause);
+            }
+            i++;
+        }
+        return ranges;
+    }
+
+    /**
+     * Finds where each range starts. Every boundary is right after a line break, so no line, tag or UTF-8 sequence
+     * is ever cut in two.
+     */
+    private long[] bounds(int parts) throws IOException {
+        if (parts < 1) {
+            throw new IllegalArgumentException("parts must be at least 1 but was " + parts);
+        }
+        long[] bounds = new long[parts + 1];
+        int count = 1;
+        for (int i = 1; i < parts; i++) {
+            long bound = lineStartAfter(Math.max(bounds[count - 1], size / parts * i));
+            if (bound >= size) {
+                break;
+            }
+            if (bound > bounds[count - 1]) {
+                bounds[count++] = bound;
+            }
+        }
+        bounds[count++] = size;
+        long[] trimmed = new long[count];
+        System.arraycopy(bounds, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    private long lineStartAfter(long position) throws IOException {
+        if (position == 0) {
+            return 0;
+        }
+        ByteBuffer scan = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long at = position - 1;
+        while (at < size) {
+            scan.clear();
+            int read = channel.read(scan, at);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (scan.get(i) == '\n') {
+                    return at + i + 1;
+                }
+            }
+            at += read;
+        }
+        return size;
+    }
+
+    /**
+     * Counts the chars the bytes decode to. Each UTF-8 sequence is one char except for four byte sequences, which
+     * are a surrogate pair. The bytes are copied out of the mapping in bulk since that is much faster than reading
+     * them from it one at a time.
+     */
+    long countChars(long start, long end) {
+        final byte[] chunk = new byte[SCAN_BUFFER_SIZE];
+        long chars = 0;
+        long position = start;
+        while (position < end) {
+            MappedByteBuffer segment = map(position, end);
+            position += segment.limit();
+            while (segment.hasRemaining()) {
+                final int length = Math.min(chunk.length, segment.remaining());
+                segment.get(chunk, 0, length);
+                for (int i = 0; i < length; i++) {
+                    final int b = chunk[i];
+                    if ((b & 0xC0) != 0x80) {
+                        chars += ((b & 0xF8) == 0xF0) ? 2 : 1;
+                    }
+                }
+            }
+        }
+        return chars;
+    }
+
+    /**
+     * Maps the next segment of a range.
+     *
+     * @param position where the segment starts in the file
+     * @param end where the range the segment belongs to ends
+     * @return the segment, positioned at its start
+     */
+    MappedByteBuffer map(long position, long end) {
+        return map(position, (int) Math.min(segmentSize, end - position));
+    }
+
+    private MappedByteBuffer map(long position, int length) {
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to map " + length + " bytes at " + position + " of " + file, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+}
@@ -0,0 +1,147 @@
+package revelations.revelio.corpus;
+
+import org.apache.lucene.analysis.CharStream;
+import revelations.revelio.metrics.ByteCounter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes a range of a {@link MappedCorpus} from its mapped segments straight into the char buffer it is read into,
+ * without an InputStream or InputStreamReader in between. Bytes are copied from the mapping in bulk into one reused
+ * chunk so the decoder can run over an array, which is several times faster than decoding from the mapped buffer
+ * itself. Malformed input is replaced the same way an InputStreamReader does it.
+ * <p>
+ * Offsets are corrected to positions in the whole file. Lucene keeps offsets in an int, so for a range which ends
+ * past the first 2^31 chars of a file the offsets stay relative to the start of the range instead. Either way the
+ * position in the file is {@link #getOffsetBase()} plus the offset.
+ * </p>
+ */
+public class MappedCorpusReader extends CharStream implements ByteCounter {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final MappedCorpus corpus;
+    private final long end;
+    private final long offsetBase;
+    private final int offsetShift;
+    private final CharsetDecoder decoder = UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private long position;
+    private ByteBuffer segment;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private final ByteBuffer bytes = ByteBuffer.wrap(chunk);
+    private final CharBuffer pair = CharBuffer.allocate(2);
+    private boolean endOfInput;
+    private boolean flushed;
+    private boolean closed;
+    private long bytesRead;
+
+    MappedCorpusReader(MappedCorpus corpus, long start, long end, long charStart) {
+        this.corpus = corpus;
+        this.end = end;
+        this.position = start;
+        if (charStart + (end - start) <= Integer.MAX_VALUE) {
+            offsetBase = 0;
+            offsetShift = (int) charStart;
+        } else {
+            offsetBase = charStart;
+            offsetShift = 0;
+        }
+        bytes.limit(0);
+        pair.limit(0);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Reader is closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        while (pair.hasRemaining() && out.hasRemaining()) {
+            out.put(pair.get());
+        }
+        while (out.hasRemaining() && !flushed) {
+            CoderResult result = decoder.decode(bytes, out, endOfInput);
+            if (result.isOverflow()) {
+                if (out.position() == off) {
+                    // only room for half of a surrogate pair, keep the other half for the next read
+                    pair.clear();
+                    decoder.decode(bytes, pair, endOfInput);
+                    pair.flip();
+                    out.put(pair.get());
+                }
+                break;
+            } else if (endOfInput) {
+                decoder.flush(out);
+                flushed = true;
+            } else {
+                fill();
+            }
+        }
+        int read = out.position() - off;
+        return (read == 0) ? -1 : read;
+    }
+
+    /**
+     * Moves the bytes which are left over from the last decode, such as the start of a UTF-8 sequence, to the front
+     * of the chunk and copies as many bytes from the mapped segments as fit behind them.
+     */
+    private void fill() {
+        bytes.compact();
+        while (bytes.hasRemaining()) {
+            if (segment == null || !segment.hasRemaining()) {
+                if (position >= end) {
+                    endOfInput = true;
+                    break;
+                }
+                segment = corpus.map(position, end);
+                position += segment.limit();
+            }
+            int length = Math.min(bytes.remaining(), segment.remaining());
+            segment.get(chunk, bytes.position(), length);
+            bytes.position(bytes.position() + length);
+            bytesRead += length;
+        }
+        bytes.flip();
+    }
+
+    @Override
+    public int correctOffset(int currentOff) {
+        return offsetShift + currentOff;
+    }
+
+    /**
+     * Gets what has to be added to the offsets of this reader to get positions in the whole file.
+     *
+     * @return 0 when the offsets are already positions in the whole file
+     */
+    public long getOffsetBase() {
+        return offsetBase;
+    }
+
+    /**
+     * @return the number of bytes copied out of the mapped file so far
+     */
+    @Override
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        segment = null;
+        bytes.limit(0);
+    }
+}
@@ -0,0 +1,35 @@
+package revelations.revelio.corpus;
+
+/**
+ * The layout of a token cache file written by {@link TokenCacheWriter} and replayed by {@link CachedTokenStream}.
+ * <p>
+ * The file starts with {@link #MAGIC} and {@link #VERSION} followed by one block per document. A block is its length
+ * in bytes as a vint, then the number of tokens and the final offset of the document as vints, then the tokens.
+ * Each token is:
+ * </p>
+ * <ul>
+ *     <li>the id of its term as a vint. Ids are handed out in the order terms first show up, so an id one past the
+ *     highest id so far is a new term and its text follows as a string.</li>
+ *     <li>a byte of {@link #CAPITALIZED}, {@link #PUNCTUATION}, {@link #HAS_TYPE}, {@link #HAS_LENGTH},
+ *     {@link #HAS_GAP} and the span code from {@link revelations.revelio.common.BilouTags} shifted by
+ *     {@link #SPAN_SHIFT}</li>
+ *     <li>the start offset minus the end offset of the token before it, zig-zag encoded as a vint, only if HAS_GAP
+ *     is set. Otherwise the gap is one char, which is what separates most words.</li>
+ *     <li>the length of the token in the text as a vint, only if it differs from the length of the term</li>
+ *     <li>the id of the entity type as a vint if HAS_TYPE is set, handed out like term ids</li>
+ *     <li>the id of the span type as a vint if the span is CUSTOM_SPAN, handed out like term ids</li>
+ * </ul>
+ * Ids start at 0 and are only meaningful within one file.
+ */
+interface TokenCacheFormat {
+    int MAGIC = 0x52565443;
+    int VERSION = 1;
+
+    int CAPITALIZED = 1;
+    int PUNCTUATION = 1 << 1;
+    int HAS_TYPE = 1 << 2;
+    int HAS_LENGTH = 1 << 3;
+    int SPAN_SHIFT = 4;
+    int SPAN_MASK = 0x7;
+    int HAS_GAP = 1 << 7;
+}
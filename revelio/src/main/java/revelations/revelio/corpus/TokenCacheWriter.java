@@ -0,0 +1,225 @@
+package revelations.revelio.corpus;
+
+import org.apache.lucene.analysis.CharArrayMap;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Version;
+import revelations.revelio.common.EntityAttribute;
+import revelations.revelio.common.EntityLabels;
+import revelations.revelio.common.EntityTagFilter;
+import revelations.revelio.common.TaggedTokenizer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static revelations.revelio.common.BilouTags.CUSTOM_SPAN;
+
+/**
+ * Writes the tokens of documents to a compact binary cache which {@link CachedTokenStream} replays, so the raw
+ * markup only has to be tokenized once. Terms, entity types and custom span types are dictionary encoded and
+ * everything else is a vint, see {@link TokenCacheFormat}.
+ */
+public class TokenCacheWriter implements Closeable, TokenCacheFormat {
+
+    private final OutputStreamDataOutput out;
+    private final BlockOutput header = new BlockOutput();
+    private final BlockOutput block = new BlockOutput();
+    private final Set<String> entityTags;
+
+    private final CharArrayMap<Integer> terms = new CharArrayMap<Integer>(Version.LUCENE_36, 1024, false);
+    private final Map<String, Integer> spanTypes = new HashMap<String, Integer>();
+    private int[] fileTypeIds = new int[16];
+    private int typeCount;
+    private int documentCount;
+
+    private TaggedTokenizer tokenizer;
+    private TokenStream tagged;
+
+    public TokenCacheWriter(OutputStream out) throws IOException {
+        this(out, TaggedTokenizer.DEFAULT_ENTITY_TAGS);
+    }
+
+    /**
+     * @param out where to write the cache. It is closed when the writer is.
+     * @param entityTags the entity tags the tokenizer recognizes for {@link #addDocument(Reader)}
+     */
+    public TokenCacheWriter(OutputStream out, Set<String> entityTags) throws IOException {
+        this.out = new OutputStreamDataOutput(new BufferedOutputStream(out, 64 * 1024));
+        this.entityTags = entityTags;
+        this.out.writeInt(MAGIC);
+        this.out.writeVInt(VERSION);
+    }
+
+    /**
+     * Tokenizes tagged text with a {@link TaggedTokenizer} and an {@link EntityTagFilter}, which are reused for every
+     * document, and writes its tokens as the next document.
+     *
+     * @param text the tagged text of the document
+     */
+    public void addDocument(Reader text) throws IOException {
+        if (tokenizer == null) {
+            tokenizer = new TaggedTokenizer(Version.LUCENE_36, text, entityTags);
+            tagged = new EntityTagFilter(tokenizer);
+        } else {
+            tokenizer.reset(text);
+        }
+        addDocument(tagged);
+    }
+
+    /**
+     * Writes the tokens of a stream as the next document. The stream is reset, consumed, ended and closed.
+     *
+     * @param stream the tokens of the document
+     */
+    public void addDocument(TokenStream stream) throws IOException {
+        final CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+        final OffsetAttribute offsetAtt = stream.addAttribute(OffsetAttribute.class);
+        final EntityAttribute entityAtt = stream.addAttribute(EntityAttribute.class);
+        block.length = 0;
+        int tokens = 0;
+        int lastEnd = 0;
+        stream.reset();
+        while (stream.incrementToken()) {
+            final char[] term = termAtt.buffer();
+            final int termLength = termAtt.length();
+            Integer termId = terms.get(term, 0, termLength);
+            if (termId == null) {
+                String text = termAtt.toString();
+                termId = terms.size();
+                block.writeVInt(termId);
+                block.writeString(text);
+                terms.put(text, termId);
+            } else {
+                block.writeVInt(termId);
+            }
+
+            final int start = offsetAtt.startOffset();
+            final int length = offsetAtt.endOffset() - start;
+            final int gap = start - lastEnd;
+            lastEnd = start + length;
+
+            final byte span = entityAtt.getEntitySpan();
+            final int typeId = entityAtt.getEntityTypeId();
+            int flags = span << SPAN_SHIFT;
+            if (entityAtt.isCapitalized()) {
+                flags |= CAPITALIZED;
+            }
+            if (entityAtt.isPunctuationMark()) {
+                flags |= PUNCTUATION;
+            }
+            if (typeId != 0) {
+                flags |= HAS_TYPE;
+            }
+            if (length != termLength) {
+                flags |= HAS_LENGTH;
+            }
+            if (gap != 1) {
+                flags |= HAS_GAP;
+            }
+            block.writeByte((byte) flags);
+            if (gap != 1) {
+                block.writeVInt((gap << 1) ^ (gap >> 31));
+            }
+            if (length != termLength) {
+                block.writeVInt(length);
+            }
+            if (typeId != 0) {
+                writeType(typeId);
+            }
+            if (span == CUSTOM_SPAN) {
+                writeSpanType(entityAtt.getEntitySpanType());
+            }
+            tokens++;
+        }
+        stream.end();
+        final int finalOffset = offsetAtt.endOffset();
+        stream.close();
+
+        header.length = 0;
+        header.writeVInt(tokens);
+        header.writeVInt(finalOffset);
+        out.writeVInt(header.length + block.length);
+        out.writeBytes(header.bytes, header.length);
+        out.writeBytes(block.bytes, block.length);
+        documentCount++;
+    }
+
+    private void writeType(int typeId) throws IOException {
+        if (fileTypeIds.length <= typeId) {
+            fileTypeIds = ArrayUtil.grow(fileTypeIds, typeId + 1);
+        }
+        if (fileTypeIds[typeId] == 0) {
+            fileTypeIds[typeId] = ++typeCount;
+            block.writeVInt(typeCount - 1);
+            block.writeString(EntityLabels.getInstance().typeName(typeId));
+        } else {
+            block.writeVInt(fileTypeIds[typeId] - 1);
+        }
+    }
+
+    private void writeSpanType(String spanType) throws IOException {
+        Integer id = spanTypes.get(spanType);
+        if (id == null) {
+            id = spanTypes.size();
+            spanTypes.put(spanType, id);
+            block.writeVInt(id);
+            block.writeString(spanType);
+        } else {
+            block.writeVInt(id);
+        }
+    }
+
+    /**
+     * @return the number of documents written so far
+     */
+    public int getDocumentCount() {
+        return documentCount;
+    }
+
+    /**
+     * @return the number of distinct terms written so far
+     */
+    public int getTermCount() {
+        return terms.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Collects a document in memory so its length can be written in front of it.
+     */
+    private static class BlockOutput extends DataOutput {
+        private byte[] bytes = new byte[1024];
+        private int length;
+
+        @Override
+        public void writeByte(byte b) {
+            if (length == bytes.length) {
+                bytes = ArrayUtil.grow(bytes, length + 1);
+            }
+            bytes[length++] = b;
+        }
+
+        @Override
+        public void writeBytes(byte[] b, int offset, int count) {
+            if (bytes.length < length + count) {
+                bytes = ArrayUtil.grow(bytes, length + count);
+            }
+            System.arraycopy(b, offset, bytes, length, count);
+            length += count;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package revelations.revelio.eval;
+
+import revelations.revelio.common.EntityLabels;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The counts of an evaluation of entity spans, kept as a confusion matrix of entity type ids where 0 stands for no
+ * entity:
+ * <ul>
+ *     <li>[gold][predicted] counts the gold spans which were predicted with exactly the same first and last token,
+ *     so the diagonal holds the spans predicted with the right type</li>
+ *     <li>[gold][0] counts the gold spans with no predicted span on exactly the same tokens</li>
+ *     <li>[0][predicted] counts the predicted spans with no gold span on exactly the same tokens</li>
+ * </ul>
+ * Precision, recall and F1 of a type follow from its row and column. The matrix grows with the entity types of the
+ * {@link EntityLabels} registry, so its size depends on the number of types and never on the number of documents.
+ * Counts from evaluations run on different threads are combined with {@link #add(SpanCounts)}.
+ */
+public class SpanCounts {
+
+    private long[][] confusion = new long[0][];
+    private long documents;
+    private long tokens;
+
+    /**
+     * Counts a gold span and the predicted span on the same tokens.
+     *
+     * @param gold the type id of the gold span, or 0 if there is none
+     * @param predicted the type id of the predicted span, or 0 if there is none
+     */
+    public void add(int gold, int predicted) {
+        ensureSize(Math.max(gold, predicted) + 1);
+        confusion[gold][predicted]++;
+    }
+
+    void addDocument(long tokens) {
+        documents++;
+        this.tokens += tokens;
+    }
+
+    /**
+     * Adds the counts of another evaluation to these.
+     */
+    public void add(SpanCounts other) {
+        ensureSize(other.confusion.length);
+        for (int gold = 0; gold < other.confusion.length; gold++) {
+            for (int predicted = 0; predicted < other.confusion.length; predicted++) {
+                confusion[gold][predicted] += other.confusion[gold][predicted];
+            }
+        }
+        documents += other.documents;
+        tokens += other.tokens;
+    }
+
+    private void ensureSize(int size) {
+        if (confusion.length < size) {
+            size = Math.max(size, EntityLabels.getInstance().typeCount() + 1);
+            long[][] grown = new long[size][];
+            for (int i = 0; i < size; i++) {
+                grown[i] = (i < confusion.length) ? Arrays.copyOf(confusion[i], size) : new long[size];
+            }
+            confusion = grown;
+        }
+    }
+
+    /**
+     * @return the count of gold spans of one type predicted on the same tokens as another type
+     */
+    public long get(int gold, int predicted) {
+        return (gold < confusion.length && predicted < confusion.length) ? confusion[gold][predicted] : 0;
+    }
+
+    /**
+     * @return the number of spans of a type predicted on exactly the tokens of a gold span of the type
+     */
+    public long truePositives(int type) {
+        return get(type, type);
+    }
+
+    /**
+     * @return the number of spans of a type predicted where there is no gold span of the type on the same tokens
+     */
+    public long falsePositives(int type) {
+        long predicted = 0;
+        for (int gold = 0; gold < confusion.length; gold++) {
+            predicted += get(gold, type);
+        }
+        return predicted - truePositives(type);
+    }
+
+    /**
+     * @return the number of gold spans of a type which were not predicted on the same tokens with the type
+     */
+    public long falseNegatives(int type) {
+        long gold = 0;
+        for (int predicted = 0; predicted < confusion.length; predicted++) {
+            gold += get(type, predicted);
+        }
+        return gold - truePositives(type);
+    }
+
+    public double precision(int type) {
+        return ratio(truePositives(type), truePositives(type) + falsePositives(type));
+    }
+
+    public double recall(int type) {
+        return ratio(truePositives(type), truePositives(type) + falseNegatives(type));
+    }
+
+    public double f1(int type) {
+        return f1(precision(type), recall(type));
+    }
+
+    /**
+     * @return the precision over the spans of every type
+     */
+    public double precision() {
+        long truePositives = 0;
+        long predicted = 0;
+        for (int type = 1; type < confusion.length; type++) {
+            truePositives += truePositives(type);
+            predicted += truePositives(type) + falsePositives(type);
+        }
+        return ratio(truePositives, predicted);
+    }
+
+    /**
+     * @return the recall over the spans of every type
+     */
+    public double recall() {
+        long truePositives = 0;
+        long gold = 0;
+        for (int type = 1; type < confusion.length; type++) {
+            truePositives += truePositives(type);
+            gold += truePositives(type) + falseNegatives(type);
+        }
+        return ratio(truePositives, gold);
+    }
+
+    /**
+     * @return the F1 over the spans of every type
+     */
+    public double f1() {
+        return f1(precision(), recall());
+    }
+
+    private static double ratio(long count, long total) {
+        return (total == 0) ? 0 : (double) count / total;
+    }
+
+    private static double f1(double precision, double recall) {
+        return (precision + recall == 0) ? 0 : 2 * precision * recall / (precision + recall);
+    }
+
+    /**
+     * @return the largest type id counted so far plus one
+     */
+    public int typeCount() {
+        return confusion.length;
+    }
+
+    public long getDocuments() {
+        return documents;
+    }
+
+    public long getTokens() {
+        return tokens;
+    }
+
+    /**
+     * Writes a report with the precision, recall and F1 of every type which has a span, then the confusion matrix.
+     */
+    @Override
+    public String toString() {
+        EntityLabels labels = EntityLabels.getInstance();
+        StringBuilder report = new StringBuilder();
+        report.append(documents).append(" documents, ").append(tokens).append(" tokens\n");
+        report.append(String.format(Locale.ROOT, "%-16s %9s %9s %9s %9s %9s %9s%n",
+                "type", "precision", "recall", "f1", "tp", "fp", "fn"));
+        for (int type = 1; type < confusion.length; type++) {
+            if (truePositives(type) + falsePositives(type) + falseNegatives(type) > 0) {
+                report.append(String.format(Locale.ROOT, "%-16s %9.4f %9.4f %9.4f %9d %9d %9d%n",
+                        labels.typeName(type), precision(type), recall(type), f1(type),
+                        truePositives(type), falsePositives(type), falseNegatives(type)));
+            }
+        }
+        report.append(String.format(Locale.ROOT, "%-16s %9.4f %9.4f %9.4f%n", "all", precision(), recall(), f1()));
+        report.append("\ngold \\ predicted");
+        for (int predicted = 0; predicted < confusion.length; predicted++) {
+            report.append(String.format(Locale.ROOT, " %9s", (predicted == 0) ? "none" : labels.typeName(predicted)));
+        }
+        report.append('\n');
+        for (int gold = 0; gold < confusion.length; gold++) {
+            report.append(String.format(Locale.ROOT, "%-16s", (gold == 0) ? "none" : labels.typeName(gold)));
+            for (int predicted = 0; predicted < confusion.length; predicted++) {
+                report.append(String.format(Locale.ROOT, " %9d", confusion[gold][predicted]));
+            }
+            report.append('\n');
+        }
+        return report.toString();
+    }
+}
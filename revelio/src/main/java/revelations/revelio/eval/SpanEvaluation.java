@@ -0,0 +1,305 @@
+package revelations.revelio.eval;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.util.Version;
+import revelations.revelio.common.TaggedAnalyzer;
+import revelations.revelio.common.TaggedTokenizer;
+import revelations.revelio.gazetteer.Gazetteer;
+import revelations.revelio.tagger.DocumentTagger;
+import revelations.revelio.tagger.TaggerModel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Evaluates the entity spans of a held out test set with one tagged document per line, such as
+ * <code>I met &lt;ENAMEX TYPE="PERSON"&gt;David Lynch&lt;/ENAMEX&gt;</code>, against either
+ * <ul>
+ *     <li>the spans a model predicts for the same documents, or</li>
+ *     <li>the spans of another file with the same documents tagged by something else, line by line.</li>
+ * </ul>
+ * The calling thread reads the documents in batches and hands them to the worker threads through a bounded queue,
+ * running a batch itself when the queue is full. Every worker streams its documents through its own
+ * {@link SpanEvaluator} and the counts of the workers are added up once every batch is done, so no more than a few
+ * batches of documents are ever held in memory, however large the test set is.
+ */
+public class SpanEvaluation {
+    private static final Logger log = Logger.getLogger(SpanEvaluation.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private final TaggerModel model;
+    private final Gazetteer gazetteer;
+    private Set<String> entityTags = TaggedTokenizer.DEFAULT_ENTITY_TAGS;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Creates an evaluation of one tagged file against another.
+     */
+    public SpanEvaluation() {
+        this(null, null);
+    }
+
+    /**
+     * Creates an evaluation of a tagged file against the predictions of a model.
+     *
+     * @param model the model or null to evaluate against another tagged file
+     * @param gazetteer the gazetteer the model was trained with, or null for none
+     */
+    public SpanEvaluation(TaggerModel model, Gazetteer gazetteer) {
+        this.model = model;
+        this.gazetteer = gazetteer;
+    }
+
+    /**
+     * Evaluates the predictions of the model for the documents of a test set.
+     *
+     * @param gold the documents with their gold spans, one per line
+     * @return the counts of every document
+     */
+    public SpanCounts evaluate(Reader gold) throws IOException, InterruptedException {
+        return evaluate(gold, null);
+    }
+
+    /**
+     * Evaluates the spans of one tagged file against those of another with the same documents.
+     *
+     * @param gold the documents with their gold spans, one per line
+     * @param predicted the same documents with the predicted spans, one per line. With null the model predicts them.
+     * @return the counts of every document
+     */
+    public SpanCounts evaluate(Reader gold, Reader predicted) throws IOException, InterruptedException {
+        if (predicted == null && model == null) {
+            throw new IllegalStateException("There is no model to predict spans with");
+        }
+        final BufferedReader goldLines = buffered(gold);
+        final BufferedReader predictedLines = (predicted == null) ? null : buffered(predicted);
+        final List<Worker> workers = Collections.synchronizedList(new ArrayList<Worker>());
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final ThreadLocal<Worker> worker = newWorkers(workers, predicted == null);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(2 * threads), new ThreadPoolExecutor.CallerRunsPolicy());
+        long start = System.nanoTime();
+        long lines = 0;
+        try {
+            while (failure.get() == null) {
+                final List<String> goldBatch = new ArrayList<String>(batchSize);
+                final List<String> predictedBatch = (predictedLines == null) ? null : new ArrayList<String>(batchSize);
+                for (String line = goldLines.readLine(); line != null; line = goldLines.readLine()) {
+                    goldBatch.add(line);
+                    lines++;
+                    if (predictedBatch != null) {
+                        String predictedLine = predictedLines.readLine();
+                        if (predictedLine == null) {
+                            throw new IllegalArgumentException("The predicted file ends before line " + lines +
+                                    " of the gold file");
+                        }
+                        predictedBatch.add(predictedLine);
+                    }
+                    if (goldBatch.size() == batchSize) {
+                        break;
+                    }
+                }
+                if (goldBatch.isEmpty()) {
+                    break;
+                }
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            worker.get().evaluate(goldBatch, predictedBatch);
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                });
+            }
+            if (predictedLines != null && failure.get() == null && predictedLines.readLine() != null) {
+                throw new IllegalArgumentException("The predicted file has more than the " + lines +
+                        " lines of the gold file");
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        Throwable t = failure.get();
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t != null) {
+            throw new IllegalStateException(t);
+        }
+
+        SpanCounts counts = new SpanCounts();
+        for (Worker done : workers) {
+            counts.add(done.evaluator.getCounts());
+        }
+        log.info("Evaluated " + counts.getDocuments() + " documents in " +
+                (System.nanoTime() - start) / 1000000L + " ms on " + threads + " threads");
+        return counts;
+    }
+
+    private ThreadLocal<Worker> newWorkers(final List<Worker> workers, final boolean predict) {
+        final TaggedAnalyzer goldAnalyzer = new TaggedAnalyzer(Version.LUCENE_36, entityTags);
+        final TaggedAnalyzer predictedAnalyzer = new TaggedAnalyzer(Version.LUCENE_36, entityTags);
+        return new ThreadLocal<Worker>() {
+            @Override
+            protected Worker initialValue() {
+                Worker worker = predict ? new Worker(new DocumentTagger(model, gazetteer)) :
+                        new Worker(goldAnalyzer, predictedAnalyzer);
+                workers.add(worker);
+                return worker;
+            }
+        };
+    }
+
+    private static BufferedReader buffered(Reader reader) {
+        return (reader instanceof BufferedReader) ? (BufferedReader) reader : new BufferedReader(reader);
+    }
+
+    /**
+     * The evaluator of a thread and what it gets the predicted spans from
+     */
+    private static final class Worker {
+        final SpanEvaluator evaluator = new SpanEvaluator();
+        final DocumentTagger tagger;
+        final TaggedAnalyzer goldAnalyzer;
+        final TaggedAnalyzer predictedAnalyzer;
+
+        Worker(DocumentTagger tagger) {
+            this.tagger = tagger;
+            this.goldAnalyzer = null;
+            this.predictedAnalyzer = null;
+        }
+
+        Worker(TaggedAnalyzer goldAnalyzer, TaggedAnalyzer predictedAnalyzer) {
+            this.tagger = null;
+            this.goldAnalyzer = goldAnalyzer;
+            this.predictedAnalyzer = predictedAnalyzer;
+        }
+
+        void evaluate(List<String> gold, List<String> predicted) throws IOException {
+            for (int i = 0; i < gold.size(); i++) {
+                if (tagger != null) {
+                    final int size = tagger.decode(gold.get(i));
+                    for (int token = 0; token < size; token++) {
+                        evaluator.token(tagger.taggedLabel(token), tagger.label(token));
+                    }
+                    evaluator.endDocument();
+                } else {
+                    TokenStream goldStream = goldAnalyzer.reusableTokenStream("gold", new StringReader(gold.get(i)));
+                    TokenStream predictedStream = predictedAnalyzer.reusableTokenStream("predicted",
+                            new StringReader(predicted.get(i)));
+                    evaluator.evaluate(goldStream, predictedStream);
+                }
+            }
+        }
+    }
+
+    public Set<String> getEntityTags() {
+        return entityTags;
+    }
+
+    /**
+     * @param entityTags the names of the tags of the entity markup of tagged files which are evaluated against each
+     * other. A model uses the ones it was trained with.
+     */
+    public void setEntityTags(Set<String> entityTags) {
+        this.entityTags = entityTags;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1 but was " + threads);
+        }
+        this.threads = threads;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the number of documents handed to a worker at a time
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1 but was " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Evaluates a test set against a model or against another tagged file and prints the report.
+     * <pre>
+     * SpanEvaluation [-threads n] [-batch n] [-gazetteer file] -model model-file gold-file
+     * SpanEvaluation [-threads n] [-batch n] gold-file predicted-file
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int batchSize = DEFAULT_BATCH_SIZE;
+        File model = null;
+        Gazetteer gazetteer = null;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i += 2) {
+            if (i + 1 == args.length) {
+                usage();
+            } else if ("-threads".equals(args[i])) {
+                threads = Integer.parseInt(args[i + 1]);
+            } else if ("-batch".equals(args[i])) {
+                batchSize = Integer.parseInt(args[i + 1]);
+            } else if ("-model".equals(args[i])) {
+                model = new File(args[i + 1]);
+            } else if ("-gazetteer".equals(args[i])) {
+                gazetteer = Gazetteer.load(new File(args[i + 1]));
+            } else {
+                usage();
+            }
+        }
+        if (args.length - i != ((model == null) ? 2 : 1)) {
+            usage();
+        }
+        SpanEvaluation evaluation = (model == null) ? new SpanEvaluation() :
+                new SpanEvaluation(TaggerModel.load(model), gazetteer);
+        evaluation.setThreads(threads);
+        evaluation.setBatchSize(batchSize);
+        Reader gold = new InputStreamReader(new FileInputStream(args[i]), "UTF-8");
+        Reader predicted = (model == null) ? new InputStreamReader(new FileInputStream(args[i + 1]), "UTF-8") : null;
+        try {
+            System.out.print(evaluation.evaluate(gold, predicted));
+        } finally {
+            gold.close();
+            if (predicted != null) {
+                predicted.close();
+            }
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: SpanEvaluation [-threads n] [-batch n] [-gazetteer file] -model model-file " +
+                "gold-file");
+        System.err.println("       SpanEvaluation [-threads n] [-batch n] gold-file predicted-file");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,203 @@
+package revelations.revelio.eval;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import revelations.revelio.common.BilouTags;
+import revelations.revelio.common.EntityAttribute;
+import revelations.revelio.common.EntityLabels;
+
+import java.io.IOException;
+
+/**
+ * Scores predicted entity spans against gold spans with exact matching: a predicted span counts only if its first
+ * and last token and its type are those of a gold span. The gold and predicted labels of each token are fed in
+ * side by side, in one pass, and each side only keeps the span it is in and the span which just ended, so the
+ * memory used doesn't grow with the length of a document or the size of a test set. The counts go into
+ * {@link SpanCounts}.
+ * <p>
+ * Spans are read from the BILOU labels leniently, the way conlleval reads them: a span ends at L or U or before a
+ * token which doesn't continue it, and I or L start a span when they don't continue one. An evaluator holds the
+ * spans of the document being evaluated, so it should only be used by one thread at a time. Threads evaluating
+ * parts of a test set each use their own and add up their counts at the end.
+ * </p>
+ */
+public class SpanEvaluator implements BilouTags {
+
+    private final SpanCounts counts;
+    private final Side gold = new Side();
+    private final Side predicted = new Side();
+    private int position;
+
+    public SpanEvaluator() {
+        this(new SpanCounts());
+    }
+
+    /**
+     * @param counts where to count the spans
+     */
+    public SpanEvaluator(SpanCounts counts) {
+        this.counts = counts;
+    }
+
+    /**
+     * Adds the next token of the document.
+     *
+     * @param goldLabel the gold label of the token, see {@link EntityLabels}. A negative label is O.
+     * @param predictedLabel the predicted label of the token
+     */
+    public void token(int goldLabel, int predictedLabel) {
+        gold.closeUnlessContinued(goldLabel, position);
+        predicted.closeUnlessContinued(predictedLabel, position);
+        match();
+        gold.open(goldLabel, position);
+        predicted.open(predictedLabel, position);
+        position++;
+    }
+
+    /**
+     * Adds the next token of the document from the span and entity type of the gold and predicted attributes.
+     */
+    public void token(EntityAttribute goldEntity, EntityAttribute predictedEntity) {
+        token(goldEntity.getLabel(), predictedEntity.getLabel());
+    }
+
+    /**
+     * Ends the document, counting the spans which are still open.
+     */
+    public void endDocument() {
+        gold.closeUnlessContinued(0, position);
+        predicted.closeUnlessContinued(0, position);
+        match();
+        counts.addDocument(position);
+        position = 0;
+    }
+
+    /**
+     * Evaluates a document by reading the gold and predicted streams side by side. The streams are reset, consumed
+     * and ended but not closed.
+     *
+     * @param goldStream the tokens of the document with the gold spans
+     * @param predictedStream the same tokens with the predicted spans
+     * @throws IllegalArgumentException if the streams don't have the same terms
+     */
+    public void evaluate(TokenStream goldStream, TokenStream predictedStream) throws IOException {
+        final EntityAttribute goldEntity = goldStream.addAttribute(EntityAttribute.class);
+        final EntityAttribute predictedEntity = predictedStream.addAttribute(EntityAttribute.class);
+        final CharTermAttribute goldTerm = goldStream.addAttribute(CharTermAttribute.class);
+        final CharTermAttribute predictedTerm = predictedStream.addAttribute(CharTermAttribute.class);
+        goldStream.reset();
+        predictedStream.reset();
+        boolean goldToken = goldStream.incrementToken();
+        boolean predictedToken = predictedStream.incrementToken();
+        while (goldToken && predictedToken) {
+            if (!sameTerm(goldTerm, predictedTerm)) {
+                throw new IllegalArgumentException("Expected the token " + position + " of the predicted stream to be " +
+                        goldTerm + " but it is " + predictedTerm);
+            }
+            token(goldEntity, predictedEntity);
+            goldToken = goldStream.incrementToken();
+            predictedToken = predictedStream.incrementToken();
+        }
+        if (goldToken != predictedToken) {
+            throw new IllegalArgumentException("Expected both streams to have the same tokens but the " +
+                    (goldToken ? "predicted" : "gold") + " stream ended after " + position + " tokens");
+        }
+        goldStream.end();
+        predictedStream.end();
+        endDocument();
+    }
+
+    private static boolean sameTerm(CharTermAttribute a, CharTermAttribute b) {
+        if (a.length() != b.length()) {
+            return false;
+        }
+        final char[] aChars = a.buffer();
+        final char[] bChars = b.buffer();
+        for (int i = 0; i < a.length(); i++) {
+            if (aChars[i] != bChars[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts the spans which ended right before the current token. Both of them end at the same token, so they are
+     * on exactly the same tokens if they start at the same one.
+     */
+    private void match() {
+        if (gold.ended && predicted.ended && gold.endedStart == predicted.endedStart) {
+            counts.add(gold.endedType, predicted.endedType);
+        } else {
+            if (gold.ended) {
+                counts.add(gold.endedType, 0);
+            }
+            if (predicted.ended) {
+                counts.add(0, predicted.endedType);
+            }
+        }
+        gold.ended = false;
+        predicted.ended = false;
+    }
+
+    public SpanCounts getCounts() {
+        return counts;
+    }
+
+    /**
+     * The spans of one side of the evaluation
+     */
+    private static final class Side {
+        boolean open;
+        int start;
+        int type;
+
+        /*
+         * The span which ended right before the current token
+         */
+        boolean ended;
+        int endedStart;
+        int endedType;
+
+        /**
+         * Ends the open span if the token doesn't continue it.
+         */
+        void closeUnlessContinued(int label, int position) {
+            if (open) {
+                final byte span = spanOf(label);
+                if (!((span == INSIDE_SPAN || span == LAST_SPAN) && EntityLabels.typeIdOf(label) == type)) {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Starts a span at the token if it isn't continuing one and ends it if the token is the last of it.
+         */
+        void open(int label, int position) {
+            final byte span = spanOf(label);
+            if (span == OUTSIDE_SPAN) {
+                return;
+            }
+            if (!open) {
+                open = true;
+                start = position;
+                type = EntityLabels.typeIdOf(label);
+            }
+            if (span == LAST_SPAN || span == UNIT_SPAN) {
+                close();
+            }
+        }
+
+        private void close() {
+            open = false;
+            ended = true;
+            endedStart = start;
+            endedType = type;
+        }
+
+        private static byte spanOf(int label) {
+            return (label < 0) ? OUTSIDE_SPAN : EntityLabels.spanOf(label);
+        }
+    }
+}
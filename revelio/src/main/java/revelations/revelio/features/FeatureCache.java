@@ -0,0 +1,193 @@
+package revelations.revelio.features;
+
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A bounded cache of the feature ids of terms which is looked up with the chars of a term, so a hit never creates a
+ * String. Once the cache is full the least recently used terms are evicted with the CLOCK algorithm: every entry
+ * has a referenced bit which a hit sets, and the clock hand sweeps the entries clearing bits until it finds one
+ * which has not been used since the last sweep.
+ * <p>
+ * The cache keeps count of its hits, misses and evictions and estimates the memory it uses. It is not thread safe,
+ * so each thread should have its own.
+ * </p>
+ */
+public class FeatureCache {
+
+    private final int capacity;
+    private final int mask;
+    private final int[] buckets;
+    private final char[][] keys;
+    private final int[] hashes;
+    private final int[][] values;
+    private final int[] next;
+    private final boolean[] referenced;
+
+    private int size;
+    private int hand;
+    private long entryBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param capacity the most terms to keep
+     */
+    public FeatureCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1 but was " + capacity);
+        }
+        this.capacity = capacity;
+        int bucketCount = Integer.highestOneBit(Math.max(1, capacity - 1)) << 2;
+        this.mask = bucketCount - 1;
+        this.buckets = new int[bucketCount];
+        Arrays.fill(buckets, -1);
+        this.keys = new char[capacity][];
+        this.hashes = new int[capacity];
+        this.values = new int[capacity][];
+        this.next = new int[capacity];
+        this.referenced = new boolean[capacity];
+    }
+
+    /**
+     * Looks up the features of a term.
+     *
+     * @param term the buffer holding the term
+     * @param length the length of the term in the buffer
+     * @return the feature ids of the term, which must not be changed, or null if the term isn't cached
+     */
+    public int[] get(char[] term, int length) {
+        final int hash = hash(term, length);
+        for (int entry = buckets[hash & mask]; entry >= 0; entry = next[entry]) {
+            if (hashes[entry] == hash && matches(keys[entry], term, length)) {
+                referenced[entry] = true;
+                hits++;
+                return values[entry];
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Caches the features of a term which isn't cached yet, evicting another term if the cache is full.
+     *
+     * @param term the buffer holding the term. It is copied.
+     * @param length the length of the term in the buffer
+     * @param features the feature ids of the term. They are kept as is.
+     */
+    public void put(char[] term, int length, int[] features) {
+        final int hash = hash(term, length);
+        final int entry;
+        if (size < capacity) {
+            entry = size++;
+        } else {
+            entry = evict();
+        }
+        keys[entry] = Arrays.copyOf(term, length);
+        hashes[entry] = hash;
+        values[entry] = features;
+        referenced[entry] = false;
+        next[entry] = buckets[hash & mask];
+        buckets[hash & mask] = entry;
+        entryBytes += bytes(keys[entry], features);
+    }
+
+    private int evict() {
+        while (referenced[hand]) {
+            referenced[hand] = false;
+            hand = (hand + 1) % capacity;
+        }
+        final int entry = hand;
+        hand = (hand + 1) % capacity;
+
+        final int bucket = hashes[entry] & mask;
+        if (buckets[bucket] == entry) {
+            buckets[bucket] = next[entry];
+        } else {
+            int previous = buckets[bucket];
+            while (next[previous] != entry) {
+                previous = next[previous];
+            }
+            next[previous] = next[entry];
+        }
+        entryBytes -= bytes(keys[entry], values[entry]);
+        evictions++;
+        return entry;
+    }
+
+    private static int hash(char[] term, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + term[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(char[] key, char[] term, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != term[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long bytes(char[] key, int[] features) {
+        return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER +
+                (long) key.length * RamUsageEstimator.NUM_BYTES_CHAR) +
+                RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER +
+                (long) features.length * RamUsageEstimator.NUM_BYTES_INT);
+    }
+
+    /**
+     * Estimates the memory used by the cache, including its tables and the terms and features it holds.
+     *
+     * @return the estimated size in bytes
+     */
+    public long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(buckets) + RamUsageEstimator.sizeOf(hashes) +
+                RamUsageEstimator.sizeOf(next) + RamUsageEstimator.sizeOf(referenced) +
+                RamUsageEstimator.shallowSizeOf(keys) + RamUsageEstimator.shallowSizeOf(values) + entryBytes;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the share of lookups which were hits, or 0 if there haven't been any
+     */
+    public double hitRate() {
+        long lookups = hits + misses;
+        return (lookups == 0) ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d/%d terms, %.1f%% hits, %d evictions, %d KB", size, capacity,
+                100 * hitRate(), evictions, ramBytesUsed() / 1024);
+    }
+}
@@ -0,0 +1,253 @@
+package revelations.revelio.features;
+
+import cc.mallet.types.Alphabet;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A feature alphabet with a fixed number of ids, the buckets, which hashes the name of a feature into a bucket
+ * instead of keeping every name it has seen. However many terms a corpus or a stream of tweets has, the alphabet
+ * and the weights of a CRF trained with it never have more than that many features, so the memory they take is
+ * known before training starts, and looking up a feature only hashes its chars.
+ * <p>
+ * Names are hashed with 64 bit FNV-1a over their chars, one step of which is {@link #hash(long, char)}, so the
+ * {@link TermFeatureExtractor} hashes features straight from the chars of a term without building their names.
+ * Features which land in the same bucket share a weight. To report how often that happens, every bucket keeps a
+ * fingerprint of the first name hashed into it, taken from the other half of the hash, and is marked as collided the
+ * first time a name with another fingerprint lands in it. A lookup only reads the fingerprint of its bucket once the
+ * bucket is used and marked, so there are no shared counters in the loop over the features; the used and collided
+ * buckets are counted from the fingerprints when they are asked for. The fingerprints take 4 bytes a bucket and are
+ * not serialized.
+ * </p>
+ * The alphabet never grows or stops growing and can be shared by any number of threads.
+ */
+public class HashedAlphabet extends Alphabet {
+    private static final long serialVersionUID = 1L;
+
+    public static final int DEFAULT_BUCKETS = 1 << 20;
+
+    /**
+     * The hash of no chars
+     */
+    public static final long SEED = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    /*
+     * The lowest bit of a fingerprint marks a bucket which more than one name was hashed into
+     */
+    private static final int COLLIDED = 1;
+
+    private final int buckets;
+
+    private transient AtomicIntegerArray fingerprints;
+
+    public HashedAlphabet() {
+        this(DEFAULT_BUCKETS);
+    }
+
+    /**
+     * @param buckets the number of ids
+     */
+    public HashedAlphabet(int buckets) {
+        if (buckets < 1) {
+            throw new IllegalArgumentException("buckets must be at least 1 but was " + buckets);
+        }
+        this.buckets = buckets;
+        this.fingerprints = new AtomicIntegerArray(buckets);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        fingerprints = new AtomicIntegerArray(buckets);
+    }
+
+    /**
+     * Hashes one more char of a name.
+     *
+     * @param hash the hash of the chars before it, starting with {@link #SEED}
+     * @param c the char
+     * @return the hash of the chars up to and including c
+     */
+    public static long hash(long hash, char c) {
+        return (hash ^ c) * PRIME;
+    }
+
+    /**
+     * Hashes the chars of a name.
+     *
+     * @param hash the hash of the chars before them, starting with {@link #SEED}
+     * @param chars the chars
+     * @return the hash of the chars before them and the chars
+     */
+    public static long hash(long hash, CharSequence chars) {
+        for (int i = 0; i < chars.length(); i++) {
+            hash = (hash ^ chars.charAt(i)) * PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Gets the bucket of a name from its hash and marks the bucket as collided if another name was hashed into it
+     * first.
+     *
+     * @param hash the hash of every char of the name
+     * @return the id of the feature
+     */
+    public int index(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        final int bucket = (int) ((hash & Long.MAX_VALUE) % buckets);
+        final int fingerprint = ((int) (hash >>> 32) | 2) & ~COLLIDED;
+        int seen = fingerprints.get(bucket);
+        if (seen == 0) {
+            if (fingerprints.compareAndSet(bucket, 0, fingerprint)) {
+                return bucket;
+            }
+            seen = fingerprints.get(bucket);
+        }
+        if ((seen & COLLIDED) == 0 && seen != fingerprint) {
+            fingerprints.compareAndSet(bucket, seen, seen | COLLIDED);
+        }
+        return bucket;
+    }
+
+    /**
+     * Gets the bucket of the name of a feature, which is its toString() unless it is a CharSequence.
+     */
+    @Override
+    public int lookupIndex(Object entry, boolean addIfNotPresent) {
+        return index(hash(SEED, (entry instanceof CharSequence) ? (CharSequence) entry : entry.toString()));
+    }
+
+    @Override
+    public int lookupIndex(Object entry) {
+        return lookupIndex(entry, true);
+    }
+
+    /**
+     * @return the name of a bucket, such as #42, since the names hashed into it are not kept
+     */
+    @Override
+    public Object lookupObject(int index) {
+        if (index < 0 || index >= buckets) {
+            throw new IndexOutOfBoundsException("Expected a bucket below " + buckets + " but got " + index);
+        }
+        return "#" + index;
+    }
+
+    @Override
+    public Object[] toArray() {
+        Object[] names = new Object[buckets];
+        for (int i = 0; i < buckets; i++) {
+            names[i] = lookupObject(i);
+        }
+        return names;
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new Iterator<Object>() {
+            int bucket;
+
+            @Override
+            public boolean hasNext() {
+                return bucket < buckets;
+            }
+
+            @Override
+            public Object next() {
+                if (bucket == buckets) {
+                    throw new NoSuchElementException();
+                }
+                return lookupObject(bucket++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return true, since every name has a bucket
+     */
+    @Override
+    public boolean contains(Object entry) {
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return buckets;
+    }
+
+    @Override
+    public void stopGrowth() {
+    }
+
+    @Override
+    public void startGrowth() {
+    }
+
+    /**
+     * @return true, since the alphabet always has the same size
+     */
+    @Override
+    public boolean growthStopped() {
+        return true;
+    }
+
+    public int getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * @return the number of buckets any name was hashed into since the alphabet was created or read. This reads
+     * every bucket, so it is meant for reports rather than for the loop over the features.
+     */
+    public long getUsedBuckets() {
+        long used = 0;
+        for (int i = 0; i < buckets; i++) {
+            if (fingerprints.get(i) != 0) {
+                used++;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * @return the number of buckets more than one name was hashed into. This reads every bucket as well.
+     */
+    public long getCollidedBuckets() {
+        long collided = 0;
+        for (int i = 0; i < buckets; i++) {
+            if ((fingerprints.get(i) & COLLIDED) != 0) {
+                collided++;
+            }
+        }
+        return collided;
+    }
+
+    /**
+     * @return the share of the used buckets which more than one name was hashed into, or 0 if none were used
+     */
+    public double collidedBucketRate() {
+        long used = getUsedBuckets();
+        return (used == 0) ? 0 : (double) getCollidedBuckets() / used;
+    }
+
+    @Override
+    public String toString() {
+        long used = getUsedBuckets();
+        long collided = getCollidedBuckets();
+        return String.format(Locale.ROOT, "%d/%d buckets used, %.2f%% of them collided", used, buckets,
+                (used == 0) ? 0d : 100d * collided / used);
+    }
+}
@@ -0,0 +1,35 @@
+package revelations.revelio.features;
+
+/**
+ * The kinds of features a {@link TermFeatureExtractor} computes from the chars of a term.
+ */
+public enum TermFeature {
+    /**
+     * The term as is, <code>W=Obama</code>
+     */
+    WORD,
+    /**
+     * The term in lowercase, <code>L=obama</code>
+     */
+    LOWERCASE,
+    /**
+     * The word shape of the term with runs of the same class collapsed, <code>SHAPE=Xx</code> for Obama and
+     * <code>SHAPE=d-d</code> for 2012-10
+     */
+    SHAPE,
+    /**
+     * The first one to three chars of the lowercase term, <code>P1=o</code>, <code>P2=ob</code> and
+     * <code>P3=oba</code>
+     */
+    PREFIXES,
+    /**
+     * The last one to three chars of the lowercase term, <code>S1=a</code>, <code>S2=ma</code> and
+     * <code>S3=ama</code>
+     */
+    SUFFIXES,
+    /**
+     * Flags for the mix of letters, digits and punctuation in the term, such as <code>ALL_CAPS</code>,
+     * <code>ALL_DIGITS</code> or <code>HAS_HYPHEN</code>
+     */
+    PATTERNS
+}
@@ -0,0 +1,289 @@
+package revelations.revelio.features;
+
+import cc.mallet.types.Alphabet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Computes the features of a term from the chars of a CharTermAttribute and keeps their ids in a
+ * {@link FeatureCache}. Terms repeat a lot in any corpus, so most tokens only cost a hash probe over their chars
+ * and the feature names are only built, and looked up in the alphabet, the first time a term is seen.
+ * <p>
+ * Feature ids come from the data alphabet the extractor is created with. Features the alphabet doesn't know once
+ * its growth has been stopped are left out of the ids of the term. Like the cache, an extractor should only be used
+ * by one thread at a time.
+ * </p>
+ * <p>
+ * With a {@link HashedAlphabet} the features are hashed straight from the chars of the term, the way the alphabet
+ * hashes their names, so a term which isn't cached costs no Strings either. The lowercase, prefix and suffix
+ * features then lowercase the term one char at a time, and {@link #computeFeatures} isn't called.
+ * </p>
+ */
+public class TermFeatureExtractor {
+    public static final int DEFAULT_CACHE_SIZE = 1 << 16;
+
+    public static final String WORD_PREFIX = "W=";
+    public static final String LOWERCASE_PREFIX = "L=";
+    public static final String SHAPE_PREFIX = "SHAPE=";
+    public static final String ALL_CAPS = "ALL_CAPS";
+    public static final String INITIAL_CAP = "INITIAL_CAP";
+    public static final String MIXED_CASE = "MIXED_CASE";
+    public static final String ALL_DIGITS = "ALL_DIGITS";
+    public static final String HAS_DIGIT = "HAS_DIGIT";
+    public static final String ALL_PUNCTUATION = "ALL_PUNCTUATION";
+    public static final String HAS_HYPHEN = "HAS_HYPHEN";
+
+    private static final int AFFIX_LENGTH = 3;
+    private static final int[] EMPTY = new int[0];
+
+    private static final long WORD_SEED = HashedAlphabet.hash(HashedAlphabet.SEED, WORD_PREFIX);
+    private static final long LOWERCASE_SEED = HashedAlphabet.hash(HashedAlphabet.SEED, LOWERCASE_PREFIX);
+    private static final long SHAPE_SEED = HashedAlphabet.hash(HashedAlphabet.SEED, SHAPE_PREFIX);
+    private static final long[] PREFIX_SEEDS = affixSeeds("P");
+    private static final long[] SUFFIX_SEEDS = affixSeeds("S");
+
+    private final Alphabet alphabet;
+    private final HashedAlphabet hashed;
+    private final Set<TermFeature> features;
+    private final FeatureCache cache;
+    private final List<String> names = new ArrayList<String>();
+
+    public TermFeatureExtractor(Alphabet alphabet) {
+        this(alphabet, EnumSet.allOf(TermFeature.class), DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param alphabet the alphabet to get the ids of features from
+     * @param features the kinds of features to compute
+     * @param cacheSize the most terms to keep the features of
+     */
+    public TermFeatureExtractor(Alphabet alphabet, Set<TermFeature> features, int cacheSize) {
+        this.alphabet = alphabet;
+        this.hashed = (alphabet instanceof HashedAlphabet) ? (HashedAlphabet) alphabet : null;
+        this.features = features.isEmpty() ? EnumSet.noneOf(TermFeature.class) : EnumSet.copyOf(features);
+        this.cache = new FeatureCache(cacheSize);
+    }
+
+    /**
+     * Gets the ids of the features of a term.
+     *
+     * @param term the buffer holding the term, such as {@link
+     *             org.apache.lucene.analysis.tokenattributes.CharTermAttribute#buffer()}
+     * @param length the length of the term in the buffer
+     * @return the feature ids, which are shared and must not be changed
+     */
+    public int[] extract(char[] term, int length) {
+        int[] ids = cache.get(term, length);
+        if (ids == null) {
+            names.clear();
+            if (hashed != null) {
+                ids = hashFeatures(term, length);
+            } else {
+                computeFeatures(term, length, names);
+                ids = lookup(names);
+            }
+            cache.put(term, length, ids);
+        }
+        return ids;
+    }
+
+    private static long[] affixSeeds(String kind) {
+        long[] seeds = new long[AFFIX_LENGTH + 1];
+        for (int i = 1; i <= AFFIX_LENGTH; i++) {
+            seeds[i] = HashedAlphabet.hash(HashedAlphabet.SEED, kind + i + "=");
+        }
+        return seeds;
+    }
+
+    /**
+     * Hashes the features of a term into the buckets of the hashed alphabet. The names of the pattern flags are
+     * constants, so only the other features need to be hashed char by char.
+     */
+    private int[] hashFeatures(char[] term, int length) {
+        final int affixes = Math.max(0, Math.min(AFFIX_LENGTH, length - 1));
+        int[] ids = new int[3 + 2 * affixes + 3];
+        int count = 0;
+        if (features.contains(TermFeature.WORD)) {
+            long hash = WORD_SEED;
+            for (int i = 0; i < length; i++) {
+                hash = HashedAlphabet.hash(hash, term[i]);
+            }
+            ids[count++] = hashed.index(hash);
+        }
+        if (features.contains(TermFeature.LOWERCASE)) {
+            long hash = LOWERCASE_SEED;
+            for (int i = 0; i < length; i++) {
+                hash = HashedAlphabet.hash(hash, Character.toLowerCase(term[i]));
+            }
+            ids[count++] = hashed.index(hash);
+        }
+        if (features.contains(TermFeature.SHAPE)) {
+            long hash = SHAPE_SEED;
+            char last = 0;
+            for (int i = 0; i < length; i++) {
+                final char mapped = shapeOf(term[i]);
+                if (mapped != last) {
+                    hash = HashedAlphabet.hash(hash, mapped);
+                    last = mapped;
+                }
+            }
+            ids[count++] = hashed.index(hash);
+        }
+        if (features.contains(TermFeature.PREFIXES)) {
+            for (int i = 1; i <= affixes; i++) {
+                ids[count++] = hashed.index(affix(PREFIX_SEEDS[i], term, 0, i));
+            }
+        }
+        if (features.contains(TermFeature.SUFFIXES)) {
+            for (int i = 1; i <= affixes; i++) {
+                ids[count++] = hashed.index(affix(SUFFIX_SEEDS[i], term, length - i, length));
+            }
+        }
+        if (features.contains(TermFeature.PATTERNS)) {
+            addPatterns(term, length, names);
+            for (String name : names) {
+                ids[count++] = hashed.lookupIndex(name);
+            }
+        }
+        return (count == ids.length) ? ids : Arrays.copyOf(ids, count);
+    }
+
+    private static long affix(long seed, char[] term, int start, int end) {
+        long hash = seed;
+        for (int i = start; i < end; i++) {
+            hash = HashedAlphabet.hash(hash, Character.toLowerCase(term[i]));
+        }
+        return hash;
+    }
+
+    private int[] lookup(List<String> names) {
+        if (names.isEmpty()) {
+            return EMPTY;
+        }
+        int[] ids = new int[names.size()];
+        int count = 0;
+        for (String name : names) {
+            int id = alphabet.lookupIndex(name);
+            if (id >= 0) {
+                ids[count++] = id;
+            }
+        }
+        return (count == ids.length) ? ids : Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Computes the names of the features of a term. This is only called for terms which aren't cached, so it can
+     * create as many Strings as it needs. Subclasses can override it to add their own features.
+     *
+     * @param term the buffer holding the term
+     * @param length the length of the term in the buffer
+     * @param names receives the names of the features
+     */
+    protected void computeFeatures(char[] term, int length, List<String> names) {
+        final String word = new String(term, 0, length);
+        if (features.contains(TermFeature.WORD)) {
+            names.add(WORD_PREFIX + word);
+        }
+        final String lowercase = word.toLowerCase();
+        if (features.contains(TermFeature.LOWERCASE)) {
+            names.add(LOWERCASE_PREFIX + lowercase);
+        }
+        if (features.contains(TermFeature.SHAPE)) {
+            names.add(SHAPE_PREFIX + shape(term, length));
+        }
+        if (features.contains(TermFeature.PREFIXES)) {
+            for (int i = 1; i <= AFFIX_LENGTH && i < lowercase.length(); i++) {
+                names.add("P" + i + "=" + lowercase.substring(0, i));
+            }
+        }
+        if (features.contains(TermFeature.SUFFIXES)) {
+            for (int i = 1; i <= AFFIX_LENGTH && i < lowercase.length(); i++) {
+                names.add("S" + i + "=" + lowercase.substring(lowercase.length() - i));
+            }
+        }
+        if (features.contains(TermFeature.PATTERNS)) {
+            addPatterns(term, length, names);
+        }
+    }
+
+    /**
+     * Maps uppercase letters to X, other letters to x and digits to d, keeps every other char and collapses runs of
+     * the same class into one.
+     */
+    static String shape(char[] term, int length) {
+        StringBuilder shape = new StringBuilder(length);
+        char last = 0;
+        for (int i = 0; i < length; i++) {
+            final char mapped = shapeOf(term[i]);
+            if (mapped != last) {
+                shape.append(mapped);
+                last = mapped;
+            }
+        }
+        return shape.toString();
+    }
+
+    private static char shapeOf(char c) {
+        if (Character.isUpperCase(c)) {
+            return 'X';
+        } else if (Character.isLetter(c)) {
+            return 'x';
+        } else if (Character.isDigit(c)) {
+            return 'd';
+        }
+        return c;
+    }
+
+    private static void addPatterns(char[] term, int length, List<String> names) {
+        int upper = 0;
+        int letters = 0;
+        int digits = 0;
+        boolean hyphen = false;
+        for (int i = 0; i < length; i++) {
+            final char c = term[i];
+            if (Character.isLetter(c)) {
+                letters++;
+                if (Character.isUpperCase(c)) {
+                    upper++;
+                }
+            } else if (Character.isDigit(c)) {
+                digits++;
+            } else if (c == '-') {
+                hyphen = true;
+            }
+        }
+        if (letters > 1 && upper == letters) {
+            names.add(ALL_CAPS);
+        } else if (upper == 1 && Character.isUpperCase(term[0])) {
+            names.add(INITIAL_CAP);
+        } else if (upper > 0 && upper < letters) {
+            names.add(MIXED_CASE);
+        }
+        if (length > 0 && digits == length) {
+            names.add(ALL_DIGITS);
+        } else if (digits > 0) {
+            names.add(HAS_DIGIT);
+        }
+        if (length > 0 && letters == 0 && digits == 0) {
+            names.add(ALL_PUNCTUATION);
+        } else if (hyphen) {
+            names.add(HAS_HYPHEN);
+        }
+    }
+
+    public FeatureCache getCache() {
+        return cache;
+    }
+
+    public Alphabet getAlphabet() {
+        return alphabet;
+    }
+
+    public Set<TermFeature> getFeatures() {
+        return EnumSet.copyOf(features);
+    }
+}
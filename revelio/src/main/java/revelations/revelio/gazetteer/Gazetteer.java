@@ -0,0 +1,252 @@
+package revelations.revelio.gazetteer;
+
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.NoOutputs;
+import revelations.revelio.common.EntityLabels;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A dictionary of multi-token entity names, such as the titles of Wikipedia articles about people, places and
+ * organizations, compiled into a Lucene {@link FST}. Every entry is the tokens of a name joined by a separator char,
+ * followed by a type mark and the index of its entity type, so the automaton shares the prefixes and suffixes of all
+ * of the names and is a small fraction of the size of a set of Strings. Lookups walk the automaton one char at a time
+ * straight from the term buffer of a token, see {@link Matcher}, so they don't allocate.
+ * <p>
+ * Gazetteers are built with a {@link GazetteerBuilder} and saved to a file which {@link #load(File)} maps into
+ * memory to read it. The FSTs of lucene-core 3.6 keep their nodes in one byte array, so the automaton is copied from
+ * the mapping into the heap in a single bulk read. One gazetteer can be shared by any number of threads, each with
+ * its own {@link Matcher}.
+ * </p>
+ */
+public class Gazetteer {
+    static final int MAGIC = 0x52564754;
+    static final int VERSION = 1;
+
+    /**
+     * Joins the tokens of an entry
+     */
+    static final char TOKEN_SEPARATOR = '\u001F';
+    /**
+     * Follows the last token of an entry. The index of the type of the entry comes after it.
+     */
+    static final char TYPE_MARK = '\u001E';
+
+    private final FST<Object> fst;
+    private final String[] types;
+    private final int[] typeIds;
+    private final boolean ignoreCase;
+    private final long entryCount;
+
+    Gazetteer(FST<Object> fst, String[] types, boolean ignoreCase, long entryCount) {
+        this.fst = fst;
+        this.types = types;
+        this.ignoreCase = ignoreCase;
+        this.entryCount = entryCount;
+        this.typeIds = new int[types.length];
+        for (int i = 0; i < types.length; i++) {
+            typeIds[i] = EntityLabels.getInstance().typeId(types[i]);
+        }
+    }
+
+    /**
+     * Loads a gazetteer saved with {@link #save(File)} by mapping the file into memory.
+     *
+     * @param file the gazetteer file
+     * @return the gazetteer
+     */
+    public static Gazetteer load(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            return read(new ByteBufferDataInput(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Reads a gazetteer written with {@link #write(DataOutput)}.
+     */
+    public static Gazetteer read(DataInput in) throws IOException {
+        int magic = in.readInt();
+        if (magic != MAGIC) {
+            throw new IOException("Not a gazetteer, expected magic " + Integer.toHexString(MAGIC) + " but got " +
+                    Integer.toHexString(magic));
+        }
+        int version = in.readVInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported gazetteer version " + version);
+        }
+        boolean ignoreCase = in.readByte() != 0;
+        long entryCount = in.readVLong();
+        String[] types = new String[in.readVInt()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = in.readString();
+        }
+        return new Gazetteer(new FST<Object>(in, NoOutputs.getSingleton()), types, ignoreCase, entryCount);
+    }
+
+    public void save(File file) throws IOException {
+        OutputStreamDataOutput out = new OutputStreamDataOutput(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeVInt(VERSION);
+        out.writeByte((byte) (ignoreCase ? 1 : 0));
+        out.writeVLong(entryCount);
+        out.writeVInt(types.length);
+        for (String type : types) {
+            out.writeString(type);
+        }
+        fst.save(out);
+    }
+
+    /**
+     * Looks up the type of an entry.
+     *
+     * @param tokens the tokens of the entry
+     * @return the entity type of the entry or null if it isn't in the gazetteer
+     */
+    public String getType(String... tokens) throws IOException {
+        Matcher matcher = matcher();
+        matcher.start();
+        for (String token : tokens) {
+            if (!matcher.next(token.toCharArray(), token.length())) {
+                return null;
+            }
+        }
+        return EntityLabels.getInstance().typeName(matcher.typeId());
+    }
+
+    /**
+     * Creates a matcher to walk the gazetteer with. Matchers are cheap but hold the state of a walk, so each thread
+     * needs its own.
+     */
+    public Matcher matcher() {
+        return new Matcher();
+    }
+
+    /**
+     * @return the entity types of the entries in the order they were first added
+     */
+    public String[] getTypes() {
+        return types.clone();
+    }
+
+    public boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    /**
+     * @return the number of distinct names
+     */
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return the size of the automaton in bytes
+     */
+    public int sizeInBytes() {
+        return fst.sizeInBytes();
+    }
+
+    /**
+     * Walks the gazetteer one token at a time. {@link #start()} goes back to the root, {@link #next(char[], int)}
+     * follows the chars of a token and {@link #typeId()} tells if the tokens walked so far are a whole entry.
+     */
+    public final class Matcher {
+        private final FST.BytesReader reader = fst.getBytesReader(0);
+        private final FST.Arc<Object> arc = new FST.Arc<Object>();
+        private final FST.Arc<Object> scratch = new FST.Arc<Object>();
+        private boolean first;
+
+        private Matcher() {
+        }
+
+        public void start() {
+            fst.getFirstArc(arc);
+            first = true;
+        }
+
+        /**
+         * Follows the chars of the next token.
+         *
+         * @param term the buffer holding the token
+         * @param length the length of the token in the buffer
+         * @return false if no entry starts with the tokens walked so far, after which the matcher has to be started
+         *         again
+         */
+        public boolean next(char[] term, int length) throws IOException {
+            if (!first && fst.findTargetArc(TOKEN_SEPARATOR, arc, arc, reader) == null) {
+                return false;
+            }
+            first = false;
+            for (int i = 0; i < length; i++) {
+                final char c = ignoreCase ? Character.toLowerCase(term[i]) : term[i];
+                if (fst.findTargetArc(c, arc, arc, reader) == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Tells if the tokens walked so far are a whole entry.
+         *
+         * @return the {@link EntityLabels} id of the type of the entry, or 0 if they aren't. The {@link
+         *         GazetteerBuilder} keeps one type for each entry, the one it was first added with.
+         */
+        public int typeId() throws IOException {
+            if (first || fst.findTargetArc(TYPE_MARK, arc, scratch, reader) == null) {
+                return 0;
+            }
+            fst.readFirstTargetArc(scratch, scratch);
+            return typeIds[scratch.label];
+        }
+
+        /**
+         * Tells if there are longer entries which start with the tokens walked so far.
+         */
+        public boolean hasLongerEntries() throws IOException {
+            return !first && fst.findTargetArc(TOKEN_SEPARATOR, arc, scratch, reader) != null;
+        }
+    }
+
+    /**
+     * Reads from a mapped file.
+     */
+    private static class ByteBufferDataInput extends DataInput {
+        private final ByteBuffer buffer;
+
+        ByteBufferDataInput(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public byte readByte() {
+            return buffer.get();
+        }
+
+        @Override
+        public void readBytes(byte[] b, int offset, int len) {
+            buffer.get(b, offset, len);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package revelations.revelio.gazetteer;
+
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.Version;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.NoOutputs;
+import revelations.revelio.common.TaggedTokenizer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles entity names into a {@link Gazetteer}. Names are split into tokens by a {@link TaggedTokenizer} so they
+ * are tokenized exactly like the text they are matched against, which means "St. Louis" is the three tokens St, .
+ * and Louis in both.
+ * <p>
+ * The builder keeps the entries in memory until {@link #build()} sorts them and compiles the automaton, so it is
+ * meant to be run once, offline, for example with
+ * </p>
+ * <pre>
+ * GazetteerBuilder [-ignoreCase] gazetteer-file names-file...
+ * </pre>
+ * where every line of a names file is a name and its entity type separated by a tab, such as
+ * <code>Barack Obama&#9;PERSON</code>.
+ */
+public class GazetteerBuilder {
+    /**
+     * Orders entries by their names alone, leaving out the type mark and the type which end every entry
+     */
+    private static final Comparator<String> BY_NAME = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            final int length = Math.min(a.length(), b.length()) - 2;
+            for (int i = 0; i < length; i++) {
+                if (a.charAt(i) != b.charAt(i)) {
+                    return a.charAt(i) - b.charAt(i);
+                }
+            }
+            return a.length() - b.length();
+        }
+    };
+
+    private final boolean ignoreCase;
+    private final Map<String, Integer> types = new LinkedHashMap<String, Integer>();
+    private final List<String> entries = new ArrayList<String>();
+    private final TaggedTokenizer tokenizer;
+    private final CharTermAttribute termAtt;
+    private final StringBuilder entry = new StringBuilder();
+
+    public GazetteerBuilder() {
+        this(false);
+    }
+
+    /**
+     * @param ignoreCase true to match names whatever their case
+     */
+    public GazetteerBuilder(boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        this.tokenizer = new TaggedTokenizer(Version.LUCENE_36, new StringReader(""),
+                Collections.<String>emptySet());
+        this.termAtt = tokenizer.addAttribute(CharTermAttribute.class);
+    }
+
+    /**
+     * Adds a name to the gazetteer.
+     *
+     * @param name the name, such as Barack Obama
+     * @param type the entity type of the name, such as PERSON
+     * @return false if the name has no tokens and was not added
+     */
+    public boolean add(String name, String type) throws IOException {
+        entry.setLength(0);
+        tokenizer.reset(new StringReader(name));
+        tokenizer.reset();
+        while (tokenizer.incrementToken()) {
+            if (entry.length() > 0) {
+                entry.append(Gazetteer.TOKEN_SEPARATOR);
+            }
+            final char[] term = termAtt.buffer();
+            for (int i = 0; i < termAtt.length(); i++) {
+                entry.append(ignoreCase ? Character.toLowerCase(term[i]) : term[i]);
+            }
+        }
+        tokenizer.end();
+        tokenizer.close();
+        if (entry.length() == 0) {
+            return false;
+        }
+        Integer typeIndex = types.get(type);
+        if (typeIndex == null) {
+            if (types.size() > Character.MAX_VALUE) {
+                throw new IllegalStateException("A gazetteer can't have more than " + Character.MAX_VALUE +
+                        " entity types");
+            }
+            typeIndex = types.size();
+            types.put(type, typeIndex);
+        }
+        entries.add(entry.append(Gazetteer.TYPE_MARK).append((char) typeIndex.intValue()).toString());
+        return true;
+    }
+
+    /**
+     * Adds the names in a reader with one name and its entity type separated by a tab per line. Blank lines are
+     * skipped.
+     *
+     * @param reader the names. It is read to the end but not closed.
+     * @return the number of names added
+     */
+    public int addAll(BufferedReader reader) throws IOException {
+        int added = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().length() == 0) {
+                continue;
+            }
+            int tab = line.lastIndexOf('\t');
+            if (tab < 0) {
+                throw new IOException("Expected a name and an entity type separated by a tab on line " + lineNumber +
+                        " but got: " + line);
+            }
+            if (add(line.substring(0, tab), line.substring(tab + 1).trim())) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return the number of names added so far, including duplicates
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Compiles the names added so far into a gazetteer. A name added more than once keeps the type it was first
+     * added with.
+     */
+    public Gazetteer build() throws IOException {
+        Collections.sort(entries, BY_NAME); // stable, so the first entry of each name is the one added first
+        List<String> distinct = new ArrayList<String>(entries.size());
+        String previous = null;
+        for (String entry : entries) {
+            if (previous == null || BY_NAME.compare(entry, previous) != 0) {
+                distinct.add(entry);
+            }
+            previous = entry;
+        }
+        Collections.sort(distinct);
+        Builder<Object> builder = new Builder<Object>(FST.INPUT_TYPE.BYTE2, NoOutputs.getSingleton());
+        IntsRef scratch = new IntsRef();
+        long entryCount = 0;
+        for (String entry : distinct) {
+            scratch.grow(entry.length());
+            for (int i = 0; i < entry.length(); i++) {
+                scratch.ints[i] = entry.charAt(i);
+            }
+            scratch.length = entry.length();
+            builder.add(scratch, NoOutputs.getSingleton().getNoOutput());
+            entryCount++;
+        }
+        return new Gazetteer(builder.finish(), types.keySet().toArray(new String[types.size()]), ignoreCase,
+                entryCount);
+    }
+
+    /**
+     * Compiles names files into a gazetteer file.
+     * <pre>
+     * GazetteerBuilder [-ignoreCase] gazetteer-file names-file...
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+        int i = 0;
+        boolean ignoreCase = false;
+        if (args.length > 0 && "-ignoreCase".equals(args[0])) {
+            ignoreCase = true;
+            i++;
+        }
+        if (args.length - i < 2) {
+            System.err.println("usage: GazetteerBuilder [-ignoreCase] gazetteer-file names-file...");
+            System.exit(1);
+        }
+        File output = new File(args[i++]);
+        GazetteerBuilder builder = new GazetteerBuilder(ignoreCase);
+        for (; i < args.length; i++) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(args[i]), "UTF-8"));
+            try {
+                builder.addAll(reader);
+            } finally {
+                reader.close();
+            }
+        }
+        Gazetteer gazetteer = builder.build();
+        gazetteer.save(output);
+        System.out.println(gazetteer.getEntryCount() + " entries, " + gazetteer.getTypes().length + " types, " +
+                gazetteer.sizeInBytes() + " bytes");
+    }
+}
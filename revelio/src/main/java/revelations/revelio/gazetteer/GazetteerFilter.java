@@ -0,0 +1,201 @@
+package revelations.revelio.gazetteer;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+import revelations.revelio.common.BilouTags;
+import revelations.revelio.common.EntityAttribute;
+import revelations.revelio.common.EntityLabels;
+import revelations.revelio.metrics.AnalysisMetrics;
+import revelations.revelio.metrics.DocumentCounts;
+import revelations.revelio.metrics.StageMetrics;
+
+import java.io.IOException;
+
+/**
+ * Marks the tokens which are part of a name in a {@link Gazetteer} with a dictionary label on the
+ * {@link EntityAttribute}, such as B-PLACE, I-PLACE and L-PLACE for the tokens of "Salt Lake City". It goes after the
+ * {@link revelations.revelio.common.EntityTagFilter} so the tags of the text don't break up its names.
+ * <p>
+ * Matching is greedy: the longest name which starts at a token wins and matching goes on after the last token of
+ * that name. A token which doesn't start a longer name is passed straight through, so only tokens which could be
+ * the start of a multi-token name are buffered, with their states captured, until the gazetteer has no longer names
+ * for them.
+ * </p>
+ * <p>
+ * With {@link AnalysisMetrics} turned on the filter counts the tokens it emits, the names it marks and the tokens it
+ * has to buffer to look ahead.
+ * </p>
+ */
+public final class GazetteerFilter extends TokenFilter implements BilouTags {
+    /**
+     * The name of the metrics of the filter and of its counters
+     */
+    public static final String METRICS_NAME = "GazetteerFilter";
+    public static final String NAMES = "names";
+    public static final String BUFFERED_TOKENS = "bufferedTokens";
+
+    private final Gazetteer.Matcher matcher;
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final EntityAttribute entityAtt = addAttribute(EntityAttribute.class);
+
+    /*
+     * Tokens read ahead of the one being emitted. The ones before labelled have their dictionary label decided.
+     */
+    private State[] states = new State[8];
+    private char[][] terms = new char[8][];
+    private int[] lengths = new int[8];
+    private int[] labels = new int[8];
+    private int size;
+    private int emitted;
+    private int labelled;
+    private boolean exhausted;
+
+    private static final int TOKEN_COUNT = 0, NAME_COUNT = 1, BUFFERED_COUNT = 2;
+    private final DocumentCounts counts = new DocumentCounts(AnalysisMetrics.stageIfEnabled(METRICS_NAME),
+            StageMetrics.TOKENS, NAMES, BUFFERED_TOKENS);
+
+    public GazetteerFilter(TokenStream input, Gazetteer gazetteer) {
+        super(input);
+        this.matcher = gazetteer.matcher();
+    }
+
+    public void setMetrics(StageMetrics metrics) {
+        counts.setMetrics(metrics);
+    }
+
+    public StageMetrics getMetrics() {
+        return counts.getMetrics();
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (emitted == size) {
+            size = 0;
+            emitted = 0;
+            labelled = 0;
+            if (exhausted || !input.incrementToken()) {
+                exhausted = true;
+                return false;
+            }
+            matcher.start();
+            if (!matcher.next(termAtt.buffer(), termAtt.length())) {
+                entityAtt.setDictionaryLabel(0);
+                counts.increment(TOKEN_COUNT);
+                return true;
+            }
+            if (!matcher.hasLongerEntries()) {
+                final int typeId = matcher.typeId();
+                if (typeId == 0) {
+                    entityAtt.setDictionaryLabel(0);
+                } else {
+                    entityAtt.setDictionaryLabel(EntityLabels.label(UNIT_SPAN, typeId));
+                    counts.increment(NAME_COUNT);
+                }
+                counts.increment(TOKEN_COUNT);
+                return true;
+            }
+            capture();
+        }
+        if (emitted == labelled) {
+            match();
+        }
+        restoreState(states[emitted]);
+        entityAtt.setDictionaryLabel(labels[emitted]);
+        states[emitted] = null;
+        emitted++;
+        counts.increment(TOKEN_COUNT);
+        return true;
+    }
+
+    /**
+     * Finds the longest name which starts at the first token without a label, reading ahead as far as the
+     * gazetteer has names, and labels its tokens. The first token is labelled O if it doesn't start a name.
+     */
+    private void match() throws IOException {
+        final int start = labelled;
+        int longest = 0;
+        int typeId = 0;
+        matcher.start();
+        for (int i = start; ; i++) {
+            if (i == size) {
+                if (exhausted || !input.incrementToken()) {
+                    exhausted = true;
+                    break;
+                }
+                capture();
+            }
+            if (!matcher.next(terms[i], lengths[i])) {
+                break;
+            }
+            final int type = matcher.typeId();
+            if (type != 0) {
+                longest = i - start + 1;
+                typeId = type;
+            }
+            if (!matcher.hasLongerEntries()) {
+                break;
+            }
+        }
+        if (longest == 0) {
+            labels[start] = 0;
+            labelled = start + 1;
+        } else if (longest == 1) {
+            labels[start] = EntityLabels.label(UNIT_SPAN, typeId);
+            labelled = start + 1;
+            counts.increment(NAME_COUNT);
+        } else {
+            labels[start] = EntityLabels.label(BEGIN_SPAN, typeId);
+            for (int i = start + 1; i < start + longest - 1; i++) {
+                labels[i] = EntityLabels.label(INSIDE_SPAN, typeId);
+            }
+            labels[start + longest - 1] = EntityLabels.label(LAST_SPAN, typeId);
+            labelled = start + longest;
+            counts.increment(NAME_COUNT);
+        }
+    }
+
+    private void capture() {
+        if (size == states.length) {
+            final int length = ArrayUtil.oversize(size + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF);
+            State[] newStates = new State[length];
+            System.arraycopy(states, 0, newStates, 0, size);
+            states = newStates;
+            char[][] newTerms = new char[length][];
+            System.arraycopy(terms, 0, newTerms, 0, size);
+            terms = newTerms;
+            lengths = ArrayUtil.grow(lengths, length);
+            labels = ArrayUtil.grow(labels, length);
+        }
+        states[size] = captureState();
+        final int length = termAtt.length();
+        if (terms[size] == null || terms[size].length < length) {
+            terms[size] = new char[ArrayUtil.oversize(length, RamUsageEstimator.NUM_BYTES_CHAR)];
+        }
+        System.arraycopy(termAtt.buffer(), 0, terms[size], 0, length);
+        lengths[size] = length;
+        size++;
+        counts.increment(BUFFERED_COUNT);
+    }
+
+    @Override
+    public void end() throws IOException {
+        super.end();
+        counts.flush();
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        counts.flush();
+        for (int i = 0; i < size; i++) {
+            states[i] = null;
+        }
+        size = 0;
+        emitted = 0;
+        labelled = 0;
+        exhausted = false;
+    }
+}
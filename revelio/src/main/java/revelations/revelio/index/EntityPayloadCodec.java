@@ -0,0 +1,190 @@
+package revelations.revelio.index;
+
+import org.apache.lucene.index.Payload;
+import revelations.revelio.common.BilouTags;
+import revelations.revelio.common.EntityAttribute;
+import revelations.revelio.common.EntityLabels;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs the {@link EntityAttribute} of a token into a payload of one or two bytes and reads it back without building
+ * a String. The first byte holds
+ * <ul>
+ *     <li>the BILOU span in bits 0 to 2, from OUTSIDE_SPAN to UNIT_SPAN,</li>
+ *     <li>whether the token is capitalized in bit 3 and whether it is a punctuation mark in bit 4, and</li>
+ *     <li>the entity type in bits 5 to 7, if its id is below 7. Otherwise they are all set and the id less 7 is the
+ *     second byte.</li>
+ * </ul>
+ * A token which is outside of any entity and neither capitalized nor a punctuation mark gets no payload at all,
+ * which Lucene stores for free, and is read as all zeroes.
+ * <p>
+ * The ids of the types in the {@link EntityLabels} registry depend on the order a JVM first sees them in, so the
+ * ids in a payload are the positions of the types in the list a codec is created with, starting at 1. An index has
+ * to be read with a codec of the same list. A type which isn't in the list is written with the id 0, as an entity of
+ * no known type.
+ * </p>
+ * The payload of every span, type and flags is built when the codec is created and shared by every token it is set
+ * on, so writing payloads doesn't allocate. They must not be changed. A codec is immutable and can be shared by any
+ * number of threads.
+ */
+public final class EntityPayloadCodec implements BilouTags {
+
+    public static final int CAPITALIZED = 0x08;
+    public static final int PUNCTUATION = 0x10;
+
+    private static final int SPAN_MASK = 0x07;
+    private static final int TYPE_SHIFT = 5;
+    private static final int INLINE_TYPES = 7;
+
+    /**
+     * The most types a codec can have: the ids which fit in the first byte and the ones which take the second
+     */
+    public static final int MAX_TYPES = INLINE_TYPES - 1 + 256;
+
+    private static final int SPANS = UNIT_SPAN + 1;
+    private static final int FLAGS = 4;
+
+    private final String[] types;
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final int[] labelTypeIds;
+    private final Payload[] payloads;
+
+    /**
+     * @param types the entity types, such as PERSON, in the order of their ids
+     */
+    public EntityPayloadCodec(List<String> types) {
+        if (types.size() > MAX_TYPES) {
+            throw new IllegalArgumentException("A codec can have at most " + MAX_TYPES + " types but got " +
+                    types.size());
+        }
+        this.types = new String[types.size() + 1];
+        this.labelTypeIds = new int[types.size() + 1];
+        for (int id = 1; id <= types.size(); id++) {
+            String type = types.get(id - 1);
+            if (ids.put(type, id) != null) {
+                throw new IllegalArgumentException("The type " + type + " is in the list more than once");
+            }
+            this.types[id] = type;
+            labelTypeIds[id] = EntityLabels.getInstance().typeId(type);
+        }
+        payloads = new Payload[this.types.length * SPANS * FLAGS];
+        for (int id = 0; id < this.types.length; id++) {
+            for (int flags = 0; flags < FLAGS; flags++) {
+                for (int span = OUTSIDE_SPAN; span <= UNIT_SPAN; span++) {
+                    payloads[(id * FLAGS + flags) * SPANS + span] = encode((byte) span, id, flags << 3);
+                }
+            }
+        }
+    }
+
+    private static Payload encode(byte span, int typeId, int flags) {
+        if (span == OUTSIDE_SPAN && typeId == 0 && flags == 0) {
+            return null;
+        }
+        final int first = span | flags;
+        if (typeId < INLINE_TYPES) {
+            return new Payload(new byte[]{(byte) (first | typeId << TYPE_SHIFT)});
+        }
+        return new Payload(new byte[]{(byte) (first | INLINE_TYPES << TYPE_SHIFT), (byte) (typeId - INLINE_TYPES)});
+    }
+
+    /**
+     * @return the entity types in the order of their ids
+     */
+    public List<String> getTypes() {
+        return Collections.unmodifiableList(new ArrayList<String>(Arrays.asList(types).subList(1, types.length)));
+    }
+
+    /**
+     * @return the id of an entity type in payloads, or 0 if the codec doesn't have it
+     */
+    public int typeId(String type) {
+        Integer id = (type == null) ? null : ids.get(type);
+        return (id == null) ? 0 : id;
+    }
+
+    /**
+     * @return the entity type with an id in payloads, or null for 0
+     */
+    public String typeName(int typeId) {
+        return types[typeId];
+    }
+
+    /**
+     * @return the number of types of the codec, whose ids are 1 to this number
+     */
+    public int typeCount() {
+        return types.length - 1;
+    }
+
+    /**
+     * Gets the payload of a token.
+     *
+     * @param span one of OUTSIDE_SPAN to UNIT_SPAN
+     * @param typeId the id of the entity type in payloads
+     * @return the shared payload, or null for a token which needs none
+     */
+    public Payload payload(byte span, int typeId, boolean capitalized, boolean punctuation) {
+        final int flags = (capitalized ? 1 : 0) | (punctuation ? 2 : 0);
+        return payloads[(typeId * FLAGS + flags) * SPANS + span];
+    }
+
+    /**
+     * @return the BILOU span of a payload, such as BEGIN_SPAN
+     */
+    public static byte span(byte[] data, int offset, int length) {
+        return (length == 0) ? OUTSIDE_SPAN : (byte) (data[offset] & SPAN_MASK);
+    }
+
+    /**
+     * @return the id of the entity type of a payload, 0 for none
+     */
+    public static int typeId(byte[] data, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        final int typeId = (data[offset] & 0xFF) >>> TYPE_SHIFT;
+        return (typeId < INLINE_TYPES || length < 2) ? typeId : INLINE_TYPES + (data[offset + 1] & 0xFF);
+    }
+
+    public static boolean isCapitalized(byte[] data, int offset, int length) {
+        return length > 0 && (data[offset] & CAPITALIZED) != 0;
+    }
+
+    public static boolean isPunctuationMark(byte[] data, int offset, int length) {
+        return length > 0 && (data[offset] & PUNCTUATION) != 0;
+    }
+
+    /**
+     * Sets the span, entity type and flags of a payload on an attribute.
+     *
+     * @param data the payload bytes, or null for a token without a payload
+     */
+    public void decode(byte[] data, int offset, int length, EntityAttribute entity) {
+        if (data == null) {
+            length = 0;
+        }
+        entity.setEntitySpan(span(data, offset, length));
+        entity.setEntityTypeId(labelTypeIds[typeId(data, offset, length)]);
+        entity.setIsCapitalized(isCapitalized(data, offset, length));
+        entity.setIsPunctuationMark(isPunctuationMark(data, offset, length));
+    }
+
+    /**
+     * Gets the model label of a payload, such as B-PERSON, as {@link EntityLabels} numbers it in this JVM.
+     *
+     * @param data the payload bytes, or null for a token without a payload
+     */
+    public int label(byte[] data, int offset, int length) {
+        if (data == null) {
+            return 0;
+        }
+        return EntityLabels.label(span(data, offset, length), labelTypeIds[typeId(data, offset, length)]);
+    }
+}
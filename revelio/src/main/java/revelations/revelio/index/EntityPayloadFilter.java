@@ -0,0 +1,175 @@
+package revelations.revelio.index;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import revelations.revelio.common.BilouTags;
+import revelations.revelio.common.EntityAttribute;
+import revelations.revelio.common.EntityLabels;
+import revelations.revelio.metrics.AnalysisMetrics;
+import revelations.revelio.metrics.DocumentCounts;
+import revelations.revelio.metrics.StageMetrics;
+
+import java.io.IOException;
+
+/**
+ * Sets the {@link EntityAttribute} of every token as a payload of a byte or two, packed by an
+ * {@link EntityPayloadCodec}, so tagged text can be indexed into Lucene and searched by entity type with an
+ * {@link EntitySpanQuery} at the cost of a byte or two a token, instead of a String tag or a field per type.
+ * It goes at the end of the chain, after the {@link revelations.revelio.common.EntityTagFilter} or whatever sets the
+ * entity spans, such as a tagger.
+ * <p>
+ * With type terms turned on every token of an entity is followed by a token at the same position whose term is its
+ * type, such as <code>&lt;PERSON&gt;</code>, see {@link #typeTerm(String)}, so a TermQuery finds the documents with
+ * an entity of a type and a PhraseQuery with both terms at the same position finds a word as an entity of a type.
+ * The tokenizer splits <code>&lt;</code> and <code>&gt;</code> off of words, so no word of the text has the same
+ * term. Type terms take a posting each, so they are off by default.
+ * </p>
+ * <p>
+ * With {@link AnalysisMetrics} turned on the filter counts the tokens it emits, the type terms among them and the
+ * entity tokens whose type the codec doesn't have, which are written with the type 0.
+ * </p>
+ */
+public final class EntityPayloadFilter extends TokenFilter implements BilouTags {
+    /**
+     * The name of the metrics of the filter and of its counters
+     */
+    public static final String METRICS_NAME = "EntityPayloadFilter";
+    public static final String TYPE_TERMS = "typeTerms";
+    public static final String UNKNOWN_TYPES = "unknownTypes";
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final EntityAttribute entityAtt = addAttribute(EntityAttribute.class);
+    private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
+    private final PositionIncrementAttribute positionAtt = addAttribute(PositionIncrementAttribute.class);
+
+    private final EntityPayloadCodec codec;
+    private final char[][] typeTerms;
+
+    /*
+     * The ids in payloads of the type ids of the EntityLabels registry, -1 where they haven't been looked up yet
+     */
+    private int[] payloadTypeIds = new int[0];
+
+    /*
+     * The payload type of the type term to emit next, or 0 for none, and the position increment of the token before it
+     */
+    private int pendingType;
+    private int increment = -1;
+
+    private static final int TOKEN_COUNT = 0, TYPE_TERM_COUNT = 1, UNKNOWN_COUNT = 2;
+    private final DocumentCounts counts = new DocumentCounts(AnalysisMetrics.stageIfEnabled(METRICS_NAME),
+            StageMetrics.TOKENS, TYPE_TERMS, UNKNOWN_TYPES);
+
+    public EntityPayloadFilter(TokenStream input, EntityPayloadCodec codec) {
+        this(input, codec, false);
+    }
+
+    /**
+     * @param input the tokens with their entity spans
+     * @param codec the codec with the entity types of the index
+     * @param typeTerms true to follow every token of an entity with the term of its type
+     */
+    public EntityPayloadFilter(TokenStream input, EntityPayloadCodec codec, boolean typeTerms) {
+        super(input);
+        this.codec = codec;
+        if (typeTerms) {
+            this.typeTerms = new char[codec.typeCount() + 1][];
+            for (int id = 1; id <= codec.typeCount(); id++) {
+                this.typeTerms[id] = typeTerm(codec.typeName(id)).toCharArray();
+            }
+        } else {
+            this.typeTerms = null;
+        }
+    }
+
+    /**
+     * @return the term the tokens of an entity of a type are followed by at the same position, such as &lt;PERSON&gt;
+     */
+    public static String typeTerm(String type) {
+        return "<" + type + ">";
+    }
+
+    public void setMetrics(StageMetrics metrics) {
+        counts.setMetrics(metrics);
+    }
+
+    public StageMetrics getMetrics() {
+        return counts.getMetrics();
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (pendingType != 0) {
+            final char[] term = typeTerms[pendingType];
+            termAtt.copyBuffer(term, 0, term.length);
+            increment = positionAtt.getPositionIncrement();
+            positionAtt.setPositionIncrement(0);
+            payloadAtt.setPayload(null);
+            pendingType = 0;
+            counts.increment(TYPE_TERM_COUNT);
+            counts.increment(TOKEN_COUNT);
+            return true;
+        }
+        if (increment >= 0) {
+            // filters which don't clear the attributes, such as the entity tag filter, would keep the 0 of a type term
+            positionAtt.setPositionIncrement(increment);
+            increment = -1;
+        }
+        if (!input.incrementToken()) {
+            return false;
+        }
+        byte span = entityAtt.getEntitySpan();
+        int typeId = 0;
+        if (span > UNIT_SPAN) {
+            span = OUTSIDE_SPAN;
+        } else if (span != OUTSIDE_SPAN) {
+            typeId = payloadTypeId(entityAtt.getEntityTypeId());
+        }
+        payloadAtt.setPayload(codec.payload(span, typeId, entityAtt.isCapitalized(), entityAtt.isPunctuationMark()));
+        if (typeTerms != null && typeId != 0) {
+            pendingType = typeId;
+        }
+        counts.increment(TOKEN_COUNT);
+        return true;
+    }
+
+    private int payloadTypeId(int labelTypeId) {
+        if (labelTypeId == 0) {
+            return 0;
+        }
+        if (payloadTypeIds.length <= labelTypeId) {
+            final int length = payloadTypeIds.length;
+            payloadTypeIds = ArrayUtil.grow(payloadTypeIds, labelTypeId + 1);
+            for (int i = length; i < payloadTypeIds.length; i++) {
+                payloadTypeIds[i] = -1;
+            }
+        }
+        int typeId = payloadTypeIds[labelTypeId];
+        if (typeId < 0) {
+            typeId = codec.typeId(EntityLabels.getInstance().typeName(labelTypeId));
+            payloadTypeIds[labelTypeId] = typeId;
+        }
+        if (typeId == 0) {
+            counts.increment(UNKNOWN_COUNT);
+        }
+        return typeId;
+    }
+
+    @Override
+    public void end() throws IOException {
+        super.end();
+        counts.flush();
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        counts.flush();
+        pendingType = 0;
+        increment = -1;
+    }
+}
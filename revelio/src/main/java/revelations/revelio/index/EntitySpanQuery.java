@@ -0,0 +1,102 @@
+package revelations.revelio.index;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.spans.SpanPositionCheckQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.search.spans.Spans;
+import org.apache.lucene.util.ToStringUtils;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Matches the spans of another span query whose every token is part of an entity of a type, going by the payloads
+ * an {@link EntityPayloadFilter} indexed, such as the word Chomsky as part of a PERSON:
+ * <pre>
+ * new EntitySpanQuery(new SpanTermQuery(new Term("text", "Chomsky")), codec, "PERSON")
+ * </pre>
+ * The payloads are read as bytes, so checking a position doesn't build a String. A span with a token without a
+ * payload, which is outside of any entity, never matches.
+ */
+public class EntitySpanQuery extends SpanPositionCheckQuery {
+
+    private final EntityPayloadCodec codec;
+    private final String type;
+    private final int typeId;
+
+    /**
+     * @param match the spans to check, such as a {@link SpanTermQuery} or a SpanNearQuery of the words of a name
+     * @param codec the codec the index was written with
+     * @param type the entity type the tokens have to be part of, such as PERSON
+     * @throws IllegalArgumentException if the codec doesn't have the type
+     */
+    public EntitySpanQuery(SpanQuery match, EntityPayloadCodec codec, String type) {
+        super(match);
+        this.codec = codec;
+        this.type = type;
+        this.typeId = codec.typeId(type);
+        if (typeId == 0) {
+            throw new IllegalArgumentException("The codec doesn't have the type " + type + ", only " +
+                    codec.getTypes());
+        }
+    }
+
+    /**
+     * Matches a term as part of an entity of a type.
+     */
+    public EntitySpanQuery(Term term, EntityPayloadCodec codec, String type) {
+        this(new SpanTermQuery(term), codec, type);
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    protected AcceptStatus acceptPosition(Spans spans) throws IOException {
+        if (!spans.isPayloadAvailable()) {
+            return AcceptStatus.NO;
+        }
+        Collection<byte[]> payloads = spans.getPayload();
+        if (payloads.size() < spans.end() - spans.start()) {
+            return AcceptStatus.NO;
+        }
+        for (byte[] payload : payloads) {
+            if (EntityPayloadCodec.typeId(payload, 0, payload.length) != typeId) {
+                return AcceptStatus.NO;
+            }
+        }
+        return AcceptStatus.YES;
+    }
+
+    @Override
+    public String toString(String field) {
+        return "entity(" + match.toString(field) + ", " + type + ")" + ToStringUtils.boost(getBoost());
+    }
+
+    @Override
+    public Object clone() {
+        EntitySpanQuery clone = new EntitySpanQuery((SpanQuery) match.clone(), codec, type);
+        clone.setBoost(getBoost());
+        return clone;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof EntitySpanQuery)) {
+            return false;
+        }
+        EntitySpanQuery query = (EntitySpanQuery) other;
+        return match.equals(query.match) && type.equals(query.type) && codec.getTypes().equals(query.codec.getTypes())
+                && getBoost() == query.getBoost();
+    }
+
+    @Override
+    public int hashCode() {
+        return (match.hashCode() * 31 + type.hashCode()) * 31 + Float.floatToIntBits(getBoost());
+    }
+}
@@ -0,0 +1,56 @@
+package revelations.revelio.mallet;
+
+import cc.mallet.types.Instance;
+import revelations.revelio.corpus.CachedTokenStream;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the documents of a token cache so they can be piped by a {@link TokenStreamPipe} without tokenizing
+ * the raw markup again. The data of every instance is the {@link CachedTokenStream} itself, positioned at the
+ * document, and its name is the number of the document starting at 1. Each instance has to be piped before the
+ * next one is asked for, which is how <code>pipe.newIteratorFrom(...)</code> works. The stream is closed once the
+ * last document has been read.
+ */
+public class CachedInstanceIterator implements Iterator<Instance> {
+
+    private final CachedTokenStream stream;
+    private boolean advanced;
+    private boolean hasNext;
+
+    public CachedInstanceIterator(CachedTokenStream stream) {
+        this.stream = stream;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!advanced) {
+            try {
+                hasNext = stream.nextDocument();
+                if (!hasNext) {
+                    stream.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read document " + (stream.getDocumentNumber() + 1), e);
+            }
+            advanced = true;
+        }
+        return hasNext;
+    }
+
+    @Override
+    public Instance next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        advanced = false;
+        return new Instance(stream, null, stream.getDocumentNumber(), null);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
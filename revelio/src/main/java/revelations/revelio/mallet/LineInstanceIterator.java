@@ -0,0 +1,60 @@
+package revelations.revelio.mallet;
+
+import cc.mallet.types.Instance;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over a corpus with one document per line, reading a line only when the next instance is asked for. The
+ * data of each instance is the text of the line and its name is the line number, starting at 1. Blank lines are
+ * skipped. The reader is closed once the last line has been read.
+ */
+public class LineInstanceIterator implements Iterator<Instance> {
+
+    private final BufferedReader reader;
+    private String nextLine;
+    private int lineNumber;
+
+    public LineInstanceIterator(Reader reader) {
+        this.reader = (reader instanceof BufferedReader) ? (BufferedReader) reader : new BufferedReader(reader);
+        advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextLine != null;
+    }
+
+    @Override
+    public Instance next() {
+        if (nextLine == null) {
+            throw new NoSuchElementException();
+        }
+        Instance instance = new Instance(nextLine, null, lineNumber, null);
+        advance();
+        return instance;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void advance() {
+        try {
+            do {
+                nextLine = reader.readLine();
+                lineNumber++;
+            } while (nextLine != null && nextLine.trim().length() == 0);
+            if (nextLine == null) {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read line " + lineNumber, e);
+        }
+    }
+}
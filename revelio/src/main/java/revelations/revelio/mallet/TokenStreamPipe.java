@@ -0,0 +1,526 @@
+package revelations.revelio.mallet;
+
+import cc.mallet.pipe.Pipe;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.FeatureVectorSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.LabelAlphabet;
+import cc.mallet.types.LabelSequence;
+import cc.mallet.types.TokenSequence;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Version;
+import revelations.revelio.common.BilouTags;
+import revelations.revelio.common.EntityAttribute;
+import revelations.revelio.common.EntityLabels;
+import revelations.revelio.common.EntityTagFilter;
+import revelations.revelio.common.SentenceAttribute;
+import revelations.revelio.common.SentenceFilter;
+import revelations.revelio.common.TaggedTokenizer;
+import revelations.revelio.features.FeatureCache;
+import revelations.revelio.features.TermFeature;
+import revelations.revelio.features.TermFeatureExtractor;
+import revelations.revelio.gazetteer.Gazetteer;
+import revelations.revelio.gazetteer.GazetteerFilter;
+import revelations.revelio.metrics.AnalysisMetrics;
+import revelations.revelio.metrics.DocumentCounts;
+import revelations.revelio.metrics.StageMetrics;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Turns the text of an instance into a CRF training instance by running it through a {@link TaggedTokenizer} and an
+ * {@link EntityTagFilter}. The data of the instance becomes a {@link FeatureVectorSequence} with one vector per token
+ * and the target becomes a {@link LabelSequence} of the BILOU tag of each token. A token left with markup which the
+ * filter couldn't parse, such as a tag without a type, is labelled O so only BILOU tags ever get into the label
+ * alphabet, and with {@link AnalysisMetrics} turned on it is counted as a rejected tag.
+ * <p>
+ * The data of the incoming instance can be a String, any other CharSequence or a Reader. The token stream is
+ * created once and reset for every instance, so a corpus can be piped one document at a time, for example with
+ * <code>pipe.newIteratorFrom(new LineInstanceIterator(reader))</code>, without ever holding all of it in memory.
+ * The data can also be a TokenStream which sets the same attributes, such as a
+ * {@link revelations.revelio.corpus.CachedTokenStream} from a {@link CachedInstanceIterator}. It is reset, consumed
+ * and ended but not closed.
+ * </p>
+ * Every token gets the feature <code>W=term</code> along with CAPITALIZED and PUNCTUATION when the
+ * {@link EntityAttribute} says so. More features of the term, such as its shape and affixes, can be turned on with
+ * {@link #setTermFeatures}. The features of a term are computed by a {@link TermFeatureExtractor} which caches them
+ * by the chars of the term, so a repeated term doesn't cost a String or an alphabet lookup. With a {@link Gazetteer}
+ * set, tokens which are part of one of its names also get their dictionary label as a feature, such as
+ * <code>G=B-PERSON</code>. Subclasses can add features by overriding {@link #addTokenFeatures} and calling
+ * {@link #addFeature}. Once growth of the data alphabet is stopped features it does not know are dropped.
+ * <p>
+ * With {@link #setMaxSentenceLength} a {@link SentenceFilter} goes at the end of the chain and the iterator of
+ * {@link #newIteratorFrom} pipes every sentence of a document into an instance of its own, so long documents become
+ * many short sequences which the threads of a trainer can share out evenly.
+ * </p>
+ * <p>
+ * A pipe holds the state of the token being piped, so an instance of it should only be used by one thread at a time.
+ * </p>
+ */
+public class TokenStreamPipe extends Pipe {
+    private static final long serialVersionUID = 1L;
+
+    public static final String WORD_PREFIX = TermFeatureExtractor.WORD_PREFIX;
+    public static final String CAPITALIZED = "CAPITALIZED";
+    public static final String PUNCTUATION = "PUNCTUATION";
+    public static final String GAZETTEER_PREFIX = "G=";
+
+    /**
+     * The name of the metrics of the pipe and of its counter of tokens labelled O for their markup
+     */
+    public static final String METRICS_NAME = "TokenStreamPipe";
+    public static final String REJECTED_TAGS = TaggedTokenizer.REJECTED_TAGS;
+
+    private final Set<String> entityTags;
+    private Set<TermFeature> termFeatures = EnumSet.of(TermFeature.WORD);
+    private int featureCacheSize = TermFeatureExtractor.DEFAULT_CACHE_SIZE;
+    private int maxSentenceLength;
+
+    private transient TermFeatureExtractor extractor;
+    private transient Gazetteer gazetteer;
+    private transient String[] dictionaryFeatures;
+
+    private transient TaggedTokenizer tokenizer;
+    private transient TokenStream stream;
+    private transient CharTermAttribute termAtt;
+    private transient EntityAttribute entityAtt;
+    private transient OffsetAttribute offsetAtt;
+    private transient SentenceAttribute sentenceAtt;
+
+    /*
+     * The stream being piped and its attributes, and the sentence filter over the last token stream piped as data
+     */
+    private transient TokenStream current;
+    private transient CharTermAttribute currentTerm;
+    private transient EntityAttribute currentEntity;
+    private transient OffsetAttribute currentOffset;
+    private transient SentenceAttribute currentSentence;
+    private transient TokenStream sentenceSource;
+    private transient SentenceFilter sentenceFilter;
+
+    /*
+     * The features of the token being piped and the vectors and labels of the instance being piped
+     */
+    private transient int[] features;
+    private transient int featureCount;
+    private transient List<FeatureVector> vectors;
+    private transient int[] labels;
+
+    private static final int REJECTED_COUNT = 0;
+    private transient DocumentCounts counts;
+
+    public TokenStreamPipe() {
+        this(new Alphabet(), new LabelAlphabet());
+    }
+
+    public TokenStreamPipe(Alphabet dataAlphabet, LabelAlphabet targetAlphabet) {
+        this(dataAlphabet, targetAlphabet, TaggedTokenizer.DEFAULT_ENTITY_TAGS);
+    }
+
+    public TokenStreamPipe(Alphabet dataAlphabet, LabelAlphabet targetAlphabet, Set<String> entityTags) {
+        super(dataAlphabet, targetAlphabet);
+        this.entityTags = new HashSet<String>(entityTags);
+    }
+
+    @Override
+    public Instance pipe(Instance carrier) {
+        start(carrier);
+        pipeTokens(carrier, carrier, false);
+        return carrier;
+    }
+
+    /**
+     * Pipes every document into one instance per sentence when the documents are split into sentences. The
+     * sentences of a document keep its name and source.
+     */
+    @Override
+    public Iterator<Instance> newIteratorFrom(Iterator<Instance> source) {
+        return (maxSentenceLength > 0) ? new SentenceIterator(source) : super.newIteratorFrom(source);
+    }
+
+    /**
+     * Resets the token stream of an instance to be piped.
+     */
+    private void start(Instance carrier) {
+        final Object data = carrier.getData();
+        try {
+            if (data instanceof TokenStream) {
+                current = (maxSentenceLength > 0) ? sentences((TokenStream) data) : (TokenStream) data;
+                currentTerm = current.addAttribute(CharTermAttribute.class);
+                currentEntity = current.addAttribute(EntityAttribute.class);
+                currentOffset = current.addAttribute(OffsetAttribute.class);
+                currentSentence = (maxSentenceLength > 0) ? current.addAttribute(SentenceAttribute.class) : null;
+                initScratch();
+            } else {
+                resetStream(toReader(data));
+                current = stream;
+                currentTerm = termAtt;
+                currentEntity = entityAtt;
+                currentOffset = offsetAtt;
+                currentSentence = sentenceAtt;
+            }
+            current.reset();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to tokenize instance " + carrier.getName(), e);
+        }
+    }
+
+    /**
+     * Pipes the tokens of the current stream into an instance, up to the end of the stream or, if asked to, the end
+     * of the next sentence. The stream is ended once it has no more tokens.
+     *
+     * @param carrier the instance whose text is being piped
+     * @param into the instance to set the data and target of
+     * @param sentence true to stop at the end of a sentence
+     * @return true if the stream has more tokens
+     */
+    private boolean pipeTokens(Instance carrier, Instance into, boolean sentence) {
+        final Alphabet dataAlphabet = getDataAlphabet();
+        final LabelAlphabet labelAlphabet = (LabelAlphabet) getTargetAlphabet();
+        final boolean targets = isTargetProcessing() && labelAlphabet != null;
+        int tokens = 0;
+        boolean more = false;
+        try {
+            vectors.clear();
+            while (current.incrementToken()) {
+                featureCount = 0;
+                addTokenFeatures(currentTerm, currentEntity);
+                vectors.add(new FeatureVector(dataAlphabet, Arrays.copyOf(features, featureCount)));
+                if (targets) {
+                    if (labels.length == tokens) {
+                        labels = ArrayUtil.grow(labels, tokens + 1);
+                    }
+                    if (currentEntity.getEntitySpan() <= BilouTags.UNIT_SPAN) {
+                        labels[tokens] = labelAlphabet.lookupIndex(currentEntity.toEntityTag());
+                    } else {
+                        labels[tokens] = labelAlphabet.lookupIndex(BilouTags.OUTSIDE);
+                        counts().increment(REJECTED_COUNT);
+                    }
+                }
+                tokens++;
+                if (sentence && currentSentence.isSentenceEnd()) {
+                    more = true;
+                    break;
+                }
+            }
+            if (!more) {
+                current.end();
+                if (current == stream) {
+                    stream.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to tokenize instance " + carrier.getName(), e);
+        } finally {
+            counts().flush();
+        }
+        // a sequence built from vectors takes its alphabet from the first one, so text without tokens needs another way
+        into.setData((tokens == 0) ? new FeatureVectorSequence(dataAlphabet, new TokenSequence()) :
+                new FeatureVectorSequence(vectors.toArray(new FeatureVector[tokens])));
+        if (targets) {
+            into.setTarget(new LabelSequence(labelAlphabet, Arrays.copyOf(labels, tokens)));
+        }
+        return more;
+    }
+
+    /**
+     * @return true if the current token is the last token of a sentence, which it never is when documents aren't
+     * split into sentences
+     */
+    protected final boolean isSentenceEnd() {
+        return currentSentence != null && currentSentence.isSentenceEnd();
+    }
+
+    /**
+     * @return the offset of the first char of the current token in the text
+     */
+    protected final int startOffset() {
+        return currentOffset.startOffset();
+    }
+
+    /**
+     * @return the offset after the last char of the current token in the text
+     */
+    protected final int endOffset() {
+        return currentOffset.endOffset();
+    }
+
+    /**
+     * Pipes the sentences of the documents of another iterator one at a time. A document is asked for once the
+     * sentences of the one before it have all been piped. Sentences without tokens are skipped.
+     */
+    private final class SentenceIterator implements Iterator<Instance> {
+        private final Iterator<Instance> source;
+        private Instance document;
+        private Instance next;
+
+        SentenceIterator(Iterator<Instance> source) {
+            this.source = source;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (document == null) {
+                    if (!source.hasNext()) {
+                        return false;
+                    }
+                    document = source.next();
+                    start(document);
+                }
+                Instance sentence = new Instance(null, null, document.getName(), document.getSource());
+                if (!pipeTokens(document, sentence, true)) {
+                    document = null;
+                }
+                if (((FeatureVectorSequence) sentence.getData()).size() > 0) {
+                    next = sentence;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Instance next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Instance sentence = next;
+            next = null;
+            return sentence;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Adds the features of the current token. Overriding methods should call this one to keep the default features.
+     *
+     * @param term the term of the current token
+     * @param entity the entity metadata of the current token
+     */
+    protected void addTokenFeatures(CharTermAttribute term, EntityAttribute entity) {
+        addFeatures(extractor().extract(term.buffer(), term.length()));
+        if (entity.isCapitalized()) {
+            addFeature(CAPITALIZED);
+        }
+        if (entity.isPunctuationMark()) {
+            addFeature(PUNCTUATION);
+        }
+        final int dictionaryLabel = entity.getDictionaryLabel();
+        if (dictionaryLabel != 0) {
+            addFeature(dictionaryFeature(dictionaryLabel));
+        }
+    }
+
+    private String dictionaryFeature(int label) {
+        if (dictionaryFeatures == null || dictionaryFeatures.length <= label) {
+            String[] grown = new String[EntityLabels.getInstance().labelCount()];
+            if (dictionaryFeatures != null) {
+                System.arraycopy(dictionaryFeatures, 0, grown, 0, dictionaryFeatures.length);
+            }
+            dictionaryFeatures = grown;
+        }
+        if (dictionaryFeatures[label] == null) {
+            dictionaryFeatures[label] = GAZETTEER_PREFIX + EntityLabels.getInstance().tag(label);
+        }
+        return dictionaryFeatures[label];
+    }
+
+    /**
+     * Adds a feature to the current token. Features which are not in the data alphabet after its growth has been
+     * stopped are ignored.
+     *
+     * @param feature the name of the feature
+     */
+    protected final void addFeature(Object feature) {
+        int index = getDataAlphabet().lookupIndex(feature);
+        if (index >= 0) {
+            if (features.length == featureCount) {
+                features = ArrayUtil.grow(features, featureCount + 1);
+            }
+            features[featureCount++] = index;
+        }
+    }
+
+    /**
+     * Adds features to the current token by their ids in the data alphabet.
+     *
+     * @param ids the ids of the features
+     */
+    protected final void addFeatures(int[] ids) {
+        if (features.length < featureCount + ids.length) {
+            features = ArrayUtil.grow(features, featureCount + ids.length);
+        }
+        System.arraycopy(ids, 0, features, featureCount, ids.length);
+        featureCount += ids.length;
+    }
+
+    private DocumentCounts counts() {
+        if (counts == null) {
+            counts = new DocumentCounts(AnalysisMetrics.stageIfEnabled(METRICS_NAME), REJECTED_TAGS);
+        }
+        return counts;
+    }
+
+    public void setMetrics(StageMetrics metrics) {
+        counts().setMetrics(metrics);
+    }
+
+    public StageMetrics getMetrics() {
+        return counts().getMetrics();
+    }
+
+    private TermFeatureExtractor extractor() {
+        if (extractor == null) {
+            extractor = new TermFeatureExtractor(getDataAlphabet(), termFeatures, featureCacheSize);
+        }
+        return extractor;
+    }
+
+    /**
+     * Gets the cache of the features of terms, which reports its hit rate and memory use.
+     *
+     * @return the cache of the thread piping with this pipe
+     */
+    public FeatureCache getFeatureCache() {
+        return extractor().getCache();
+    }
+
+    public Set<String> getEntityTags() {
+        return Collections.unmodifiableSet(entityTags);
+    }
+
+    public Set<TermFeature> getTermFeatures() {
+        return EnumSet.copyOf(termFeatures);
+    }
+
+    /**
+     * Sets the kinds of features computed from the term of every token. The default is just {@link TermFeature#WORD}.
+     *
+     * @param termFeatures the kinds of features
+     */
+    public void setTermFeatures(Set<TermFeature> termFeatures) {
+        this.termFeatures = termFeatures.isEmpty() ? EnumSet.noneOf(TermFeature.class) : EnumSet.copyOf(termFeatures);
+        extractor = null;
+    }
+
+    public int getFeatureCacheSize() {
+        return featureCacheSize;
+    }
+
+    /**
+     * @param featureCacheSize the most terms to cache the features of
+     */
+    public void setFeatureCacheSize(int featureCacheSize) {
+        if (featureCacheSize < 1) {
+            throw new IllegalArgumentException("featureCacheSize must be at least 1 but was " + featureCacheSize);
+        }
+        this.featureCacheSize = featureCacheSize;
+        extractor = null;
+    }
+
+    public int getMaxSentenceLength() {
+        return maxSentenceLength;
+    }
+
+    /**
+     * Splits documents into sentences with a {@link SentenceFilter}, so {@link #newIteratorFrom} pipes each sentence
+     * of a document into an instance of its own instead of the whole document into one. The CRF then learns and
+     * labels sequences no longer than a sentence. {@link #pipe} still pipes whole documents and
+     * {@link #isSentenceEnd()} tells where their sentences end.
+     *
+     * @param maxSentenceLength the most tokens of a sentence outside of a span, or 0 to not split documents
+     */
+    public void setMaxSentenceLength(int maxSentenceLength) {
+        if (maxSentenceLength < 0) {
+            throw new IllegalArgumentException("maxSentenceLength can't be negative but was " + maxSentenceLength);
+        }
+        this.maxSentenceLength = maxSentenceLength;
+        tokenizer = null;
+        sentenceSource = null;
+    }
+
+    public Gazetteer getGazetteer() {
+        return gazetteer;
+    }
+
+    /**
+     * Sets the gazetteer to mark the names in the text with. A gazetteer isn't serialized with the pipe, so it has to
+     * be set again on a deserialized pipe.
+     *
+     * @param gazetteer the gazetteer or null for none
+     */
+    public void setGazetteer(Gazetteer gazetteer) {
+        this.gazetteer = gazetteer;
+        tokenizer = null;
+    }
+
+    private void resetStream(Reader reader) throws IOException {
+        if (tokenizer == null) {
+            tokenizer = new TaggedTokenizer(Version.LUCENE_36, reader, entityTags);
+            stream = new EntityTagFilter(tokenizer);
+            if (gazetteer != null) {
+                stream = new GazetteerFilter(stream, gazetteer);
+            }
+            if (maxSentenceLength > 0) {
+                stream = new SentenceFilter(stream, maxSentenceLength);
+                sentenceAtt = stream.addAttribute(SentenceAttribute.class);
+            } else {
+                sentenceAtt = null;
+            }
+            termAtt = stream.addAttribute(CharTermAttribute.class);
+            entityAtt = stream.addAttribute(EntityAttribute.class);
+            offsetAtt = stream.addAttribute(OffsetAttribute.class);
+            initScratch();
+        } else {
+            tokenizer.reset(reader);
+        }
+    }
+
+    /**
+     * @return a sentence filter over a token stream, which is kept for as long as the same stream is piped
+     */
+    private TokenStream sentences(TokenStream source) {
+        if (source != sentenceSource) {
+            sentenceSource = source;
+            sentenceFilter = new SentenceFilter(source, maxSentenceLength);
+        }
+        return sentenceFilter;
+    }
+
+    private void initScratch() {
+        if (vectors == null) {
+            features = new int[8];
+            vectors = new ArrayList<FeatureVector>();
+            labels = new int[64];
+        }
+    }
+
+    private static Reader toReader(Object data) {
+        if (data instanceof Reader) {
+            return (Reader) data;
+        } else if (data instanceof CharSequence) {
+            return new StringReader(data.toString());
+        }
+        throw new IllegalArgumentException("Expected the data of the instance to be text but got " +
+                (data == null ? null : data.getClass().getName()));
+    }
+}
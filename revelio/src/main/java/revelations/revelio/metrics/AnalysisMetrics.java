@@ -0,0 +1,195 @@
+package revelations.revelio.metrics;
+
+import org.apache.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The registry of the {@link StageMetrics} of the analysis chain. Instrumentation is off unless the system property
+ * <code>revelio.metrics</code> is true or {@link #setEnabled(boolean)} turns it on, in which case stages created
+ * from then on record their metrics. Each stage is published as the MBean
+ * <code>revelations.revelio:type=AnalysisStage,name=&lt;stage&gt;</code> on the platform MBean server the first time
+ * it is asked for.
+ * <p>
+ * {@link #startLogging(long)} logs every stage through log4j at a fixed period along with the rate of each counter
+ * since the last time it was logged. Setting the system property <code>revelio.metrics.logSeconds</code> starts
+ * logging the first time instrumentation is turned on, by the <code>revelio.metrics</code> property or by {@link
+ * #setEnabled(boolean)}.
+ * </p>
+ */
+public final class AnalysisMetrics {
+    private static final Logger log = Logger.getLogger(AnalysisMetrics.class);
+
+    public static final String ENABLED_PROPERTY = "revelio.metrics";
+    public static final String LOG_SECONDS_PROPERTY = "revelio.metrics.logSeconds";
+    static final String DOMAIN = "revelations.revelio";
+
+    private static final ConcurrentMap<String, StageMetrics> stages = new ConcurrentHashMap<String, StageMetrics>();
+    private static volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+    private static ScheduledExecutorService logger;
+    private static Map<String, Map<String, Long>> lastLogged = new HashMap<String, Map<String, Long>>();
+    private static long lastLoggedNanos;
+    private static boolean logSecondsChecked;
+
+    static {
+        if (enabled) {
+            startLoggingIfAsked();
+        }
+    }
+
+    private AnalysisMetrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns instrumentation on or off for the stages created from then on. Stages which already exist keep
+     * recording or not.
+     */
+    public static void setEnabled(boolean enabled) {
+        AnalysisMetrics.enabled = enabled;
+        if (enabled) {
+            startLoggingIfAsked();
+        }
+    }
+
+    /**
+     * Starts logging at the period of the <code>revelio.metrics.logSeconds</code> property, if it is set, the first
+     * time instrumentation is turned on.
+     */
+    private static synchronized void startLoggingIfAsked() {
+        if (logSecondsChecked) {
+            return;
+        }
+        logSecondsChecked = true;
+        long seconds = Long.getLong(LOG_SECONDS_PROPERTY, 0L);
+        if (seconds > 0) {
+            startLogging(seconds * 1000);
+        }
+    }
+
+    /**
+     * Gets the metrics of a stage if instrumentation is on.
+     *
+     * @param name the name of the stage
+     * @return the metrics or null if instrumentation is off
+     */
+    public static StageMetrics stageIfEnabled(String name) {
+        return enabled ? stage(name) : null;
+    }
+
+    /**
+     * Gets the metrics of a stage, creating and publishing them the first time.
+     *
+     * @param name the name of the stage, such as TaggedTokenizer
+     */
+    public static StageMetrics stage(String name) {
+        StageMetrics metrics = stages.get(name);
+        if (metrics == null) {
+            metrics = new StageMetrics(name);
+            StageMetrics existing = stages.putIfAbsent(name, metrics);
+            if (existing != null) {
+                return existing;
+            }
+            register(metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the metrics of every stage created so far
+     */
+    public static List<StageMetrics> stages() {
+        return new ArrayList<StageMetrics>(stages.values());
+    }
+
+    static ObjectName objectName(String stage) throws JMException {
+        return new ObjectName(DOMAIN + ":type=AnalysisStage,name=" + ObjectName.quote(stage));
+    }
+
+    private static void register(StageMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName(metrics.getName());
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (JMException e) {
+            log.warn("Unable to publish the metrics of " + metrics.getName() + " over JMX", e);
+        }
+    }
+
+    /**
+     * Logs the metrics of every stage at a fixed period on a daemon thread, replacing any logging started before.
+     *
+     * @param periodMillis the time between two logs
+     */
+    public static synchronized void startLogging(long periodMillis) {
+        stopLogging();
+        logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "revelio-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        lastLoggedNanos = System.nanoTime();
+        logger.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                logStages();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void stopLogging() {
+        if (logger != null) {
+            logger.shutdownNow();
+            logger = null;
+        }
+    }
+
+    /**
+     * Logs every stage, with the rate per second of each counter since the last time.
+     */
+    static synchronized void logStages() {
+        final long now = System.nanoTime();
+        final double seconds = Math.max(1, now - lastLoggedNanos) / 1e9;
+        lastLoggedNanos = now;
+        Map<String, Map<String, Long>> logged = new HashMap<String, Map<String, Long>>();
+        for (StageMetrics stage : stages()) {
+            Map<String, Long> snapshot = stage.snapshot();
+            Map<String, Long> last = lastLogged.get(stage.getName());
+            StringBuilder line = new StringBuilder(stage.getName());
+            for (Map.Entry<String, Long> value : snapshot.entrySet()) {
+                line.append(' ').append(value.getKey()).append('=').append(value.getValue());
+                if (!value.getKey().startsWith("latency")) {
+                    Long before = (last == null) ? null : last.get(value.getKey());
+                    long delta = value.getValue() - (before == null ? 0 : before);
+                    line.append(String.format(Locale.ROOT, " (%.0f/s)", delta / seconds));
+                }
+            }
+            log.info(line);
+            logged.put(stage.getName(), snapshot);
+        }
+        lastLogged = logged;
+    }
+}
@@ -0,0 +1,12 @@
+package revelations.revelio.metrics;
+
+/**
+ * A reader which knows how many bytes it has decoded, so the tokenizer reading it can count bytes as well as chars.
+ */
+public interface ByteCounter {
+
+    /**
+     * @return the number of bytes decoded so far
+     */
+    long getBytesRead();
+}
@@ -0,0 +1,84 @@
+package revelations.revelio.metrics;
+
+import java.util.Arrays;
+
+/**
+ * The counts a stage of the analysis chain keeps for the document it is working on. The stage adds to them in
+ * plain fields while it loops over the chars or tokens, with no contention between threads, and calls {@link
+ * #flush()} when the document ends, which adds them to the shared {@link StripedCounter}s of its {@link
+ * StageMetrics} and starts counting again. Counts are referred to by their index in the names they were created
+ * with.
+ */
+public final class DocumentCounts {
+    private final String[] names;
+    private final long[] counts;
+    private final StripedCounter[] counters;
+    private StageMetrics metrics;
+
+    /**
+     * @param metrics the metrics to add the counts to, or null to not record any
+     * @param names   the names of the counters of the metrics, such as {@link StageMetrics#TOKENS}
+     */
+    public DocumentCounts(StageMetrics metrics, String... names) {
+        this.names = names.clone();
+        this.counts = new long[names.length];
+        this.counters = new StripedCounter[names.length];
+        setMetrics(metrics);
+    }
+
+    /**
+     * Sets the metrics to add the counts to, overriding whether {@link AnalysisMetrics} was turned on when the
+     * stage was created.
+     *
+     * @param metrics the metrics or null to not record any
+     */
+    public void setMetrics(StageMetrics metrics) {
+        this.metrics = metrics;
+        for (int i = 0; i < names.length; i++) {
+            counters[i] = (metrics == null) ? null : metrics.counter(names[i]);
+        }
+    }
+
+    /**
+     * @return the metrics the counts are added to, or null when the stage isn't instrumented
+     */
+    public StageMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void increment(int count) {
+        counts[count]++;
+    }
+
+    public void add(int count, long delta) {
+        counts[count] += delta;
+    }
+
+    /**
+     * @return a count of the current document
+     */
+    public long get(int count) {
+        return counts[count];
+    }
+
+    /**
+     * Adds the counts of the current document to the metrics, if there are any, and starts counting again.
+     */
+    public void flush() {
+        if (metrics != null) {
+            for (int i = 0; i < counts.length; i++) {
+                counters[i].add(counts[i]);
+            }
+        }
+        Arrays.fill(counts, 0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder string = new StringBuilder("DocumentCounts(");
+        for (int i = 0; i < names.length; i++) {
+            string.append((i == 0) ? "" : ", ").append(names[i]).append('=').append(counts[i]);
+        }
+        return string.append(')').toString();
+    }
+}
@@ -0,0 +1,120 @@
+package revelations.revelio.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds with a bucket for every power of two, striped like a
+ * {@link StripedCounter} so threads recording at the same time don't contend. Percentiles are reported as the upper
+ * bound of the bucket they fall in, so they are accurate to within a factor of two, which is plenty to see a change
+ * in the tail.
+ */
+public class LatencyHistogram {
+    /**
+     * Bucket b holds the latencies whose highest bit is bit b - 1, so bucket 0 is only for 0 and the last bucket is
+     * for latencies of 2^62 nanoseconds and up
+     */
+    static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts;
+    private final StripedCounter totalNanos;
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final int mask;
+
+    public LatencyHistogram() {
+        this(Stripes.count());
+    }
+
+    LatencyHistogram(int stripes) {
+        int count = Stripes.roundUp(stripes);
+        this.counts = new AtomicLongArray(count * BUCKETS);
+        this.totalNanos = new StripedCounter(count);
+        this.mask = count - 1;
+    }
+
+    /**
+     * @param nanos the latency to record. Negative latencies are recorded as 0.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.getAndIncrement((Stripes.index() & mask) * BUCKETS + bucket(nanos));
+        totalNanos.add(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    static int bucket(long nanos) {
+        return BUCKETS - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /**
+     * @return the number of latencies recorded
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @return the mean latency or 0 if none were recorded
+     */
+    public long getMeanNanos() {
+        long count = getCount();
+        return (count == 0) ? 0 : getTotalNanos() / count;
+    }
+
+    /**
+     * Estimates a percentile.
+     *
+     * @param percentile the percentile, from 0 to 100
+     * @return the upper bound of the bucket the percentile falls in, or 0 if no latencies were recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long bucketCount = counts.get(i);
+            buckets[i % BUCKETS] += bucketCount;
+            count += bucketCount;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += buckets[bucket];
+            if (seen >= rank && buckets[bucket] > 0) {
+                return Math.min(upperBound(bucket), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    private static long upperBound(int bucket) {
+        return (bucket == BUCKETS - 1) ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        totalNanos.reset();
+        maxNanos.set(0);
+    }
+}
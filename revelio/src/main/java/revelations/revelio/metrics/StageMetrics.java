@@ -0,0 +1,181 @@
+package revelations.revelio.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ReflectionException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The counters and document latencies of one stage of the analysis chain, such as the {@link
+ * revelations.revelio.common.TaggedTokenizer}. Every instance of a stage adds to the same metrics, whichever thread
+ * it runs on. Counters are named by the stage, so each stage can count what matters for it, and are published as
+ * read only attributes of a JMX MBean along with the latency percentiles in microseconds. The MBean also has a
+ * reset operation.
+ */
+public class StageMetrics implements DynamicMBean {
+    public static final String TOKENS = "tokens";
+    public static final String DOCUMENTS = "documents";
+    public static final String CHARS_READ = "charsRead";
+    public static final String BYTES_READ = "bytesRead";
+
+    static final String LATENCY_MEAN = "latencyMeanMicros";
+    static final String LATENCY_P50 = "latencyP50Micros";
+    static final String LATENCY_P99 = "latencyP99Micros";
+    static final String LATENCY_MAX = "latencyMaxMicros";
+    private static final String[] LATENCY_ATTRIBUTES = {LATENCY_MEAN, LATENCY_P50, LATENCY_P99, LATENCY_MAX};
+    private static final String RESET = "reset";
+
+    private final String name;
+    private final Map<String, StripedCounter> counters = new LinkedHashMap<String, StripedCounter>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    public StageMetrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets a counter, creating it the first time it is asked for. Stages should look their counters up once, when
+     * they are created, and keep them.
+     *
+     * @param counter the name of the counter, such as {@link #TOKENS}
+     */
+    public synchronized StripedCounter counter(String counter) {
+        StripedCounter striped = counters.get(counter);
+        if (striped == null) {
+            striped = new StripedCounter();
+            counters.put(counter, striped);
+        }
+        return striped;
+    }
+
+    /**
+     * @return the latencies of the documents which went through the stage
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Reads every counter and the latency summary.
+     *
+     * @return the values by the names of their MBean attributes, in the order the counters were created
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<String, Long>();
+        synchronized (this) {
+            for (Map.Entry<String, StripedCounter> counter : counters.entrySet()) {
+                snapshot.put(counter.getKey(), counter.getValue().sum());
+            }
+        }
+        for (String attribute : LATENCY_ATTRIBUTES) {
+            snapshot.put(attribute, latencyMicros(attribute));
+        }
+        return snapshot;
+    }
+
+    public synchronized void reset() {
+        for (StripedCounter counter : counters.values()) {
+            counter.reset();
+        }
+        latency.reset();
+    }
+
+    private long latencyMicros(String attribute) {
+        final long nanos;
+        if (LATENCY_MEAN.equals(attribute)) {
+            nanos = latency.getMeanNanos();
+        } else if (LATENCY_P50.equals(attribute)) {
+            nanos = latency.getPercentileNanos(50);
+        } else if (LATENCY_P99.equals(attribute)) {
+            nanos = latency.getPercentileNanos(99);
+        } else {
+            nanos = latency.getMaxNanos();
+        }
+        return nanos / 1000;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        synchronized (this) {
+            StripedCounter counter = counters.get(attribute);
+            if (counter != null) {
+                return counter.sum();
+            }
+        }
+        for (String latencyAttribute : LATENCY_ATTRIBUTES) {
+            if (latencyAttribute.equals(attribute)) {
+                return latencyMicros(attribute);
+            }
+        }
+        throw new AttributeNotFoundException(name + " has no attribute " + attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // left out of the list, as the contract of getAttributes allows
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("The attributes of " + name + " are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if (RESET.equals(actionName) && (params == null || params.length == 0)) {
+            reset();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName), name + " has no operation " +
+                actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        synchronized (this) {
+            for (String counter : counters.keySet()) {
+                attributes.add(new MBeanAttributeInfo(counter, "long", counter, true, false, false));
+            }
+        }
+        for (String attribute : LATENCY_ATTRIBUTES) {
+            attributes.add(new MBeanAttributeInfo(attribute, "long", attribute, true, false, false));
+        }
+        MBeanOperationInfo reset = new MBeanOperationInfo(RESET, "Sets every counter back to 0",
+                new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+        return new MBeanInfo(getClass().getName(), "Metrics of the " + name + " stage",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+                new MBeanOperationInfo[]{reset}, null);
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + snapshot();
+    }
+}
@@ -0,0 +1,64 @@
+package revelations.revelio.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which is spread over several cells so that threads adding to it at the same time rarely touch the same
+ * cache line. Each thread adds to the cell picked by the hash of its id and reading the count sums the cells.
+ * Stages of the analysis chain count in plain fields while they work and only add to their counters once per
+ * document, so this is never in the loop over the chars or tokens.
+ */
+public class StripedCounter {
+    /**
+     * Cells are this many longs apart, which puts each of them on its own 64 byte cache line.
+     */
+    static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter() {
+        this(Stripes.count());
+    }
+
+    /**
+     * @param stripes the number of cells. It is rounded up to a power of two.
+     */
+    StripedCounter(int stripes) {
+        int count = Stripes.roundUp(stripes);
+        this.cells = new AtomicLongArray(count * PADDING);
+        this.mask = count - 1;
+    }
+
+    public void add(long delta) {
+        if (delta != 0) {
+            cells.getAndAdd((Stripes.index() & mask) * PADDING, delta);
+        }
+    }
+
+    public void increment() {
+        cells.getAndIncrement((Stripes.index() & mask) * PADDING);
+    }
+
+    /**
+     * @return the sum of the cells. Adds which happen while the cells are summed may or may not be included.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            cells.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
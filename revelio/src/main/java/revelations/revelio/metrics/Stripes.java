@@ -0,0 +1,33 @@
+package revelations.revelio.metrics;
+
+/**
+ * Picks the cell of a striped counter or histogram for the current thread.
+ */
+final class Stripes {
+
+    private Stripes() {
+    }
+
+    /**
+     * @return the number of cells which keeps threads apart, twice the number of cores
+     */
+    static int count() {
+        return roundUp(2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    static int roundUp(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be at least 1 but was " + stripes);
+        }
+        int rounded = Integer.highestOneBit(stripes);
+        return (rounded == stripes) ? rounded : rounded << 1;
+    }
+
+    /**
+     * @return a well mixed hash of the id of the current thread, to be masked by the number of cells
+     */
+    static int index() {
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) (id >>> 32);
+    }
+}
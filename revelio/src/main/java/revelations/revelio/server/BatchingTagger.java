@@ -0,0 +1,383 @@
+package revelations.revelio.server;
+
+import revelations.revelio.gazetteer.Gazetteer;
+import revelations.revelio.metrics.AnalysisMetrics;
+import revelations.revelio.metrics.StageMetrics;
+import revelations.revelio.metrics.StripedCounter;
+import revelations.revelio.tagger.DocumentTagger;
+import revelations.revelio.tagger.ModelRegistry;
+import revelations.revelio.tagger.ModelVersion;
+import revelations.revelio.tagger.TaggedDocument;
+import revelations.revelio.tagger.TaggerModel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tags the documents of any number of concurrent callers on a fixed number of decoder threads, merging the documents
+ * of small requests into micro-batches. A caller puts its documents on a bounded queue and waits for them, and each
+ * decoder thread takes the documents queued so far, up to the batch size, and tags them one after the other with a
+ * {@link DocumentTagger} of its own. A decoder can also wait a little for a batch to fill, see
+ * {@link #setMaxWaitMicros(long)}, trading latency for fewer hand offs when requests trickle in.
+ * <p>
+ * Only the decoder threads ever tokenize or decode, so however many requests come in at once the work in flight is
+ * bounded by the number of decoders, and each decoder reuses its TaggedTokenizer chain by resetting it onto the next
+ * document instead of building a new one. A request which doesn't fit in the queue is rejected right away instead of
+ * waiting behind it, which keeps the latency of the requests which are taken predictable. Room for all of the
+ * documents of a request is taken at once, so a request is either queued whole or not at all, and no decoder spends
+ * time on the documents of a request which was turned away.
+ * </p>
+ * <p>
+ * The model comes from a {@link ModelRegistry}, so a new one can be swapped in while tagging goes on. A request is
+ * tagged by the model which was current when it came in, even if some of its documents are taken after a swap, and a
+ * decoder which has been idle for a second lets go of the tagger of a model which was swapped out.
+ * </p>
+ * <p>
+ * The requests, documents, batches and rejected requests are counted in the {@link StageMetrics} of the tagger along
+ * with the latency of every request. With {@link AnalysisMetrics} turned on these are published as the
+ * {@link #METRICS_NAME} stage.
+ * </p>
+ */
+public class BatchingTagger {
+    /**
+     * The name of the metrics of the tagger and of its counters
+     */
+    public static final String METRICS_NAME = "BatchingTagger";
+    public static final String REQUESTS = "requests";
+    public static final String BATCHES = "batches";
+    public static final String REJECTED = "rejected";
+
+    public static final int DEFAULT_BATCH_SIZE = 32;
+    public static final int DEFAULT_QUEUE_SIZE = 4096;
+
+    /*
+     * How long a decoder waits for a document before it checks whether its model was swapped out
+     */
+    private static final long IDLE_MILLIS = 1000;
+
+    private final ModelRegistry registry;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private long maxWaitNanos;
+
+    private BlockingQueue<Pending> queue;
+    private Semaphore room;
+    private Thread[] decoders;
+    private volatile boolean running;
+
+    private final StageMetrics metrics;
+    private final StripedCounter requests, documentCount, batches, rejected;
+
+    /**
+     * @param model the compiled or loaded model
+     * @param gazetteer the gazetteer the model was trained with, or null for none
+     */
+    public BatchingTagger(TaggerModel model, Gazetteer gazetteer) {
+        this(new ModelRegistry(model, gazetteer));
+    }
+
+    /**
+     * @param registry where to get the model to tag with
+     */
+    public BatchingTagger(ModelRegistry registry) {
+        this.registry = registry;
+        metrics = AnalysisMetrics.isEnabled() ? AnalysisMetrics.stage(METRICS_NAME) : new StageMetrics(METRICS_NAME);
+        requests = metrics.counter(REQUESTS);
+        documentCount = metrics.counter(StageMetrics.DOCUMENTS);
+        batches = metrics.counter(BATCHES);
+        rejected = metrics.counter(REJECTED);
+    }
+
+    /**
+     * Starts the decoder threads. The settings can't be changed once the tagger is started.
+     */
+    public synchronized void start() {
+        if (running) {
+            throw new IllegalStateException("The tagger is already started");
+        }
+        queue = new ArrayBlockingQueue<Pending>(queueSize);
+        room = new Semaphore(queueSize);
+        decoders = new Thread[threads];
+        running = true;
+        for (int i = 0; i < threads; i++) {
+            decoders[i] = new Thread(new Decoder(), "revelio-decoder-" + i);
+            decoders[i].setDaemon(true);
+            decoders[i].start();
+        }
+    }
+
+    /**
+     * Stops the decoder threads. Documents which are still queued fail with an IllegalStateException.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (Thread decoder : decoders) {
+            decoder.interrupt();
+        }
+        for (Thread decoder : decoders) {
+            decoder.join();
+        }
+        List<Pending> left = new ArrayList<Pending>();
+        queue.drainTo(left);
+        room.release(left.size());
+        for (Pending pending : left) {
+            pending.request.fail(new IllegalStateException("The tagger was stopped"));
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Tags one document.
+     *
+     * @see #tag(List)
+     */
+    public TaggedDocument tag(CharSequence document) throws InterruptedException {
+        return tag(Collections.singletonList(document)).get(0);
+    }
+
+    /**
+     * Tags documents on the decoder threads and waits for them.
+     *
+     * @param documents the texts of the documents
+     * @return the tagged documents in the same order
+     * @throws RejectedExecutionException if the queue doesn't have room for the documents right now
+     * @throws IllegalArgumentException if there are more documents than the queue can ever hold
+     * @throws IllegalStateException if the tagger isn't running
+     */
+    public List<TaggedDocument> tag(List<? extends CharSequence> documents) throws InterruptedException {
+        if (!running) {
+            throw new IllegalStateException("The tagger isn't running");
+        }
+        final long start = System.nanoTime();
+        requests.increment();
+        if (documents.size() > queueSize) {
+            rejected.increment();
+            throw new IllegalArgumentException("A request can have at most " + queueSize + " documents but had " +
+                    documents.size());
+        }
+        if (!room.tryAcquire(documents.size())) {
+            rejected.increment();
+            throw new RejectedExecutionException("The queue of " + queueSize + " documents is full");
+        }
+        final Request request = new Request(registry.current(), documents.size());
+        for (int i = 0; i < documents.size(); i++) {
+            queue.add(new Pending(documents.get(i).toString(), request, i));
+        }
+        documentCount.add(documents.size());
+        if (!running) {
+            // stopped while the documents were queued, after the queue was drained for the last time
+            request.fail(new IllegalStateException("The tagger was stopped"));
+        }
+        request.done.await();
+        if (request.failure != null) {
+            throw request.failure;
+        }
+        metrics.getLatency().record(System.nanoTime() - start);
+        return Arrays.asList(request.results);
+    }
+
+    private final class Decoder implements Runnable {
+        private final List<Pending> batch = new ArrayList<Pending>(batchSize);
+        private ModelVersion version;
+        private DocumentTagger tagger;
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    Pending first = queue.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        if (version != null && version != registry.current()) {
+                            version = null;
+                            tagger = null;
+                        }
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    room.release(batch.size());
+                    if (maxWaitNanos > 0) {
+                        fill(System.nanoTime() + maxWaitNanos);
+                    }
+                    for (Pending pending : batch) {
+                        tag(pending);
+                    }
+                    batches.increment();
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                for (Pending pending : batch) {
+                    pending.request.fail(new IllegalStateException("The tagger was stopped"));
+                }
+            }
+        }
+
+        private void fill(long deadline) throws InterruptedException {
+            for (long left = deadline - System.nanoTime(); batch.size() < batchSize && left > 0;
+                 left = deadline - System.nanoTime()) {
+                Pending pending = queue.poll(left, TimeUnit.NANOSECONDS);
+                if (pending == null) {
+                    return;
+                }
+                final int taken = batch.size();
+                batch.add(pending);
+                queue.drainTo(batch, batchSize - batch.size());
+                room.release(batch.size() - taken);
+            }
+        }
+
+        private void tag(Pending pending) {
+            try {
+                if (pending.request.version != version) {
+                    version = pending.request.version;
+                    tagger = version.newTagger();
+                }
+                pending.request.complete(pending.index, tagger.tagDocument(pending.text));
+            } catch (RuntimeException e) {
+                pending.request.fail(e);
+            }
+        }
+    }
+
+    /**
+     * The documents of one call and what came of them
+     */
+    private static final class Request {
+        final ModelVersion version;
+        final TaggedDocument[] results;
+        final CountDownLatch done;
+        volatile RuntimeException failure;
+
+        Request(ModelVersion version, int size) {
+            this.version = version;
+            results = new TaggedDocument[size];
+            done = new CountDownLatch(size);
+        }
+
+        void complete(int index, TaggedDocument tagged) {
+            results[index] = tagged;
+            done.countDown();
+        }
+
+        void fail(RuntimeException e) {
+            failure = e;
+            while (done.getCount() > 0) {
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * A queued document
+     */
+    private static final class Pending {
+        final String text;
+        final Request request;
+        final int index;
+
+        Pending(String text, Request request, int index) {
+            this.text = text;
+            this.request = request;
+            this.index = index;
+        }
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads the number of decoder threads
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1 but was " + threads);
+        }
+        checkStopped();
+        this.threads = threads;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the most documents a decoder takes off of the queue at a time
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1 but was " + batchSize);
+        }
+        checkStopped();
+        this.batchSize = batchSize;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * @param queueSize the most documents waiting for a decoder before requests are rejected, which is also the most
+     * documents a request can have
+     */
+    public void setQueueSize(int queueSize) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize must be at least 1 but was " + queueSize);
+        }
+        checkStopped();
+        this.queueSize = queueSize;
+    }
+
+    public long getMaxWaitMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxWaitNanos);
+    }
+
+    /**
+     * @param maxWaitMicros how long a decoder waits for more documents once it has taken fewer than a batch, 0 by
+     * default to tag whatever is queued right away
+     */
+    public void setMaxWaitMicros(long maxWaitMicros) {
+        if (maxWaitMicros < 0) {
+            throw new IllegalArgumentException("maxWaitMicros can't be negative but was " + maxWaitMicros);
+        }
+        checkStopped();
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+    }
+
+    private void checkStopped() {
+        if (running) {
+            throw new IllegalStateException("The settings can't be changed while the tagger is running");
+        }
+    }
+
+    public StageMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ModelRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @return the current model
+     */
+    public TaggerModel getModel() {
+        return registry.current().getModel();
+    }
+}
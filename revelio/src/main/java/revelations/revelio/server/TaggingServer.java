@@ -0,0 +1,345 @@
+package revelations.revelio.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.Logger;
+import revelations.revelio.gazetteer.Gazetteer;
+import revelations.revelio.tagger.ModelRegistry;
+import revelations.revelio.tagger.TaggedDocument;
+import revelations.revelio.tagger.TaggerModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves a {@link BatchingTagger} over HTTP, so services can tag text through one process instead of each one
+ * embedding the model. Documents are posted to <code>/tag</code> as UTF-8 text, one document per line, so a single
+ * document is a body of one line and a batch is a body of many, and the response is a JSON object with the tokens
+ * of each document in the same order, each one with its term, the offsets of its chars in the line and its BILOU tag,
+ * along with the versions of the model and labels which tagged it, see {@link revelations.revelio.tagger.ModelVersion}:
+ * <pre>
+ * {"documents":[{"model":1,"labels":1,"tokens":[{"term":"I","start":0,"end":1,"tag":"O"},
+ * {"term":"saw","start":2,"end":5,"tag":"O"},{"term":"Utah","start":6,"end":10,"tag":"U-PLACE"}]}]}
+ * </pre>
+ * A request the queue of the tagger doesn't have room for gets a 503 right away. One with more lines than the queue
+ * can ever hold, or with a line longer than {@link #getMaxLineChars()}, gets a 413 as soon as the line over the limit
+ * is read, so the body of a request never takes more memory than the documents the tagger would accept.
+ * <p>
+ * Each request is handled on a virtual thread of its own when the JVM has them, and on a thread of a cached pool when
+ * it doesn't, so requests only ever wait on the tagger, which merges the documents of concurrent requests into
+ * micro-batches for its decoder threads.
+ * </p>
+ */
+public class TaggingServer {
+    private static final Logger log = Logger.getLogger(TaggingServer.class);
+
+    public static final String PATH = "/tag";
+    public static final int DEFAULT_PORT = 8421;
+    public static final int DEFAULT_MAX_LINE_CHARS = 1 << 20;
+
+    private static final String JSON = "application/json; charset=UTF-8";
+    private static final String TEXT = "text/plain; charset=UTF-8";
+
+    private final BatchingTagger tagger;
+    private volatile int maxLineChars = DEFAULT_MAX_LINE_CHARS;
+    private HttpServer server;
+    private ExecutorService requests;
+
+    /**
+     * @param tagger the tagger to serve, which the server starts and stops
+     */
+    public TaggingServer(BatchingTagger tagger) {
+        this.tagger = tagger;
+    }
+
+    /**
+     * Starts the tagger and listens for requests.
+     *
+     * @param address the address to listen on, whose port can be 0 to take any free one
+     */
+    public synchronized void start(InetSocketAddress address) throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("The server is already started");
+        }
+        if (!tagger.isRunning()) {
+            tagger.start();
+        }
+        requests = requestExecutor();
+        server = HttpServer.create(address, 0);
+        server.setExecutor(requests);
+        server.createContext(PATH, new TagHandler());
+        server.start();
+        log.info("Tagging on http://" + server.getAddress().getHostName() + ":" + getPort() + PATH);
+    }
+
+    /**
+     * Stops listening, waiting up to a second for the requests being handled, and stops the tagger.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (server == null) {
+            return;
+        }
+        server.stop(1);
+        requests.shutdownNow();
+        tagger.stop();
+        server = null;
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public synchronized int getPort() {
+        if (server == null) {
+            throw new IllegalStateException("The server isn't started");
+        }
+        return server.getAddress().getPort();
+    }
+
+    public BatchingTagger getTagger() {
+        return tagger;
+    }
+
+    public int getMaxLineChars() {
+        return maxLineChars;
+    }
+
+    /**
+     * @param maxLineChars the most chars a document can have, past which its request gets a 413
+     */
+    public void setMaxLineChars(int maxLineChars) {
+        if (maxLineChars < 1) {
+            throw new IllegalArgumentException("maxLineChars must be at least 1 but was " + maxLineChars);
+        }
+        this.maxLineChars = maxLineChars;
+    }
+
+    /**
+     * @return an executor which runs each task on a new virtual thread, or a cached pool of daemon threads on JVMs
+     * without virtual threads
+     */
+    static ExecutorService requestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            // virtual threads came with Java 21
+            log.debug("Virtual threads aren't available, handling requests on a cached thread pool");
+        }
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "revelio-request-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private final class TagHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    send(exchange, 405, TEXT, "POST the documents to tag, one per line\n");
+                    return;
+                }
+                List<String> documents = readLines(new InputStreamReader(exchange.getRequestBody(), "UTF-8"),
+                        tagger.getQueueSize(), maxLineChars);
+                List<TaggedDocument> tagged = tagger.tag(documents);
+                StringBuilder json = new StringBuilder(256 * tagged.size() + 16);
+                appendJson(tagged, json);
+                send(exchange, 200, JSON, json);
+            } catch (TooLargeException e) {
+                send(exchange, 413, TEXT, e.getMessage() + '\n');
+            } catch (RejectedExecutionException e) {
+                send(exchange, 503, TEXT, e.getMessage() + '\n');
+            } catch (IllegalStateException e) {
+                send(exchange, 503, TEXT, e.getMessage() + '\n');
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                send(exchange, 503, TEXT, "Interrupted\n");
+            } catch (RuntimeException e) {
+                log.warn("Unable to tag a request", e);
+                send(exchange, 500, TEXT, e + "\n");
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the lines of a body the way {@link java.io.BufferedReader#readLine()} splits them, but stops with a
+     * {@link TooLargeException} at the first line past the limits rather than reading the rest of the body.
+     *
+     * @param maxLines     the most lines the body can have
+     * @param maxLineChars the most chars a line can have
+     */
+    static List<String> readLines(Reader body, int maxLines, int maxLineChars) throws IOException {
+        final List<String> documents = new ArrayList<String>();
+        final StringBuilder line = new StringBuilder();
+        final char[] chars = new char[8192];
+        boolean inLine = false, afterReturn = false;
+        for (int n = body.read(chars); n != -1; n = body.read(chars)) {
+            for (int i = 0; i < n; i++) {
+                final char c = chars[i];
+                if (c == '\n' && afterReturn) {
+                    afterReturn = false;
+                    continue;
+                }
+                afterReturn = c == '\r';
+                if (c == '\n' || c == '\r') {
+                    addLine(documents, line, maxLines);
+                    inLine = false;
+                } else if (line.length() == maxLineChars) {
+                    throw new TooLargeException("A document can have at most " + maxLineChars + " chars");
+                } else {
+                    line.append(c);
+                    inLine = true;
+                }
+            }
+        }
+        if (inLine) {
+            addLine(documents, line, maxLines);
+        }
+        return documents;
+    }
+
+    private static void addLine(List<String> documents, StringBuilder line, int maxLines) throws TooLargeException {
+        if (documents.size() == maxLines) {
+            throw new TooLargeException("A request can have at most " + maxLines + " documents");
+        }
+        documents.add(line.toString());
+        line.setLength(0);
+    }
+
+    /**
+     * Thrown when a request has more documents, or longer ones, than the server takes.
+     */
+    static final class TooLargeException extends IOException {
+        TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, CharSequence body)
+            throws IOException {
+        byte[] bytes = body.toString().getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * Appends tagged documents as the JSON of a response.
+     */
+    static void appendJson(List<TaggedDocument> documents, StringBuilder json) {
+        json.append("{\"documents\":[");
+        for (int d = 0; d < documents.size(); d++) {
+            final TaggedDocument document = documents.get(d);
+            json.append((d == 0) ? "{\"model\":" : ",{\"model\":").append(document.getModelVersion())
+                    .append(",\"labels\":").append(document.getLabelVersion()).append(",\"tokens\":[");
+            for (int i = 0; i < document.size(); i++) {
+                json.append((i == 0) ? "{\"term\":\"" : ",{\"term\":\"");
+                appendEscaped(document.getText(), document.startOffset(i), document.endOffset(i), json);
+                json.append("\",\"start\":").append(document.startOffset(i))
+                        .append(",\"end\":").append(document.endOffset(i))
+                        .append(",\"tag\":\"").append(document.tag(i)).append("\"}");
+            }
+            json.append("]}");
+        }
+        json.append("]}");
+    }
+
+    private static void appendEscaped(String text, int start, int end, StringBuilder json) {
+        for (int i = start; i < end; i++) {
+            final char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+    }
+
+    /**
+     * Serves a model saved by {@link TaggerModel#save(File)} or a serialized CRF until the process is killed. With
+     * -reload the model file is checked for changes every few seconds and swapped in by a {@link ModelRegistry}.
+     * <pre>
+     * TaggingServer [-port n] [-threads n] [-batch n] [-queue n] [-wait micros] [-line chars] [-gazetteer file]
+     *     [-reload seconds] model-file
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int batchSize = BatchingTagger.DEFAULT_BATCH_SIZE;
+        int queueSize = BatchingTagger.DEFAULT_QUEUE_SIZE;
+        long maxWaitMicros = 0;
+        int maxLineChars = DEFAULT_MAX_LINE_CHARS;
+        long reloadSeconds = 0;
+        Gazetteer gazetteer = null;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i += 2) {
+            if (i + 1 == args.length) {
+                usage();
+            } else if ("-port".equals(args[i])) {
+                port = Integer.parseInt(args[i + 1]);
+            } else if ("-threads".equals(args[i])) {
+                threads = Integer.parseInt(args[i + 1]);
+            } else if ("-batch".equals(args[i])) {
+                batchSize = Integer.parseInt(args[i + 1]);
+            } else if ("-queue".equals(args[i])) {
+                queueSize = Integer.parseInt(args[i + 1]);
+            } else if ("-wait".equals(args[i])) {
+                maxWaitMicros = Long.parseLong(args[i + 1]);
+            } else if ("-line".equals(args[i])) {
+                maxLineChars = Integer.parseInt(args[i + 1]);
+            } else if ("-gazetteer".equals(args[i])) {
+                gazetteer = Gazetteer.load(new File(args[i + 1]));
+            } else if ("-reload".equals(args[i])) {
+                reloadSeconds = Long.parseLong(args[i + 1]);
+            } else {
+                usage();
+            }
+        }
+        if (i + 1 != args.length) {
+            usage();
+        }
+        File modelFile = new File(args[i]);
+        ModelRegistry registry = ModelRegistry.load(modelFile, gazetteer);
+        if (reloadSeconds > 0) {
+            registry.watch(modelFile, gazetteer, reloadSeconds * 1000);
+        }
+        BatchingTagger tagger = new BatchingTagger(registry);
+        tagger.setThreads(threads);
+        tagger.setBatchSize(batchSize);
+        tagger.setQueueSize(queueSize);
+        tagger.setMaxWaitMicros(maxWaitMicros);
+        TaggingServer server = new TaggingServer(tagger);
+        server.setMaxLineChars(maxLineChars);
+        server.start(new InetSocketAddress(port));
+    }
+
+    private static void usage() {
+        System.err.println("usage: TaggingServer [-port n] [-threads n] [-batch n] [-queue n] [-wait micros] " +
+                "[-line chars] [-gazetteer file] [-reload seconds] model-file");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,505 @@
+package revelations.revelio.tagger;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.Transducer;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.FeatureVectorSequence;
+import cc.mallet.types.SparseVector;
+import org.apache.lucene.util.ArrayUtil;
+import revelations.revelio.common.BilouTags;
+import revelations.revelio.common.EntityAttribute;
+import revelations.revelio.common.EntityLabels;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Viterbi decoder for a first order CRF with one state per BILOU label, such as the ones
+ * {@link revelations.revelio.train.CrfTrainingDriver} trains, which only follows the transitions the BILOU scheme
+ * allows:
+ * <ul>
+ *     <li>B-X and I-X are followed by I-X or L-X</li>
+ *     <li>O, L and U are followed by O, B or U of any type</li>
+ *     <li>a document starts with O, B or U and ends with O, L or U</li>
+ * </ul>
+ * The CRF is compiled once into primitive arrays: the allowed transitions into each state and the weights of every
+ * feature, transposed so the weights of a token are summed by walking its features once. The weight groups of
+ * transitions which are not allowed are never scored and the transitions out of a state no path reaches are
+ * skipped, so none of the work of a generic lattice goes into label pairs which can't occur.
+ * <p>
+ * The weights of the features are kept in int and double buffers, which wrap arrays when the decoder is compiled
+ * from a CRF and are views of the file when it is mapped as part of a {@link TaggerModel}. A decoder is read only
+ * once compiled, so one can be shared by any number of threads, each decoding with its own {@link Lattice}. The
+ * lattice keeps its scores and back pointers in arrays which are reused from one document to the next and hands the
+ * labels it decodes straight to an {@link EntityAttribute}.
+ * </p>
+ */
+public class BilouDecoder implements BilouTags {
+
+    private static final double IMPOSSIBLE = Transducer.IMPOSSIBLE_WEIGHT;
+
+    private final int stateCount;
+    private final String[] stateTags;
+    private final int[] stateLabels;
+    private final double[] initialWeights;
+    private final double[] finalWeights;
+    private final boolean[] canBegin;
+
+    /*
+     * The allowed transitions into state d are incomingStart[d] until incomingStart[d + 1]. The weight groups of
+     * transition i are groupStart[i] until groupStart[i + 1].
+     */
+    private final int[] incomingStart;
+    private final int[] incomingSource;
+    private final int[] groupStart;
+    private final int[] groups;
+
+    /*
+     * The weights of feature f are featureStart[f] until featureStart[f + 1], each one for the group in featureGroups
+     */
+    private final int groupCount;
+    private final double[] defaultWeights;
+    private final int featureCount;
+    private final IntBuffer featureStart;
+    private final IntBuffer featureGroups;
+    private final DoubleBuffer featureWeights;
+
+    /**
+     * Compiles a CRF.
+     *
+     * @param crf a first order CRF whose states are named after BILOU tags
+     * @throws IllegalArgumentException if the CRF has no states or a state isn't a BILOU tag or emits a label other
+     * than its own name
+     */
+    public BilouDecoder(CRF crf) {
+        stateCount = crf.numStates();
+        if (stateCount == 0) {
+            throw new IllegalArgumentException("The CRF has no states");
+        }
+        stateTags = new String[stateCount];
+        initialWeights = new double[stateCount];
+        finalWeights = new double[stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            CRF.State state = (CRF.State) crf.getState(i);
+            stateTags[i] = state.getName();
+            initialWeights[i] = state.getInitialWeight();
+            finalWeights[i] = state.getFinalWeight();
+        }
+        stateLabels = labels(stateTags);
+        canBegin = new boolean[stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            canBegin[i] = allowed(0, stateLabels[i]);
+            if (!canEnd(stateLabels[i])) {
+                finalWeights[i] = IMPOSSIBLE;
+            }
+        }
+
+        groupCount = crf.getWeights().length;
+        boolean[] used = new boolean[groupCount];
+        int[] incoming = new int[stateCount];
+        int transitions = 0;
+        int groupRefs = 0;
+        for (int i = 0; i < stateCount; i++) {
+            CRF.State state = (CRF.State) crf.getState(i);
+            for (int j = 0; j < state.numDestinations(); j++) {
+                int destination = state.getDestinationState(j).getIndex();
+                if (!state.getLabelName(j).equals(state.getDestinationState(j).getName())) {
+                    throw new IllegalArgumentException("Expected the transition from " + state.getName() + " to " +
+                            state.getDestinationState(j).getName() + " to emit its destination but it emits " +
+                            state.getLabelName(j));
+                }
+                if (allowed(stateLabels[i], stateLabels[destination])) {
+                    incoming[destination]++;
+                    transitions++;
+                    groupRefs += state.getWeightNames(j).length;
+                }
+            }
+        }
+        incomingStart = new int[stateCount + 1];
+        for (int d = 0; d < stateCount; d++) {
+            incomingStart[d + 1] = incomingStart[d] + incoming[d];
+        }
+        incomingSource = new int[transitions];
+        groupStart = new int[transitions + 1];
+        groups = new int[groupRefs];
+        int[][] transitionGroups = new int[transitions][];
+        int[] next = new int[stateCount];
+        System.arraycopy(incomingStart, 0, next, 0, stateCount);
+        for (int i = 0; i < stateCount; i++) {
+            CRF.State state = (CRF.State) crf.getState(i);
+            for (int j = 0; j < state.numDestinations(); j++) {
+                int destination = state.getDestinationState(j).getIndex();
+                if (allowed(stateLabels[i], stateLabels[destination])) {
+                    String[] names = state.getWeightNames(j);
+                    int[] ids = new int[names.length];
+                    for (int k = 0; k < names.length; k++) {
+                        ids[k] = crf.getWeightsIndex(names[k]);
+                        used[ids[k]] = true;
+                    }
+                    int transition = next[destination]++;
+                    incomingSource[transition] = i;
+                    transitionGroups[transition] = ids;
+                }
+            }
+        }
+        for (int i = 0; i < transitions; i++) {
+            groupStart[i + 1] = groupStart[i] + transitionGroups[i].length;
+            System.arraycopy(transitionGroups[i], 0, groups, groupStart[i], transitionGroups[i].length);
+        }
+
+        defaultWeights = crf.getDefaultWeights().clone();
+        final SparseVector[] weights = crf.getWeights();
+        featureCount = crf.getInputAlphabet().size();
+        final int[] featureStart = new int[featureCount + 1];
+        for (int g = 0; g < groupCount; g++) {
+            if (used[g]) {
+                for (int loc = 0; loc < weights[g].numLocations(); loc++) {
+                    int feature = weights[g].indexAtLocation(loc);
+                    if (feature < featureCount && weights[g].valueAtLocation(loc) != 0) {
+                        featureStart[feature + 1]++;
+                    }
+                }
+            }
+        }
+        for (int f = 0; f < featureCount; f++) {
+            featureStart[f + 1] += featureStart[f];
+        }
+        final int[] featureGroups = new int[featureStart[featureCount]];
+        final double[] featureWeights = new double[featureStart[featureCount]];
+        int[] fill = new int[featureCount];
+        System.arraycopy(featureStart, 0, fill, 0, featureCount);
+        for (int g = 0; g < groupCount; g++) {
+            if (used[g]) {
+                for (int loc = 0; loc < weights[g].numLocations(); loc++) {
+                    int feature = weights[g].indexAtLocation(loc);
+                    double weight = weights[g].valueAtLocation(loc);
+                    if (feature < featureCount && weight != 0) {
+                        featureGroups[fill[feature]] = g;
+                        featureWeights[fill[feature]++] = weight;
+                    }
+                }
+            }
+        }
+        this.featureStart = IntBuffer.wrap(featureStart);
+        this.featureGroups = IntBuffer.wrap(featureGroups);
+        this.featureWeights = DoubleBuffer.wrap(featureWeights);
+    }
+
+    private BilouDecoder(String[] stateTags, double[] initialWeights, double[] finalWeights, int[] incomingStart,
+                         int[] incomingSource, int[] groupStart, int[] groups, double[] defaultWeights,
+                         IntBuffer featureStart, IntBuffer featureGroups, DoubleBuffer featureWeights) {
+        this.stateCount = stateTags.length;
+        this.stateTags = stateTags;
+        this.stateLabels = labels(stateTags);
+        this.initialWeights = initialWeights;
+        this.finalWeights = finalWeights;
+        this.canBegin = new boolean[stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            canBegin[i] = allowed(0, stateLabels[i]);
+        }
+        this.incomingStart = incomingStart;
+        this.incomingSource = incomingSource;
+        this.groupStart = groupStart;
+        this.groups = groups;
+        this.groupCount = defaultWeights.length;
+        this.defaultWeights = defaultWeights;
+        this.featureCount = featureStart.capacity() - 1;
+        this.featureStart = featureStart;
+        this.featureGroups = featureGroups;
+        this.featureWeights = featureWeights;
+    }
+
+    /**
+     * Gets the label of every state from its tag, which registers the entity types of the tags in this process.
+     */
+    private static int[] labels(String[] tags) {
+        int[] labels = new int[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            labels[i] = EntityLabels.getInstance().label(tags[i]);
+            if (labels[i] < 0) {
+                throw new IllegalArgumentException("The CRF has the state " + tags[i] + " which is not a BILOU tag");
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Writes the compiled CRF. The states are written as their tags, such as B-PERSON, so they get the labels of
+     * {@link EntityLabels} of the process which maps the model.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(stateCount);
+        for (int i = 0; i < stateCount; i++) {
+            TaggerModel.writeString(stateTags[i], out);
+            out.writeDouble(initialWeights[i]);
+            out.writeDouble(finalWeights[i]);
+        }
+        out.writeInt(incomingSource.length);
+        out.writeInt(groups.length);
+        out.writeInt(groupCount);
+        out.writeInt(featureCount);
+        out.writeInt(featureStart.get(featureCount));
+        TaggerModel.pad(out);
+        for (double weight : defaultWeights) {
+            out.writeDouble(weight);
+        }
+        for (int i = 0; i < featureWeights.capacity(); i++) {
+            out.writeDouble(featureWeights.get(i));
+        }
+        TaggerModel.writeInts(incomingStart, out);
+        TaggerModel.writeInts(incomingSource, out);
+        TaggerModel.writeInts(groupStart, out);
+        TaggerModel.writeInts(groups, out);
+        for (int i = 0; i <= featureCount; i++) {
+            out.writeInt(featureStart.get(i));
+        }
+        for (int i = 0; i < featureGroups.capacity(); i++) {
+            out.writeInt(featureGroups.get(i));
+        }
+        TaggerModel.pad(out);
+    }
+
+    /**
+     * Reads a compiled CRF from a mapped model, leaving the position of the buffer after it. The weights of the
+     * features stay in the file.
+     */
+    static BilouDecoder map(ByteBuffer buffer) {
+        final int stateCount = buffer.getInt();
+        String[] stateTags = new String[stateCount];
+        double[] initialWeights = new double[stateCount];
+        double[] finalWeights = new double[stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            stateTags[i] = TaggerModel.readString(buffer);
+            initialWeights[i] = buffer.getDouble();
+            finalWeights[i] = buffer.getDouble();
+        }
+        final int transitions = buffer.getInt();
+        final int groupRefs = buffer.getInt();
+        final int groupCount = buffer.getInt();
+        final int featureCount = buffer.getInt();
+        final int weightCount = buffer.getInt();
+        TaggerModel.align(buffer);
+        double[] defaultWeights = new double[groupCount];
+        buffer.asDoubleBuffer().get(defaultWeights);
+        buffer.position(buffer.position() + groupCount * 8);
+        DoubleBuffer featureWeights = TaggerModel.sliceDoubles(buffer, weightCount);
+        int[] incomingStart = TaggerModel.readInts(buffer, stateCount + 1);
+        int[] incomingSource = TaggerModel.readInts(buffer, transitions);
+        int[] groupStart = TaggerModel.readInts(buffer, transitions + 1);
+        int[] groups = TaggerModel.readInts(buffer, groupRefs);
+        IntBuffer featureStart = TaggerModel.sliceInts(buffer, featureCount + 1);
+        IntBuffer featureGroups = TaggerModel.sliceInts(buffer, weightCount);
+        TaggerModel.align(buffer);
+        return new BilouDecoder(stateTags, initialWeights, finalWeights, incomingStart, incomingSource, groupStart,
+                groups, defaultWeights, featureStart, featureGroups, featureWeights);
+    }
+
+    /**
+     * Tells if the BILOU scheme allows one label to follow another.
+     *
+     * @param previous the label of the previous token, or 0 (O) at the start of a document
+     * @param next the label of the next token
+     */
+    public static boolean allowed(int previous, int next) {
+        final byte previousSpan = EntityLabels.spanOf(previous);
+        final byte nextSpan = EntityLabels.spanOf(next);
+        if (previousSpan == BEGIN_SPAN || previousSpan == INSIDE_SPAN) {
+            return (nextSpan == INSIDE_SPAN || nextSpan == LAST_SPAN) &&
+                    EntityLabels.typeIdOf(previous) == EntityLabels.typeIdOf(next);
+        }
+        return nextSpan == OUTSIDE_SPAN || nextSpan == BEGIN_SPAN || nextSpan == UNIT_SPAN;
+    }
+
+    /**
+     * Tells if a document can end with a label.
+     */
+    public static boolean canEnd(int label) {
+        final byte span = EntityLabels.spanOf(label);
+        return span == OUTSIDE_SPAN || span == LAST_SPAN || span == UNIT_SPAN;
+    }
+
+    /**
+     * @return the number of transitions which are allowed and are scored
+     */
+    public int transitionCount() {
+        return incomingSource.length;
+    }
+
+    /**
+     * @return the tags of the states, such as B-PERSON, by state index
+     */
+    String[] stateTags() {
+        return stateTags.clone();
+    }
+
+    /**
+     * @return the number of features the weights are kept for
+     */
+    public int featureCount() {
+        return featureCount;
+    }
+
+    /**
+     * @return the number of weights of features, not counting the ones which are 0
+     */
+    public int weightCount() {
+        return featureWeights.capacity();
+    }
+
+    /**
+     * Creates a lattice to decode with. A lattice should only be used by one thread at a time.
+     */
+    public Lattice lattice() {
+        return new Lattice();
+    }
+
+    /**
+     * Decodes documents one at a time, reusing its arrays.
+     */
+    public final class Lattice {
+        private final double[] groupScores = new double[groupCount];
+        private double[] previous = new double[stateCount];
+        private double[] current = new double[stateCount];
+        private int[] backPointers = new int[64 * stateCount];
+        private int[] labels = new int[64];
+        private int size;
+        private double score;
+
+        private Lattice() {
+        }
+
+        /**
+         * Finds the labels of the best path the BILOU scheme allows. If the CRF has no such path, every token is
+         * labeled O and the score is {@link Transducer#IMPOSSIBLE_WEIGHT}.
+         *
+         * @param input a feature vector per token
+         * @return the number of tokens decoded
+         */
+        public int decode(FeatureVectorSequence input) {
+            return decode(input, 0, input.size());
+        }
+
+        /**
+         * Decodes some of the tokens of a sequence, such as one of its sentences, as a sequence of their own which
+         * starts and ends at them. The tokens are numbered from 0 in {@link #label(int)}.
+         *
+         * @param input a feature vector per token
+         * @param start the first token to decode
+         * @param end the token after the last one to decode
+         * @return the number of tokens decoded
+         */
+        public int decode(FeatureVectorSequence input, int start, int end) {
+            size = end - start;
+            score = 0;
+            if (size == 0) {
+                return 0;
+            }
+            if (labels.length < size) {
+                labels = ArrayUtil.grow(labels, size);
+                backPointers = new int[labels.length * stateCount];
+            }
+            System.arraycopy(initialWeights, 0, previous, 0, stateCount);
+            for (int t = 0; t < size; t++) {
+                scoreGroups(input.getFeatureVector(start + t));
+                final int offset = t * stateCount;
+                for (int d = 0; d < stateCount; d++) {
+                    double best = IMPOSSIBLE;
+                    int source = -1;
+                    if (t > 0 || canBegin[d]) {
+                        for (int i = incomingStart[d]; i < incomingStart[d + 1]; i++) {
+                            final double from = previous[incomingSource[i]];
+                            if (from == IMPOSSIBLE) {
+                                continue;
+                            }
+                            double weight = from;
+                            for (int g = groupStart[i]; g < groupStart[i + 1]; g++) {
+                                weight += groupScores[groups[g]];
+                            }
+                            if (weight > best) {
+                                best = weight;
+                                source = incomingSource[i];
+                            }
+                        }
+                    }
+                    current[d] = best;
+                    backPointers[offset + d] = source;
+                }
+                double[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+
+            int state = -1;
+            double best = IMPOSSIBLE;
+            for (int d = 0; d < stateCount; d++) {
+                if (previous[d] != IMPOSSIBLE && previous[d] + finalWeights[d] > best) {
+                    best = previous[d] + finalWeights[d];
+                    state = d;
+                }
+            }
+            score = best;
+            if (state < 0) {
+                for (int t = 0; t < size; t++) {
+                    labels[t] = 0;
+                }
+                return size;
+            }
+            for (int t = size - 1; t >= 0; t--) {
+                labels[t] = stateLabels[state];
+                state = backPointers[t * stateCount + state];
+            }
+            return size;
+        }
+
+        /**
+         * Adds the weights of the features of a token to the default weight of every group. The weights of the
+         * groups no allowed transition uses were left out when the CRF was compiled.
+         */
+        private void scoreGroups(FeatureVector vector) {
+            System.arraycopy(defaultWeights, 0, groupScores, 0, groupCount);
+            final int locations = vector.numLocations();
+            for (int loc = 0; loc < locations; loc++) {
+                final int feature = vector.indexAtLocation(loc);
+                if (feature >= featureCount) {
+                    continue;
+                }
+                final double value = vector.valueAtLocation(loc);
+                final int end = featureStart.get(feature + 1);
+                for (int i = featureStart.get(feature); i < end; i++) {
+                    groupScores[featureGroups.get(i)] += featureWeights.get(i) * value;
+                }
+            }
+        }
+
+        /**
+         * @return the number of tokens of the last document decoded
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return the label of a token of the last document decoded, see {@link EntityLabels}
+         */
+        public int label(int token) {
+            return labels[token];
+        }
+
+        /**
+         * Sets the span and entity type of a token of the last document decoded on an attribute.
+         */
+        public void copyTo(int token, EntityAttribute entity) {
+            entity.setLabel(labels[token]);
+        }
+
+        /**
+         * @return the weight of the best path of the last document decoded
+         */
+        public double score() {
+            return score;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package revelations.revelio.tagger;
+
+import cc.mallet.fst.CRF;
+import org.apache.log4j.Logger;
+import revelations.revelio.features.HashedAlphabet;
+import revelations.revelio.gazetteer.Gazetteer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Tags documents with one document per line, such as a month of tweets, on every core while writing the tagged
+ * documents in the order they were read. Tagging runs in three stages:
+ * <ul>
+ *     <li>read: one thread reads the lines into batches and hands each batch to the workers</li>
+ *     <li>tag: the workers tag the documents of a batch with their own {@link DocumentTagger}, all of them sharing
+ *     one {@link TaggerModel}</li>
+ *     <li>write: the calling thread writes the tagged batches one line per document</li>
+ * </ul>
+ * Each batch is handed to the writer as a Future on a bounded queue in the order it was read, so the output is in
+ * the order of the input no matter which worker finishes first, and the reader blocks once the queue is full
+ * instead of reading ahead of a slow writer. At most queue size plus one batches are in memory at a time. Blank
+ * lines are written as blank lines so the output lines up with the input.
+ * <p>
+ * With a cache, see {@link #setCacheBytes(long)}, the workers tag through a {@link CachingTagger}, so documents
+ * which were tagged before, such as retweets, are written from the cache instead of being tagged again.
+ * </p>
+ */
+public class BulkTagger {
+    private static final Logger log = Logger.getLogger(BulkTagger.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private static final Future<String> END = new FutureTask<String>(new Callable<String>() {
+        @Override
+        public String call() {
+            return null;
+        }
+    });
+
+    private static final ThreadFactory READERS = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "revelio-bulk-reader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final TaggerModel model;
+    private final Gazetteer gazetteer;
+    private final ThreadLocal<DocumentTagger> taggers = new ThreadLocal<DocumentTagger>() {
+        @Override
+        protected DocumentTagger initialValue() {
+            return new DocumentTagger(model, gazetteer);
+        }
+    };
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int queueSize;
+    private CachingTagger cache;
+
+    public BulkTagger(CRF crf) {
+        this(crf, null);
+    }
+
+    /**
+     * @param crf the model, whose input pipe has to be a {@link revelations.revelio.mallet.TokenStreamPipe}
+     * @param gazetteer the gazetteer the model was trained with, or null for none
+     */
+    public BulkTagger(CRF crf, Gazetteer gazetteer) {
+        this(new TaggerModel(crf), gazetteer);
+    }
+
+    /**
+     * @param model the compiled or loaded model
+     * @param gazetteer the gazetteer the model was trained with, or null for none
+     */
+    public BulkTagger(TaggerModel model, Gazetteer gazetteer) {
+        this.model = model;
+        this.gazetteer = gazetteer;
+    }
+
+    /**
+     * Tags every line of the input and writes the tagged lines in the same order. Neither the input nor the output
+     * is closed. If a batch fails to be tagged or written, the batches which were read ahead are cancelled and the
+     * reader is stopped before the failure is thrown.
+     *
+     * @param in the documents, one per line
+     * @param out where to write the tagged documents, one per line
+     * @return the number of lines tagged
+     */
+    public long tag(final Reader in, Writer out) throws IOException, InterruptedException {
+        final BufferedReader lines = (in instanceof BufferedReader) ? (BufferedReader) in : new BufferedReader(in);
+        final BlockingQueue<Future<String>> batches = new ArrayBlockingQueue<Future<String>>(getQueueSize());
+        final ExecutorService workers = Executors.newFixedThreadPool(threads);
+        ExecutorService reading = Executors.newSingleThreadExecutor(READERS);
+        boolean written = false;
+        try {
+            Future<Long> read = reading.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException, InterruptedException {
+                    boolean interrupted = false;
+                    try {
+                        return read(lines, batches, workers);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        throw e;
+                    } finally {
+                        if (!interrupted) { // an interrupted reader was stopped by a writer which takes no more
+                            batches.put(END);
+                        }
+                    }
+                }
+            });
+            for (Future<String> batch = batches.take(); batch != END; batch = batches.take()) {
+                out.write(get(batch));
+            }
+            out.flush();
+            written = true;
+            return get(read);
+        } finally {
+            reading.shutdownNow();
+            if (!written) {
+                cancel(batches);
+            }
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Cancels the batches left on the queue, which also makes room for a reader which is about to notice it was
+     * interrupted.
+     */
+    private static void cancel(BlockingQueue<Future<String>> batches) {
+        for (Future<String> batch = batches.poll(); batch != null; batch = batches.poll()) {
+            batch.cancel(true);
+        }
+    }
+
+    private long read(BufferedReader lines, BlockingQueue<Future<String>> batches, ExecutorService workers)
+            throws IOException, InterruptedException {
+        long count = 0;
+        List<String> batch = new ArrayList<String>(batchSize);
+        for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+            batch.add(line);
+            count++;
+            if (batch.size() == batchSize) {
+                batches.put(workers.submit(tagTask(batch)));
+                batch = new ArrayList<String>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.put(workers.submit(tagTask(batch)));
+        }
+        return count;
+    }
+
+    private Callable<String> tagTask(final List<String> batch) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                StringBuilder tagged = new StringBuilder(batch.size() * 256);
+                if (cache != null) {
+                    for (String document : batch) {
+                        cache.tag(document, tagged);
+                        tagged.append('\n');
+                    }
+                } else {
+                    DocumentTagger tagger = taggers.get();
+                    for (String document : batch) {
+                        tagger.tag(document, tagged);
+                        tagged.append('\n');
+                    }
+                }
+                return tagged.toString();
+            }
+        };
+    }
+
+    private static <T> T get(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads the number of workers tagging batches
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1 but was " + threads);
+        }
+        this.threads = threads;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the number of documents handed to a worker at a time
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1 but was " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the most batches read ahead of the writer, twice the number of threads unless it was set
+     */
+    public int getQueueSize() {
+        return (queueSize == 0) ? 2 * threads : queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize must be at least 1 but was " + queueSize);
+        }
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * @return the cache the documents are tagged through, or null if there is none
+     */
+    public CachingTagger getCache() {
+        return cache;
+    }
+
+    /**
+     * Tags the documents through a new {@link CachingTagger} or stops caching them.
+     *
+     * @param cacheBytes about the most bytes of the heap the cached documents may take, or 0 for no cache
+     */
+    public void setCacheBytes(long cacheBytes) {
+        if (cacheBytes < 0) {
+            throw new IllegalArgumentException("cacheBytes can't be negative but was " + cacheBytes);
+        }
+        cache = (cacheBytes == 0) ? null : new CachingTagger(model, gazetteer, cacheBytes);
+    }
+
+    /**
+     * Tags the lines of the files, or of stdin if there are none, and writes them to stdout. The model is a
+     * serialized CRF or a model saved by {@link TaggerModel#save(File)}.
+     * <pre>
+     * BulkTagger [-threads n] [-batch n] [-queue n] [-gazetteer file] [-cache mb] model-file [input-file...]
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int batchSize = DEFAULT_BATCH_SIZE;
+        int queueSize = 0;
+        long cacheMegabytes = 0;
+        Gazetteer gazetteer = null;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i += 2) {
+            if (i + 1 == args.length) {
+                usage();
+            } else if ("-threads".equals(args[i])) {
+                threads = Integer.parseInt(args[i + 1]);
+            } else if ("-batch".equals(args[i])) {
+                batchSize = Integer.parseInt(args[i + 1]);
+            } else if ("-queue".equals(args[i])) {
+                queueSize = Integer.parseInt(args[i + 1]);
+            } else if ("-gazetteer".equals(args[i])) {
+                gazetteer = Gazetteer.load(new File(args[i + 1]));
+            } else if ("-cache".equals(args[i])) {
+                cacheMegabytes = Long.parseLong(args[i + 1]);
+            } else {
+                usage();
+            }
+        }
+        if (i == args.length) {
+            usage();
+        }
+        TaggerModel model = TaggerModel.load(new File(args[i++]));
+        BulkTagger tagger = new BulkTagger(model, gazetteer);
+        tagger.setThreads(threads);
+        tagger.setBatchSize(batchSize);
+        if (queueSize > 0) {
+            tagger.setQueueSize(queueSize);
+        }
+        tagger.setCacheBytes(cacheMegabytes << 20);
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"), 1 << 16);
+        long start = System.nanoTime();
+        long documents = 0;
+        if (i == args.length) {
+            documents = tagger.tag(new InputStreamReader(System.in, "UTF-8"), out);
+        }
+        for (; i < args.length; i++) {
+            Reader in = new InputStreamReader(new FileInputStream(args[i]), "UTF-8");
+            try {
+                documents += tagger.tag(in, out);
+            } finally {
+                in.close();
+            }
+        }
+        out.flush();
+        long millis = Math.max(1, (System.nanoTime() - start) / 1000000L);
+        log.info("Tagged " + documents + " documents in " + millis + " ms on " + threads + " threads, " +
+                (documents * 1000L / millis) + " documents/sec");
+        if (model.getPipe().getDataAlphabet() instanceof HashedAlphabet) {
+            log.info("Hashed features: " + model.getPipe().getDataAlphabet());
+        }
+        if (tagger.getCache() != null) {
+            log.info(tagger.getCache());
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: BulkTagger [-threads n] [-batch n] [-queue n] [-gazetteer file] [-cache mb] " +
+                "model-file [input-file...]");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,310 @@
+package revelations.revelio.tagger;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import revelations.revelio.features.HashedAlphabet;
+import revelations.revelio.gazetteer.Gazetteer;
+import revelations.revelio.metrics.AnalysisMetrics;
+import revelations.revelio.metrics.StageMetrics;
+import revelations.revelio.metrics.StripedCounter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Tags documents through a cache of the documents tagged before, so the retweets, copied comments and bot posts of
+ * a stream of tweets are only tokenized, featurized and decoded once. A document is normalized before it is looked
+ * up by trimming it and turning every run of whitespace into one space, so copies which only differ in their
+ * whitespace share an entry, and the normalized text is what gets tagged. It is hashed with the 64 bit FNV-1a hash of
+ * {@link HashedAlphabet} while it is normalized, and a hit is only taken if the cached text is the same, so two
+ * documents with the same hash are never mixed up.
+ * <p>
+ * The cache holds {@link TaggedDocument}s, the offsets and labels of the tokens, in segments picked by the hash, each
+ * of which is a map in the order its entries were last used, so threads looking up different documents rarely wait
+ * on one another. A segment evicts the entries it used the longest time ago once its documents take more than its
+ * share of the most bytes the cache may take. Two threads which miss on the same document at the same time both tag
+ * it.
+ * </p>
+ * <p>
+ * The hits, misses, evictions, entries and bytes of a cache are counted in its own {@link StageMetrics}, along with
+ * the latency of every document, which the getters of the cache read. With {@link AnalysisMetrics} turned on they are
+ * also added to the {@link #METRICS_NAME} stage, which sums the counts of every cache of the JVM.
+ * </p>
+ * A caching tagger can be used by any number of threads, each of which tags with a {@link DocumentTagger} of its own.
+ */
+public class CachingTagger {
+    /**
+     * The name of the metrics of the cache and of its counters
+     */
+    public static final String METRICS_NAME = "TagCache";
+    public static final String HITS = "hits";
+    public static final String MISSES = "misses";
+    public static final String EVICTIONS = "evictions";
+    public static final String ENTRIES = "entries";
+    public static final String BYTES = "bytes";
+
+    public static final long DEFAULT_MAX_BYTES = 64 * RamUsageEstimator.ONE_MB;
+
+    /*
+     * About what a map entry and its boxed key take on top of the document
+     */
+    private static final long ENTRY_BYTES = 64;
+    private static final int SEGMENTS = 16;
+
+    private final TaggerModel model;
+    private final Gazetteer gazetteer;
+    private final long maxBytes;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final ThreadLocal<DocumentTagger> taggers = new ThreadLocal<DocumentTagger>() {
+        @Override
+        protected DocumentTagger initialValue() {
+            return new DocumentTagger(model, gazetteer);
+        }
+    };
+    private final ThreadLocal<StringBuilder> normalized = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    private final StageMetrics metrics;
+    private final StripedCounter hits, misses, evictions, entries, bytes;
+
+    /*
+     * The shared stage and its counters, which are null unless metrics are on
+     */
+    private final StageMetrics published;
+    private final StripedCounter publishedHits, publishedMisses, publishedEvictions, publishedEntries, publishedBytes;
+
+    public CachingTagger(TaggerModel model, Gazetteer gazetteer) {
+        this(model, gazetteer, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param model the compiled or loaded model
+     * @param gazetteer the gazetteer the model was trained with, or null for none
+     * @param maxBytes about the most bytes of the heap the cached documents may take
+     */
+    public CachingTagger(TaggerModel model, Gazetteer gazetteer, long maxBytes) {
+        if (maxBytes < SEGMENTS) {
+            throw new IllegalArgumentException("maxBytes must be at least " + SEGMENTS + " but was " + maxBytes);
+        }
+        this.model = model;
+        this.gazetteer = gazetteer;
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+        metrics = new StageMetrics(METRICS_NAME);
+        hits = metrics.counter(HITS);
+        misses = metrics.counter(MISSES);
+        evictions = metrics.counter(EVICTIONS);
+        entries = metrics.counter(ENTRIES);
+        bytes = metrics.counter(BYTES);
+        published = AnalysisMetrics.stageIfEnabled(METRICS_NAME);
+        publishedHits = (published == null) ? null : published.counter(HITS);
+        publishedMisses = (published == null) ? null : published.counter(MISSES);
+        publishedEvictions = (published == null) ? null : published.counter(EVICTIONS);
+        publishedEntries = (published == null) ? null : published.counter(ENTRIES);
+        publishedBytes = (published == null) ? null : published.counter(BYTES);
+    }
+
+    /**
+     * Tags a document and appends its tokens with their tags the way
+     * {@link DocumentTagger#tag(CharSequence, StringBuilder)} does, but from the normalized text.
+     *
+     * @param document the text of the document
+     * @param out where to append the tagged tokens
+     */
+    public void tag(CharSequence document, StringBuilder out) {
+        tag(document).appendTo(out);
+    }
+
+    /**
+     * Gets the tagged document of a text from the cache, tagging it and caching it if it isn't there.
+     *
+     * @param document the text of the document
+     * @return the tagged document, whose text is the normalized text
+     */
+    public TaggedDocument tag(CharSequence document) {
+        final long start = System.nanoTime();
+        final StringBuilder text = normalized.get();
+        final long hash = normalize(document, text);
+        final Segment segment = segments[(int) (hash >>> 60) & (SEGMENTS - 1)];
+        TaggedDocument tagged;
+        synchronized (segment) {
+            tagged = segment.get(hash);
+        }
+        if (tagged != null && tagged.getText().contentEquals(text)) {
+            add(hits, publishedHits, 1);
+        } else {
+            add(misses, publishedMisses, 1);
+            tagged = taggers.get().tagDocument(text.toString());
+            put(segment, hash, tagged);
+        }
+        final long nanos = System.nanoTime() - start;
+        metrics.getLatency().record(nanos);
+        if (published != null) {
+            published.getLatency().record(nanos);
+        }
+        return tagged;
+    }
+
+    /**
+     * Adds to a counter of the cache and to the same counter of the shared stage, if metrics are on.
+     */
+    private static void add(StripedCounter own, StripedCounter shared, long delta) {
+        own.add(delta);
+        if (shared != null) {
+            shared.add(delta);
+        }
+    }
+
+    private void put(Segment segment, long hash, TaggedDocument tagged) {
+        final long size = tagged.ramBytesUsed() + ENTRY_BYTES;
+        if (size > segment.maxBytes) {
+            return;
+        }
+        long added = size;
+        int entryCount = 1;
+        int evicted = 0;
+        synchronized (segment) {
+            TaggedDocument replaced = segment.put(hash, tagged);
+            if (replaced != null) {
+                added -= replaced.ramBytesUsed() + ENTRY_BYTES;
+                entryCount = 0;
+            }
+            segment.bytes += added;
+            Iterator<Map.Entry<Long, TaggedDocument>> eldest = segment.entrySet().iterator();
+            while (segment.bytes > segment.maxBytes) {
+                final long evictedBytes = eldest.next().getValue().ramBytesUsed() + ENTRY_BYTES;
+                eldest.remove();
+                segment.bytes -= evictedBytes;
+                added -= evictedBytes;
+                evicted++;
+            }
+        }
+        add(bytes, publishedBytes, added);
+        add(entries, publishedEntries, entryCount - evicted);
+        add(evictions, publishedEvictions, evicted);
+    }
+
+    /**
+     * Trims a document and turns every run of whitespace in it into one space.
+     *
+     * @param document the text of the document
+     * @param into where to put the normalized text, which is cleared first
+     * @return the hash of the normalized text
+     */
+    static long normalize(CharSequence document, StringBuilder into) {
+        into.setLength(0);
+        long hash = HashedAlphabet.SEED;
+        boolean space = false;
+        for (int i = 0; i < document.length(); i++) {
+            final char c = document.charAt(i);
+            if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+                space = into.length() > 0;
+            } else {
+                if (space) {
+                    into.append(' ');
+                    hash = HashedAlphabet.hash(hash, ' ');
+                    space = false;
+                }
+                into.append(c);
+                hash = HashedAlphabet.hash(hash, c);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Removes every document from the cache.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            final long cleared;
+            final int count;
+            synchronized (segment) {
+                cleared = segment.bytes;
+                count = segment.size();
+                segment.clear();
+                segment.bytes = 0;
+            }
+            add(bytes, publishedBytes, -cleared);
+            add(entries, publishedEntries, -count);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the share of documents which were found in the cache, or 0 before any were tagged
+     */
+    public double getHitRate() {
+        final long hitCount = hits.sum();
+        final long total = hitCount + misses.sum();
+        return (total == 0) ? 0 : (double) hitCount / total;
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of documents in the cache
+     */
+    public long size() {
+        return entries.sum();
+    }
+
+    /**
+     * @return about how many bytes of the heap the cached documents take
+     */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the metrics of this cache alone
+     */
+    public StageMetrics getMetrics() {
+        return metrics;
+    }
+
+    public TaggerModel getModel() {
+        return model;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s: %d documents in %s, %.1f%% hits, %d evictions", METRICS_NAME, size(),
+                RamUsageEstimator.humanReadableUnits(getBytes()), 100 * getHitRate(), getEvictions());
+    }
+
+    /**
+     * The documents of one segment of the cache, in the order they were last used
+     */
+    private static final class Segment extends LinkedHashMap<Long, TaggedDocument> {
+        private static final long serialVersionUID = 1L;
+
+        final long maxBytes;
+        long bytes;
+
+        Segment(long maxBytes) {
+            super(16, 0.75f, true);
+            this.maxBytes = maxBytes;
+        }
+    }
+}
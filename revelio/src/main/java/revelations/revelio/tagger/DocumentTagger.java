@@ -0,0 +1,197 @@
+package revelations.revelio.tagger;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.FeatureVectorSequence;
+import cc.mallet.types.Instance;
+import org.apache.lucene.util.ArrayUtil;
+import revelations.revelio.common.EntityAttribute;
+import revelations.revelio.common.EntityAttributeImpl;
+import revelations.revelio.gazetteer.Gazetteer;
+import revelations.revelio.mallet.TokenStreamPipe;
+
+/**
+ * Tags documents with a CRF trained by {@link revelations.revelio.train.CrfTrainingDriver}, compiled or loaded as a
+ * {@link TaggerModel}. A document is featurized by a pipe with the alphabets and settings of the
+ * {@link TokenStreamPipe} the CRF was trained with, so it runs through the same TaggedTokenizer and EntityTagFilter
+ * chain. The tokens are labeled by the {@link BilouDecoder} of the model,
+ * which sets the label of each token on an {@link EntityAttribute} to write its tag with
+ * {@link EntityAttribute#toEntityTag()}. A model trained on sentences, see
+ * {@link TokenStreamPipe#setMaxSentenceLength(int)}, labels each sentence of a document on its own.
+ * <p>
+ * A tagged document is written as its tokens separated by spaces, each one the term, a slash and its BILOU tag:
+ * <code>I/O met/O David/B-PERSON Lynch/L-PERSON</code>.
+ * </p>
+ * A tagger holds the state of the document being tagged, so an instance of it should only be used by one thread at
+ * a time. The taggers of one model share its alphabets and decoder, all of which are only read: features are looked up
+ * through a read-only view of the alphabet, so a tagger never adds to it or stops its growth, and a model can go on
+ * being trained or evaluated while it is tagging.
+ */
+public class DocumentTagger {
+
+    private final TaggerModel model;
+    private final TermRecordingPipe pipe;
+    private final BilouDecoder.Lattice lattice;
+    private final EntityAttribute entity = new EntityAttributeImpl();
+    private int[] labels = new int[64];
+    private final int modelVersion;
+    private final int labelVersion;
+
+    public DocumentTagger(CRF crf) {
+        this(crf, null);
+    }
+
+    /**
+     * @param crf the model, whose input pipe has to be a {@link TokenStreamPipe}
+     * @param gazetteer the gazetteer the model was trained with, or null for none
+     */
+    public DocumentTagger(CRF crf, Gazetteer gazetteer) {
+        this(new TaggerModel(crf), gazetteer);
+    }
+
+    /**
+     * @param model the compiled or loaded model
+     * @param gazetteer the gazetteer the model was trained with, or null for none
+     */
+    public DocumentTagger(TaggerModel model, Gazetteer gazetteer) {
+        this(model, gazetteer, 0, 0);
+    }
+
+    /**
+     * A tagger of a model in a {@link ModelRegistry}, which stamps the versions of the model on its documents.
+     */
+    DocumentTagger(ModelVersion version) {
+        this(version.getModel(), version.getGazetteer(), version.getVersion(), version.getLabelVersion());
+    }
+
+    private DocumentTagger(TaggerModel model, Gazetteer gazetteer, int modelVersion, int labelVersion) {
+        this.model = model;
+        this.modelVersion = modelVersion;
+        this.labelVersion = labelVersion;
+        pipe = new TermRecordingPipe(model.getPipe());
+        pipe.setGazetteer(gazetteer);
+        pipe.setTargetProcessing(false);
+        lattice = model.getDecoder().lattice();
+    }
+
+    /**
+     * Tags a document.
+     *
+     * @param document the text of the document
+     * @return the tokens of the document with their tags
+     */
+    public String tag(CharSequence document) {
+        StringBuilder tagged = new StringBuilder(document.length() * 2);
+        tag(document, tagged);
+        return tagged.toString();
+    }
+
+    /**
+     * Tags a document and appends its tokens with their tags.
+     *
+     * @param document the text of the document
+     * @param out where to append the tagged tokens
+     */
+    public void tag(CharSequence document, StringBuilder out) {
+        final int size = decode(document);
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                out.append(' ');
+            }
+            entity.setLabel(labels[i]);
+            out.append(pipe.term(i)).append('/').append(entity.toEntityTag());
+        }
+    }
+
+    /**
+     * Tags a document into the offsets and labels of its tokens.
+     *
+     * @param document the text of the document
+     * @return the tagged document, which holds on to the text
+     */
+    public TaggedDocument tagDocument(CharSequence document) {
+        final String text = document.toString();
+        return new TaggedDocument(text, this, decode(text));
+    }
+
+    /**
+     * Labels the tokens of a document without writing them out. The terms and labels are kept until the next
+     * document is decoded.
+     *
+     * @param document the text of the document
+     * @return the number of tokens
+     */
+    public int decode(CharSequence document) {
+        Instance instance = pipe.pipe(new Instance(document, null, null, null));
+        FeatureVectorSequence tokens = (FeatureVectorSequence) instance.getData();
+        final int size = tokens.size();
+        if (labels.length < size) {
+            labels = ArrayUtil.grow(labels, size);
+        }
+        int start = 0;
+        for (int end = 1; end <= size; end++) {
+            if (end == size || pipe.isSentenceEnd(end - 1)) {
+                lattice.decode(tokens, start, end);
+                for (int i = start; i < end; i++) {
+                    labels[i] = lattice.label(i - start);
+                }
+                start = end;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the term of a token of the last document decoded
+     */
+    public String term(int token) {
+        return pipe.term(token);
+    }
+
+    /**
+     * @return the offset of the first char of a token of the last document decoded
+     */
+    public int startOffset(int token) {
+        return pipe.startOffset(token);
+    }
+
+    /**
+     * @return the offset after the last char of a token of the last document decoded
+     */
+    public int endOffset(int token) {
+        return pipe.endOffset(token);
+    }
+
+    /**
+     * @return the label the model gave a token of the last document decoded, see
+     * {@link revelations.revelio.common.EntityLabels}
+     */
+    public int label(int token) {
+        return labels[token];
+    }
+
+    /**
+     * @return the label of a token of the last document decoded from the entity markup in the document, such as the
+     * gold label of a held out test set
+     */
+    public int taggedLabel(int token) {
+        return pipe.taggedLabel(token);
+    }
+
+    public TaggerModel getModel() {
+        return model;
+    }
+
+    /**
+     * @return the version of the model in the registry it came from, or 0 if it didn't come from one
+     */
+    public int getModelVersion() {
+        return modelVersion;
+    }
+
+    /**
+     * @return the version of the labels of the model in the registry it came from, or 0 if it didn't come from one
+     */
+    public int getLabelVersion() {
+        return labelVersion;
+    }
+}
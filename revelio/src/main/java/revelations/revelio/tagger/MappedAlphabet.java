@@ -0,0 +1,248 @@
+package revelations.revelio.tagger;
+
+import cc.mallet.types.Alphabet;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A feature alphabet of a {@link TaggerModel} which is read straight from the mapped model file instead of being
+ * held on the heap. The names of the features are written one after the other in the modified UTF-8 of
+ * {@link DataOutputStream#writeUTF(String)}, which takes one byte for each char of the ASCII names most features
+ * have, and are found through an open addressing hash table of their ids keyed on {@link String#hashCode()}, which
+ * every JVM computes the same way. The table is at most three quarters full. A lookup hashes the name, which a String
+ * caches, and compares its chars with the bytes in the file as it encodes them, so it doesn't allocate.
+ * <p>
+ * The alphabet never grows: a name which is not in it has the id -1, as in any other alphabet whose growth has been
+ * stopped. It is only read once mapped, so any number of threads can share it.
+ * </p>
+ */
+final class MappedAlphabet extends Alphabet {
+    private static final long serialVersionUID = 1L;
+
+    private final int size;
+    private final int tableSize;
+    private final IntBuffer slots;
+    private final IntBuffer offsets;
+    private final ByteBuffer names;
+
+    private MappedAlphabet(int size, IntBuffer slots, IntBuffer offsets, ByteBuffer names) {
+        super.stopGrowth();
+        this.size = size;
+        this.tableSize = slots.capacity();
+        this.slots = slots;
+        this.offsets = offsets;
+        this.names = names;
+    }
+
+    /**
+     * Writes the names of the features of an alphabet, each of which has to be a String, in the order of their ids.
+     */
+    static void write(Alphabet alphabet, DataOutputStream out) throws IOException {
+        final int size = alphabet.size();
+        final int tableSize = size + size / 3 + 1;
+        int[] table = new int[tableSize];
+        int[] offsets = new int[size + 1];
+        for (int id = 0; id < size; id++) {
+            String name = (String) alphabet.lookupObject(id);
+            int slot = slot(name, tableSize);
+            while (table[slot] != 0) {
+                slot = (slot + 1 == tableSize) ? 0 : slot + 1;
+            }
+            table[slot] = id + 1;
+            offsets[id + 1] = offsets[id] + encodedLength(name);
+        }
+        out.writeInt(size);
+        out.writeInt(tableSize);
+        out.writeInt(offsets[size]);
+        TaggerModel.writeInts(table, out);
+        TaggerModel.writeInts(offsets, out);
+        for (int id = 0; id < size; id++) {
+            String name = (String) alphabet.lookupObject(id);
+            for (int i = 0; i < name.length(); i++) {
+                encode(name.charAt(i), out);
+            }
+        }
+        TaggerModel.pad(out);
+    }
+
+    /**
+     * Reads an alphabet from a mapped model, leaving the position of the buffer after it.
+     */
+    static MappedAlphabet map(ByteBuffer buffer) {
+        int size = buffer.getInt();
+        int tableSize = buffer.getInt();
+        int bytes = buffer.getInt();
+        if (tableSize <= size) {
+            throw new IllegalArgumentException("Expected more than " + size + " slots but there are " + tableSize);
+        }
+        IntBuffer slots = TaggerModel.sliceInts(buffer, tableSize);
+        IntBuffer offsets = TaggerModel.sliceInts(buffer, size + 1);
+        ByteBuffer names = TaggerModel.sliceBytes(buffer, bytes);
+        TaggerModel.align(buffer);
+        return new MappedAlphabet(size, slots, offsets, names);
+    }
+
+    private static int slot(String name, int tableSize) {
+        int hash = name.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        return (hash & Integer.MAX_VALUE) % tableSize;
+    }
+
+    private static int encodedLength(String name) {
+        int length = 0;
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            length += (c != 0 && c < 0x80) ? 1 : (c < 0x800) ? 2 : 3;
+        }
+        return length;
+    }
+
+    private static void encode(char c, DataOutputStream out) throws IOException {
+        if (c != 0 && c < 0x80) {
+            out.writeByte(c);
+        } else if (c < 0x800) {
+            out.writeByte(0xC0 | (c >> 6));
+            out.writeByte(0x80 | (c & 0x3F));
+        } else {
+            out.writeByte(0xE0 | (c >> 12));
+            out.writeByte(0x80 | ((c >> 6) & 0x3F));
+            out.writeByte(0x80 | (c & 0x3F));
+        }
+    }
+
+    @Override
+    public int lookupIndex(Object entry, boolean addIfNotPresent) {
+        if (!(entry instanceof String)) {
+            return -1;
+        }
+        final String name = (String) entry;
+        int slot = slot(name, tableSize);
+        for (int id = slots.get(slot); id != 0; id = slots.get(slot)) {
+            if (matches(id - 1, name)) {
+                return id - 1;
+            }
+            slot = (slot + 1 == tableSize) ? 0 : slot + 1;
+        }
+        return -1;
+    }
+
+    private boolean matches(int id, String name) {
+        final int end = offsets.get(id + 1);
+        int b = offsets.get(id);
+        if (end - b < name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (c != 0 && c < 0x80) {
+                if (b == end || names.get(b++) != c) {
+                    return false;
+                }
+            } else if (c < 0x800) {
+                if (end - b < 2 || names.get(b++) != (byte) (0xC0 | (c >> 6)) ||
+                        names.get(b++) != (byte) (0x80 | (c & 0x3F))) {
+                    return false;
+                }
+            } else if (end - b < 3 || names.get(b++) != (byte) (0xE0 | (c >> 12)) ||
+                    names.get(b++) != (byte) (0x80 | ((c >> 6) & 0x3F)) ||
+                    names.get(b++) != (byte) (0x80 | (c & 0x3F))) {
+                return false;
+            }
+        }
+        return b == end;
+    }
+
+    @Override
+    public int lookupIndex(Object entry) {
+        return lookupIndex(entry, false);
+    }
+
+    @Override
+    public Object lookupObject(int index) {
+        final int end = offsets.get(index + 1);
+        final char[] name = new char[end - offsets.get(index)];
+        int length = 0;
+        for (int b = offsets.get(index); b < end; length++) {
+            final int first = names.get(b++) & 0xFF;
+            if (first < 0x80) {
+                name[length] = (char) first;
+            } else if (first < 0xE0) {
+                name[length] = (char) (((first & 0x1F) << 6) | (names.get(b++) & 0x3F));
+            } else {
+                name[length] = (char) (((first & 0x0F) << 12) | ((names.get(b++) & 0x3F) << 6) |
+                        (names.get(b++) & 0x3F));
+            }
+        }
+        return new String(name, 0, length);
+    }
+
+    @Override
+    public Object[] toArray() {
+        Object[] names = new Object[size];
+        for (int id = 0; id < size; id++) {
+            names[id] = lookupObject(id);
+        }
+        return names;
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new Iterator<Object>() {
+            int id;
+
+            @Override
+            public boolean hasNext() {
+                return id < size;
+            }
+
+            @Override
+            public Object next() {
+                if (id == size) {
+                    throw new NoSuchElementException();
+                }
+                return lookupObject(id++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public boolean contains(Object entry) {
+        return lookupIndex(entry, false) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void stopGrowth() {
+    }
+
+    @Override
+    public void startGrowth() {
+        throw new UnsupportedOperationException("A mapped alphabet can't grow");
+    }
+
+    @Override
+    public boolean growthStopped() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "MappedAlphabet[" + size + " features]";
+    }
+}
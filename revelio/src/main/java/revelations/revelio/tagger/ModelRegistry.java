@@ -0,0 +1,205 @@
+package revelations.revelio.tagger;
+
+import org.apache.log4j.Logger;
+import revelations.revelio.gazetteer.Gazetteer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the model to tag with and swaps in new ones while tagging goes on, so a retrained model is picked up without
+ * restarting the taggers. A new model is loaded on a background thread, warmed up by tagging a sample of documents a
+ * few times, which compiles the hot code of the new model's alphabet and decoder and pulls the pages of a mapped model
+ * into memory, and only then swapped in at once. Each model swapped in becomes a {@link ModelVersion}.
+ * <p>
+ * Callers take the {@link #current()} version once per request and tag the whole request with a tagger of it, see
+ * {@link ModelVersion#newTagger()}, so requests which are under way when a model is swapped in finish on the model
+ * they started with. The registry only holds the current version, so an old model is garbage collected, and a mapped
+ * one unmapped, once the last request and tagger using it let go of it.
+ * </p>
+ * <p>
+ * {@link #watch(File, Gazetteer, long)} reloads a model file whenever it changes, such as when a training job renames
+ * a new model over it. A model which fails to load is logged and the current one is kept.
+ * </p>
+ */
+public class ModelRegistry {
+    private static final Logger log = Logger.getLogger(ModelRegistry.class);
+
+    public static final int DEFAULT_WARM_UP_ROUNDS = 20;
+
+    /**
+     * Documents with names, places, punctuation and casing in the way of tweets, to warm a new model up with
+     */
+    public static final List<String> DEFAULT_WARM_UP_DOCUMENTS = Arrays.asList(
+            "I met David Lynch in Salt Lake City today.",
+            "RT @someone: Barack Obama is speaking at the United Nations in New York right now!!",
+            "just landed in tokyo... can't wait to see Mt. Fuji :)",
+            "Apple and Google both reported earnings on Tuesday, shares of Microsoft fell 3.5%",
+            "Dr. Smith from the University of Utah said \"it's over\" #news http://example.com/x");
+
+    private final AtomicReference<ModelVersion> current = new AtomicReference<ModelVersion>();
+    private final ScheduledExecutorService loader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "revelio-model-loader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private List<String> warmUpDocuments = DEFAULT_WARM_UP_DOCUMENTS;
+    private int warmUpRounds = DEFAULT_WARM_UP_ROUNDS;
+
+    /**
+     * Starts with a model as version 1. It isn't warmed up, as nothing is tagged before it.
+     *
+     * @param model the compiled or loaded model
+     * @param gazetteer the gazetteer the model was trained with, or null for none
+     */
+    public ModelRegistry(TaggerModel model, Gazetteer gazetteer) {
+        this(model, gazetteer, "memory");
+    }
+
+    /**
+     * @param source where the model came from, such as the file it was loaded from
+     */
+    public ModelRegistry(TaggerModel model, Gazetteer gazetteer, String source) {
+        current.set(new ModelVersion(model, gazetteer, source, null));
+    }
+
+    /**
+     * Loads the first model from a file.
+     */
+    public static ModelRegistry load(File file, Gazetteer gazetteer) throws IOException {
+        return new ModelRegistry(TaggerModel.load(file), gazetteer, file.getPath());
+    }
+
+    /**
+     * @return the version to tag with, which stays the same for as long as a caller holds on to it
+     */
+    public ModelVersion current() {
+        return current.get();
+    }
+
+    /**
+     * Warms a model up on the calling thread and swaps it in.
+     *
+     * @param model the compiled or loaded model
+     * @param gazetteer the gazetteer the model was trained with, or null for none
+     * @param source where the model came from, such as the file it was loaded from
+     * @return the new current version
+     */
+    public synchronized ModelVersion swap(TaggerModel model, Gazetteer gazetteer, String source) {
+        final long start = System.nanoTime();
+        final ModelVersion version = new ModelVersion(model, gazetteer, source, current.get());
+        warmUp(version);
+        final ModelVersion previous = current.getAndSet(version);
+        log.info("Swapped in " + version + " in place of " + previous + " after warming it up for " +
+                (System.nanoTime() - start) / 1000000L + " ms");
+        if (version.getLabelVersion() != previous.getLabelVersion()) {
+            log.info("The labels of " + version + " are " + version.getTags());
+        }
+        return version;
+    }
+
+    private void warmUp(ModelVersion version) {
+        final DocumentTagger tagger = version.newTagger();
+        for (int round = 0; round < warmUpRounds; round++) {
+            for (String document : warmUpDocuments) {
+                tagger.decode(document);
+            }
+        }
+    }
+
+    /**
+     * Loads, warms up and swaps in a model on the background thread of the registry. Loads run one at a time in the
+     * order they were asked for.
+     *
+     * @param file a model saved by {@link TaggerModel#save(File)} or a serialized CRF
+     * @param gazetteer the gazetteer the model was trained with, or null for none
+     * @return the new current version once it is swapped in, or the IOException of the load
+     */
+    public Future<ModelVersion> reload(final File file, final Gazetteer gazetteer) {
+        return loader.submit(new Callable<ModelVersion>() {
+            @Override
+            public ModelVersion call() throws IOException {
+                return swap(TaggerModel.load(file), gazetteer, file.getPath());
+            }
+        });
+    }
+
+    /**
+     * Checks a model file for changes at a fixed period and loads it in the background whenever its length or the
+     * time it was last modified change. The file should be replaced by renaming a complete file over it, so it is
+     * never read half written.
+     *
+     * @param file the model file, which the current model may or may not have been loaded from
+     * @param gazetteer the gazetteer the models are trained with, or null for none
+     * @param periodMillis the time between two checks
+     */
+    public void watch(final File file, final Gazetteer gazetteer, long periodMillis) {
+        final long[] seen = {file.lastModified(), file.length()};
+        loader.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                final long modified = file.lastModified();
+                final long length = file.length();
+                if (modified == 0 || (modified == seen[0] && length == seen[1])) {
+                    return;
+                }
+                seen[0] = modified;
+                seen[1] = length;
+                try {
+                    swap(TaggerModel.load(file), gazetteer, file.getPath());
+                } catch (IOException e) {
+                    log.warn("Unable to load the model " + file + ", still tagging with " + current(), e);
+                } catch (RuntimeException e) {
+                    log.warn("Unable to load the model " + file + ", still tagging with " + current(), e);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops loading and watching models. The current model stays in place.
+     */
+    public void close() {
+        loader.shutdownNow();
+    }
+
+    public List<String> getWarmUpDocuments() {
+        return warmUpDocuments;
+    }
+
+    /**
+     * @param warmUpDocuments the documents a new model tags before it is swapped in, which should look like the
+     * documents it will tag
+     */
+    public void setWarmUpDocuments(List<String> warmUpDocuments) {
+        this.warmUpDocuments = new ArrayList<String>(warmUpDocuments);
+    }
+
+    public int getWarmUpRounds() {
+        return warmUpRounds;
+    }
+
+    /**
+     * @param warmUpRounds the number of times a new model tags the warm up documents, 0 to swap it in cold
+     */
+    public void setWarmUpRounds(int warmUpRounds) {
+        if (warmUpRounds < 0) {
+            throw new IllegalArgumentException("warmUpRounds can't be negative but was " + warmUpRounds);
+        }
+        this.warmUpRounds = warmUpRounds;
+    }
+}
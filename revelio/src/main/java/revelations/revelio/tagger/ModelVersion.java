@@ -0,0 +1,85 @@
+package revelations.revelio.tagger;
+
+import revelations.revelio.gazetteer.Gazetteer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * A model swapped into a {@link ModelRegistry}, with the gazetteer it tags with and the numbers it is known by:
+ * <ul>
+ *     <li>the model version, which goes up by one with every model swapped in, and</li>
+ *     <li>the label version, which only goes up when a model has a different set of tags than the one before it,
+ *     such as a model retrained with a new entity type.</li>
+ * </ul>
+ * The taggers of a version stamp both numbers on the documents they tag, see {@link TaggedDocument#getModelVersion()},
+ * so the labels of a document can always be traced to the model and label set which produced them.
+ */
+public final class ModelVersion {
+    private final TaggerModel model;
+    private final Gazetteer gazetteer;
+    private final String source;
+    private final int version;
+    private final int labelVersion;
+    private final List<String> tags;
+
+    ModelVersion(TaggerModel model, Gazetteer gazetteer, String source, ModelVersion previous) {
+        this.model = model;
+        this.gazetteer = gazetteer;
+        this.source = source;
+        this.tags = Collections.unmodifiableList(new ArrayList<String>(
+                new TreeSet<String>(Arrays.asList(model.getDecoder().stateTags()))));
+        if (previous == null) {
+            version = 1;
+            labelVersion = 1;
+        } else {
+            version = previous.version + 1;
+            labelVersion = tags.equals(previous.tags) ? previous.labelVersion : previous.labelVersion + 1;
+        }
+    }
+
+    /**
+     * @return a new tagger of the model, which stamps the versions on the documents it tags
+     */
+    public DocumentTagger newTagger() {
+        return new DocumentTagger(this);
+    }
+
+    public TaggerModel getModel() {
+        return model;
+    }
+
+    public Gazetteer getGazetteer() {
+        return gazetteer;
+    }
+
+    /**
+     * @return where the model came from, such as the file it was loaded from
+     */
+    public String getSource() {
+        return source;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getLabelVersion() {
+        return labelVersion;
+    }
+
+    /**
+     * @return the tags the model labels tokens with, such as B-PERSON, in order
+     */
+    public List<String> getTags() {
+        return tags;
+    }
+
+    @Override
+    public String toString() {
+        return "model " + version + " (labels " + labelVersion + ") from " + source;
+    }
+}
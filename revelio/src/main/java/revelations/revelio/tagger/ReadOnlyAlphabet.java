@@ -0,0 +1,86 @@
+package revelations.revelio.tagger;
+
+import cc.mallet.types.Alphabet;
+import revelations.revelio.features.HashedAlphabet;
+
+import java.util.Iterator;
+
+/**
+ * A view of the feature alphabet of a model which a {@link DocumentTagger} looks features up in. It never adds a
+ * feature to the alphabet, so a feature the model wasn't trained with has the id -1, as in an alphabet whose growth
+ * has been stopped, but it leaves the growth of the alphabet itself alone, so the model can go on being trained or
+ * evaluated while a tagger uses it.
+ */
+final class ReadOnlyAlphabet extends Alphabet {
+    private static final long serialVersionUID = 1L;
+
+    private final Alphabet alphabet;
+
+    ReadOnlyAlphabet(Alphabet alphabet) {
+        super.stopGrowth();
+        this.alphabet = alphabet;
+    }
+
+    /**
+     * @return the alphabet itself if it can't grow anyway, or else a read-only view of it
+     */
+    static Alphabet of(Alphabet alphabet) {
+        return (alphabet instanceof ReadOnlyAlphabet || alphabet instanceof MappedAlphabet ||
+                alphabet instanceof HashedAlphabet) ? alphabet : new ReadOnlyAlphabet(alphabet);
+    }
+
+    @Override
+    public int lookupIndex(Object entry, boolean addIfNotPresent) {
+        return alphabet.lookupIndex(entry, false);
+    }
+
+    @Override
+    public int lookupIndex(Object entry) {
+        return alphabet.lookupIndex(entry, false);
+    }
+
+    @Override
+    public Object lookupObject(int index) {
+        return alphabet.lookupObject(index);
+    }
+
+    @Override
+    public Object[] toArray() {
+        return alphabet.toArray();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterator<Object> iterator() {
+        return (Iterator<Object>) (Iterator<?>) alphabet.iterator();
+    }
+
+    @Override
+    public boolean contains(Object entry) {
+        return alphabet.contains(entry);
+    }
+
+    @Override
+    public int size() {
+        return alphabet.size();
+    }
+
+    @Override
+    public void stopGrowth() {
+    }
+
+    @Override
+    public void startGrowth() {
+        throw new UnsupportedOperationException("The alphabet of a tagger can't grow");
+    }
+
+    @Override
+    public boolean growthStopped() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return alphabet.toString();
+    }
+}
@@ -0,0 +1,128 @@
+package revelations.revelio.tagger;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import revelations.revelio.common.EntityLabels;
+
+/**
+ * The tokens of a tagged document as the offsets of their chars in its text and the labels the model gave them, see
+ * {@link EntityLabels}, as {@link DocumentTagger#tagDocument(CharSequence)} tags it. A tagged document is immutable,
+ * so a {@link CachingTagger} hands the same one to every thread which tags the same text. A document tagged by a model
+ * from a {@link ModelRegistry} keeps the versions of the model and of its labels.
+ */
+public final class TaggedDocument {
+    private static final long SHALLOW_BYTES = RamUsageEstimator.alignObjectSize(
+            RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 3 * RamUsageEstimator.NUM_BYTES_OBJECT_REF +
+                    2 * RamUsageEstimator.NUM_BYTES_INT);
+    private static final long STRING_BYTES = RamUsageEstimator.alignObjectSize(
+            RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.NUM_BYTES_OBJECT_REF +
+                    3 * RamUsageEstimator.NUM_BYTES_INT);
+
+    private final String text;
+    private final int[] offsets;
+    private final int[] labels;
+    private final int modelVersion;
+    private final int labelVersion;
+
+    /**
+     * Copies the tokens of the last document a tagger decoded.
+     *
+     * @param text the text the tagger decoded
+     * @param tagger the tagger
+     * @param size the number of tokens
+     */
+    TaggedDocument(String text, DocumentTagger tagger, int size) {
+        this.text = text;
+        modelVersion = tagger.getModelVersion();
+        labelVersion = tagger.getLabelVersion();
+        offsets = new int[2 * size];
+        labels = new int[size];
+        for (int i = 0; i < size; i++) {
+            offsets[2 * i] = tagger.startOffset(i);
+            offsets[2 * i + 1] = tagger.endOffset(i);
+            labels[i] = tagger.label(i);
+        }
+    }
+
+    /**
+     * @return the text which was tagged
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return the number of tokens
+     */
+    public int size() {
+        return labels.length;
+    }
+
+    public int startOffset(int token) {
+        return offsets[2 * token];
+    }
+
+    public int endOffset(int token) {
+        return offsets[2 * token + 1];
+    }
+
+    /**
+     * @return the chars of a token in the text
+     */
+    public String term(int token) {
+        return text.substring(offsets[2 * token], offsets[2 * token + 1]);
+    }
+
+    public int label(int token) {
+        return labels[token];
+    }
+
+    /**
+     * @return the BILOU tag of a token, such as B-PERSON
+     */
+    public String tag(int token) {
+        return EntityLabels.getInstance().tag(labels[token]);
+    }
+
+    /**
+     * @return the version of the model which tagged the document, see {@link ModelVersion}, or 0 if the model didn't
+     * come from a registry
+     */
+    public int getModelVersion() {
+        return modelVersion;
+    }
+
+    /**
+     * @return the version of the labels the document was tagged with, or 0 if the model didn't come from a registry
+     */
+    public int getLabelVersion() {
+        return labelVersion;
+    }
+
+    /**
+     * Appends the tokens with their tags the way {@link DocumentTagger#tag(CharSequence, StringBuilder)} does.
+     */
+    public void appendTo(StringBuilder out) {
+        for (int i = 0; i < labels.length; i++) {
+            if (i > 0) {
+                out.append(' ');
+            }
+            out.append(text, offsets[2 * i], offsets[2 * i + 1]).append('/').append(tag(i));
+        }
+    }
+
+    /**
+     * @return about how many bytes of the heap the document takes, the text included
+     */
+    public long ramBytesUsed() {
+        return SHALLOW_BYTES + STRING_BYTES + RamUsageEstimator.alignObjectSize(
+                RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) text.length() * RamUsageEstimator.NUM_BYTES_CHAR) +
+                RamUsageEstimator.sizeOf(offsets) + RamUsageEstimator.sizeOf(labels);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(text.length() * 2);
+        appendTo(out);
+        return out.toString();
+    }
+}
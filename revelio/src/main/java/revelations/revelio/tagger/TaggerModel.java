@@ -0,0 +1,287 @@
+package revelations.revelio.tagger;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.LabelAlphabet;
+import org.apache.log4j.Logger;
+import revelations.revelio.features.HashedAlphabet;
+import revelations.revelio.features.TermFeature;
+import revelations.revelio.mallet.TokenStreamPipe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * What a {@link DocumentTagger} needs from a trained CRF: the settings of the {@link TokenStreamPipe} it was trained
+ * with, its feature alphabet and its weights compiled into a {@link BilouDecoder}. A model is compiled from a CRF
+ * or loaded from a file, which is either
+ * <ul>
+ *     <li>a CRF written out with java serialization by {@link revelations.revelio.train.CrfTrainingDriver}, which
+ *     is read onto the heap and compiled, or</li>
+ *     <li>a model saved with {@link #save(File)}, which is memory mapped.</li>
+ * </ul>
+ * A saved model is a header with the settings of the pipe and the tags of the states followed by the feature
+ * alphabet and the weights of the features, each laid out as the flat arrays it is read from: see
+ * {@link MappedAlphabet} and {@link BilouDecoder}. A model whose features are hashed only saves the number of buckets
+ * of its {@link HashedAlphabet} in place of the alphabet. Loading one reads the header and the small arrays of the
+ * transitions and maps the rest, so it takes milliseconds however large the model is, the alphabet and weights stay
+ * out of the heap and the processes tagging with the same file share one copy of it in the page cache.
+ * <p>
+ * A model is only read once loaded, so any number of threads and taggers can share it.
+ * </p>
+ */
+public class TaggerModel {
+    private static final Logger log = Logger.getLogger(TaggerModel.class);
+
+    /**
+     * The first four bytes of a saved model, RVLM
+     */
+    public static final int MAGIC = 0x52564c4d;
+    public static final int VERSION = 3;
+
+    private static final int ALIGNMENT = 8;
+
+    private final TokenStreamPipe pipe;
+    private final BilouDecoder decoder;
+
+    /**
+     * Compiles a CRF.
+     *
+     * @param crf the model, whose input pipe has to be a {@link TokenStreamPipe}
+     * @throws IllegalArgumentException if the CRF wasn't trained with a TokenStreamPipe or can't be decoded by a
+     * {@link BilouDecoder}
+     */
+    public TaggerModel(CRF crf) {
+        if (!(crf.getInputPipe() instanceof TokenStreamPipe)) {
+            throw new IllegalArgumentException("Expected the CRF to be trained with a TokenStreamPipe but its input " +
+                    "pipe is " + crf.getInputPipe());
+        }
+        this.pipe = (TokenStreamPipe) crf.getInputPipe();
+        this.decoder = new BilouDecoder(crf);
+    }
+
+    private TaggerModel(TokenStreamPipe pipe, BilouDecoder decoder) {
+        this.pipe = pipe;
+        this.decoder = decoder;
+    }
+
+    /**
+     * Loads a model saved with {@link #save(File)} or a serialized CRF.
+     *
+     * @throws IOException if the file can't be read or is neither
+     */
+    public static TaggerModel load(File file) throws IOException {
+        long start = System.nanoTime();
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        int magic;
+        try {
+            magic = in.readInt();
+        } finally {
+            in.close();
+        }
+        TaggerModel model = (magic == MAGIC) ? map(file) : new TaggerModel(readCrf(file));
+        log.info("Loaded the model " + file + " in " + (System.nanoTime() - start) / 1000000L + " ms");
+        return model;
+    }
+
+    private static TaggerModel map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            // the mapping stays valid once the file is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        try {
+            return map(buffer);
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to read the model " + file, e);
+        }
+    }
+
+    private static TaggerModel map(ByteBuffer buffer) throws IOException {
+        buffer.getInt();
+        int version = buffer.getInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Expected a model of version " + VERSION + " or older but it is " + version);
+        }
+        Set<String> entityTags = new HashSet<String>();
+        for (int i = buffer.getInt(); i > 0; i--) {
+            entityTags.add(readString(buffer));
+        }
+        Set<TermFeature> termFeatures = EnumSet.noneOf(TermFeature.class);
+        for (int i = buffer.getInt(); i > 0; i--) {
+            termFeatures.add(TermFeature.valueOf(readString(buffer)));
+        }
+        int featureCacheSize = buffer.getInt();
+        // version 1 models have no hashed features
+        int hashBuckets = (version > 1) ? buffer.getInt() : 0;
+        // and version 1 and 2 models don't split documents into sentences
+        int maxSentenceLength = (version > 2) ? buffer.getInt() : 0;
+        align(buffer);
+        Alphabet features = (hashBuckets > 0) ? new HashedAlphabet(hashBuckets) : MappedAlphabet.map(buffer);
+        BilouDecoder decoder = BilouDecoder.map(buffer);
+        LabelAlphabet labels = new LabelAlphabet();
+        for (String tag : decoder.stateTags()) {
+            labels.lookupIndex(tag);
+        }
+        labels.stopGrowth();
+        TokenStreamPipe pipe = new TokenStreamPipe(features, labels, entityTags);
+        pipe.setTermFeatures(termFeatures);
+        pipe.setFeatureCacheSize(featureCacheSize);
+        pipe.setMaxSentenceLength(maxSentenceLength);
+        return new TaggerModel(pipe, decoder);
+    }
+
+    private static CRF readCrf(File file) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return (CRF) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to read the model " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Saves the model to be memory mapped by {@link #load(File)}. The feature alphabet of the model can only hold
+     * Strings, which every alphabet a TokenStreamPipe fills does.
+     */
+    public void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            Set<String> entityTags = pipe.getEntityTags();
+            out.writeInt(entityTags.size());
+            for (String tag : entityTags) {
+                writeString(tag, out);
+            }
+            Set<TermFeature> termFeatures = pipe.getTermFeatures();
+            out.writeInt(termFeatures.size());
+            for (TermFeature feature : termFeatures) {
+                writeString(feature.name(), out);
+            }
+            out.writeInt(pipe.getFeatureCacheSize());
+            Alphabet features = pipe.getDataAlphabet();
+            out.writeInt((features instanceof HashedAlphabet) ? ((HashedAlphabet) features).getBuckets() : 0);
+            out.writeInt(pipe.getMaxSentenceLength());
+            pad(out);
+            if (!(features instanceof HashedAlphabet)) {
+                MappedAlphabet.write(features, out);
+            }
+            decoder.write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the pipe the model was trained with, whose settings and alphabets the pipes of the taggers copy
+     */
+    public TokenStreamPipe getPipe() {
+        return pipe;
+    }
+
+    public BilouDecoder getDecoder() {
+        return decoder;
+    }
+
+    /*
+     * The sections of a saved model start at a multiple of 8 bytes so the int and double views of the mapped
+     * buffer are aligned. DataOutputStream counts the bytes written, which are the position in the file.
+     */
+
+    static void pad(DataOutputStream out) throws IOException {
+        while (out.size() % ALIGNMENT != 0) {
+            out.writeByte(0);
+        }
+    }
+
+    static void align(ByteBuffer buffer) {
+        buffer.position((buffer.position() + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT);
+    }
+
+    static IntBuffer sliceInts(ByteBuffer buffer, int length) {
+        IntBuffer ints = buffer.asIntBuffer();
+        ints.limit(length);
+        buffer.position(buffer.position() + length * 4);
+        return ints.slice();
+    }
+
+    static ByteBuffer sliceBytes(ByteBuffer buffer, int length) {
+        ByteBuffer bytes = buffer.slice();
+        bytes.limit(length);
+        buffer.position(buffer.position() + length);
+        return bytes.slice();
+    }
+
+    static DoubleBuffer sliceDoubles(ByteBuffer buffer, int length) {
+        DoubleBuffer doubles = buffer.asDoubleBuffer();
+        doubles.limit(length);
+        buffer.position(buffer.position() + length * 8);
+        return doubles.slice();
+    }
+
+    static void writeInts(int[] values, DataOutputStream out) throws IOException {
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    static int[] readInts(ByteBuffer buffer, int length) {
+        int[] values = new int[length];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + length * 4);
+        return values;
+    }
+
+    static void writeString(String value, DataOutputStream out) throws IOException {
+        out.writeInt(value.length());
+        out.writeChars(value);
+    }
+
+    static String readString(ByteBuffer buffer) {
+        char[] chars = new char[buffer.getInt()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = buffer.getChar();
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Saves a serialized CRF as a model to be memory mapped.
+     * <pre>
+     * TaggerModel crf-file model-file
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: TaggerModel crf-file model-file");
+            System.exit(1);
+        }
+        File crf = new File(args[0]);
+        File model = new File(args[1]);
+        TaggerModel.load(crf).save(model);
+        log.info("Saved the model " + model + " with " + model.length() + " bytes from " + crf + " with " +
+                crf.length() + " bytes");
+    }
+}
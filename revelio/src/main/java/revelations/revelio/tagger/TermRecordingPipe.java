@@ -0,0 +1,101 @@
+package revelations.revelio.tagger;
+
+import cc.mallet.types.Instance;
+import cc.mallet.types.LabelAlphabet;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+import revelations.revelio.common.EntityAttribute;
+import revelations.revelio.mallet.TokenStreamPipe;
+
+import java.util.Arrays;
+
+/**
+ * A {@link TokenStreamPipe} with the alphabets and settings of another one which keeps the terms of the instance it
+ * pipes, so the tags a model gives the tokens can be written next to them, along with the labels of the entity
+ * markup in the text, their offsets and where its sentences end.
+ */
+class TermRecordingPipe extends TokenStreamPipe {
+    private static final long serialVersionUID = 1L;
+
+    private transient String[] terms = new String[64];
+    private transient int[] taggedLabels = new int[64];
+    private transient boolean[] sentenceEnds = new boolean[64];
+    private transient int[] startOffsets = new int[64];
+    private transient int[] endOffsets = new int[64];
+    private transient int size;
+
+    TermRecordingPipe(TokenStreamPipe template) {
+        super(ReadOnlyAlphabet.of(template.getDataAlphabet()), (LabelAlphabet) template.getTargetAlphabet(),
+                template.getEntityTags());
+        setTermFeatures(template.getTermFeatures());
+        setFeatureCacheSize(template.getFeatureCacheSize());
+        setMaxSentenceLength(template.getMaxSentenceLength());
+    }
+
+    @Override
+    public Instance pipe(Instance carrier) {
+        size = 0;
+        return super.pipe(carrier);
+    }
+
+    @Override
+    protected void addTokenFeatures(CharTermAttribute term, EntityAttribute entity) {
+        super.addTokenFeatures(term, entity);
+        if (terms.length == size) {
+            terms = Arrays.copyOf(terms, ArrayUtil.oversize(size + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF));
+            taggedLabels = Arrays.copyOf(taggedLabels, terms.length);
+            sentenceEnds = Arrays.copyOf(sentenceEnds, terms.length);
+            startOffsets = Arrays.copyOf(startOffsets, terms.length);
+            endOffsets = Arrays.copyOf(endOffsets, terms.length);
+        }
+        taggedLabels[size] = entity.getLabel();
+        sentenceEnds[size] = isSentenceEnd();
+        startOffsets[size] = startOffset();
+        endOffsets[size] = endOffset();
+        terms[size++] = term.toString();
+    }
+
+    /**
+     * @return the number of tokens of the last instance piped
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the term of a token of the last instance piped
+     */
+    String term(int token) {
+        return terms[token];
+    }
+
+    /**
+     * @return the label of a token of the last instance piped from the entity markup of the text
+     */
+    int taggedLabel(int token) {
+        return taggedLabels[token];
+    }
+
+    /**
+     * @return the offset of the first char of a token of the last instance piped
+     */
+    int startOffset(int token) {
+        return startOffsets[token];
+    }
+
+    /**
+     * @return the offset after the last char of a token of the last instance piped
+     */
+    int endOffset(int token) {
+        return endOffsets[token];
+    }
+
+    /**
+     * @return true if a token of the last instance piped ends a sentence, which none do unless the pipe splits
+     * documents into sentences
+     */
+    boolean isSentenceEnd(int token) {
+        return sentenceEnds[token];
+    }
+}
@@ -0,0 +1,439 @@
+package revelations.revelio.train;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.CRFTrainerByThreadedLabelLikelihood;
+import cc.mallet.fst.Transducer;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.FeatureVectorSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.LabelAlphabet;
+import cc.mallet.types.LabelSequence;
+import org.apache.log4j.Logger;
+import revelations.revelio.common.BilouTags;
+import revelations.revelio.common.TaggedTokenizer;
+import revelations.revelio.features.HashedAlphabet;
+import revelations.revelio.features.TermFeature;
+import revelations.revelio.gazetteer.Gazetteer;
+import revelations.revelio.mallet.LineInstanceIterator;
+import revelations.revelio.mallet.TokenStreamPipe;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trains a BILOU CRF from a corpus which is split into shards, each one a file with one tagged document per line.
+ * Training runs in three phases, all of which use every worker thread:
+ * <ul>
+ *     <li>featurize: each shard is tokenized and turned into instances by its own {@link TokenStreamPipe} with its
+ *     own alphabets, so the workers never contend on a lock</li>
+ *     <li>merge: the alphabets of the shards are merged into one shared feature alphabet and label alphabet and
+ *     the instances are remapped onto them</li>
+ *     <li>train: the CRF is trained with {@link CRFTrainerByThreadedLabelLikelihood}</li>
+ * </ul>
+ * The wall clock time of each phase is logged and kept in {@link #getPhaseMillis()}.
+ * <p>
+ * With {@link #setHashBuckets(int)} the features are hashed into a fixed number of buckets by one
+ * {@link HashedAlphabet} which every shard shares, so the number of features, and the memory the weights take,
+ * doesn't grow with the vocabulary of the corpus. The merge then only remaps the labels, and the collisions of the
+ * features are logged with it.
+ * </p>
+ * <p>
+ * With {@link #setMaxSentenceLength(int)} every sentence of a document becomes an instance of its own, so the
+ * sequences the trainer labels are bounded by the length of a sentence rather than of a document.
+ * </p>
+ */
+public class CrfTrainingDriver {
+    private static final Logger log = Logger.getLogger(CrfTrainingDriver.class);
+
+    public static final String FEATURIZE = "featurize";
+    public static final String MERGE = "merge";
+    public static final String TRAIN = "train";
+
+    private static final String START_STATE = BilouTags.OUTSIDE;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int iterations = 500;
+    private double gaussianPriorVariance = 10.0;
+    private Set<String> entityTags = TaggedTokenizer.DEFAULT_ENTITY_TAGS;
+    private Set<TermFeature> termFeatures = EnumSet.of(TermFeature.WORD);
+    private Gazetteer gazetteer;
+    private int hashBuckets;
+    private int maxSentenceLength;
+    private final Map<String, Long> phaseMillis = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+
+    /**
+     * Featurizes the shards and trains a CRF on them.
+     *
+     * @param shards the files of the corpus, one tagged document per line
+     * @return the trained CRF
+     */
+    public CRF train(List<File> shards) throws IOException, InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            return train(merge(featurize(shards, workers), workers));
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Trains a CRF on instances which have already been featurized. There is a state for each label, connected as
+     * they are in the instances, and every document starts from the outside state so that a label which only ever
+     * begins a document can still be reached.
+     *
+     * The pipe of the instances becomes the input pipe of the CRF, so a model carries what it needs to featurize
+     * the documents it tags.
+     *
+     * @param instances the instances to train on
+     * @return the trained CRF
+     */
+    public CRF train(InstanceList instances) {
+        long start = System.nanoTime();
+        CRF crf = new CRF(instances.getPipe(), null);
+        String startState = crf.addOrderNStates(instances, new int[]{1}, null, START_STATE, null, null, false);
+        for (int i = 0; i < crf.numStates(); i++) {
+            crf.getState(i).setInitialWeight(Transducer.IMPOSSIBLE_WEIGHT);
+        }
+        crf.getState(startState).setInitialWeight(0.0);
+        CRFTrainerByThreadedLabelLikelihood trainer = new CRFTrainerByThreadedLabelLikelihood(crf, threads);
+        trainer.setGaussianPriorVariance(gaussianPriorVariance);
+        try {
+            trainer.train(instances, iterations);
+        } finally {
+            trainer.shutdown();
+        }
+        phaseDone(TRAIN, start, instances.size() + " instances, " + crf.numStates() + " states, " +
+                trainer.getIteration() + " iterations");
+        return crf;
+    }
+
+    /**
+     * Featurizes the shards in parallel. The instances of each shard carry the alphabets of that shard.
+     *
+     * @param shards the files of the corpus
+     * @param workers the threads to featurize the shards on
+     * @return the instances of each shard in the order of the shards
+     */
+    List<List<Instance>> featurize(List<File> shards, ExecutorService workers)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        final Alphabet hashed = (hashBuckets > 0) ? new HashedAlphabet(hashBuckets) : null;
+        List<Callable<List<Instance>>> tasks = new ArrayList<Callable<List<Instance>>>(shards.size());
+        for (final File shard : shards) {
+            tasks.add(new Callable<List<Instance>>() {
+                @Override
+                public List<Instance> call() throws IOException {
+                    return featurize(shard, (hashed != null) ? hashed : new Alphabet());
+                }
+            });
+        }
+        List<List<Instance>> featurized = getAll(workers.invokeAll(tasks));
+        int instances = 0;
+        for (List<Instance> shard : featurized) {
+            instances += shard.size();
+        }
+        phaseDone(FEATURIZE, start, shards.size() + " shards, " + instances + " instances");
+        return featurized;
+    }
+
+    private List<Instance> featurize(File shard, Alphabet features) throws IOException {
+        TokenStreamPipe pipe = new TokenStreamPipe(features, new LabelAlphabet(), entityTags);
+        pipe.setTermFeatures(termFeatures);
+        pipe.setGazetteer(gazetteer);
+        pipe.setMaxSentenceLength(maxSentenceLength);
+        Iterator<Instance> lines = new LineInstanceIterator(
+                new InputStreamReader(new FileInputStream(shard), "UTF-8"));
+        List<Instance> instances = new ArrayList<Instance>();
+        Iterator<Instance> piped = pipe.newIteratorFrom(lines);
+        while (piped.hasNext()) {
+            Instance instance = piped.next();
+            instance.setSource(shard.getName());
+            instances.add(instance);
+        }
+        log.debug(shard.getName() + " feature cache: " + pipe.getFeatureCache());
+        return instances;
+    }
+
+    /**
+     * Merges the alphabets of the shards into one feature alphabet and one label alphabet and remaps the instances
+     * of every shard onto them in parallel. Shards which share a {@link HashedAlphabet} keep it.
+     *
+     * @param shards the featurized instances of each shard
+     * @param workers the threads to remap the instances on
+     * @return all of the instances sharing one pair of alphabets, piped by a {@link TokenStreamPipe} over them
+     */
+    InstanceList merge(final List<List<Instance>> shards, ExecutorService workers)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        final Alphabet features = hashedAlphabet(shards);
+        final LabelAlphabet labels = new LabelAlphabet();
+        List<Callable<List<Instance>>> tasks = new ArrayList<Callable<List<Instance>>>(shards.size());
+        for (final List<Instance> shard : shards) {
+            if (shard.isEmpty()) {
+                continue;
+            }
+            final int[] featureMap = indexMap(shard.get(0).getDataAlphabet(), features);
+            final int[] labelMap = indexMap(shard.get(0).getTargetAlphabet(), labels);
+            tasks.add(new Callable<List<Instance>>() {
+                @Override
+                public List<Instance> call() {
+                    return remap(shard, featureMap, features, labelMap, labels);
+                }
+            });
+        }
+        features.stopGrowth();
+        labels.stopGrowth();
+
+        TokenStreamPipe pipe = new TokenStreamPipe(features, labels, entityTags);
+        pipe.setTermFeatures(termFeatures);
+        pipe.setGazetteer(gazetteer);
+        pipe.setMaxSentenceLength(maxSentenceLength);
+        InstanceList merged = new InstanceList(pipe);
+        for (List<Instance> shard : getAll(workers.invokeAll(tasks))) {
+            merged.addAll(shard);
+        }
+        phaseDone(MERGE, start, ((features instanceof HashedAlphabet) ? features.toString() :
+                features.size() + " features") + ", " + labels.size() + " labels");
+        return merged;
+    }
+
+    private static Alphabet hashedAlphabet(List<List<Instance>> shards) {
+        for (List<Instance> shard : shards) {
+            if (!shard.isEmpty() && shard.get(0).getDataAlphabet() instanceof HashedAlphabet) {
+                return shard.get(0).getDataAlphabet();
+            }
+        }
+        return new Alphabet();
+    }
+
+    private static int[] indexMap(Alphabet from, Alphabet to) {
+        int[] map = new int[from.size()];
+        for (int i = 0; i < map.length; i++) {
+            map[i] = (from == to) ? i : to.lookupIndex(from.lookupObject(i));
+        }
+        return map;
+    }
+
+    private static List<Instance> remap(List<Instance> shard, int[] featureMap, Alphabet features,
+                                        int[] labelMap, LabelAlphabet labels) {
+        List<Instance> remapped = new ArrayList<Instance>(shard.size());
+        for (int n = 0; n < shard.size(); n++) {
+            Instance instance = shard.get(n);
+            shard.set(n, null);
+            FeatureVectorSequence data = (FeatureVectorSequence) instance.getData();
+            FeatureVector[] vectors = new FeatureVector[data.size()];
+            for (int i = 0; i < vectors.length; i++) {
+                FeatureVector vector = data.get(i);
+                int[] indices = new int[vector.numLocations()];
+                for (int j = 0; j < indices.length; j++) {
+                    indices[j] = featureMap[vector.indexAtLocation(j)];
+                }
+                vectors[i] = new FeatureVector(features, indices);
+            }
+            LabelSequence target = (LabelSequence) instance.getTarget();
+            int[] targetLabels = new int[target.size()];
+            for (int i = 0; i < targetLabels.length; i++) {
+                targetLabels[i] = labelMap[target.getIndexAtPosition(i)];
+            }
+            remapped.add(new Instance(new FeatureVectorSequence(vectors), new LabelSequence(labels, targetLabels),
+                    instance.getName(), instance.getSource()));
+        }
+        return remapped;
+    }
+
+    private static <T> List<T> getAll(List<Future<T>> futures) throws IOException, InterruptedException {
+        List<T> results = new ArrayList<T>(futures.size());
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+        return results;
+    }
+
+    private void phaseDone(String phase, long start, String summary) {
+        long millis = (System.nanoTime() - start) / 1000000L;
+        phaseMillis.put(phase, millis);
+        log.info(phase + " took " + millis + " ms on " + threads + " threads: " + summary);
+    }
+
+    /**
+     * Gets the wall clock time of each phase which has run, in the order they ran.
+     *
+     * @return milliseconds by phase name
+     */
+    public Map<String, Long> getPhaseMillis() {
+        synchronized (phaseMillis) {
+            return new LinkedHashMap<String, Long>(phaseMillis);
+        }
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1 but was " + threads);
+        }
+        this.threads = threads;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public double getGaussianPriorVariance() {
+        return gaussianPriorVariance;
+    }
+
+    public void setGaussianPriorVariance(double gaussianPriorVariance) {
+        this.gaussianPriorVariance = gaussianPriorVariance;
+    }
+
+    public Set<String> getEntityTags() {
+        return entityTags;
+    }
+
+    public void setEntityTags(Set<String> entityTags) {
+        this.entityTags = entityTags;
+    }
+
+    public Set<TermFeature> getTermFeatures() {
+        return termFeatures;
+    }
+
+    /**
+     * @param termFeatures the kinds of features computed from the term of every token
+     */
+    public void setTermFeatures(Set<TermFeature> termFeatures) {
+        this.termFeatures = termFeatures;
+    }
+
+    public Gazetteer getGazetteer() {
+        return gazetteer;
+    }
+
+    public int getHashBuckets() {
+        return hashBuckets;
+    }
+
+    /**
+     * @param hashBuckets the number of buckets to hash the features into, or 0 to give every feature its own id
+     */
+    public void setHashBuckets(int hashBuckets) {
+        if (hashBuckets < 0) {
+            throw new IllegalArgumentException("hashBuckets must be at least 0 but was " + hashBuckets);
+        }
+        this.hashBuckets = hashBuckets;
+    }
+
+    public int getMaxSentenceLength() {
+        return maxSentenceLength;
+    }
+
+    /**
+     * @param maxSentenceLength the most tokens of a sentence outside of a span when every sentence of a document is
+     * an instance of its own, or 0 to train on whole documents. See {@link TokenStreamPipe#setMaxSentenceLength(int)}.
+     */
+    public void setMaxSentenceLength(int maxSentenceLength) {
+        if (maxSentenceLength < 0) {
+            throw new IllegalArgumentException("maxSentenceLength must be at least 0 but was " + maxSentenceLength);
+        }
+        this.maxSentenceLength = maxSentenceLength;
+    }
+
+    /**
+     * @param gazetteer the gazetteer whose names become features of the tokens, or null for none
+     */
+    public void setGazetteer(Gazetteer gazetteer) {
+        this.gazetteer = gazetteer;
+    }
+
+    /**
+     * Trains a CRF and writes it out with java serialization.
+     * <pre>
+     * CrfTrainingDriver [-threads n] [-iterations n] [-variance v] [-gazetteer file] [-buckets n] [-sentences n]
+     *                   model-file shard...
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        CrfTrainingDriver driver = new CrfTrainingDriver();
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i += 2) {
+            if (i + 1 == args.length) {
+                usage();
+            } else if ("-threads".equals(args[i])) {
+                driver.setThreads(Integer.parseInt(args[i + 1]));
+            } else if ("-iterations".equals(args[i])) {
+                driver.setIterations(Integer.parseInt(args[i + 1]));
+            } else if ("-variance".equals(args[i])) {
+                driver.setGaussianPriorVariance(Double.parseDouble(args[i + 1]));
+            } else if ("-gazetteer".equals(args[i])) {
+                driver.setGazetteer(Gazetteer.load(new File(args[i + 1])));
+            } else if ("-buckets".equals(args[i])) {
+                driver.setHashBuckets(Integer.parseInt(args[i + 1]));
+            } else if ("-sentences".equals(args[i])) {
+                driver.setMaxSentenceLength(Integer.parseInt(args[i + 1]));
+            } else {
+                usage();
+            }
+        }
+        if (args.length - i < 2) {
+            usage();
+        }
+        File model = new File(args[i++]);
+        List<File> shards = new ArrayList<File>();
+        for (; i < args.length; i++) {
+            shards.add(new File(args[i]));
+        }
+
+        CRF crf = driver.train(shards);
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(model));
+        try {
+            out.writeObject(crf);
+        } finally {
+            out.close();
+        }
+        for (Map.Entry<String, Long> phase : driver.getPhaseMillis().entrySet()) {
+            System.out.println(phase.getKey() + "\t" + phase.getValue() + " ms");
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: CrfTrainingDriver [-threads n] [-iterations n] [-variance v] [-gazetteer file] " +
+                "[-buckets n] [-sentences n] model-file shard...");
+        System.exit(1);
+    }
+}
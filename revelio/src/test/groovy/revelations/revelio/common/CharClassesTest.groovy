@@ -0,0 +1,125 @@
+package revelations.revelio.common
+
+import com.ibm.icu.lang.UCharacter
+import com.ibm.icu.lang.UCharacterCategory
+import com.ibm.icu.lang.UScript
+import spock.lang.Specification
+
+public class CharClassesTest extends Specification {
+
+    def "the default classes are those of the Unicode properties for every code point"(){
+        given:
+        CharClasses classes = CharClasses.getDefault()
+        int mismatches = 0
+
+        when:
+        for (int c = 0; c <= Character.MAX_CODE_POINT; c++) {
+            int type = UCharacter.getType(c)
+            boolean punctuation = (type >= UCharacterCategory.DASH_PUNCTUATION &&
+                    type <= UCharacterCategory.OTHER_PUNCTUATION) ||
+                    (type >= UCharacterCategory.INITIAL_PUNCTUATION &&
+                            type <= UCharacterCategory.FINAL_QUOTE_PUNCTUATION)
+            if (classes.isPunctuation(c) != punctuation ||
+                    classes.isMathSymbol(c) != (type == UCharacterCategory.MATH_SYMBOL) ||
+                    classes.isTokenChar(c) == UCharacter.isUWhiteSpace(c) ||
+                    classes.isUppercase(c) != UCharacter.isUUppercase(c) ||
+                    classes.isSplit(c)) {
+                mismatches++
+            }
+        }
+
+        then:
+        mismatches == 0
+    }
+
+    def "code points in and past the flat table are looked up"(){
+        given:
+        CharClasses classes = CharClasses.getDefault()
+
+        expect:
+        classes.flags(c) == flags
+
+        where:
+        c      | flags
+        0x61   | 0
+        0x41   | CharClasses.UPPERCASE
+        0x20   | CharClasses.WHITESPACE
+        0x2C   | CharClasses.PUNCTUATION
+        0x2B   | CharClasses.MATH_SYMBOL
+        0x248  | CharClasses.UPPERCASE
+        0x250  | 0
+        0x416  | CharClasses.UPPERCASE
+        0x3000 | CharClasses.WHITESPACE
+        0x3002 | CharClasses.PUNCTUATION
+        0x6771 | 0
+        0x2212 | CharClasses.MATH_SYMBOL
+    }
+
+    def "blocks with the same flags are stored once"(){
+        given:
+        CharClasses classes = CharClasses.getDefault()
+
+        expect:
+        classes.blockCount() < 200
+        classes.ramBytesUsed() < 64 * 1024
+        classes.flags(0x10FFFF) == 0
+        classes.flags(0x1D400) == CharClasses.UPPERCASE
+    }
+
+    def "languages and scripts get the classes of their scripts"(){
+        expect:
+        CharClasses.forLanguage(language).getName() == name
+
+        where:
+        language | name
+        'ja'     | 'ideographic'
+        'zh'     | 'ideographic'
+        'zh_TW'  | 'ideographic'
+        'ko'     | 'ideographic'
+        'ar'     | 'right-to-left'
+        'fa'     | 'right-to-left'
+        'he'     | 'right-to-left'
+        'ru'     | 'default'
+        'en'     | 'default'
+        'xx'     | 'default'
+    }
+
+    def "the classes of a script are built once"(){
+        expect:
+        CharClasses.forScript(UScript.HAN).is(CharClasses.forLanguage('ja'))
+        CharClasses.forScript(UScript.CYRILLIC).is(CharClasses.getDefault())
+    }
+
+    def "ideographs are split and bidi controls are whitespace in the classes of their scripts"(){
+        given:
+        CharClasses ideographic = CharClasses.forScript(UScript.HAN)
+        CharClasses rightToLeft = CharClasses.forScript(UScript.ARABIC)
+
+        expect:
+        ideographic.isSplit(0x6771)
+        ideographic.isSplit(0x3042)
+        ideographic.isSplit(0x30A2)
+        ideographic.isSplit(0x20000)
+        !ideographic.isSplit(0xAC00)
+        ideographic.isPunctuation(0x3002)
+        !rightToLeft.isTokenChar(0x200F)
+        rightToLeft.isTokenChar(0x0645)
+        CharClasses.getDefault().isTokenChar(0x200F)
+    }
+
+    def "a builder changes the classes of sets of chars and keeps whether they are uppercase"(){
+        given:
+        CharClasses classes = CharClasses.builder('tweets').punctuation('[#@]').tokenChars('[\\-]')
+                .whitespace('[_]').split('[A]').build()
+
+        expect:
+        classes.getName() == 'tweets'
+        classes.isPunctuation((int) '#')
+        classes.isPunctuation((int) '@')
+        classes.flags((int) '-') == 0
+        !classes.isTokenChar((int) '_')
+        classes.flags((int) 'A') == (CharClasses.SPLIT | CharClasses.UPPERCASE)
+        CharClasses.getDefault().isPunctuation((int) '-')
+        classes.toString().startsWith('CharClasses(tweets, ')
+    }
+}
@@ -243,4 +243,82 @@ public class EntityAttributeImplTest extends Specification {
         expect:
         !attr.isCapitalized()
     }
-}
\ No newline at end of file
+
+    def "getLabel matches the label of the tag in the registry"(){
+        given:
+        attr.setEntityLast()
+        attr.setEntityType('PER')
+
+        expect:
+        attr.getLabel() == EntityLabels.getInstance().label('L-PER')
+        attr.getEntitySpan() == BilouTags.LAST_SPAN
+        attr.getEntityTypeId() == EntityLabels.getInstance().typeId('PER')
+    }
+
+    def "setLabel sets the span and the entity type"(){
+        given:
+        int label = EntityLabels.getInstance().label('U-PER')
+
+        when:
+        attr.setLabel(label)
+
+        then:
+        attr.getEntitySpanType() == EntityAttributeImpl.UNIT
+        attr.getEntityType() == 'PER'
+        attr.toEntityTag() == 'U-PER'
+    }
+
+    def "getLabel is -1 for the entity tag span"(){
+        when:
+        attr.setEntitySpanType(BilouTags.ENTITY_TYPE)
+
+        then:
+        attr.getEntitySpan() == BilouTags.ENTITY_SPAN
+        attr.getLabel() == -1
+        attr.isEntity()
+    }
+
+    def "toEntityTag does not build a new string for BILOU spans"(){
+        given:
+        attr.setEntityBegin()
+        attr.setEntityType('PER')
+
+        expect:
+        attr.toEntityTag().is(attr.toEntityTag())
+    }
+
+    def "copyTo keeps a free form span type"(){
+        given:
+        EntityAttribute attrToClone = new EntityAttributeImpl();
+        attr.setEntitySpanType('j')
+        attr.setEntityType('joe')
+
+        when:
+        attr.copyTo(attrToClone)
+
+        then:
+        attrToClone.getEntitySpanType() == 'j'
+        attrToClone.getEntitySpan() == BilouTags.CUSTOM_SPAN
+        attrToClone.toEntityTag() == 'j-joe'
+    }
+
+    def "the dictionary label is copied and cleared apart from the entity span"(){
+        given:
+        EntityAttribute attrToClone = new EntityAttributeImpl();
+        int label = EntityLabels.instance.label('B-PLACE')
+        attr.setDictionaryLabel(label)
+
+        when:
+        attr.copyTo(attrToClone)
+
+        then:
+        attrToClone.getDictionaryLabel() == label
+        !attrToClone.isEntity()
+
+        when:
+        attrToClone.clear()
+
+        then:
+        attrToClone.getDictionaryLabel() == 0
+    }
+}
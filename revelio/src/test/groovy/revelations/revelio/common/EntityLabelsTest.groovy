@@ -0,0 +1,54 @@
+package revelations.revelio.common
+
+import spock.lang.Specification
+
+import static revelations.revelio.common.BilouTags.*
+
+public class EntityLabelsTest extends Specification {
+
+    EntityLabels labels = new EntityLabels()
+
+    def "entity type ids start at 1 and are stable"(){
+        when:
+        int person = labels.typeId('PERSON')
+        int place = labels.typeId('PLACE')
+
+        then:
+        person == 1
+        place == 2
+        labels.typeId('PERSON') == 1
+        labels.typeId(null) == 0
+        labels.typeName(2) == 'PLACE'
+        labels.typeCount() == 2
+        labels.labelCount() == 13
+    }
+
+    def "labels map every span and entity type combination to a distinct index"(){
+        given:
+        int person = labels.typeId('PERSON')
+
+        expect:
+        EntityLabels.label(OUTSIDE_SPAN, person) == 0
+        EntityLabels.label(BEGIN_SPAN, 0) == 1
+        EntityLabels.label(BEGIN_SPAN, person) == 5
+        EntityLabels.label(UNIT_SPAN, person) == 8
+        EntityLabels.label(ENTITY_SPAN, person) == -1
+        (0..8).collect { labels.tag(it) } == ['O', 'B', 'I', 'L', 'U', 'B-PERSON', 'I-PERSON', 'L-PERSON', 'U-PERSON']
+    }
+
+    def "label of a tag"(){
+        expect:
+        labels.label('O') == 0
+        labels.label('L-PERSON') == 7
+        labels.label('U') == 4
+        labels.label('entity') == -1
+    }
+
+    def "span and entity type of a label"(){
+        expect:
+        EntityLabels.spanOf(0) == OUTSIDE_SPAN
+        EntityLabels.spanOf(7) == LAST_SPAN
+        EntityLabels.typeIdOf(7) == 1
+        EntityLabels.typeIdOf(3) == 0
+    }
+}
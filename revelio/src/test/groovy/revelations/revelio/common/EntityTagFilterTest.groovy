@@ -4,6 +4,8 @@ import org.apache.lucene.util.Version
 
 import static BilouTags.*
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute
+import revelations.revelio.metrics.StageMetrics
 
 /**
  * @author Christian Hargraves
@@ -202,14 +204,137 @@ public class EntityTagFilterTest extends Specification {
         actual.equals(expected)
     }
 
+    def "Offsets of the words of an entity point into the original text"(){
+        given:
+        String sentence = 'by <ENAMEX TYPE="PERSON">Megan  D. Fox</ENAMEX>.'
+
+        when:
+        List<TokenTestHelper> actual = tokenize(sentence)
+
+        then:
+        actual.collect { sentence.substring(it.startOffset, it.endOffset) } == ['by', 'Megan', 'D.', 'Fox', '.']
+        actual.collect { it.entityType.toEntityTag() } == [OUTSIDE, "${BEGIN}-PERSON", "${INSIDE}-PERSON", "${LAST}-PERSON", OUTSIDE]
+    }
+
+    def "Whitespace around the words of an entity is ignored"(){
+        given:
+        String sentence = '<ENAMEX TYPE="PERSON"> Fox </ENAMEX> ran'
+
+        when:
+        List<TokenTestHelper> actual = tokenize(sentence)
+        def expected = [
+                new TokenTestHelper('Fox', "${UNIT}-PERSON", "CAPITALIZED"),
+                new TokenTestHelper('ran', OUTSIDE)]
+
+        then:
+        actual.equals(expected)
+        actual[0].startOffset == 23
+        actual[0].endOffset == 26
+    }
+
+    def "Tags which are not well formed are left alone"(){
+        given:
+        String sentence = '<ENAMEX KIND="PERSON">Fox</ENAMEX> ran'
+
+        when:
+        List<TokenTestHelper> actual = tokenize(sentence)
+
+        then:
+        actual[0].token == '<ENAMEX KIND="PERSON">Fox</ENAMEX>'
+        actual[0].entityType.getEntitySpanType() == ENTITY_TYPE
+    }
+
+    def "Reset drops the rest of an entity which was not read"(){
+        given:
+        TaggedTokenizer tokenizer = new TaggedTokenizer(Version.LUCENE_CURRENT, new StringReader('<ENAMEX TYPE="PERSON">Megan D. Fox</ENAMEX>'))
+        EntityTagFilter filter = new EntityTagFilter(tokenizer)
+        CharTermAttribute termAtt = filter.getAttribute(CharTermAttribute.class)
+        filter.reset()
+        filter.incrementToken()
+
+        when:
+        tokenizer.reset(new StringReader('ran'))
+        filter.reset()
+        List<String> terms = []
+        while (filter.incrementToken()) {
+            terms << termAtt.toString()
+        }
+
+        then:
+        terms == ['ran']
+    }
+
+    def "The words of a Chinese entity are split with the classes of the tokenizer"(){
+        given:
+        String sentence = '<ENAMEX TYPE="PERSON">\u674e\u5c0f\u9f8d</ENAMEX> ' +
+                '<ENAMEX TYPE="ORGANIZATION">IBM\u4e2d\u56fd</ENAMEX>'
+        EntityTagFilter filter = new EntityTagFilter(new TaggedTokenizer(Version.LUCENE_36, new StringReader(sentence),
+                TaggedTokenizer.DEFAULT_ENTITY_TAGS, CharClasses.forLanguage('zh')))
+        CharTermAttribute termAtt = filter.getAttribute(CharTermAttribute.class)
+        EntityAttribute entityAtt = filter.getAttribute(EntityAttribute.class)
+        OffsetAttribute offsetAtt = filter.getAttribute(OffsetAttribute.class)
+        List<String> tokens = []
+
+        when:
+        filter.reset()
+        while (filter.incrementToken()) {
+            tokens << "${termAtt}|${entityAtt.toEntityTag()}|${entityAtt.isCapitalized()}".toString()
+            assert sentence.substring(offsetAtt.startOffset(), offsetAtt.endOffset()) == termAtt.toString()
+        }
+
+        then:
+        tokens == ["\u674e|${BEGIN}-PERSON|false", "\u5c0f|${INSIDE}-PERSON|false", "\u9f8d|${LAST}-PERSON|false",
+                "IBM|${BEGIN}-ORGANIZATION|true", "\u4e2d|${INSIDE}-ORGANIZATION|false",
+                "\u56fd|${LAST}-ORGANIZATION|false"]*.toString()
+    }
+
+    def "isCapitalized looks the first char up in the classes"(){
+        given:
+        EntityAttribute entityAtt = new EntityAttributeImpl()
+        char[] word = chars.toCharArray()
+
+        when:
+        EntityTagFilter.checkCapitalization(word, 0, word.length, entityAtt, CharClasses.getDefault())
+
+        then:
+        entityAtt.isCapitalized() == capitalized
+
+        where:
+        chars                   | capitalized
+        '\u00c9cole'            | true
+        '\u0416\u0443\u043a'   | true
+        '\u0436\u0443\u043a'   | false
+        '\ud835\udc00x'        | true
+        '\u6771\u4eac'          | false
+    }
+
+    def "an instrumented filter counts tokens, entities and malformed tags"(){
+        given:
+        EntityTagFilter filter = new EntityTagFilter(new TaggedTokenizer(Version.LUCENE_36,
+                new StringReader('I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX> and <ENAMEX TYPE="">Fox</ENAMEX>')))
+        StageMetrics metrics = new StageMetrics('test')
+        filter.setMetrics(metrics)
+
+        when:
+        filter.reset()
+        while (filter.incrementToken()) {}
+        filter.end()
+
+        then:
+        metrics.counter(StageMetrics.TOKENS).sum() == 6
+        metrics.counter(EntityTagFilter.ENTITIES).sum() == 1
+        metrics.counter(EntityTagFilter.MALFORMED_TAGS).sum() == 1
+    }
+
     private List<TokenTestHelper> tokenize(String text) {
         List<TokenTestHelper> tokens = new ArrayList<TokenTestHelper>();
         EntityTagFilter tokenizer = new EntityTagFilter(new TaggedTokenizer(Version.LUCENE_CURRENT, new StringReader(text)))
         CharTermAttribute termAtt = tokenizer.getAttribute(CharTermAttribute.class);
         EntityAttribute entityAtt = tokenizer.getAttribute(EntityAttribute.class);
+        OffsetAttribute offsetAtt = tokenizer.getAttribute(OffsetAttribute.class);
         while (tokenizer.incrementToken()) {
             String term = termAtt.subSequence(0, termAtt.length());
-            TokenTestHelper token = new TokenTestHelper(term, (EntityAttribute)entityAtt.clone())
+            TokenTestHelper token = new TokenTestHelper(term, (EntityAttribute)entityAtt.clone(), offsetAtt.startOffset(), offsetAtt.endOffset())
             tokens.add(token);
         }
         return tokens
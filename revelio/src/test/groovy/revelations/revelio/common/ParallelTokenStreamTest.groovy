@@ -0,0 +1,255 @@
+package revelations.revelio.common
+
+import org.apache.lucene.analysis.TokenStream
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute
+import org.apache.lucene.util.Version
+import revelations.revelio.metrics.AnalysisMetrics
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.util.concurrent.ForkJoinPool
+
+public class ParallelTokenStreamTest extends Specification {
+    static final String DOCUMENT = 'I met <ENAMEX TYPE="PERSON">David   Lynch</ENAMEX> in ' +
+            '<ENAMEX TYPE="LOCATION">Salt Lake City</ENAMEX> on <TIMEX TYPE="DATE">May 3rd, 2012</TIMEX>, ' +
+            'and he paid <NUMEX TYPE="MONEY">$ 3.50</NUMEX>!! a<b <ENAMEX> << "quoted" end.\n' +
+            'Next line: <ENAMEX TYPE="ORGANIZATION">Apple\tInc.</ENAMEX> x <ENAMEX TYPE="PERSON">broken </ ENAMEX> tail'
+
+    @Shared ForkJoinPool pool = new ForkJoinPool(4)
+
+    def cleanupSpec() {
+        pool.shutdownNow()
+    }
+
+    def cleanup() {
+        AnalysisMetrics.enabled = false
+    }
+
+    def "chunks are tokenized into the same tokens and offsets as the whole document"(){
+        given:
+        ParallelTokenStream stream = parallel(chunkChars)
+
+        when:
+        stream.setDocument(DOCUMENT)
+        List<String> replayed = tokens(stream)
+
+        then:
+        replayed == tokens(sequential(DOCUMENT))
+        stream.chunks == chunks
+
+        where:
+        chunkChars | chunks
+        1          | 25
+        16         | 9
+        100        | 4
+        ParallelTokenStream.DEFAULT_CHUNK_CHARS | 1
+    }
+
+    def "entity tags are never cut"(){
+        given:
+        ParallelTokenStream stream = parallel(1)
+        String text = '<ENAMEX TYPE="PERSON">David   Lynch</ENAMEX> <ENAMEX TYPE="LOCATION">Salt Lake City</ENAMEX>'
+
+        when:
+        stream.setDocument(text)
+        List<String> replayed = tokens(stream)
+
+        then:
+        stream.chunks == 2
+        replayed == ['David|22|27|B-PERSON|true', 'Lynch|30|35|L-PERSON|true', 'Salt|69|73|B-LOCATION|true',
+                'Lake|74|78|I-LOCATION|true', 'City|79|83|L-LOCATION|true', 'end|92']
+    }
+
+    def "a tag which is never closed is scanned as text and cut"(){
+        given:
+        ParallelTokenStream stream = parallel(10)
+        String text = '<ENAMEX TYPE="PERSON">never closed ' + ('word ' * 100)
+
+        when:
+        stream.setDocument(text)
+        List<String> replayed = tokens(stream)
+
+        then:
+        stream.chunks > 40
+        replayed == tokens(sequential(text))
+    }
+
+    def "random documents are tokenized the same in chunks of any size"(){
+        given:
+        Random random = new Random(seed)
+        String text = randomDocument(random, 2000)
+        ParallelTokenStream stream = parallel(1 + random.nextInt(200))
+
+        when:
+        stream.setDocument(text)
+
+        then:
+        tokens(stream) == tokens(sequential(text))
+
+        where:
+        seed << (1..40)
+    }
+
+    def "chunks are tokenized with the classes of the stream"(){
+        given:
+        Random random = new Random(seed)
+        String text = randomDocument(random, 2000)
+        CharClasses chinese = CharClasses.forLanguage('zh')
+        ParallelTokenStream stream = new ParallelTokenStream(Version.LUCENE_36, pool,
+                TaggedTokenizer.DEFAULT_ENTITY_TAGS, 1 + random.nextInt(200), chinese)
+
+        when:
+        stream.setDocument(text)
+
+        then:
+        tokens(stream) == tokens(new EntityTagFilter(new TaggedTokenizer(Version.LUCENE_36, new StringReader(text),
+                TaggedTokenizer.DEFAULT_ENTITY_TAGS, chinese)))
+
+        where:
+        seed << (1..10)
+    }
+
+    def "unspaced Chinese and Japanese text is cut before its split chars"(){
+        given:
+        String text = ('\u79c1\u306f\u6771\u4eac\u3067<ENAMEX TYPE="PERSON">\u674e\u5c0f\u9f8d</ENAMEX>\u306b' +
+                '\u4f1a\u3063\u305f\u3002iPhone\u3092\u8cb7\u3063\u305f\u3002') * 20
+        CharClasses japanese = CharClasses.forLanguage('ja')
+        ParallelTokenStream stream = new ParallelTokenStream(Version.LUCENE_36, pool,
+                TaggedTokenizer.DEFAULT_ENTITY_TAGS, chunkChars, japanese)
+
+        when:
+        stream.setDocument(text)
+
+        then:
+        tokens(stream) == tokens(new EntityTagFilter(new TaggedTokenizer(Version.LUCENE_36, new StringReader(text),
+                TaggedTokenizer.DEFAULT_ENTITY_TAGS, japanese)))
+        stream.chunks >= text.length().intdiv(chunkChars + 40)
+
+        where:
+        chunkChars << [1, 7, 50, 200]
+    }
+
+    def "a large document is tokenized ahead of the tokens being read"(){
+        given:
+        Random random = new Random(7)
+        StringBuilder text = new StringBuilder()
+        while (text.length() < 2000000) {
+            text.append(randomDocument(random, 1000)).append('\n')
+        }
+        ParallelTokenStream stream = new ParallelTokenStream(Version.LUCENE_36, pool)
+
+        when:
+        stream.setDocument(text)
+
+        then:
+        tokens(stream) == tokens(sequential(text.toString()))
+        stream.chunks > 30
+    }
+
+    def "reset starts the document over and a new document can be set"(){
+        given:
+        ParallelTokenStream stream = parallel(8)
+        stream.setDocument(DOCUMENT)
+        stream.reset()
+        3.times { stream.incrementToken() }
+
+        when:
+        List<String> again = tokens(stream)
+        stream.setDocument('one two')
+        List<String> next = tokens(stream)
+
+        then:
+        again == tokens(sequential(DOCUMENT))
+        next == ['one|0|3|O|false', 'two|4|7|O|false', 'end|7']
+    }
+
+    def "an empty document has no tokens"(){
+        given:
+        ParallelTokenStream stream = parallel(8)
+
+        when:
+        stream.setDocument(text)
+
+        then:
+        tokens(stream) == ["end|${text.length()}".toString()]
+        stream.chunks == chunks
+
+        where:
+        text  | chunks
+        ''    | 0
+        '   ' | 1
+    }
+
+    def "tokenizing starts with reset"(){
+        when:
+        parallel(8).reset()
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    def "chunks must have chars"(){
+        when:
+        parallel(0)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "documents and chunks are counted when metrics are on"(){
+        given:
+        AnalysisMetrics.enabled = true
+        ParallelTokenStream stream = parallel(16)
+        long documents = stream.metrics.counter('documents').sum()
+        long chunksBefore = stream.metrics.counter(ParallelTokenStream.CHUNKS).sum()
+
+        when:
+        stream.setDocument(DOCUMENT)
+        tokens(stream)
+
+        then:
+        stream.metrics.counter('documents').sum() == documents + 1
+        stream.metrics.counter(ParallelTokenStream.CHUNKS).sum() == chunksBefore + stream.chunks
+    }
+
+    private ParallelTokenStream parallel(int chunkChars) {
+        new ParallelTokenStream(Version.LUCENE_36, pool, TaggedTokenizer.DEFAULT_ENTITY_TAGS, chunkChars)
+    }
+
+    private static TokenStream sequential(String text) {
+        new EntityTagFilter(new TaggedTokenizer(Version.LUCENE_36, new StringReader(text)))
+    }
+
+    private static List<String> tokens(TokenStream stream) {
+        CharTermAttribute term = stream.getAttribute(CharTermAttribute)
+        OffsetAttribute offset = stream.getAttribute(OffsetAttribute)
+        EntityAttribute entity = stream.getAttribute(EntityAttribute)
+        List<String> tokens = []
+        stream.reset()
+        while (stream.incrementToken()) {
+            String token = "${term}|${offset.startOffset()}|${offset.endOffset()}|${entity.toEntityTag()}|" +
+                    "${entity.isCapitalized()}"
+            tokens << (entity.isPunctuationMark() ? token + '|PUNCTUATION' : token)
+        }
+        stream.end()
+        tokens << "end|${offset.endOffset()}".toString()
+        tokens
+    }
+
+    private static String randomDocument(Random random, int words) {
+        List<String> pieces = ['the', 'Utah', 'caf\u00e9', '\u6771\u4eac', '\ud83d\ude00', 'x' * 300, ',', '...', '"',
+                '<', '<<', 'a<b', '>', '</', '<ENAMEX', '<ENAMEX TYPE="PERSON">', '</ENAMEX>', '<TIMEXX TYPE="DATE">',
+                '<\u6771', '<ENAMEX TYPE="PERSON">Ann  Lee</ENAMEX>', '<NUMEX TYPE="PERCENT">3 %</NUMEX>',
+                '<TIMEX TYPE="DATE">May</TIMEX>', '<ENAMEX TYPE="LOCATION">New\nYork</ENAMEX>.',
+                '<ENAMEX TYPE="X"><ENAMEX TYPE="Y">a b</ENAMEX>', '<ENAMEX TYPE="P">a</ ENAMEX>',
+                '<ENAMEX TYPE="PERSON">\u674e\u5c0f\u9f8d</ENAMEX>', '\u6771\u4eac\u90fd\u306b\u884c\u3063\u305f',
+                'iPhone\u624b\u673a', '\u3002']
+        List<String> spaces = [' ', ' ', ' ', '  ', '\n', '\t', '\u3000', '']
+        StringBuilder text = new StringBuilder()
+        words.times {
+            text.append(pieces[random.nextInt(pieces.size())]).append(spaces[random.nextInt(spaces.size())])
+        }
+        text.toString()
+    }
+}
@@ -0,0 +1,144 @@
+package revelations.revelio.common
+
+import org.apache.lucene.analysis.TokenStream
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute
+import org.apache.lucene.util.Version
+import revelations.revelio.gazetteer.GazetteerBuilder
+import revelations.revelio.gazetteer.GazetteerFilter
+import revelations.revelio.metrics.StageMetrics
+import spock.lang.Specification
+
+public class SentenceFilterTest extends Specification {
+
+    def "sentences end at terminal punctuation followed by whitespace"(){
+        expect:
+        sentences('I went home. Then I slept! Did you? Yes') == ['I went home .', 'Then I slept !', 'Did you ?', 'Yes']
+        sentences('東京に行った。 大阪も。') == ['東京に行った 。', '大阪も 。']
+    }
+
+    def "closing quotes and brackets stay with the sentence they close"(){
+        expect:
+        sentences('He said "stop." She stopped.') == ['He said " stop . "', 'She stopped .']
+        sentences('It was big (really!) and "Then" I left.') == ['It was big ( really ! ) and " Then " I left .']
+        sentences('Wait... What?! No.') == ['Wait . . .', 'What ? !', 'No .']
+    }
+
+    def "periods inside numbers, abbreviations and lowercase text don't end sentences"(){
+        expect:
+        sentences('It costs 3.14 dollars. Mr. Smith and J. R. R. Tolkien met Dr. Who. see e.g. this.') ==
+                ['It costs 3 . 14 dollars .', 'Mr . Smith and J . R . R . Tolkien met Dr . Who . see e . g . this .']
+    }
+
+    def "a sentence never ends inside an entity"(){
+        expect:
+        sentences('I met <ENAMEX TYPE="PERSON">Jr. Lynch</ENAMEX>. Then <ENAMEX TYPE="ORG">Yahoo! Inc</ENAMEX> called.') ==
+                ['I met Jr. Lynch .', 'Then Yahoo! Inc called .']
+    }
+
+    def "a long sentence is cut at the most tokens but not inside a span"(){
+        given:
+        TokenStream stream = new SentenceFilter(chain('a b <ENAMEX TYPE="PLACE">Salt Lake City</ENAMEX> c d e f'), 3)
+
+        expect:
+        sentences(stream) == ['a b Salt Lake City', 'c d e', 'f']
+    }
+
+    def "a sentence doesn't end inside a gazetteer name"(){
+        given:
+        GazetteerBuilder builder = new GazetteerBuilder()
+        builder.add('St. Louis', 'PLACE')
+        TokenStream stream = new SentenceFilter(new GazetteerFilter(chain('I saw Mt. Hood. I saw St. Louis. Fun'),
+                builder.build()), 2)
+
+        expect:
+        sentences(stream) == ['I saw', 'Mt .', 'Hood .', 'I saw', 'St . Louis', '.', 'Fun']
+    }
+
+    def "every token is passed through with its attributes"(){
+        given:
+        TokenStream stream = new SentenceFilter(chain('I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX>. Bye.'))
+        CharTermAttribute term = stream.getAttribute(CharTermAttribute)
+        OffsetAttribute offset = stream.getAttribute(OffsetAttribute)
+        EntityAttribute entity = stream.getAttribute(EntityAttribute)
+        SentenceAttribute sentence = stream.getAttribute(SentenceAttribute)
+        List<String> tokens = []
+
+        when:
+        stream.reset()
+        while (stream.incrementToken()) {
+            tokens << "$term ${offset.startOffset()}-${offset.endOffset()} $entity ${sentence.sentenceEnd}".toString()
+        }
+        stream.end()
+
+        then:
+        tokens == ['I 0-1 O false', 'met 2-5 O false', 'David 28-33 B-PERSON false', 'Lynch 34-39 L-PERSON false',
+                '. 48-49 O true', 'Bye 50-53 O false', '. 53-54 O true']
+    }
+
+    def "a reset filter starts clean"(){
+        given:
+        TaggedTokenizer tokenizer = new TaggedTokenizer(Version.LUCENE_36, new StringReader('One. Two. Three.'))
+        TokenStream stream = new SentenceFilter(new EntityTagFilter(tokenizer), 4)
+        stream.reset()
+        stream.incrementToken()
+        stream.incrementToken()
+
+        when:
+        tokenizer.reset(new StringReader('a b c d e'))
+
+        then:
+        sentences(stream) == ['a b c d', 'e']
+    }
+
+    def "an instrumented filter counts sentences and the long ones"(){
+        given:
+        SentenceFilter filter = new SentenceFilter(chain('One two three four. Five. Six'), 3)
+        StageMetrics metrics = new StageMetrics('test')
+        filter.setMetrics(metrics)
+
+        when:
+        sentences(filter)
+
+        then:
+        metrics.counter(StageMetrics.TOKENS).sum() == 8
+        metrics.counter(SentenceFilter.SENTENCES).sum() == 3
+        metrics.counter(SentenceFilter.LONG_SENTENCES).sum() == 1
+    }
+
+    def "sentences have at least one token"(){
+        when:
+        new SentenceFilter(chain('a'), 0)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    TokenStream chain(String text) {
+        new EntityTagFilter(new TaggedTokenizer(Version.LUCENE_36, new StringReader(text)))
+    }
+
+    List<String> sentences(String text) {
+        sentences(new SentenceFilter(chain(text)))
+    }
+
+    static List<String> sentences(TokenStream stream) {
+        CharTermAttribute term = stream.addAttribute(CharTermAttribute)
+        SentenceAttribute sentence = stream.addAttribute(SentenceAttribute)
+        List<String> sentences = []
+        List<String> terms = []
+        stream.reset()
+        while (stream.incrementToken()) {
+            terms << term.toString()
+            if (sentence.sentenceEnd) {
+                sentences << terms.join(' ')
+                terms = []
+            }
+        }
+        stream.end()
+        if (terms) {
+            sentences << terms.join(' ')
+        }
+        sentences
+    }
+}
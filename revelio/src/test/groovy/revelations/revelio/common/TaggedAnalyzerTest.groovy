@@ -0,0 +1,75 @@
+package revelations.revelio.common
+
+import org.apache.lucene.analysis.TokenStream
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute
+import org.apache.lucene.util.Version
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+public class TaggedAnalyzerTest extends Specification {
+
+    TaggedAnalyzer analyzer = new TaggedAnalyzer(Version.LUCENE_36)
+
+    def "the chain is reused on the same thread"(){
+        when:
+        TokenStream first = analyzer.reusableTokenStream('text', new StringReader('one'))
+        List<String> firstTokens = tokens(first)
+        TokenStream second = analyzer.reusableTokenStream('text', new StringReader('<ENAMEX TYPE="PERSON">David Lynch</ENAMEX> two'))
+
+        then:
+        first.is(second)
+        firstTokens == ['one 0-3 O']
+        tokens(second) == ['David 22-27 B-PERSON', 'Lynch 28-33 L-PERSON', 'two 43-46 O']
+    }
+
+    def "a chain which was left in the middle of an entity starts clean"(){
+        given:
+        TokenStream stream = analyzer.reusableTokenStream('text', new StringReader('<ENAMEX TYPE="PERSON">Megan D. Fox</ENAMEX>'))
+        stream.reset()
+        stream.incrementToken()
+
+        expect:
+        tokens(analyzer.reusableTokenStream('text', new StringReader('ran'))) == ['ran 0-3 O']
+    }
+
+    def "each thread gets its own chain"(){
+        given:
+        def executor = Executors.newFixedThreadPool(2)
+        def chain = { analyzer.reusableTokenStream('text', new StringReader('x')) } as Callable<TokenStream>
+
+        when:
+        TokenStream mine = chain.call()
+        TokenStream other = executor.submit(chain).get()
+
+        then:
+        !mine.is(other)
+        mine.is(chain.call())
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def "the entity tags can be configured"(){
+        given:
+        TaggedAnalyzer custom = new TaggedAnalyzer(Version.LUCENE_36, ['PER'] as Set)
+
+        expect:
+        tokens(custom.reusableTokenStream('text', new StringReader('<PER TYPE="PERSON">Fox</PER>'))) == ['Fox 19-22 U-PERSON']
+    }
+
+    private static List<String> tokens(TokenStream stream) {
+        CharTermAttribute term = stream.addAttribute(CharTermAttribute.class)
+        OffsetAttribute offset = stream.addAttribute(OffsetAttribute.class)
+        EntityAttribute entity = stream.addAttribute(EntityAttribute.class)
+        List<String> tokens = []
+        stream.reset()
+        while (stream.incrementToken()) {
+            tokens << "${term} ${offset.startOffset()}-${offset.endOffset()} ${entity.toEntityTag()}".toString()
+        }
+        stream.end()
+        tokens
+    }
+}
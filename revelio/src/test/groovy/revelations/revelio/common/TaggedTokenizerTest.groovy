@@ -6,6 +6,7 @@ import org.apache.lucene.util.Version
 import static BilouTags.*
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute
+import revelations.revelio.metrics.StageMetrics
 
 /**
  * @author Christian Hargraves
@@ -313,9 +314,205 @@ public class TaggedTokenizerTest extends Specification {
         actual.equals(expected)
     }
 
+    def "English sentence with emoji, words and spaces"() {
+        given:
+        String sentence = 'the fox \uD83D\uDE00 jumped'
+
+        when:
+        List actual = tokenize(sentence)
+        def expected = [
+                new TokenTestHelper('the', OUTSIDE),
+                new TokenTestHelper('fox', OUTSIDE),
+                new TokenTestHelper('\uD83D\uDE00', OUTSIDE),
+                new TokenTestHelper('jumped', OUTSIDE)]
+
+        then:
+        actual.equals(expected)
+        actual[2].startOffset == 8
+        actual[2].endOffset == 10
+        actual[3].startOffset == 11
+    }
+
+    def "Offsets for text longer than the io buffer"() {
+        given:
+        String sentence = 'the brown fox, ' * 1000
+
+        when:
+        List actual = tokenize(sentence)
+
+        then:
+        actual.size() == 4000
+        actual[3999].token == ','
+        actual[3999].startOffset == 14998
+        actual[3999].endOffset == 14999
+    }
+
+    def "English sentence with emoji followed by punctuation"() {
+        given:
+        String sentence = 'fox\uD83D\uDE00!'
+
+        when:
+        List actual = tokenize(sentence)
+        def expected = [
+                new TokenTestHelper('fox\uD83D\uDE00', OUTSIDE),
+                new TokenTestHelper('!', OUTSIDE, "PUNCTUATION")]
+
+        then:
+        actual.equals(expected)
+    }
+
+    def "ENAMEX tag which crosses the io buffer boundary"() {
+        given:
+        String padding = 'x ' * 2040
+        String sentence = padding + 'the fox, <ENAMEX TYPE="PERSON">Charlie Brown</ENAMEX>, eats rats.'
+
+        when:
+        List actual = tokenize(sentence)
+
+        then:
+        actual.size() == 2040 + 8
+        actual[2043].equals(new TokenTestHelper('<ENAMEX TYPE="PERSON">Charlie Brown</ENAMEX>', ENTITY_TYPE))
+        actual[2043].startOffset == padding.length() + 9
+        actual[2043].endOffset == padding.length() + 53
+        actual[2044].startOffset == padding.length() + 53
+    }
+
+    def "Entity which is longer than the io buffer"() {
+        given:
+        String name = 'Charlie ' * 1000
+        String sentence = 'the fox, <ENAMEX TYPE="PERSON">' + name + '</ENAMEX>.'
+
+        when:
+        List actual = tokenize(sentence)
+
+        then:
+        actual.size() == 5
+        actual[3].equals(new TokenTestHelper('<ENAMEX TYPE="PERSON">' + name + '</ENAMEX>', ENTITY_TYPE))
+        actual[4].startOffset == sentence.length() - 1
+    }
+
+    def "Unclosed ENAMEX tag is scanned again as text"() {
+        given:
+        String sentence = 'the <ENAMEX TYPE="PERSON">fox'
+
+        when:
+        List actual = tokenize(sentence)
+        def expected = [
+                new TokenTestHelper('the', OUTSIDE),
+                new TokenTestHelper('<', OUTSIDE, "PUNCTUATION"),
+                new TokenTestHelper('ENAMEX', OUTSIDE),
+                new TokenTestHelper('TYPE', OUTSIDE),
+                new TokenTestHelper('=', OUTSIDE),
+                new TokenTestHelper('"', OUTSIDE, "PUNCTUATION"),
+                new TokenTestHelper('PERSON', OUTSIDE),
+                new TokenTestHelper('"', OUTSIDE, "PUNCTUATION"),
+                new TokenTestHelper('>', OUTSIDE, "PUNCTUATION"),
+                new TokenTestHelper('fox', OUTSIDE)]
+
+        then:
+        actual.equals(expected)
+    }
+
+    def "Only the configured entity tags are recognized"() {
+        given:
+        String sentence = '<TIMEX TYPE="TIME">3:00</TIMEX> <NUMEX TYPE="MONEY">$12</NUMEX>'
+
+        when:
+        List actual = tokenize(sentence, ['NUMEX'] as Set)
+
+        then:
+        actual[0].equals(new TokenTestHelper('<', OUTSIDE, "PUNCTUATION"))
+        actual[-1].equals(new TokenTestHelper('<NUMEX TYPE="MONEY">$12</NUMEX>', ENTITY_TYPE))
+    }
+
+    def "an instrumented tokenizer counts what it does once a document ends"(){
+        given:
+        String text = 'a <b> <ENAMEX TYPE="PERSON">Lynch</ENAMEX> ' + 'x' * 300
+        TaggedTokenizer tokenizer = new TaggedTokenizer(Version.LUCENE_36, new StringReader(text))
+        StageMetrics metrics = new StageMetrics('test')
+        tokenizer.setMetrics(metrics)
+
+        when:
+        tokenizer.reset()
+        int tokens = 0
+        while (tokenizer.incrementToken()) {
+            tokens++
+        }
+
+        then:
+        metrics.counter(StageMetrics.TOKENS).sum() == 0
+
+        when:
+        tokenizer.end()
+
+        then:
+        metrics.counter(StageMetrics.TOKENS).sum() == tokens
+        metrics.counter(TaggedTokenizer.ENTITY_TAGS).sum() == 1
+        metrics.counter(TaggedTokenizer.REJECTED_TAGS).sum() == 1
+        metrics.counter(TaggedTokenizer.TRUNCATED_TOKENS).sum() == 1
+        metrics.counter(StageMetrics.CHARS_READ).sum() == text.length()
+        metrics.counter(StageMetrics.DOCUMENTS).sum() == 1
+        metrics.latency.count == 1
+    }
+
+    def "counts start over for every document"(){
+        given:
+        TaggedTokenizer tokenizer = new TaggedTokenizer(Version.LUCENE_36, new StringReader('one two'))
+        StageMetrics metrics = new StageMetrics('test')
+        tokenizer.setMetrics(metrics)
+
+        when:
+        2.times {
+            tokenizer.reset()
+            while (tokenizer.incrementToken()) {}
+            tokenizer.end()
+            tokenizer.reset(new StringReader('three'))
+        }
+
+        then:
+        metrics.counter(StageMetrics.TOKENS).sum() == 3
+        metrics.counter(StageMetrics.CHARS_READ).sum() == 12
+        metrics.counter(StageMetrics.DOCUMENTS).sum() == 2
+    }
+
+    def "Chinese chars are words of their own with the classes of Chinese"() {
+        given:
+        String sentence = '\u6211\u5728\u6771\u4eac\u4e70\u4e86iPhone\u3002 ' +
+                '<ENAMEX TYPE="LOCATION">\u6771\u4eac</ENAMEX>'
+        CharClasses chinese = CharClasses.forLanguage('zh')
+
+        when:
+        List<TokenTestHelper> actual = tokenize(sentence, TaggedTokenizer.DEFAULT_ENTITY_TAGS, chinese)
+
+        then:
+        actual.collect { it.token } == ['\u6211', '\u5728', '\u6771', '\u4eac', '\u4e70', '\u4e86', 'iPhone', '\u3002',
+                '<ENAMEX TYPE="LOCATION">\u6771\u4eac</ENAMEX>']
+        actual.collect { sentence.substring(it.startOffset, it.endOffset) } == actual.collect { it.token }
+        tokenize(sentence).collect { it.token } == ['\u6211\u5728\u6771\u4eac\u4e70\u4e86iPhone', '\u3002',
+                '<ENAMEX TYPE="LOCATION">\u6771\u4eac</ENAMEX>']
+    }
+
+    def "Bidi controls are whitespace with the classes of Arabic"() {
+        given:
+        String sentence = '\u0645\u0631\u062d\u0628\u0627\u200f\u0639\u0627\u0644\u0645'
+
+        expect:
+        tokenize(sentence, TaggedTokenizer.DEFAULT_ENTITY_TAGS, CharClasses.forLanguage('ar')).collect { it.token } ==
+                ['\u0645\u0631\u062d\u0628\u0627', '\u0639\u0627\u0644\u0645']
+        tokenize(sentence).size() == 1
+    }
+
     private List<TokenTestHelper> tokenize(String text) {
+        return tokenize(text, TaggedTokenizer.DEFAULT_ENTITY_TAGS)
+    }
+
+    private List<TokenTestHelper> tokenize(String text, Set<String> entityTags) {
+        return tokenize(text, entityTags, CharClasses.getDefault())
+    }
+
+    private List<TokenTestHelper> tokenize(String text, Set<String> entityTags, CharClasses classes) {
         List<TokenTestHelper> tokens = new ArrayList<TokenTestHelper>();
-        tokenizer = new TaggedTokenizer(Version.LUCENE_CURRENT, new StringReader(text))
+        tokenizer = new TaggedTokenizer(Version.LUCENE_CURRENT, new StringReader(text), entityTags, classes)
         CharTermAttribute termAtt = tokenizer.getAttribute(CharTermAttribute.class);
         EntityAttribute entityAtt = tokenizer.getAttribute(EntityAttribute.class);
         OffsetAttribute offsetAtt = tokenizer.getAttribute(OffsetAttribute.class);
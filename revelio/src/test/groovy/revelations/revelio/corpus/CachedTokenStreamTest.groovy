@@ -0,0 +1,151 @@
+package revelations.revelio.corpus
+
+import org.apache.lucene.analysis.TokenStream
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute
+import org.apache.lucene.util.Version
+import revelations.revelio.common.EntityAttribute
+import revelations.revelio.common.EntityTagFilter
+import revelations.revelio.common.TaggedTokenizer
+import spock.lang.Specification
+
+public class CachedTokenStreamTest extends Specification {
+
+    static final List<String> DOCUMENTS = [
+            'I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX> today.',
+            'Café naïve 日本語 😀 smile, <TIMEX TYPE="DATE">next  Tuesday</TIMEX>!',
+            '',
+            'one more <ENAMEX TYPE="PLACE">Zürich</ENAMEX> line <ENAMEX TYPE="BROKEN>x</ENAMEX>',
+            'I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX> again.']
+
+    def "replayed tokens have the same attributes as the tokenized text"(){
+        when:
+        CachedTokenStream stream = new CachedTokenStream(new ByteArrayInputStream(cache(DOCUMENTS)))
+        List replayed = []
+        while (stream.nextDocument()) {
+            replayed << tokens(stream)
+        }
+        stream.close()
+
+        then:
+        replayed == DOCUMENTS.collect { tokens(tagged(it)) }
+        stream.documentNumber == 5
+    }
+
+    def "the final offset of a document is replayed by end"(){
+        given:
+        CachedTokenStream stream = new CachedTokenStream(new ByteArrayInputStream(cache(['some text  '])))
+        OffsetAttribute offset = stream.addAttribute(OffsetAttribute.class)
+
+        when:
+        stream.nextDocument()
+        tokens(stream)
+
+        then:
+        offset.endOffset() == 11
+    }
+
+    def "reset starts the current document over"(){
+        given:
+        CachedTokenStream stream = new CachedTokenStream(new ByteArrayInputStream(cache(DOCUMENTS)))
+
+        when:
+        stream.nextDocument()
+        stream.nextDocument()
+        def first = tokens(stream)
+        def again = tokens(stream)
+        stream.nextDocument()
+        stream.nextDocument()
+
+        then:
+        first == again
+        first == tokens(tagged(DOCUMENTS[1]))
+        tokens(stream) == tokens(tagged(DOCUMENTS[3]))
+    }
+
+    def "custom span types and offsets which do not match the term are kept"(){
+        given:
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        TokenCacheWriter writer = new TokenCacheWriter(out)
+        writer.addDocument(new ListTokenStream([['dog', 10, 13, 'X', 'ANIMAL'], ['cats', 20, 23, 'X', null],
+                ['<', 5, 6, 'O', 'ANIMAL']]))
+        writer.close()
+
+        when:
+        CachedTokenStream stream = new CachedTokenStream(new ByteArrayInputStream(out.toByteArray()))
+        stream.nextDocument()
+
+        then:
+        tokens(stream) == ['dog 10-13 X-ANIMAL', 'cats 20-23 X', '< 5-6 O-ANIMAL']
+    }
+
+    def "the cache is less than half the size of the tagged text"(){
+        given:
+        List<String> corpus = (1..200).collect { DOCUMENTS[it % DOCUMENTS.size()] }
+
+        expect:
+        cache(corpus).length * 2 < corpus.join('\n').getBytes('UTF-8').length
+    }
+
+    def "a file which is not a cache is rejected"(){
+        when:
+        new CachedTokenStream(new ByteArrayInputStream('not a cache'.getBytes('UTF-8')))
+
+        then:
+        thrown(IOException)
+    }
+
+    private static byte[] cache(List<String> documents) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        TokenCacheWriter writer = new TokenCacheWriter(out)
+        documents.each { writer.addDocument(new StringReader(it)) }
+        writer.close()
+        out.toByteArray()
+    }
+
+    private static TokenStream tagged(String text) {
+        new EntityTagFilter(new TaggedTokenizer(Version.LUCENE_36, new StringReader(text)))
+    }
+
+    private static List<String> tokens(TokenStream stream) {
+        CharTermAttribute term = stream.addAttribute(CharTermAttribute.class)
+        OffsetAttribute offset = stream.addAttribute(OffsetAttribute.class)
+        EntityAttribute entity = stream.addAttribute(EntityAttribute.class)
+        List<String> tokens = []
+        stream.reset()
+        while (stream.incrementToken()) {
+            String flags = (entity.isCapitalized() ? ' CAP' : '') + (entity.isPunctuationMark() ? ' PUNCT' : '')
+            tokens << "${term} ${offset.startOffset()}-${offset.endOffset()} ${entity.toEntityTag()}${flags}".toString()
+        }
+        stream.end()
+        tokens
+    }
+}
+
+/**
+ * Emits tokens of [term, start, end, span type, entity type].
+ */
+class ListTokenStream extends TokenStream {
+    CharTermAttribute term = addAttribute(CharTermAttribute.class)
+    OffsetAttribute offset = addAttribute(OffsetAttribute.class)
+    EntityAttribute entity = addAttribute(EntityAttribute.class)
+    List<List> tokens
+    int next
+
+    ListTokenStream(List<List> tokens) {
+        this.tokens = tokens
+    }
+
+    boolean incrementToken() {
+        if (next == tokens.size()) {
+            return false
+        }
+        clearAttributes()
+        def token = tokens[next++]
+        term.setEmpty().append(token[0])
+        offset.setOffset(token[1], token[2])
+        entity.setEntitySpanType(token[3])
+        entity.setEntityType(token[4])
+        true
+    }
+}
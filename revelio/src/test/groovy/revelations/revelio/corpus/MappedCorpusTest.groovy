@@ -0,0 +1,145 @@
+package revelations.revelio.corpus
+
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute
+import org.apache.lucene.util.Version
+import revelations.revelio.common.TaggedTokenizer
+import revelations.revelio.metrics.StageMetrics
+import spock.lang.Specification
+
+import java.util.concurrent.Executors
+
+public class MappedCorpusTest extends Specification {
+
+    static final String TEXT = 'I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX> today.\n' +
+            'Café naïve 日本語 😀 smile\n' +
+            '\n' +
+            'one more <ENAMEX TYPE="PLACE">Zürich</ENAMEX> line\n' +
+            'last line without a break'
+
+    File file
+    List<MappedCorpus> corpora = []
+
+    def setup(){
+        file = File.createTempFile('corpus', '.txt')
+        file.setText(TEXT, 'UTF-8')
+    }
+
+    def cleanup(){
+        corpora*.close()
+        file.delete()
+    }
+
+    def "the whole file is decoded no matter where segments cut the UTF-8 sequences"(){
+        expect:
+        read(corpus(segmentSize).reader(), 4096) == TEXT
+
+        where:
+        segmentSize << [4, 5, 7, 13, MappedCorpus.DEFAULT_SEGMENT_SIZE]
+    }
+
+    def "a surrogate pair is split between reads into a one char buffer"(){
+        expect:
+        read(corpus(5).reader(), 1) == TEXT
+    }
+
+    def "tokens have the same offsets as when the text is read with a StringReader"(){
+        expect:
+        tokens(corpus(6).reader()) == tokens(new StringReader(TEXT))
+    }
+
+    def "ranges start after line breaks and their tokens have offsets in the whole file"(){
+        when:
+        List<CorpusRange> ranges = corpus(6).split(parts)
+
+        then:
+        ranges.size() == expectedRanges
+        ranges[0].byteStart == 0
+        ranges[-1].byteEnd == file.length()
+        ranges.every { it.byteStart == 0 || bytes()[(int) it.byteStart - 1] == '\n' as char }
+        ranges.collect { read(it.reader(), 4096) }.join('') == TEXT
+        ranges.collect { tokens(it.reader()) }.flatten() == tokens(new StringReader(TEXT))
+
+        where:
+        parts | expectedRanges
+        1     | 1
+        3     | 3
+        100   | 5
+    }
+
+    def "chars can be counted on an executor"(){
+        given:
+        def executor = Executors.newFixedThreadPool(2)
+
+        when:
+        List<CorpusRange> ranges = corpus(8).split(4, executor)
+
+        then:
+        ranges*.charStart == corpus(8).split(4)*.charStart
+        ranges*.charStart.every { it == 0 || TEXT.charAt((int) it - 1) == '\n' as char }
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def "an instrumented tokenizer counts the bytes and chars of a mapped file"(){
+        given:
+        TaggedTokenizer tokenizer = new TaggedTokenizer(Version.LUCENE_36, corpus(7).reader())
+        StageMetrics metrics = new StageMetrics('test')
+        tokenizer.setMetrics(metrics)
+
+        when:
+        tokenizer.reset()
+        while (tokenizer.incrementToken()) {}
+        tokenizer.end()
+
+        then:
+        metrics.counter(StageMetrics.BYTES_READ).sum() == bytes().length
+        metrics.counter(StageMetrics.CHARS_READ).sum() == TEXT.length()
+    }
+
+    def "a read after close fails"(){
+        given:
+        MappedCorpusReader reader = corpus(8).reader()
+        reader.close()
+
+        when:
+        reader.read(new char[4], 0, 4)
+
+        then:
+        thrown(IOException)
+    }
+
+    private MappedCorpus corpus(int segmentSize) {
+        MappedCorpus corpus = new MappedCorpus(file, segmentSize)
+        corpora << corpus
+        corpus
+    }
+
+    private byte[] bytes() {
+        file.bytes
+    }
+
+    private static String read(Reader reader, int bufferSize) {
+        StringBuilder text = new StringBuilder()
+        char[] buffer = new char[bufferSize]
+        int read
+        while ((read = reader.read(buffer, 0, bufferSize)) != -1) {
+            text.append(buffer, 0, read)
+        }
+        text.toString()
+    }
+
+    private static List<String> tokens(Reader reader) {
+        TaggedTokenizer tokenizer = new TaggedTokenizer(Version.LUCENE_36, reader)
+        CharTermAttribute term = tokenizer.addAttribute(CharTermAttribute.class)
+        OffsetAttribute offset = tokenizer.addAttribute(OffsetAttribute.class)
+        List<String> tokens = []
+        tokenizer.reset()
+        while (tokenizer.incrementToken()) {
+            tokens << "${term}@${offset.startOffset()}-${offset.endOffset()}".toString()
+        }
+        tokenizer.close()
+        tokens
+    }
+}
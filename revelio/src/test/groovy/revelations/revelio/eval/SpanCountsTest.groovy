@@ -0,0 +1,64 @@
+package revelations.revelio.eval
+
+import revelations.revelio.common.EntityLabels
+import spock.lang.Specification
+
+public class SpanCountsTest extends Specification {
+
+    SpanCounts counts = new SpanCounts()
+    int person = EntityLabels.getInstance().typeId('PERSON')
+    int place = EntityLabels.getInstance().typeId('PLACE')
+
+    def "precision, recall and f1 come from the confusion matrix"(){
+        when:
+        3.times { counts.add(person, person) }
+        counts.add(person, 0)
+        counts.add(0, person)
+        counts.add(0, person)
+        counts.add(place, person)
+
+        then:
+        counts.truePositives(person) == 3
+        counts.falsePositives(person) == 3
+        counts.falseNegatives(person) == 1
+        counts.precision(person) == 0.5d
+        counts.recall(person) == 0.75d
+        Math.abs(counts.f1(person) - 0.6d) < 1e-9
+        counts.falseNegatives(place) == 1
+        counts.precision(place) == 0d
+    }
+
+    def "the counts of threads are added up"(){
+        SpanCounts other = new SpanCounts()
+        counts.add(person, person)
+        counts.addDocument(5)
+        other.add(place, place)
+        other.add(place, 0)
+        other.addDocument(7)
+
+        when:
+        counts.add(other)
+
+        then:
+        counts.truePositives(person) == 1
+        counts.truePositives(place) == 1
+        counts.falseNegatives(place) == 1
+        counts.documents == 2
+        counts.tokens == 12
+        counts.recall() == 2 / 3d
+    }
+
+    def "empty counts score 0 and the report lists only the types with spans"(){
+        expect:
+        counts.f1() == 0d
+
+        when:
+        counts.add(person, person)
+        String report = counts.toString()
+
+        then:
+        report.contains('PERSON')
+        report.contains('1.0000')
+        !report.readLines().any { it.startsWith('PLACE ') && it.contains('0.0000') }
+    }
+}
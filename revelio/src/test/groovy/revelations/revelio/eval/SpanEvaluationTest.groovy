@@ -0,0 +1,87 @@
+package revelations.revelio.eval
+
+import cc.mallet.fst.CRF
+import revelations.revelio.common.EntityLabels
+import revelations.revelio.tagger.DocumentTaggerTest
+import revelations.revelio.tagger.TaggerModel
+import revelations.revelio.train.CrfTrainingDriver
+import spock.lang.Shared
+import spock.lang.Specification
+
+public class SpanEvaluationTest extends Specification {
+
+    @Shared CRF crf
+    int person = EntityLabels.getInstance().typeId('PERSON')
+    int place = EntityLabels.getInstance().typeId('PLACE')
+
+    def setupSpec() {
+        crf = DocumentTaggerTest.train(new CrfTrainingDriver(threads: 2, iterations: 100))
+    }
+
+    def "a tagged file is evaluated against another on every thread"(){
+        List<String> gold = []
+        List<String> predicted = []
+        300.times {
+            gold << "I met <ENAMEX TYPE=\"PERSON\">David Lynch</ENAMEX> in <ENAMEX TYPE=\"PLACE\">Utah</ENAMEX> $it."
+            predicted << (it % 3 == 0 ? "I met David Lynch in <ENAMEX TYPE=\"PLACE\">Utah</ENAMEX> $it." : gold[it])
+        }
+        SpanEvaluation evaluation = new SpanEvaluation(threads: 3, batchSize: 7)
+
+        when:
+        SpanCounts counts = evaluation.evaluate(new StringReader(gold.join('\n')), new StringReader(predicted.join('\n')))
+
+        then:
+        counts.documents == 300
+        counts.truePositives(place) == 300
+        counts.truePositives(person) == 200
+        counts.falseNegatives(person) == 100
+        counts.falsePositives(person) == 0
+    }
+
+    def "a test set is evaluated against the predictions of a model"(){
+        String gold = (['I went to <ENAMEX TYPE="PLACE">Salt Lake City</ENAMEX> today.',
+                        'I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX> today.'] * 50).join('\n')
+        SpanEvaluation evaluation = new SpanEvaluation(new TaggerModel(crf), null)
+        evaluation.threads = 2
+        evaluation.batchSize = 3
+
+        when:
+        SpanCounts counts = evaluation.evaluate(new StringReader(gold))
+
+        then:
+        counts.documents == 100
+        counts.truePositives(place) == 50
+        counts.truePositives(person) == 50
+        counts.f1() == 1.0d
+    }
+
+    def "files with different numbers of lines are rejected"(){
+        when:
+        new SpanEvaluation(threads: 2).evaluate(new StringReader(gold), new StringReader(predicted))
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        gold       | predicted
+        'a\nb\nc'  | 'a\nb'
+        'a\nb'     | 'a\nb\nc'
+    }
+
+    def "the failure of a worker is thrown to the caller"(){
+        when:
+        new SpanEvaluation(threads: 2, batchSize: 1).evaluate(new StringReader('I saw Utah\nI saw Utah'),
+                new StringReader('I saw Utah\nI saw Ohio'))
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "spans can't be predicted without a model"(){
+        when:
+        new SpanEvaluation().evaluate(new StringReader('I saw Utah'))
+
+        then:
+        thrown(IllegalStateException)
+    }
+}
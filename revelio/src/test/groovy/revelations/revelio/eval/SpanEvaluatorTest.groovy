@@ -0,0 +1,125 @@
+package revelations.revelio.eval
+
+import org.apache.lucene.analysis.TokenStream
+import org.apache.lucene.util.Version
+import revelations.revelio.common.EntityLabels
+import revelations.revelio.common.TaggedAnalyzer
+import spock.lang.Specification
+
+public class SpanEvaluatorTest extends Specification {
+
+    EntityLabels labels = EntityLabels.getInstance()
+    SpanEvaluator evaluator = new SpanEvaluator()
+    int person = labels.typeId('PERSON')
+    int place = labels.typeId('PLACE')
+
+    def "spans on exactly the same tokens with the same type are true positives"(){
+        when:
+        document(['O', 'B-PERSON', 'L-PERSON', 'O', 'U-PLACE'],
+                 ['O', 'B-PERSON', 'L-PERSON', 'O', 'U-PLACE'])
+
+        then:
+        evaluator.counts.truePositives(person) == 1
+        evaluator.counts.truePositives(place) == 1
+        evaluator.counts.f1() == 1.0d
+    }
+
+    def "a span with other boundaries is both a false positive and a false negative"(){
+        when:
+        document(['B-PERSON', 'I-PERSON', 'L-PERSON', 'O'],
+                 ['O', 'B-PERSON', 'L-PERSON', 'O'])
+
+        then:
+        evaluator.counts.truePositives(person) == 0
+        evaluator.counts.falsePositives(person) == 1
+        evaluator.counts.falseNegatives(person) == 1
+        evaluator.counts.get(person, 0) == 1
+        evaluator.counts.get(0, person) == 1
+    }
+
+    def "a span on the same tokens with another type is counted in the confusion matrix"(){
+        when:
+        document(['O', 'B-PERSON', 'L-PERSON'],
+                 ['O', 'B-PLACE', 'L-PLACE'])
+
+        then:
+        evaluator.counts.get(person, place) == 1
+        evaluator.counts.falseNegatives(person) == 1
+        evaluator.counts.falsePositives(place) == 1
+    }
+
+    def "spans are read leniently and closed at the end of the document"(){
+        when:
+        document(['O', 'I-PERSON', 'I-PERSON', 'B-PLACE'],
+                 ['O', 'B-PERSON', 'L-PERSON', 'U-PLACE'])
+
+        then:
+        evaluator.counts.truePositives(person) == 1
+        evaluator.counts.truePositives(place) == 1
+        evaluator.counts.falsePositives(place) == 0
+    }
+
+    def "a span which ends at L matches one which ends at the next O"(){
+        when:
+        document(['B-PERSON', 'L-PERSON', 'U-PLACE', 'O'],
+                 ['B-PERSON', 'I-PERSON', 'U-PLACE', 'O'])
+
+        then:
+        evaluator.counts.truePositives(person) == 1
+        evaluator.counts.truePositives(place) == 1
+    }
+
+    def "documents are evaluated from two token streams side by side"(){
+        TaggedAnalyzer goldAnalyzer = new TaggedAnalyzer(Version.LUCENE_36)
+        TaggedAnalyzer predictedAnalyzer = new TaggedAnalyzer(Version.LUCENE_36)
+
+        when:
+        evaluator.evaluate(stream(goldAnalyzer, 'I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX> in <ENAMEX TYPE="PLACE">Utah</ENAMEX>.'),
+                stream(predictedAnalyzer, 'I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX> in Utah.'))
+
+        then:
+        evaluator.counts.truePositives(person) == 1
+        evaluator.counts.falseNegatives(place) == 1
+        evaluator.counts.documents == 1
+        evaluator.counts.tokens == 7
+    }
+
+    def "streams with other tokens can't be evaluated against each other"(){
+        TaggedAnalyzer analyzer = new TaggedAnalyzer(Version.LUCENE_36)
+
+        when:
+        evaluator.evaluate(stream(analyzer, gold), stream(new TaggedAnalyzer(Version.LUCENE_36), predicted))
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        gold           | predicted
+        'I saw Utah'   | 'I saw Ohio'
+        'I saw Utah'   | 'I saw'
+        'I saw'        | 'I saw Utah'
+    }
+
+    def "every span of a long document is counted without keeping the document"(){
+        when:
+        100000.times {
+            evaluator.token(labels.label('U-PERSON'), labels.label(it % 2 == 0 ? 'U-PERSON' : 'O'))
+        }
+        evaluator.endDocument()
+
+        then:
+        evaluator.counts.truePositives(person) == 50000
+        evaluator.counts.falseNegatives(person) == 50000
+        evaluator.counts.recall(person) == 0.5d
+        evaluator.counts.precision(person) == 1.0d
+    }
+
+    private void document(List<String> gold, List<String> predicted) {
+        gold.eachWithIndex { String tag, int i -> evaluator.token(labels.label(tag), labels.label(predicted[i])) }
+        evaluator.endDocument()
+    }
+
+    private static TokenStream stream(TaggedAnalyzer analyzer, String text) {
+        analyzer.reusableTokenStream('text', new StringReader(text))
+    }
+}
@@ -0,0 +1,96 @@
+package revelations.revelio.features
+
+import spock.lang.Specification
+
+public class FeatureCacheTest extends Specification {
+
+    FeatureCache cache = new FeatureCache(3)
+
+    def "terms are looked up by the chars in a buffer"(){
+        given:
+        char[] buffer = 'Obama said'.toCharArray()
+        int[] features = [1, 2] as int[]
+
+        when:
+        cache.put(buffer, 5, features)
+
+        then:
+        cache.get('Obama'.toCharArray(), 5).is(features)
+        cache.get('Obama!'.toCharArray(), 5).is(features)
+        cache.get('Obam'.toCharArray(), 4) == null
+        cache.get(buffer, 10) == null
+        cache.hits == 2
+        cache.misses == 2
+        cache.hitRate() == 0.5
+    }
+
+    def "the cached key is a copy of the buffer"(){
+        given:
+        char[] buffer = 'Utah'.toCharArray()
+        cache.put(buffer, 4, [7] as int[])
+
+        when:
+        buffer[0] = 'X' as char
+
+        then:
+        cache.get('Utah'.toCharArray(), 4) == [7] as int[]
+        cache.get(buffer, 4) == null
+    }
+
+    def "a full cache evicts a term which was not used since the last sweep"(){
+        given:
+        ['a', 'b', 'c'].eachWithIndex { term, i -> cache.put(term.toCharArray(), 1, [i] as int[]) }
+        cache.get('a'.toCharArray(), 1)
+        cache.get('c'.toCharArray(), 1)
+
+        when:
+        cache.put('d'.toCharArray(), 1, [3] as int[])
+
+        then:
+        cache.size() == 3
+        cache.evictions == 1
+        cache.get('b'.toCharArray(), 1) == null
+        ['a', 'c', 'd'].every { cache.get(it.toCharArray(), 1) != null }
+    }
+
+    def "eviction keeps the hash chains intact"(){
+        given:
+        FeatureCache big = new FeatureCache(100)
+
+        when:
+        (0..<1000).each { big.put("term$it".toCharArray(), "term$it".length(), [it] as int[]) }
+
+        then:
+        big.size() == 100
+        big.evictions == 900
+        (900..<1000).every { big.get("term$it".toCharArray(), "term$it".length()) == [it] as int[] }
+        (0..<900).every { big.get("term$it".toCharArray(), "term$it".length()) == null }
+    }
+
+    def "memory use grows with the cached terms and shrinks back on eviction"(){
+        given:
+        FeatureCache single = new FeatureCache(1)
+        long empty = single.ramBytesUsed()
+
+        when:
+        single.put('short'.toCharArray(), 5, [1] as int[])
+        long small = single.ramBytesUsed()
+        single.put('a much longer term'.toCharArray(), 18, [1, 2, 3, 4] as int[])
+        long large = single.ramBytesUsed()
+        single.put('short'.toCharArray(), 5, [1] as int[])
+
+        then:
+        empty < small
+        small < large
+        single.ramBytesUsed() == small
+        single.evictions == 2
+    }
+
+    def "the capacity must be positive"(){
+        when:
+        new FeatureCache(0)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
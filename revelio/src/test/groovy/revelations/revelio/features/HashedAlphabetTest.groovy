@@ -0,0 +1,101 @@
+package revelations.revelio.features
+
+import spock.lang.Specification
+
+public class HashedAlphabetTest extends Specification {
+
+    def "a name always hashes into the same bucket of a fixed size"(){
+        HashedAlphabet alphabet = new HashedAlphabet(1000)
+
+        when:
+        List<Integer> ids = (0..<5000).collect { alphabet.lookupIndex("W=term$it" as String) }
+
+        then:
+        alphabet.size() == 1000
+        ids.every { it >= 0 && it < 1000 }
+        (0..<5000).every { alphabet.lookupIndex("W=term$it" as String) == ids[it] }
+        alphabet.lookupIndex(new StringBuilder('W=term7')) == ids[7]
+        new HashedAlphabet(1000).lookupIndex('W=term7') == ids[7]
+    }
+
+    def "names are hashed a char at a time"(){
+        long hash = HashedAlphabet.hash(HashedAlphabet.SEED, 'W=')
+        'Utah'.each { hash = HashedAlphabet.hash(hash, it as char) }
+        HashedAlphabet alphabet = new HashedAlphabet(64)
+
+        expect:
+        alphabet.index(hash) == alphabet.lookupIndex('W=Utah')
+        alphabet.index(HashedAlphabet.hash(HashedAlphabet.SEED, 'W=Utah')) == alphabet.lookupIndex('W=Utah')
+    }
+
+    def "a bucket a second name lands in is counted as collided"(){
+        HashedAlphabet alphabet = new HashedAlphabet(2)
+
+        when:
+        ['a', 'a', 'a'].each { alphabet.lookupIndex(it) }
+
+        then:
+        alphabet.usedBuckets == 1
+        alphabet.collidedBuckets == 0
+        alphabet.collidedBucketRate() == 0d
+
+        when:
+        ('b'..'z').each { alphabet.lookupIndex(it) }
+
+        then:
+        alphabet.usedBuckets == 2
+        alphabet.collidedBuckets == 2
+        alphabet.collidedBucketRate() == 1.0d
+        alphabet.toString() == '2/2 buckets used, 100.00% of them collided'
+    }
+
+    def "a large table rarely collides"(){
+        HashedAlphabet alphabet = new HashedAlphabet(1 << 16)
+
+        when:
+        (0..<1000).each { alphabet.lookupIndex("W=term$it" as String) }
+
+        then:
+        alphabet.usedBuckets > 980
+        alphabet.collidedBucketRate() < 0.02d
+        alphabet.toString().startsWith("${alphabet.usedBuckets}/65536 buckets used")
+    }
+
+    def "the alphabet never grows or stops growing"(){
+        HashedAlphabet alphabet = new HashedAlphabet(8)
+
+        when:
+        alphabet.stopGrowth()
+        alphabet.startGrowth()
+        alphabet.lookupIndex('W=Utah', false)
+
+        then:
+        alphabet.growthStopped()
+        alphabet.size() == 8
+        alphabet.contains('W=anything')
+        alphabet.lookupObject(3) == '#3'
+        alphabet.iterator().toList() == (0..<8).collect { "#$it" as String }
+    }
+
+    def "a serialized alphabet keeps its buckets"(){
+        HashedAlphabet alphabet = new HashedAlphabet(100)
+        alphabet.lookupIndex('W=Utah')
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+        new ObjectOutputStream(bytes).writeObject(alphabet)
+
+        when:
+        HashedAlphabet read = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject()
+
+        then:
+        read.size() == 100
+        read.lookupIndex('W=Utah') == alphabet.lookupIndex('W=Utah')
+    }
+
+    def "there must be a bucket"(){
+        when:
+        new HashedAlphabet(0)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
@@ -0,0 +1,77 @@
+package revelations.revelio.features
+
+import cc.mallet.types.Alphabet
+import spock.lang.Specification
+
+public class TermFeatureExtractorTest extends Specification {
+
+    Alphabet alphabet = new Alphabet()
+    TermFeatureExtractor extractor = new TermFeatureExtractor(alphabet)
+
+    def "every kind of feature is computed from the term"(){
+        expect:
+        names('McDonald') == ['W=McDonald', 'L=mcdonald', 'SHAPE=XxXx', 'P1=m', 'P2=mc', 'P3=mcd',
+                'S1=d', 'S2=ld', 'S3=ald', 'MIXED_CASE']
+        names('2012-10') == ['W=2012-10', 'L=2012-10', 'SHAPE=d-d', 'P1=2', 'P2=20', 'P3=201',
+                'S1=0', 'S2=10', 'S3=-10', 'HAS_DIGIT', 'HAS_HYPHEN']
+        names('NASA').containsAll(['SHAPE=X', 'ALL_CAPS'])
+        names('Obama').contains('INITIAL_CAP')
+        names('42').containsAll(['SHAPE=d', 'ALL_DIGITS'])
+        names('...').containsAll(['SHAPE=.', 'ALL_PUNCTUATION'])
+        names('a') == ['W=a', 'L=a', 'SHAPE=x']
+    }
+
+    def "only the kinds of features asked for are computed"(){
+        given:
+        extractor = new TermFeatureExtractor(alphabet, EnumSet.of(TermFeature.WORD, TermFeature.SHAPE), 10)
+
+        expect:
+        names('Utah') == ['W=Utah', 'SHAPE=Xx']
+    }
+
+    def "a repeated term is served from the cache"(){
+        given:
+        char[] buffer = 'Obama Obama'.toCharArray()
+
+        when:
+        int[] first = extractor.extract(buffer, 5)
+        int size = alphabet.size()
+        int[] second = extractor.extract('Obama'.toCharArray(), 5)
+
+        then:
+        second.is(first)
+        alphabet.size() == size
+        extractor.cache.hits == 1
+        extractor.cache.misses == 1
+    }
+
+    def "features the alphabet doesn't know after growth stops are left out"(){
+        given:
+        extractor.extract('Utah'.toCharArray(), 4)
+        alphabet.stopGrowth()
+
+        when:
+        int[] ids = extractor.extract('Utes'.toCharArray(), 4)
+
+        then:
+        ids.collect { alphabet.lookupObject(it) } == ['SHAPE=Xx', 'P1=u', 'P2=ut', 'INITIAL_CAP']
+    }
+
+    def "with a hashed alphabet the features are hashed from the chars into the buckets of their names"(){
+        given:
+        HashedAlphabet hashed = new HashedAlphabet(1 << 16)
+        extractor = new TermFeatureExtractor(hashed)
+        TermFeatureExtractor named = new TermFeatureExtractor(alphabet)
+
+        expect:
+        ['McDonald', '2012-10', 'NASA', 'a', '...', 'Utah'].every { String term ->
+            List<Integer> ids = extractor.extract(term.toCharArray(), term.length()) as List
+            List<String> names = named.extract(term.toCharArray(), term.length()).collect { alphabet.lookupObject(it) }
+            ids == names.collect { hashed.lookupIndex(it) }
+        }
+    }
+
+    List<String> names(String term) {
+        extractor.extract(term.toCharArray(), term.length()).collect { alphabet.lookupObject(it) }
+    }
+}
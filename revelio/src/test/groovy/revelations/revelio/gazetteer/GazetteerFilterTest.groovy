@@ -0,0 +1,132 @@
+package revelations.revelio.gazetteer
+
+import org.apache.lucene.analysis.TokenStream
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute
+import org.apache.lucene.util.Version
+import revelations.revelio.common.EntityAttribute
+import revelations.revelio.common.EntityLabels
+import revelations.revelio.common.EntityTagFilter
+import revelations.revelio.common.TaggedAnalyzer
+import revelations.revelio.common.TaggedTokenizer
+import revelations.revelio.metrics.StageMetrics
+import spock.lang.Specification
+
+public class GazetteerFilterTest extends Specification {
+
+    static Gazetteer gazetteer
+
+    def setupSpec() {
+        GazetteerBuilder builder = new GazetteerBuilder()
+        builder.add('Salt Lake City', 'PLACE')
+        builder.add('Salt Lake', 'PLACE')
+        builder.add('Lake Powell', 'PLACE')
+        builder.add('Barack Obama', 'PERSON')
+        builder.add('Obama', 'PERSON')
+        builder.add('New York Yankees', 'ORGANIZATION')
+        gazetteer = builder.build()
+    }
+
+    def "names are marked with BILOU dictionary labels"(){
+        expect:
+        tokens('Barack Obama visited Salt Lake City today') ==
+                ['Barack B-PERSON', 'Obama L-PERSON', 'visited O', 'Salt B-PLACE', 'Lake I-PLACE', 'City L-PLACE', 'today O']
+    }
+
+    def "the longest name wins"(){
+        expect:
+        tokens('Salt Lake Powell') == ['Salt B-PLACE', 'Lake L-PLACE', 'Powell O']
+        tokens('Salt Lake') == ['Salt B-PLACE', 'Lake L-PLACE']
+        tokens('Obama') == ['Obama U-PERSON']
+    }
+
+    def "tokens read ahead of a failed match are matched again"(){
+        expect:
+        tokens('New York Obama Lake Powell') == ['New O', 'York O', 'Obama U-PERSON', 'Lake B-PLACE', 'Powell L-PLACE']
+        tokens('Salt Salt Lake') == ['Salt O', 'Salt B-PLACE', 'Lake L-PLACE']
+        tokens('New York') == ['New O', 'York O']
+    }
+
+    def "the rest of every token is passed through"(){
+        given:
+        TokenStream stream = chain('I met <ENAMEX TYPE="PERSON">Barack Obama</ENAMEX> in Salt Lake')
+        CharTermAttribute term = stream.getAttribute(CharTermAttribute)
+        OffsetAttribute offset = stream.getAttribute(OffsetAttribute)
+        EntityAttribute entity = stream.getAttribute(EntityAttribute)
+        List<String> tokens = []
+
+        when:
+        stream.reset()
+        while (stream.incrementToken()) {
+            tokens << "$term ${offset.startOffset()}-${offset.endOffset()} $entity ${tag(entity.dictionaryLabel)}".toString()
+        }
+        stream.end()
+
+        then:
+        tokens == ['I 0-1 O O', 'met 2-5 O O', 'Barack 28-34 B-PERSON B-PERSON', 'Obama 35-40 L-PERSON L-PERSON',
+                'in 50-52 O O', 'Salt 53-57 O B-PLACE', 'Lake 58-62 O L-PLACE']
+    }
+
+    def "a reset filter starts clean"(){
+        given:
+        TaggedTokenizer tokenizer = new TaggedTokenizer(Version.LUCENE_36, new StringReader('Salt Lake City'))
+        TokenStream stream = new GazetteerFilter(new EntityTagFilter(tokenizer), gazetteer)
+        stream.reset()
+        stream.incrementToken()
+
+        when:
+        tokenizer.reset(new StringReader('Lake Powell'))
+
+        then:
+        tokens(stream) == ['Lake B-PLACE', 'Powell L-PLACE']
+    }
+
+    def "the analyzer can mark names"(){
+        given:
+        TaggedAnalyzer analyzer = new TaggedAnalyzer(Version.LUCENE_36, TaggedTokenizer.DEFAULT_ENTITY_TAGS, gazetteer)
+
+        expect:
+        tokens(analyzer.reusableTokenStream('text', new StringReader('go Yankees'))) == ['go O', 'Yankees O']
+        tokens(analyzer.reusableTokenStream('text', new StringReader('New York Yankees'))) ==
+                ['New B-ORGANIZATION', 'York I-ORGANIZATION', 'Yankees L-ORGANIZATION']
+    }
+
+    def "an instrumented filter counts names and the tokens it buffers"(){
+        given:
+        GazetteerFilter filter = chain('Barack Obama visited Salt Lake City')
+        StageMetrics metrics = new StageMetrics('test')
+        filter.setMetrics(metrics)
+
+        when:
+        tokens(filter)
+
+        then:
+        metrics.counter(StageMetrics.TOKENS).sum() == 6
+        metrics.counter(GazetteerFilter.NAMES).sum() == 2
+        metrics.counter(GazetteerFilter.BUFFERED_TOKENS).sum() == 5
+    }
+
+    GazetteerFilter chain(String text) {
+        new GazetteerFilter(new EntityTagFilter(new TaggedTokenizer(Version.LUCENE_36, new StringReader(text))), gazetteer)
+    }
+
+    List<String> tokens(String text) {
+        tokens(chain(text))
+    }
+
+    List<String> tokens(TokenStream stream) {
+        CharTermAttribute term = stream.addAttribute(CharTermAttribute)
+        EntityAttribute entity = stream.addAttribute(EntityAttribute)
+        List<String> tokens = []
+        stream.reset()
+        while (stream.incrementToken()) {
+            tokens << "$term ${tag(entity.dictionaryLabel)}".toString()
+        }
+        stream.end()
+        tokens
+    }
+
+    static String tag(int label) {
+        EntityLabels.instance.tag(label)
+    }
+}
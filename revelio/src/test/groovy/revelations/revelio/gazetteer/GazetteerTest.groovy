@@ -0,0 +1,132 @@
+package revelations.revelio.gazetteer
+
+import spock.lang.Specification
+
+public class GazetteerTest extends Specification {
+
+    def "names are looked up by their tokens"(){
+        given:
+        GazetteerBuilder builder = new GazetteerBuilder()
+        builder.add('Barack Obama', 'PERSON')
+        builder.add('St. Louis', 'PLACE')
+        builder.add('Utah', 'PLACE')
+
+        when:
+        Gazetteer gazetteer = builder.build()
+
+        then:
+        gazetteer.getType('Barack', 'Obama') == 'PERSON'
+        gazetteer.getType('St', '.', 'Louis') == 'PLACE'
+        gazetteer.getType('Utah') == 'PLACE'
+        gazetteer.getType('Barack') == null
+        gazetteer.getType('Barack', 'Obama', 'Sr') == null
+        gazetteer.getType('utah') == null
+        gazetteer.types == ['PERSON', 'PLACE'] as String[]
+        gazetteer.entryCount == 3
+    }
+
+    def "a name added twice is kept once with the type it was first added with"(){
+        given:
+        GazetteerBuilder builder = new GazetteerBuilder()
+        builder.add('Washington', 'PLACE')
+        builder.add('Washington', 'PERSON')
+        builder.add('Washington', 'PLACE')
+
+        when:
+        Gazetteer gazetteer = builder.build()
+
+        then:
+        builder.size() == 3
+        gazetteer.entryCount == 1
+        gazetteer.getType('Washington') == 'PLACE'
+    }
+
+    def "a name keeps the type it was first added with even if another name added that type first"(){
+        given:
+        GazetteerBuilder builder = new GazetteerBuilder()
+        builder.add('Utah', 'PLACE')
+        builder.add('Washington', 'PERSON')
+        builder.add('Washington', 'PLACE')
+        builder.add('Jordan', 'PERSON')
+
+        when:
+        Gazetteer gazetteer = builder.build()
+
+        then:
+        gazetteer.types == ['PLACE', 'PERSON'] as String[]
+        gazetteer.entryCount == 3
+        gazetteer.getType('Washington') == 'PERSON'
+        gazetteer.getType('Utah') == 'PLACE'
+        gazetteer.getType('Jordan') == 'PERSON'
+    }
+
+    def "case can be ignored"(){
+        given:
+        GazetteerBuilder builder = new GazetteerBuilder(true)
+        builder.add('New York', 'PLACE')
+
+        when:
+        Gazetteer gazetteer = builder.build()
+
+        then:
+        gazetteer.ignoreCase
+        gazetteer.getType('new', 'york') == 'PLACE'
+        gazetteer.getType('NEW', 'York') == 'PLACE'
+    }
+
+    def "names are read one per line with their type after a tab"(){
+        given:
+        GazetteerBuilder builder = new GazetteerBuilder()
+
+        when:
+        int added = builder.addAll(new BufferedReader(new StringReader('Salt Lake City\tPLACE\n\nIBM\tORGANIZATION\n')))
+
+        then:
+        added == 2
+        builder.build().getType('Salt', 'Lake', 'City') == 'PLACE'
+    }
+
+    def "a line without a type is an error"(){
+        when:
+        new GazetteerBuilder().addAll(new BufferedReader(new StringReader('Salt Lake City')))
+
+        then:
+        thrown(IOException)
+    }
+
+    def "a saved gazetteer is mapped back in"(){
+        given:
+        GazetteerBuilder builder = new GazetteerBuilder(true)
+        (1..1000).each { builder.add("Town Number $it", 'PLACE') }
+        builder.add('Barack Obama', 'PERSON')
+        File file = File.createTempFile('gazetteer', '.fst')
+        file.deleteOnExit()
+
+        when:
+        Gazetteer saved = builder.build()
+        saved.save(file)
+        Gazetteer loaded = Gazetteer.load(file)
+
+        then:
+        loaded.entryCount == 1001
+        loaded.ignoreCase
+        loaded.sizeInBytes() == saved.sizeInBytes()
+        loaded.sizeInBytes() < 1001 * 'Town Number 1000'.length()
+        loaded.getType('town', 'number', '731') == 'PLACE'
+        loaded.getType('Barack', 'Obama') == 'PERSON'
+        loaded.getType('Town', 'Number', '1001') == null
+    }
+
+    def "a file which isn't a gazetteer is rejected"(){
+        given:
+        File file = File.createTempFile('gazetteer', '.fst')
+        file.deleteOnExit()
+        file.text = 'not a gazetteer'
+
+        when:
+        Gazetteer.load(file)
+
+        then:
+        thrown(IOException)
+    }
+}
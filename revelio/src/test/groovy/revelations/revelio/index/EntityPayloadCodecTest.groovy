@@ -0,0 +1,83 @@
+package revelations.revelio.index
+
+import org.apache.lucene.index.Payload
+import revelations.revelio.common.EntityAttribute
+import revelations.revelio.common.EntityAttributeImpl
+import revelations.revelio.common.EntityLabels
+import spock.lang.Specification
+
+import static revelations.revelio.common.BilouTags.*
+
+public class EntityPayloadCodecTest extends Specification {
+
+    static List<String> types = ['PERSON', 'PLACE'] + (1..20).collect { "TYPE$it".toString() }
+    EntityPayloadCodec codec = new EntityPayloadCodec(types)
+
+    def "a payload is read back as the span, type and flags it was written with"(){
+        Payload payload = codec.payload(span, codec.typeId(type), capitalized, punctuation)
+        byte[] data = payload.toByteArray()
+
+        expect:
+        data.length == bytes
+        EntityPayloadCodec.span(data, 0, data.length) == span
+        codec.typeName(EntityPayloadCodec.typeId(data, 0, data.length)) == type
+        EntityPayloadCodec.isCapitalized(data, 0, data.length) == capitalized
+        EntityPayloadCodec.isPunctuationMark(data, 0, data.length) == punctuation
+
+        where:
+        span        | type     | capitalized | punctuation | bytes
+        BEGIN_SPAN  | 'PERSON' | true        | false       | 1
+        UNIT_SPAN   | 'TYPE4'  | false       | false       | 1
+        LAST_SPAN   | 'TYPE5'  | true        | true        | 2
+        INSIDE_SPAN | 'TYPE20' | false       | true        | 2
+        OUTSIDE_SPAN| null     | false       | true        | 1
+    }
+
+    def "a token outside of any entity without flags has no payload"(){
+        expect:
+        codec.payload(OUTSIDE_SPAN, 0, false, false) == null
+        EntityPayloadCodec.span(new byte[0], 0, 0) == OUTSIDE_SPAN
+        EntityPayloadCodec.typeId(new byte[0], 0, 0) == 0
+        codec.label(null, 0, 0) == 0
+    }
+
+    def "payloads are shared rather than built for every token"(){
+        expect:
+        codec.payload(BEGIN_SPAN, 1, true, false).is(codec.payload(BEGIN_SPAN, 1, true, false))
+    }
+
+    def "payloads are decoded onto an entity attribute and into model labels"(){
+        byte[] data = codec.payload(LAST_SPAN, codec.typeId('PLACE'), true, false).toByteArray()
+        EntityAttribute entity = new EntityAttributeImpl()
+
+        when:
+        codec.decode(data, 0, data.length, entity)
+
+        then:
+        entity.toEntityTag() == 'L-PLACE'
+        entity.capitalized
+        !entity.punctuationMark
+        codec.label(data, 0, data.length) == EntityLabels.instance.label('L-PLACE')
+    }
+
+    def "types have the ids of their places in the list"(){
+        expect:
+        codec.types == types
+        codec.typeId('PERSON') == 1
+        codec.typeId('TYPE20') == 22
+        codec.typeId('ORGANIZATION') == 0
+        codec.typeId(null) == 0
+        codec.typeCount() == 22
+    }
+
+    def "a codec can't have a type twice or more types than fit in two bytes"(){
+        when:
+        new EntityPayloadCodec(list)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        list << [['PERSON', 'PERSON'], (0..EntityPayloadCodec.MAX_TYPES).collect { "T$it".toString() }]
+    }
+}
@@ -0,0 +1,92 @@
+package revelations.revelio.index
+
+import org.apache.lucene.analysis.TokenStream
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute
+import org.apache.lucene.util.Version
+import revelations.revelio.common.EntityTagFilter
+import revelations.revelio.common.TaggedTokenizer
+import revelations.revelio.metrics.StageMetrics
+import spock.lang.Specification
+
+public class EntityPayloadFilterTest extends Specification {
+
+    EntityPayloadCodec codec = new EntityPayloadCodec(['PERSON', 'PLACE'])
+
+    def "every token gets the payload of its entity attribute"(){
+        expect:
+        tokens(new EntityPayloadFilter(chain('I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX> in Utah.'), codec)) ==
+                ['I 1 O CAPITALIZED', 'met 1 -', 'David 1 B-PERSON CAPITALIZED', 'Lynch 1 L-PERSON CAPITALIZED',
+                        'in 1 -', 'Utah 1 O CAPITALIZED', '. 1 O PUNCTUATION']
+    }
+
+    def "type terms follow the tokens of an entity at the same position"(){
+        given:
+        TokenStream stream = new EntityPayloadFilter(chain('<ENAMEX TYPE="PERSON">David Lynch</ENAMEX> saw ' +
+                '<ENAMEX TYPE="PLACE">Utah</ENAMEX> and <ENAMEX TYPE="ORG">Acme</ENAMEX>'), codec, true)
+
+        expect:
+        tokens(stream) == ['David 1 B-PERSON CAPITALIZED', '<PERSON> 0 -', 'Lynch 1 L-PERSON CAPITALIZED',
+                '<PERSON> 0 -', 'saw 1 -', 'Utah 1 U-PLACE CAPITALIZED', '<PLACE> 0 -', 'and 1 -',
+                'Acme 1 U CAPITALIZED']
+    }
+
+    def "a reset filter starts clean"(){
+        given:
+        TaggedTokenizer tokenizer = new TaggedTokenizer(Version.LUCENE_36,
+                new StringReader('<ENAMEX TYPE="PERSON">Lynch</ENAMEX> left'))
+        TokenStream stream = new EntityPayloadFilter(new EntityTagFilter(tokenizer), codec, true)
+        stream.reset()
+        stream.incrementToken()
+
+        when:
+        tokenizer.reset(new StringReader('so is Texas'))
+
+        then:
+        tokens(stream) == ['so 1 -', 'is 1 -', 'Texas 1 O CAPITALIZED']
+    }
+
+    def "an instrumented filter counts type terms and the types the codec doesn't have"(){
+        given:
+        EntityPayloadFilter filter = new EntityPayloadFilter(chain('<ENAMEX TYPE="PERSON">David Lynch</ENAMEX> of ' +
+                '<ENAMEX TYPE="ORG">Acme Inc</ENAMEX>'), codec, true)
+        StageMetrics metrics = new StageMetrics('test')
+        filter.setMetrics(metrics)
+
+        when:
+        tokens(filter)
+
+        then:
+        metrics.counter(StageMetrics.TOKENS).sum() == 7
+        metrics.counter(EntityPayloadFilter.TYPE_TERMS).sum() == 2
+        metrics.counter(EntityPayloadFilter.UNKNOWN_TYPES).sum() == 2
+    }
+
+    TokenStream chain(String text) {
+        new EntityTagFilter(new TaggedTokenizer(Version.LUCENE_36, new StringReader(text)))
+    }
+
+    List<String> tokens(TokenStream stream) {
+        CharTermAttribute term = stream.addAttribute(CharTermAttribute)
+        PayloadAttribute payload = stream.addAttribute(PayloadAttribute)
+        PositionIncrementAttribute position = stream.addAttribute(PositionIncrementAttribute)
+        List<String> tokens = []
+        stream.reset()
+        while (stream.incrementToken()) {
+            tokens << "$term ${position.positionIncrement} ${describe(payload.payload?.toByteArray())}".toString()
+        }
+        stream.end()
+        tokens
+    }
+
+    String describe(byte[] data) {
+        if (data == null) {
+            return '-'
+        }
+        String type = codec.typeName(EntityPayloadCodec.typeId(data, 0, data.length))
+        String tag = ['O', 'B', 'I', 'L', 'U'][EntityPayloadCodec.span(data, 0, data.length)] + (type ? "-$type" : '')
+        tag + (EntityPayloadCodec.isCapitalized(data, 0, data.length) ? ' CAPITALIZED' : '') +
+                (EntityPayloadCodec.isPunctuationMark(data, 0, data.length) ? ' PUNCTUATION' : '')
+    }
+}
@@ -0,0 +1,102 @@
+package revelations.revelio.index
+
+import org.apache.lucene.analysis.TokenStream
+import org.apache.lucene.document.Document
+import org.apache.lucene.document.Field
+import org.apache.lucene.index.IndexReader
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.index.IndexWriterConfig
+import org.apache.lucene.index.Term
+import org.apache.lucene.search.IndexSearcher
+import org.apache.lucene.search.PhraseQuery
+import org.apache.lucene.search.Query
+import org.apache.lucene.search.TermQuery
+import org.apache.lucene.search.spans.SpanNearQuery
+import org.apache.lucene.search.spans.SpanQuery
+import org.apache.lucene.search.spans.SpanTermQuery
+import org.apache.lucene.store.RAMDirectory
+import org.apache.lucene.util.Version
+import revelations.revelio.common.EntityTagFilter
+import revelations.revelio.common.TaggedTokenizer
+import spock.lang.Shared
+import spock.lang.Specification
+
+public class EntitySpanQueryTest extends Specification {
+
+    @Shared EntityPayloadCodec codec = new EntityPayloadCodec(['PERSON', 'PLACE', 'ORG'])
+    @Shared RAMDirectory directory = new RAMDirectory()
+    @Shared IndexSearcher searcher
+    @Shared List<String> documents = [
+            'I read <ENAMEX TYPE="PERSON">Noam Chomsky</ENAMEX> today.',
+            'The Chomsky hierarchy is about grammars.',
+            'We drove to <ENAMEX TYPE="PLACE">Chomsky</ENAMEX> which is not a real place.',
+            '<ENAMEX TYPE="PERSON">Chomsky</ENAMEX> met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX>.',
+            'David met Lynch.']
+
+    def setupSpec() {
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_36, null))
+        documents.each { String text ->
+            TokenStream stream = new EntityPayloadFilter(new EntityTagFilter(new TaggedTokenizer(Version.LUCENE_36,
+                    new StringReader(text))), codec, true)
+            Document document = new Document()
+            document.add(new Field('text', stream))
+            writer.addDocument(document)
+        }
+        writer.close()
+        searcher = new IndexSearcher(IndexReader.open(directory))
+    }
+
+    def cleanupSpec() {
+        searcher.close()
+    }
+
+    def "a term is found where it is part of an entity of the type"(){
+        expect:
+        search(new EntitySpanQuery(new Term('text', 'Chomsky'), codec, 'PERSON')) == [0, 3]
+        search(new EntitySpanQuery(new Term('text', 'Chomsky'), codec, 'PLACE')) == [2]
+        search(new EntitySpanQuery(new Term('text', 'Chomsky'), codec, 'ORG')) == []
+        search(new SpanTermQuery(new Term('text', 'Chomsky'))) == [0, 1, 2, 3]
+    }
+
+    def "every token of a span has to be part of an entity of the type"(){
+        SpanQuery name = new SpanNearQuery([new SpanTermQuery(new Term('text', 'David')),
+                new SpanTermQuery(new Term('text', 'Lynch'))] as SpanQuery[], 1, true)
+
+        expect:
+        search(name) == [3, 4]
+        search(new EntitySpanQuery(name, codec, 'PERSON')) == [3]
+    }
+
+    def "type terms find the documents with an entity of a type or a word as one"(){
+        PhraseQuery phrase = new PhraseQuery()
+        phrase.add(new Term('text', 'Chomsky'), 0)
+        phrase.add(new Term('text', EntityPayloadFilter.typeTerm('PERSON')), 0)
+
+        expect:
+        search(new TermQuery(new Term('text', EntityPayloadFilter.typeTerm('PLACE')))) == [2]
+        search(phrase) == [0, 3]
+    }
+
+    def "the type has to be one the codec has"(){
+        when:
+        new EntitySpanQuery(new Term('text', 'Chomsky'), codec, 'MISC')
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "queries are equal by what they match"(){
+        Query query = new EntitySpanQuery(new Term('text', 'Chomsky'), codec, 'PERSON')
+
+        expect:
+        query == new EntitySpanQuery(new Term('text', 'Chomsky'), codec, 'PERSON')
+        query.clone() == query
+        query.hashCode() == query.clone().hashCode()
+        query != new EntitySpanQuery(new Term('text', 'Chomsky'), codec, 'PLACE')
+        query.toString('text') == 'entity(Chomsky, PERSON)'
+    }
+
+    List<Integer> search(Query query) {
+        searcher.search(query, 10).scoreDocs*.doc.sort()
+    }
+}
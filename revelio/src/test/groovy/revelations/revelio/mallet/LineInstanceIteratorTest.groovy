@@ -0,0 +1,28 @@
+package revelations.revelio.mallet
+
+import spock.lang.Specification
+
+public class LineInstanceIteratorTest extends Specification {
+
+    def "each non blank line is an instance named by its line number"(){
+        when:
+        LineInstanceIterator iterator = new LineInstanceIterator(new StringReader('one\n  \ntwo\r\nthree'))
+        def instances = iterator.collect { it }
+
+        then:
+        instances*.data == ['one', 'two', 'three']
+        instances*.name == [1, 3, 4]
+        !iterator.hasNext()
+    }
+
+    def "next fails after the last line"(){
+        given:
+        LineInstanceIterator iterator = new LineInstanceIterator(new StringReader(''))
+
+        when:
+        iterator.next()
+
+        then:
+        thrown(NoSuchElementException)
+    }
+}
@@ -0,0 +1,236 @@
+package revelations.revelio.mallet
+
+import cc.mallet.pipe.Pipe
+import cc.mallet.types.Instance
+import revelations.revelio.common.EntityLabels
+import revelations.revelio.corpus.CachedTokenStream
+import revelations.revelio.corpus.TokenCacheWriter
+import revelations.revelio.features.TermFeature
+import revelations.revelio.gazetteer.GazetteerBuilder
+import revelations.revelio.metrics.StageMetrics
+import spock.lang.Specification
+
+public class TokenStreamPipeTest extends Specification {
+
+    TokenStreamPipe pipe = new TokenStreamPipe()
+
+    def "tagged text becomes a feature vector and a BILOU label per token"(){
+        when:
+        Instance instance = pipe.pipe(new Instance('I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX> today.', null, 'doc', null))
+
+        then:
+        instance.data.size() == 6
+        instance.target.size() == 6
+        (0..5).collect { instance.target.get(it).toString() } == ['O', 'O', 'B-PERSON', 'L-PERSON', 'O', 'O']
+        features(instance, 2) == ['W=David', 'CAPITALIZED'] as Set
+        features(instance, 5) == ['W=.', 'PUNCTUATION'] as Set
+    }
+
+    def "tokens of markup the filter can't parse are labelled O and counted as rejected tags"(){
+        given:
+        StageMetrics metrics = new StageMetrics('test')
+        pipe.metrics = metrics
+
+        when:
+        Instance instance = pipe.pipe(new Instance('I met <ENAMEX TYPE="">Fox</ENAMEX> today', null, 'doc', null))
+
+        then:
+        (0..<instance.target.size()).collect { instance.target.get(it).toString() } == ['O', 'O', 'O', 'O']
+        pipe.targetAlphabet.toArray() as List == ['O']
+        pipe.targetAlphabet.toArray().every { EntityLabels.instance.label(it as String) >= 0 }
+        metrics.counter(TokenStreamPipe.REJECTED_TAGS).sum() == 1
+    }
+
+    def "more term features can be turned on and are cached by term"(){
+        given:
+        pipe.termFeatures = EnumSet.of(TermFeature.WORD, TermFeature.SHAPE, TermFeature.PATTERNS)
+
+        when:
+        Instance instance = pipe.pipe(new Instance('NASA and NASA', null, 'doc', null))
+
+        then:
+        features(instance, 0) == ['W=NASA', 'SHAPE=X', 'ALL_CAPS', 'CAPITALIZED'] as Set
+        features(instance, 2) == features(instance, 0)
+        pipe.featureCache.hits == 1
+        pipe.featureCache.misses == 2
+        pipe.featureCache.ramBytesUsed() > 0
+    }
+
+    def "names in the gazetteer become features"(){
+        given:
+        GazetteerBuilder builder = new GazetteerBuilder()
+        builder.add('David Lynch', 'PERSON')
+        pipe.gazetteer = builder.build()
+
+        when:
+        Instance instance = pipe.pipe(new Instance('I met David Lynch', null, 'doc', null))
+
+        then:
+        features(instance, 1) == ['W=met'] as Set
+        features(instance, 2) == ['W=David', 'CAPITALIZED', 'G=B-PERSON'] as Set
+        features(instance, 3) == ['W=Lynch', 'CAPITALIZED', 'G=L-PERSON'] as Set
+    }
+
+    def "the same stream is reused for every instance"(){
+        when:
+        Instance first = pipe.pipe(new Instance('<ENAMEX TYPE="PLACE">Utah</ENAMEX> is big', null, 1, null))
+        Instance second = pipe.pipe(new Instance(new StringReader('so is Texas'), null, 2, null))
+
+        then:
+        (0..2).collect { first.target.get(it).toString() } == ['U-PLACE', 'O', 'O']
+        (0..2).collect { second.target.get(it).toString() } == ['O', 'O', 'O']
+        features(second, 2) == ['W=Texas', 'CAPITALIZED'] as Set
+    }
+
+    def "instances are piped one at a time from a line iterator"(){
+        given:
+        Reader corpus = new StringReader('first line\n\n<ENAMEX TYPE="ORG">Acme</ENAMEX> rocks\n')
+
+        when:
+        Iterator<Instance> instances = pipe.newIteratorFrom(new LineInstanceIterator(corpus))
+        List<Instance> piped = instances.collect { it }
+
+        then:
+        piped.size() == 2
+        piped*.name == [1, 3]
+        piped[1].target.get(0).toString() == 'U-ORG'
+    }
+
+    def "documents split into sentences are piped a sentence at a time"(){
+        given:
+        pipe.maxSentenceLength = 8
+        Reader corpus = new StringReader('I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX>. He left.\n\nOne.\n')
+
+        when:
+        List<Instance> piped = pipe.newIteratorFrom(new LineInstanceIterator(corpus)).collect { it }
+
+        then:
+        piped*.name == [1, 1, 3]
+        piped.collect { it.data.size() } == [5, 3, 2]
+        (0..4).collect { piped[0].target.get(it).toString() } == ['O', 'O', 'B-PERSON', 'L-PERSON', 'O']
+        features(piped[1], 0) == ['W=He', 'CAPITALIZED'] as Set
+    }
+
+    def "cached tokens are split into the same sentences as text"(){
+        given:
+        pipe.maxSentenceLength = 3
+        List<String> documents = ['One two three four. Five.', 'Six. Seven eight']
+        ByteArrayOutputStream cache = new ByteArrayOutputStream()
+        TokenCacheWriter writer = new TokenCacheWriter(cache)
+        documents.each { writer.addDocument(new StringReader(it)) }
+        writer.close()
+        CachedTokenStream stream = new CachedTokenStream(new ByteArrayInputStream(cache.toByteArray()))
+
+        when:
+        List<Instance> cached = pipe.newIteratorFrom(new CachedInstanceIterator(stream)).collect { it }
+        List<Instance> piped = pipe.newIteratorFrom(documents.collect { new Instance(it, null, 0, null) }.iterator())
+                .collect { it }
+
+        then:
+        cached*.name == [1, 1, 1, 2, 2]
+        cached.collect { sequence(it.data) } == piped.collect { sequence(it.data) }
+        cached.collect { it.data.size() } == [3, 2, 2, 2, 2]
+    }
+
+    def "a whole document is still piped as one instance which knows where its sentences end"(){
+        given:
+        List<Boolean> ends = []
+        Pipe sentencePipe = new TokenStreamPipe() {
+            @Override
+            protected void addTokenFeatures(org.apache.lucene.analysis.tokenattributes.CharTermAttribute term,
+                                            revelations.revelio.common.EntityAttribute entity) {
+                super.addTokenFeatures(term, entity)
+                ends << sentenceEnd
+            }
+        }
+        sentencePipe.maxSentenceLength = 100
+
+        when:
+        Instance instance = sentencePipe.pipe(new Instance('Hi there. Bye.', null, 1, null))
+
+        then:
+        instance.data.size() == 5
+        ends == [false, false, true, false, true]
+    }
+
+    def "unknown features are dropped once the alphabet stops growing"(){
+        given:
+        pipe.pipe(new Instance('known words', null, 1, null))
+        pipe.dataAlphabet.stopGrowth()
+
+        when:
+        Instance instance = pipe.pipe(new Instance('known Unknown', null, 2, null))
+
+        then:
+        features(instance, 0) == ['W=known'] as Set
+        features(instance, 1) == [] as Set
+        pipe.dataAlphabet.size() == 2
+    }
+
+    def "subclasses can add their own features"(){
+        given:
+        Pipe suffixPipe = new TokenStreamPipe() {
+            @Override
+            protected void addTokenFeatures(org.apache.lucene.analysis.tokenattributes.CharTermAttribute term,
+                                            revelations.revelio.common.EntityAttribute entity) {
+                super.addTokenFeatures(term, entity)
+                addFeature('LENGTH=' + term.length())
+            }
+        }
+
+        when:
+        Instance instance = suffixPipe.pipe(new Instance('hello', null, 1, null))
+
+        then:
+        features(instance, 0) == ['W=hello', 'LENGTH=5'] as Set
+    }
+
+    def "cached tokens are piped the same as the text they came from"(){
+        given:
+        List<String> documents = ['I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX> today.', 'so is Texas']
+        ByteArrayOutputStream cache = new ByteArrayOutputStream()
+        TokenCacheWriter writer = new TokenCacheWriter(cache)
+        documents.each { writer.addDocument(new StringReader(it)) }
+        writer.close()
+        CachedTokenStream stream = new CachedTokenStream(new ByteArrayInputStream(cache.toByteArray()))
+
+        when:
+        List<Instance> cached = pipe.newIteratorFrom(new CachedInstanceIterator(stream)).collect { it }
+        List<Instance> piped = documents.collect { pipe.pipe(new Instance(it, null, 0, null)) }
+
+        then:
+        cached*.name == [1, 2]
+        cached.size() == 2
+        (0..1).every { int i -> sequence(cached[i].data) == sequence(piped[i].data) && cached[i].target.toString() == piped[i].target.toString() }
+    }
+
+    def "text without tokens becomes an empty sequence"(){
+        when:
+        Instance instance = pipe.pipe(new Instance(text, null, 'doc', null))
+
+        then:
+        instance.data.size() == 0
+        instance.data.alphabet.is(pipe.dataAlphabet)
+        instance.target.size() == 0
+
+        where:
+        text << ['', ' \t ']
+    }
+
+    def "data which is not text is rejected"(){
+        when:
+        pipe.pipe(new Instance(42, null, 1, null))
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    private static List<String> sequence(def data) {
+        data.toString().readLines().tail()
+    }
+
+    private static Set<String> features(Instance instance, int token) {
+        def vector = instance.data.get(token)
+        (0..<vector.numLocations()).collect { vector.alphabet.lookupObject(vector.indexAtLocation(it)) } as Set
+    }
+}
@@ -0,0 +1,77 @@
+package revelations.revelio.metrics
+
+import org.apache.log4j.AppenderSkeleton
+import org.apache.log4j.Logger
+import org.apache.log4j.spi.LoggingEvent
+import spock.lang.Specification
+
+import java.lang.management.ManagementFactory
+
+public class AnalysisMetricsTest extends Specification {
+
+    def cleanup() {
+        AnalysisMetrics.enabled = false
+        AnalysisMetrics.stopLogging()
+    }
+
+    def "stages are created once and published over JMX"(){
+        when:
+        StageMetrics stage = AnalysisMetrics.stage('AnalysisMetricsTest')
+        stage.counter('tokens').add(3)
+
+        then:
+        AnalysisMetrics.stage('AnalysisMetricsTest').is(stage)
+        AnalysisMetrics.stages().contains(stage)
+        ManagementFactory.platformMBeanServer.getAttribute(AnalysisMetrics.objectName('AnalysisMetricsTest'), 'tokens') == 3
+    }
+
+    def "stages are only handed out when instrumentation is on"(){
+        when:
+        AnalysisMetrics.enabled = false
+
+        then:
+        AnalysisMetrics.stageIfEnabled('AnalysisMetricsTest') == null
+
+        when:
+        AnalysisMetrics.enabled = true
+
+        then:
+        AnalysisMetrics.stageIfEnabled('AnalysisMetricsTest').is(AnalysisMetrics.stage('AnalysisMetricsTest'))
+    }
+
+    def "logging starts when instrumentation is turned on after the class is loaded"(){
+        given:
+        AnalysisMetrics.@logSecondsChecked = false
+        System.setProperty(AnalysisMetrics.LOG_SECONDS_PROPERTY, '60')
+
+        when:
+        AnalysisMetrics.enabled = true
+
+        then:
+        AnalysisMetrics.@logger != null
+
+        cleanup:
+        System.clearProperty(AnalysisMetrics.LOG_SECONDS_PROPERTY)
+    }
+
+    def "stages are logged with the rate of each counter"(){
+        given:
+        List<String> lines = []
+        def appender = new AppenderSkeleton() {
+            protected void append(LoggingEvent event) { lines << event.renderedMessage }
+            void close() {}
+            boolean requiresLayout() { false }
+        }
+        Logger.getLogger(AnalysisMetrics).addAppender(appender)
+        AnalysisMetrics.stage('LoggedStage').counter('tokens').add(5)
+
+        when:
+        AnalysisMetrics.logStages()
+
+        then:
+        lines.find { it.startsWith('LoggedStage ') } =~ /tokens=5 \(\d+\/s\).* latencyP99Micros=0/
+
+        cleanup:
+        Logger.getLogger(AnalysisMetrics).removeAppender(appender)
+    }
+}
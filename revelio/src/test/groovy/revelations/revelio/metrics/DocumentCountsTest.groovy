@@ -0,0 +1,50 @@
+package revelations.revelio.metrics
+
+import spock.lang.Specification
+
+public class DocumentCountsTest extends Specification {
+
+    def "counts are added to the counters of the metrics only when they are flushed"(){
+        given:
+        StageMetrics metrics = new StageMetrics('Stage')
+        DocumentCounts counts = new DocumentCounts(metrics, StageMetrics.TOKENS, 'names')
+
+        when:
+        counts.increment(0)
+        counts.increment(0)
+        counts.add(1, 5)
+
+        then:
+        metrics.counter(StageMetrics.TOKENS).sum() == 0
+        counts.get(0) == 2
+        counts.toString() == 'DocumentCounts(tokens=2, names=5)'
+
+        when:
+        counts.flush()
+        counts.increment(1)
+        counts.flush()
+
+        then:
+        metrics.counter(StageMetrics.TOKENS).sum() == 2
+        metrics.counter('names').sum() == 6
+        counts.get(0) == 0
+        counts.get(1) == 0
+    }
+
+    def "counts without metrics are dropped when they are flushed"(){
+        given:
+        StageMetrics metrics = new StageMetrics('Stage')
+        DocumentCounts counts = new DocumentCounts(null, StageMetrics.TOKENS)
+
+        when:
+        counts.increment(0)
+        counts.flush()
+        counts.setMetrics(metrics)
+        counts.increment(0)
+        counts.flush()
+
+        then:
+        counts.getMetrics().is(metrics)
+        metrics.counter(StageMetrics.TOKENS).sum() == 1
+    }
+}
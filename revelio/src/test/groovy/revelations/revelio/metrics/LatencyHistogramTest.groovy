@@ -0,0 +1,56 @@
+package revelations.revelio.metrics
+
+import spock.lang.Specification
+
+public class LatencyHistogramTest extends Specification {
+
+    LatencyHistogram histogram = new LatencyHistogram(4)
+
+    def "latencies go in a bucket for their highest bit"(){
+        expect:
+        LatencyHistogram.bucket(0) == 0
+        LatencyHistogram.bucket(1) == 1
+        LatencyHistogram.bucket(2) == 2
+        LatencyHistogram.bucket(3) == 2
+        LatencyHistogram.bucket(1024) == 11
+        LatencyHistogram.bucket(Long.MAX_VALUE) == 63
+    }
+
+    def "percentiles are within a factor of two"(){
+        when:
+        (1..99).each { histogram.record(1000) }
+        histogram.record(1000000)
+
+        then:
+        histogram.count == 100
+        histogram.maxNanos == 1000000
+        histogram.meanNanos == (99 * 1000 + 1000000) / 100 as long
+        histogram.getPercentileNanos(50) >= 1000
+        histogram.getPercentileNanos(50) < 2000
+        histogram.getPercentileNanos(99) < 2000
+        histogram.getPercentileNanos(100) == 1000000
+    }
+
+    def "an empty histogram reports 0"(){
+        expect:
+        histogram.count == 0
+        histogram.meanNanos == 0
+        histogram.getPercentileNanos(99) == 0
+    }
+
+    def "negative latencies are recorded as 0 and reset empties the histogram"(){
+        when:
+        histogram.record(-5)
+
+        then:
+        histogram.count == 1
+        histogram.maxNanos == 0
+
+        when:
+        histogram.reset()
+
+        then:
+        histogram.count == 0
+        histogram.totalNanos == 0
+    }
+}
@@ -0,0 +1,58 @@
+package revelations.revelio.metrics
+
+import spock.lang.Specification
+
+import javax.management.AttributeNotFoundException
+import javax.management.ReflectionException
+
+public class StageMetricsTest extends Specification {
+
+    StageMetrics metrics = new StageMetrics('stage')
+
+    def "counters are created once by name"(){
+        expect:
+        metrics.counter('tokens').is(metrics.counter('tokens'))
+    }
+
+    def "counters and latencies are MBean attributes"(){
+        given:
+        metrics.counter('tokens').add(7)
+        metrics.latency.record(3000)
+
+        expect:
+        metrics.getAttribute('tokens') == 7
+        metrics.getAttribute('latencyMaxMicros') == 3
+        metrics.getAttributes(['tokens', 'nope'] as String[]).size() == 1
+        metrics.MBeanInfo.attributes*.name == ['tokens', 'latencyMeanMicros', 'latencyP50Micros', 'latencyP99Micros', 'latencyMaxMicros']
+        metrics.snapshot().tokens == 7
+    }
+
+    def "an unknown attribute is an error"(){
+        when:
+        metrics.getAttribute('nope')
+
+        then:
+        thrown(AttributeNotFoundException)
+    }
+
+    def "the reset operation clears everything"(){
+        given:
+        metrics.counter('tokens').add(7)
+        metrics.latency.record(3000)
+
+        when:
+        metrics.invoke('reset', null, null)
+
+        then:
+        metrics.getAttribute('tokens') == 0
+        metrics.latency.count == 0
+    }
+
+    def "other operations are an error"(){
+        when:
+        metrics.invoke('explode', null, null)
+
+        then:
+        thrown(ReflectionException)
+    }
+}
@@ -0,0 +1,45 @@
+package revelations.revelio.metrics
+
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+public class StripedCounterTest extends Specification {
+
+    def "adds from many threads are all counted"(){
+        given:
+        StripedCounter counter = new StripedCounter()
+        def pool = Executors.newFixedThreadPool(8)
+
+        when:
+        pool.invokeAll((1..8).collect { { -> (1..10000).each { counter.increment(); counter.add(2) } } as Callable })
+
+        then:
+        counter.sum() == 8 * 10000 * 3
+
+        cleanup:
+        pool.shutdown()
+    }
+
+    def "the number of stripes is rounded up to a power of two"(){
+        expect:
+        Stripes.roundUp(1) == 1
+        Stripes.roundUp(3) == 4
+        Stripes.roundUp(8) == 8
+        new StripedCounter(3).with { add(5); add(-2); sum() } == 3
+    }
+
+    def "reset sets the count back to 0"(){
+        given:
+        StripedCounter counter = new StripedCounter(2)
+        counter.add(42)
+
+        when:
+        counter.reset()
+
+        then:
+        counter.sum() == 0
+        counter.toString() == '0'
+    }
+}
@@ -0,0 +1,188 @@
+package revelations.revelio.server
+
+import revelations.revelio.tagger.DocumentTagger
+import revelations.revelio.tagger.DocumentTaggerTest
+import revelations.revelio.tagger.TaggedDocument
+import revelations.revelio.tagger.TaggerModel
+import revelations.revelio.train.CrfTrainingDriver
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.RejectedExecutionException
+
+public class BatchingTaggerTest extends Specification {
+
+    @Shared TaggerModel model
+    @Shared List<String> documents = (0..<300).collect {
+        ['I went to Salt Lake City today.', 'Lynch went home.', '', 'I saw Utah.'][it % 4] + " number $it"
+    }
+
+    def setupSpec() {
+        model = new TaggerModel(DocumentTaggerTest.train(new CrfTrainingDriver(threads: 2, iterations: 100)))
+    }
+
+    def "concurrent requests are tagged the way one document tagger tags them"(){
+        BatchingTagger tagger = new BatchingTagger(model, null)
+        tagger.threads = threads
+        tagger.batchSize = batchSize
+        tagger.maxWaitMicros = maxWaitMicros
+        tagger.start()
+        DocumentTagger serial = new DocumentTagger(model, null)
+        ExecutorService callers = Executors.newFixedThreadPool(8)
+
+        when:
+        List<List<String>> requests = (0..<documents.size()).step(3).collect { documents[it..it + 2] }
+        List<String> tagged = callers.invokeAll(requests.collect { List<String> request ->
+            { -> tagger.tag(request)*.toString() } as Callable<List<String>>
+        })*.get().flatten()
+
+        then:
+        tagged == documents.collect { serial.tag(it) }
+        tagger.metrics.counter(BatchingTagger.REQUESTS).sum() == requests.size()
+        tagger.metrics.counter('documents').sum() == documents.size()
+        tagger.metrics.counter(BatchingTagger.BATCHES).sum() <= documents.size()
+
+        cleanup:
+        callers.shutdown()
+        tagger.stop()
+
+        where:
+        threads | batchSize | maxWaitMicros
+        1       | 1         | 0
+        2       | 16        | 0
+        3       | 8         | 500
+    }
+
+    def "documents of concurrent requests are merged into batches"(){
+        BatchingTagger tagger = new BatchingTagger(model, null)
+        tagger.threads = 1
+        tagger.batchSize = 64
+        tagger.maxWaitMicros = 20000
+        tagger.start()
+        ExecutorService callers = Executors.newFixedThreadPool(16)
+
+        when:
+        callers.invokeAll((0..<64).collect { int i ->
+            { -> tagger.tag(documents[i]) } as Callable
+        })*.get()
+
+        then:
+        tagger.metrics.counter(BatchingTagger.BATCHES).sum() < 64
+
+        cleanup:
+        callers.shutdown()
+        tagger.stop()
+    }
+
+    def "a model can be swapped in while requests are tagged"(){
+        BatchingTagger tagger = new BatchingTagger(model, null)
+        tagger.threads = 2
+        tagger.batchSize = 4
+        tagger.start()
+        DocumentTagger serial = new DocumentTagger(model, null)
+        ExecutorService callers = Executors.newFixedThreadPool(8)
+
+        when:
+        List<Future> tagged = (0..<100).collect { int i ->
+            callers.submit({ -> tagger.tag(documents[i]) } as Callable)
+        }
+        tagger.registry.swap(model, null, 'retrained')
+        tagged.addAll((100..<documents.size()).collect { int i ->
+            callers.submit({ -> tagger.tag(documents[i]) } as Callable)
+        })
+        List<TaggedDocument> results = tagged*.get()
+
+        then:
+        results*.toString() == documents.collect { serial.tag(it) }
+        results*.modelVersion.every { it in [1, 2] }
+        results[100..-1]*.modelVersion.every { it == 2 }
+        tagger.tag('I saw Utah.').modelVersion == 2
+
+        cleanup:
+        callers.shutdown()
+        tagger.stop()
+    }
+
+    def "a request the queue doesn't have room for is rejected without queuing any of it"(){
+        BatchingTagger tagger = new BatchingTagger(model, null)
+        tagger.threads = 1
+        tagger.queueSize = 4
+        tagger.start()
+        tagger.@room.acquire(2) // as if two documents were waiting
+
+        when:
+        tagger.tag(documents[0..2])
+
+        then:
+        thrown(RejectedExecutionException)
+        tagger.@queue.isEmpty()
+        tagger.metrics.counter(BatchingTagger.REJECTED).sum() == 1
+        tagger.tag(documents[0..1])*.toString() == documents[0..1].collect { new DocumentTagger(model, null).tag(it) }
+
+        cleanup:
+        tagger.stop()
+    }
+
+    def "a request with more documents than the queue holds is never taken"(){
+        BatchingTagger tagger = new BatchingTagger(model, null)
+        tagger.threads = 1
+        tagger.queueSize = 4
+        tagger.start()
+
+        when:
+        tagger.tag(documents[0..4])
+
+        then:
+        thrown(IllegalArgumentException)
+        tagger.metrics.counter(BatchingTagger.REJECTED).sum() == 1
+        tagger.tag(documents[0..3]).size() == 4
+
+        cleanup:
+        tagger.stop()
+    }
+
+    def "a tagger only tags while it is running and can't be changed then"(){
+        BatchingTagger tagger = new BatchingTagger(model, null)
+
+        when:
+        tagger.tag('I saw Utah.')
+
+        then:
+        thrown(IllegalStateException)
+
+        when:
+        tagger.start()
+        tagger.threads = 2
+
+        then:
+        thrown(IllegalStateException)
+        tagger.tag('I saw Utah.').toString() == 'I/O saw/O Utah/U-PLACE ./O'
+        tagger.tag([]) == []
+
+        when:
+        tagger.stop()
+        tagger.tag('I saw Utah.')
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    def "the settings must make sense"(){
+        when:
+        new BatchingTagger(model, null)."$property" = value
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        property        | value
+        'threads'       | 0
+        'batchSize'     | 0
+        'queueSize'     | 0
+        'maxWaitMicros' | -1
+    }
+}
@@ -0,0 +1,169 @@
+package revelations.revelio.server
+
+import groovy.json.JsonSlurper
+import revelations.revelio.tagger.DocumentTagger
+import revelations.revelio.tagger.DocumentTaggerTest
+import revelations.revelio.tagger.TaggerModel
+import revelations.revelio.train.CrfTrainingDriver
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+public class TaggingServerTest extends Specification {
+
+    @Shared TaggingServer server
+
+    def setupSpec() {
+        TaggerModel model = new TaggerModel(DocumentTaggerTest.train(new CrfTrainingDriver(threads: 2,
+                iterations: 100)))
+        BatchingTagger tagger = new BatchingTagger(model, null)
+        tagger.threads = 2
+        server = new TaggingServer(tagger)
+        server.start(new InetSocketAddress(InetAddress.getByName('127.0.0.1'), 0))
+    }
+
+    def cleanupSpec() {
+        server.stop()
+    }
+
+    def "a document is answered with its tokens, their offsets and their tags"(){
+        when:
+        Map response = post('I saw Utah.')
+
+        then:
+        response.status == 200
+        response.json.documents.size() == 1
+        response.json.documents[0].model == 1
+        response.json.documents[0].labels == 1
+        response.json.documents[0].tokens.collect { "$it.term $it.start-$it.end $it.tag".toString() } ==
+                ['I 0-1 O', 'saw 2-5 O', 'Utah 6-10 U-PLACE', '. 10-11 O']
+    }
+
+    def "a batch is answered with a document for every line"(){
+        when:
+        Map response = post('I went to Salt Lake City today.\n\nLynch said "hi"\n')
+
+        then:
+        response.status == 200
+        response.json.documents*.tokens*.size() == [8, 0, 5]
+        response.json.documents[0].tokens*.tag == ['O', 'O', 'O', 'B-PLACE', 'I-PLACE', 'L-PLACE', 'O', 'O']
+        response.json.documents[2].tokens*.term == ['Lynch', 'said', '"', 'hi', '"']
+    }
+
+    def "concurrent clients all get their own documents back"(){
+        ExecutorService clients = Executors.newFixedThreadPool(16)
+
+        when:
+        List<List> terms = clients.invokeAll((0..<64).collect { int i ->
+            { -> post("I saw Utah on day $i.").json.documents[0].tokens*.term } as Callable<List>
+        })*.get()
+
+        then:
+        terms == (0..<64).collect { ['I', 'saw', 'Utah', 'on', 'day', "$it".toString(), '.'] }
+
+        cleanup:
+        clients.shutdown()
+    }
+
+    def "a request with more lines than the queue holds is too large"(){
+        HttpURLConnection connection = (HttpURLConnection) url().openConnection()
+        connection.requestMethod = 'POST'
+        connection.doOutput = true
+        connection.outputStream.withWriter('UTF-8') { it << 'I saw Utah.\n' * (server.tagger.queueSize + 1) }
+
+        expect:
+        connection.responseCode == 413
+        connection.errorStream.getText('UTF-8').startsWith('A request can have at most')
+    }
+
+    def "a request with a line longer than the server takes is too large"(){
+        server.maxLineChars = 100
+        HttpURLConnection connection = (HttpURLConnection) url().openConnection()
+        connection.requestMethod = 'POST'
+        connection.doOutput = true
+        connection.outputStream.withWriter('UTF-8') { it << 'I saw Utah.\n' << 'a' * 101 << '\n' }
+
+        expect:
+        connection.responseCode == 413
+        connection.errorStream.getText('UTF-8') == 'A document can have at most 100 chars\n'
+
+        cleanup:
+        server.maxLineChars = TaggingServer.DEFAULT_MAX_LINE_CHARS
+    }
+
+    def "a body is read only up to the first line past the limits"(){
+        given:
+        int read = 0
+        Reader endless = new Reader() {
+            @Override
+            int read(char[] chars, int offset, int length) {
+                int n = Math.min(length, 6)
+                'a b c\n'.getChars(0, n, chars, offset)
+                read += n
+                n
+            }
+
+            @Override
+            void close() {
+            }
+        }
+
+        when:
+        TaggingServer.readLines(endless, 10, 100)
+
+        then:
+        TaggingServer.TooLargeException e = thrown()
+        e.message == 'A request can have at most 10 documents'
+        read < 100 * 1024
+    }
+
+    def "lines are split at any line terminator"(){
+        expect:
+        TaggingServer.readLines(new StringReader(body), 10, 100) == lines
+
+        where:
+        body             | lines
+        ''               | []
+        'a'              | ['a']
+        'a\n'            | ['a']
+        'a\r\nb\rc\n\nd' | ['a', 'b', 'c', '', 'd']
+        '\r\n'           | ['']
+    }
+
+    def "only posts are tagged"(){
+        HttpURLConnection connection = (HttpURLConnection) url().openConnection()
+
+        expect:
+        connection.responseCode == 405
+    }
+
+    def "terms are escaped in the json"(){
+        StringBuilder json = new StringBuilder()
+        TaggingServer.appendJson([new DocumentTagger(server.tagger.model, null).tagDocument('He said \\"no\\"')], json)
+
+        expect:
+        json.toString().findAll(/"term":"((?:[^"\\]|\\.)*)"/) { it[1] } ==
+                ['He', 'said', '\\\\', '\\"', 'no', '\\\\', '\\"']
+    }
+
+    def "requests are handled on virtual threads when the jvm has them"(){
+        expect:
+        TaggingServer.requestExecutor() != null
+    }
+
+    private URL url() {
+        new URL("http://127.0.0.1:${server.port}${TaggingServer.PATH}")
+    }
+
+    private Map post(String body) {
+        HttpURLConnection connection = (HttpURLConnection) url().openConnection()
+        connection.requestMethod = 'POST'
+        connection.doOutput = true
+        connection.outputStream.withWriter('UTF-8') { it << body }
+        String text = connection.inputStream.getText('UTF-8')
+        [status: connection.responseCode, text: text, json: new JsonSlurper().parseText(text)]
+    }
+}
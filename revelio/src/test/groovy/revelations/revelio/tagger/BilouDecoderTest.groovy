@@ -0,0 +1,146 @@
+package revelations.revelio.tagger
+
+import cc.mallet.fst.CRF
+import cc.mallet.types.FeatureVectorSequence
+import cc.mallet.types.Instance
+import cc.mallet.types.InstanceList
+import revelations.revelio.common.EntityAttribute
+import revelations.revelio.common.EntityAttributeImpl
+import revelations.revelio.common.EntityLabels
+import revelations.revelio.mallet.TokenStreamPipe
+import revelations.revelio.train.CrfTrainingDriver
+import spock.lang.Shared
+import spock.lang.Specification
+
+public class BilouDecoderTest extends Specification {
+
+    @Shared CRF crf
+    EntityLabels labels = EntityLabels.getInstance()
+
+    def setupSpec() {
+        crf = DocumentTaggerTest.train(new CrfTrainingDriver(threads: 2, iterations: 100))
+    }
+
+    def "only the transitions of the BILOU scheme are allowed"(){
+        expect:
+        BilouDecoder.allowed(labels.label(previous), labels.label(next)) == allowed
+
+        where:
+        previous   | next       | allowed
+        'O'        | 'O'        | true
+        'O'        | 'B-PLACE'  | true
+        'O'        | 'U-PLACE'  | true
+        'O'        | 'I-PLACE'  | false
+        'O'        | 'L-PLACE'  | false
+        'B-PLACE'  | 'I-PLACE'  | true
+        'B-PLACE'  | 'L-PLACE'  | true
+        'B-PLACE'  | 'L-PERSON' | false
+        'B-PLACE'  | 'O'        | false
+        'I-PLACE'  | 'B-PLACE'  | false
+        'L-PLACE'  | 'B-PERSON' | true
+        'U-PLACE'  | 'I-PLACE'  | false
+    }
+
+    def "documents can only end outside of an entity or at its end"(){
+        expect:
+        ['O', 'L-PLACE', 'U-PLACE'].every { BilouDecoder.canEnd(labels.label(it)) }
+        !['B-PLACE', 'I-PLACE'].any { BilouDecoder.canEnd(labels.label(it)) }
+    }
+
+    def "the labels of a trained crf are the ones it transduces"(){
+        BilouDecoder.Lattice lattice = new BilouDecoder(crf).lattice()
+
+        expect:
+        instances().every { Instance instance ->
+            int size = lattice.decode(instance.data)
+            def transduced = crf.transduce(instance.data)
+            size == instance.data.size() && (0..<size).every { labels.tag(lattice.label(it)) == transduced.get(it) }
+        }
+    }
+
+    def "the lattice is reused for longer and shorter documents"(){
+        BilouDecoder.Lattice lattice = new BilouDecoder(crf).lattice()
+        FeatureVectorSequence longer = featurize((['I saw Utah.'] * 30).join(' '))
+        FeatureVectorSequence shorter = featurize('I saw Utah.')
+
+        when:
+        lattice.decode(shorter)
+        lattice.decode(longer)
+
+        then:
+        lattice.size() == 120
+        lattice.score() > Double.NEGATIVE_INFINITY
+
+        when:
+        lattice.decode(shorter)
+
+        then:
+        lattice.size() == 4
+        (0..<4).collect { labels.tag(lattice.label(it)) } == ['O', 'O', 'U-PLACE', 'O']
+    }
+
+    def "labels are copied straight to the entity attribute"(){
+        BilouDecoder.Lattice lattice = new BilouDecoder(crf).lattice()
+        EntityAttribute entity = new EntityAttributeImpl()
+
+        when:
+        lattice.decode(featurize('I went to Salt Lake City today.'))
+        lattice.copyTo(4, entity)
+
+        then:
+        entity.toEntityTag() == 'I-PLACE'
+        entity.entityType == 'PLACE'
+    }
+
+    def "transitions the scheme does not allow are never taken even when the crf prefers them"(){
+        CRF full = new CRF(crf.inputPipe, null)
+        full.addFullyConnectedStatesForLabels()
+        boost(full, 'O', 'I-PLACE')
+        boost(full, 'I-PLACE', 'I-PLACE')
+        FeatureVectorSequence input = featurize('I saw Utah.')
+        BilouDecoder decoder = new BilouDecoder(full)
+        BilouDecoder.Lattice lattice = decoder.lattice()
+
+        when:
+        lattice.decode(input)
+        List<Integer> decoded = (0..<lattice.size()).collect { lattice.label(it) }
+
+        then:
+        full.transduce(input).get(0) == 'I-PLACE'
+        BilouDecoder.allowed(0, decoded[0])
+        (1..<decoded.size()).every { BilouDecoder.allowed(decoded[it - 1], decoded[it]) }
+        BilouDecoder.canEnd(decoded[-1])
+        decoder.transitionCount() < full.numStates() * full.numStates()
+    }
+
+    def "states which are not BILOU tags can't be decoded"(){
+        CRF other = new CRF(crf.inputPipe, null)
+        other.addFullyConnectedStates(['FOO', 'BAR'] as String[])
+
+        when:
+        new BilouDecoder(other)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    private static void boost(CRF crf, String from, String to) {
+        CRF.State state = crf.getState(from)
+        int destination = (0..<state.numDestinations()).find { state.getDestinationState(it).name == to }
+        state.getWeightNames(destination).each { crf.parameters.defaultWeights[crf.getWeightsIndex(it)] = 5.0 }
+    }
+
+    private List<Instance> instances() {
+        InstanceList list = new InstanceList(crf.inputPipe)
+        list.addThruPipe(new Instance('I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX> today.', null, 'a', null))
+        list.addThruPipe(new Instance('I went to <ENAMEX TYPE="PLACE">Salt Lake City</ENAMEX> today.', null, 'b', null))
+        list.addThruPipe(new Instance('Lynch went home and I saw Utah.', null, 'c', null))
+        list
+    }
+
+    private FeatureVectorSequence featurize(String text) {
+        TokenStreamPipe pipe = new TermRecordingPipe((TokenStreamPipe) crf.inputPipe)
+        pipe.targetProcessing = false
+        pipe.pipe(new Instance(text, null, 'doc', null)).data
+    }
+}
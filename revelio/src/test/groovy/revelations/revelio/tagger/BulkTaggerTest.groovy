@@ -0,0 +1,170 @@
+package revelations.revelio.tagger
+
+import cc.mallet.fst.CRF
+import revelations.revelio.train.CrfTrainingDriver
+import spock.lang.Shared
+import spock.lang.Specification
+
+public class BulkTaggerTest extends Specification {
+
+    @Shared CRF crf
+    @Shared List<String> documents = []
+
+    def setupSpec() {
+        crf = DocumentTaggerTest.train(new CrfTrainingDriver(threads: 2, iterations: 100))
+        200.times {
+            documents << ['I went to Salt Lake City today.', 'Lynch went home.', '', 'I saw Utah.'][it % 4] +
+                    " number $it"
+        }
+    }
+
+    def "documents are tagged in the order they were read"(){
+        BulkTagger tagger = tagger(threads: threads, batchSize: batchSize, queueSize: queueSize)
+        DocumentTagger serial = new DocumentTagger(crf)
+        StringWriter out = new StringWriter()
+
+        when:
+        long count = tagger.tag(new StringReader(documents.join('\n')), out)
+
+        then:
+        count == documents.size()
+        out.toString() == documents.collect { serial.tag(it) + '\n' }.join('')
+
+        where:
+        threads | batchSize | queueSize
+        1       | 256       | 1
+        4       | 1         | 2
+        3       | 7         | 16
+    }
+
+    def "blank lines are kept"(){
+        StringWriter out = new StringWriter()
+
+        when:
+        tagger(threads: 2).tag(new StringReader('I saw Utah.\n\nLynch went home.\n'), out)
+
+        then:
+        out.toString().split('\n', -1).length == 4
+        out.toString().split('\n', -1)[1] == ''
+    }
+
+    def "a failure reading the input is thrown to the caller"(){
+        Reader failing = new Reader() {
+            int reads
+
+            int read(char[] buffer, int offset, int length) {
+                if (reads++ > 0) {
+                    throw new IOException('disk went away')
+                }
+                String line = 'I saw Utah.\n'
+                line.getChars(0, line.length(), buffer, offset)
+                line.length()
+            }
+
+            void close() {
+            }
+        }
+
+        when:
+        tagger(threads: 2, batchSize: 1).tag(failing, new StringWriter())
+
+        then:
+        IOException e = thrown()
+        e.message == 'disk went away'
+    }
+
+    def "a batch which fails to be tagged is thrown to the caller and the reader stops"(){
+        BulkTagger tagger = tagger(threads: 2, batchSize: 1, queueSize: 1)
+        tagger.@cache = new CachingTagger(new TaggerModel(crf), null) {
+            void tag(CharSequence document, StringBuilder out) {
+                throw new IllegalStateException('bad document')
+            }
+        }
+
+        when:
+        tagger.tag(new StringReader(documents.join('\n')), new StringWriter())
+
+        then:
+        IllegalStateException e = thrown()
+        e.message == 'bad document'
+        readerStops()
+    }
+
+    def "a failure writing the output is thrown to the caller and the reader stops"(){
+        Writer failing = new Writer() {
+            void write(char[] buffer, int offset, int length) {
+                throw new IOException('disk full')
+            }
+
+            void flush() {
+            }
+
+            void close() {
+            }
+        }
+
+        when:
+        tagger(threads: 2, batchSize: 1, queueSize: 1).tag(new StringReader(documents.join('\n')), failing)
+
+        then:
+        IOException e = thrown()
+        e.message == 'disk full'
+        readerStops()
+    }
+
+    def "every worker tags with the same model"(){
+        TaggerModel model = new TaggerModel(crf)
+        BulkTagger tagger = new BulkTagger(model, null)
+        tagger.threads = 3
+        tagger.batchSize = 5
+        StringWriter out = new StringWriter()
+
+        when:
+        tagger.tag(new StringReader(documents.join('\n')), out)
+
+        then:
+        out.toString() == documents.collect { new DocumentTagger(model, null).tag(it) + '\n' }.join('')
+    }
+
+    def "documents tagged through a cache are written the way they would be without one"(){
+        BulkTagger tagger = tagger(threads: 3, batchSize: 5, cacheBytes: 1 << 20)
+        DocumentTagger serial = new DocumentTagger(crf)
+        StringWriter out = new StringWriter()
+
+        when:
+        tagger.tag(new StringReader((documents + documents).join('\n')), out)
+
+        then:
+        out.toString() == (documents + documents).collect { serial.tag(it) + '\n' }.join('')
+        tagger.cache.hits + tagger.cache.misses == 2 * documents.size()
+        tagger.cache.size() == documents.size()
+    }
+
+    private static boolean readerStops() {
+        long deadline = System.currentTimeMillis() + 10000
+        while (Thread.getAllStackTraces().keySet().any { it.name == 'revelio-bulk-reader' && it.alive }) {
+            if (System.currentTimeMillis() > deadline) {
+                return false
+            }
+            Thread.sleep(10)
+        }
+        true
+    }
+
+    private BulkTagger tagger(Map properties) {
+        BulkTagger tagger = new BulkTagger(crf)
+        properties.each { String name, value -> tagger."$name" = value }
+        tagger
+    }
+
+    def "the sizes must be at least 1"(){
+        when:
+        new BulkTagger(crf)."$property" = 0
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        property << ['threads', 'batchSize', 'queueSize']
+    }
+}
@@ -0,0 +1,177 @@
+package revelations.revelio.tagger
+
+import revelations.revelio.metrics.AnalysisMetrics
+import revelations.revelio.metrics.StageMetrics
+import revelations.revelio.train.CrfTrainingDriver
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+public class CachingTaggerTest extends Specification {
+
+    @Shared TaggerModel model
+
+    def setupSpec() {
+        model = new TaggerModel(DocumentTaggerTest.train(new CrfTrainingDriver(threads: 2, iterations: 100)))
+    }
+
+    def "documents are tagged the way a document tagger tags them and found in the cache the second time"(){
+        CachingTagger cache = new CachingTagger(model, null)
+        DocumentTagger serial = new DocumentTagger(model, null)
+
+        when:
+        TaggedDocument first = cache.tag(document)
+        TaggedDocument second = cache.tag(document)
+
+        then:
+        first.toString() == serial.tag(document)
+        second.is(first)
+        cache.hits == 1
+        cache.misses == 1
+        cache.hitRate == 0.5d
+        cache.size() == 1
+        cache.bytes == first.ramBytesUsed() + 64
+
+        where:
+        document << ['I went to Salt Lake City today.', 'I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX> today.', '']
+    }
+
+    def "copies which only differ in their whitespace share an entry"(){
+        CachingTagger cache = new CachingTagger(model, null)
+
+        when:
+        TaggedDocument tagged = cache.tag('I saw Utah.')
+
+        then:
+        cache.tag('  I \t saw\nUtah.  ').is(tagged)
+        !cache.tag('I saw utah.').is(tagged)
+        cache.hits == 1
+        cache.misses == 2
+    }
+
+    def "tagged documents keep the offsets of their tokens in the normalized text"(){
+        TaggedDocument tagged = new CachingTagger(model, null).tag(' I met  <ENAMEX TYPE="PERSON">David Lynch</ENAMEX>')
+
+        expect:
+        tagged.text == 'I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX>'
+        (0..<tagged.size()).collect { "${tagged.term(it)} ${tagged.startOffset(it)}-${tagged.endOffset(it)}" } ==
+                ['I 0-1', 'met 2-5', 'David 28-33', 'Lynch 34-39']
+        (0..<tagged.size()).collect { tagged.tag(it) } == ['O', 'O', 'B-PERSON', 'L-PERSON']
+    }
+
+    def "the documents used the longest time ago are evicted once the cache is full"(){
+        CachingTagger cache = new CachingTagger(model, null, 16 * 1024)
+
+        when:
+        2000.times { cache.tag("I saw Utah on day $it.") }
+
+        then:
+        cache.evictions > 0
+        cache.size() == 2000 - cache.evictions
+        cache.bytes > 0
+        cache.bytes <= cache.maxBytes
+        cache.metrics.snapshot()[CachingTagger.ENTRIES] == cache.size()
+    }
+
+    def "documents too big for a segment are tagged but not cached"(){
+        CachingTagger cache = new CachingTagger(model, null, 16 * 64)
+
+        when:
+        cache.tag('I went to Salt Lake City today. ' * 20)
+
+        then:
+        cache.size() == 0
+        cache.bytes == 0
+    }
+
+    def "threads tagging the same documents get what one thread gets"(){
+        CachingTagger cache = new CachingTagger(model, null)
+        DocumentTagger serial = new DocumentTagger(model, null)
+        List<String> documents = (0..<400).collect {
+            ['I went to Salt Lake City today.', 'Lynch went home.', 'I saw Utah.'][it % 3] + " number ${it % 50}"
+        }
+        ExecutorService threads = Executors.newFixedThreadPool(4)
+
+        when:
+        List<String> tagged = threads.invokeAll(documents.collect { String document ->
+            { -> cache.tag(document).toString() } as Callable<String>
+        })*.get()
+
+        then:
+        tagged == documents.collect { serial.tag(it) }
+        cache.size() == 150
+        cache.hits + cache.misses == 400
+
+        cleanup:
+        threads.shutdown()
+    }
+
+    def "a cleared cache is empty"(){
+        CachingTagger cache = new CachingTagger(model, null)
+        cache.tag('I saw Utah.')
+        cache.tag('Lynch went home.')
+
+        when:
+        cache.clear()
+
+        then:
+        cache.size() == 0
+        cache.bytes == 0
+        cache.tag('I saw Utah.') != null
+        cache.misses == 3
+    }
+
+    def "each cache counts its own documents and adds them to the published stage"(){
+        given:
+        AnalysisMetrics.enabled = true
+        StageMetrics stage = AnalysisMetrics.stage(CachingTagger.METRICS_NAME)
+        Map<String, Long> before = stage.snapshot()
+        CachingTagger first = new CachingTagger(model, null)
+        CachingTagger second = new CachingTagger(model, null)
+
+        when:
+        first.tag('I saw Utah.')
+        first.tag('I saw Utah.')
+        second.tag('Lynch went home.')
+        second.tag('I went to Salt Lake City today.')
+        first.clear()
+
+        then:
+        first.hits == 1
+        first.misses == 1
+        first.size() == 0
+        first.bytes == 0
+        second.hits == 0
+        second.misses == 2
+        second.size() == 2
+        second.bytes > 0
+        stage.counter(CachingTagger.HITS).sum() - (before[CachingTagger.HITS] ?: 0) == 1
+        stage.counter(CachingTagger.MISSES).sum() - (before[CachingTagger.MISSES] ?: 0) == 3
+        stage.counter(CachingTagger.ENTRIES).sum() - (before[CachingTagger.ENTRIES] ?: 0) == 2
+        stage.counter(CachingTagger.BYTES).sum() - (before[CachingTagger.BYTES] ?: 0) == second.bytes
+
+        cleanup:
+        AnalysisMetrics.enabled = false
+    }
+
+    def "whitespace is trimmed and collapsed before the text is hashed"(){
+        StringBuilder first = new StringBuilder()
+        StringBuilder second = new StringBuilder()
+
+        expect:
+        CachingTagger.normalize(' a\t\tb \n', first) == CachingTagger.normalize('a b', second)
+        first.toString() == 'a b'
+        CachingTagger.normalize('a b', first) != CachingTagger.normalize('ab', second)
+    }
+
+    def "a cache must have room for something"(){
+        when:
+        new CachingTagger(model, null, 15)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
@@ -0,0 +1,105 @@
+package revelations.revelio.tagger
+
+import cc.mallet.fst.CRF
+import cc.mallet.pipe.Noop
+import revelations.revelio.mallet.TokenStreamPipe
+import revelations.revelio.train.CrfTrainingDriver
+import spock.lang.Shared
+import spock.lang.Specification
+
+public class DocumentTaggerTest extends Specification {
+
+    @Shared CRF crf
+
+    def setupSpec() {
+        crf = train(new CrfTrainingDriver(threads: 2, iterations: 100))
+    }
+
+    static CRF train(CrfTrainingDriver driver) {
+        File shard = File.createTempFile('shard', '.txt')
+        try {
+            shard.setText(['I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX> today.',
+                    '<ENAMEX TYPE="PERSON">Lynch</ENAMEX> went home.',
+                    'I went to <ENAMEX TYPE="PLACE">Salt Lake City</ENAMEX> today.',
+                    'I saw <ENAMEX TYPE="PLACE">Utah</ENAMEX>.'].join('\n'), 'UTF-8')
+            driver.train([shard])
+        } finally {
+            shard.delete()
+        }
+    }
+
+    def "the crf keeps the pipe it was trained with"(){
+        expect:
+        crf.inputPipe instanceof TokenStreamPipe
+        crf.inputPipe.dataAlphabet.is(crf.inputAlphabet)
+    }
+
+    def "documents are written as terms with the tags of the crf"(){
+        expect:
+        new DocumentTagger(crf).tag('I went to Salt Lake City today.') ==
+                'I/O went/O to/O Salt/B-PLACE Lake/I-PLACE City/L-PLACE today/O ./O'
+    }
+
+    def "tagged text is tokenized like training text and empty text has no tokens"(){
+        DocumentTagger tagger = new DocumentTagger(crf)
+
+        expect:
+        tagger.tag('I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX> today.') ==
+                'I/O met/O David/B-PERSON Lynch/L-PERSON today/O ./O'
+        tagger.tag('') == ''
+    }
+
+    def "terms the crf has never seen are tagged without growing its alphabet"(){
+        int features = crf.inputAlphabet.size()
+
+        when:
+        String tagged = new DocumentTagger(crf).tag('Zyzzyva saw Utah.')
+
+        then:
+        tagged.split(' ')*.replaceAll('/.*', '') == ['Zyzzyva', 'saw', 'Utah', '.']
+        crf.inputAlphabet.size() == features
+    }
+
+    def "a tagger leaves the alphabet of a crf which is still growing alone"(){
+        given:
+        def stopped = crf.inputAlphabet.growthStopped()
+        crf.inputAlphabet.startGrowth()
+        def features = crf.inputAlphabet.size()
+
+        when:
+        def tagged = new DocumentTagger(crf).tag('Zyzzyva saw Utah.')
+
+        then:
+        tagged.startsWith('Zyzzyva/')
+        !crf.inputAlphabet.growthStopped()
+        crf.inputAlphabet.size() == features
+
+        cleanup:
+        if (stopped) {
+            crf.inputAlphabet.stopGrowth()
+        }
+    }
+
+    def "a crf trained on sentences tags each sentence of a document on its own"(){
+        CRF sentenceCrf = train(new CrfTrainingDriver(threads: 2, iterations: 100, maxSentenceLength: 50))
+        DocumentTagger tagger = new DocumentTagger(sentenceCrf)
+
+        expect:
+        sentenceCrf.inputPipe.maxSentenceLength == 50
+        tagger.tag('I saw Utah. I went to Salt Lake City today.') ==
+                'I/O saw/O Utah/U-PLACE ./O I/O went/O to/O Salt/B-PLACE Lake/I-PLACE City/L-PLACE today/O ./O'
+        labels(tagger, 'I saw Utah. I went home.') == labels(tagger, 'I saw Utah.') + labels(tagger, 'I went home.')
+    }
+
+    def "a crf without a token stream pipe can't tag"(){
+        when:
+        new DocumentTagger(new CRF(new Noop(crf.inputAlphabet, crf.outputAlphabet), null))
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    private static List<Integer> labels(DocumentTagger tagger, String document) {
+        (0..<tagger.decode(document)).collect { tagger.label(it) }
+    }
+}
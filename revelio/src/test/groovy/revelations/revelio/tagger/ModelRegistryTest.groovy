@@ -0,0 +1,166 @@
+package revelations.revelio.tagger
+
+import cc.mallet.fst.CRF
+import revelations.revelio.train.CrfTrainingDriver
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.lang.ref.WeakReference
+import java.util.concurrent.ExecutionException
+
+public class ModelRegistryTest extends Specification {
+
+    @Shared CRF crf
+    @Shared CRF organizationCrf
+    @Shared File file
+
+    def setupSpec() {
+        crf = DocumentTaggerTest.train(new CrfTrainingDriver(threads: 2, iterations: 100))
+        File shard = File.createTempFile('shard', '.txt')
+        try {
+            shard.setText(['I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX> at <ENAMEX TYPE="ORG">Acme</ENAMEX>.',
+                    '<ENAMEX TYPE="ORG">Acme</ENAMEX> went to <ENAMEX TYPE="PLACE">Utah</ENAMEX>.'].join('\n'), 'UTF-8')
+            organizationCrf = new CrfTrainingDriver(threads: 2, iterations: 100).train([shard])
+        } finally {
+            shard.delete()
+        }
+        file = File.createTempFile('model', '.rvlm')
+        new TaggerModel(crf).save(file)
+    }
+
+    def cleanupSpec() {
+        file.delete()
+    }
+
+    def "the first model is version 1 and its taggers stamp their documents with it"(){
+        ModelRegistry registry = new ModelRegistry(new TaggerModel(crf), null)
+        ModelVersion version = registry.current()
+
+        when:
+        TaggedDocument tagged = version.newTagger().tagDocument('I saw Utah.')
+
+        then:
+        version.version == 1
+        version.labelVersion == 1
+        version.tags == version.tags.sort(false)
+        version.tags.containsAll(['O', 'B-PERSON', 'L-PERSON', 'U-PLACE'])
+        tagged.toString() == 'I/O saw/O Utah/U-PLACE ./O'
+        tagged.modelVersion == 1
+        tagged.labelVersion == 1
+        new DocumentTagger(crf).tagDocument('I saw Utah.').modelVersion == 0
+    }
+
+    def "the label version only goes up when a model has other tags"(){
+        ModelRegistry registry = new ModelRegistry(new TaggerModel(crf), null)
+        registry.warmUpRounds = 1
+
+        when:
+        ModelVersion same = registry.swap(new TaggerModel(crf), null, 'retrained')
+        ModelVersion organizations = registry.swap(new TaggerModel(organizationCrf), null, 'organizations')
+
+        then:
+        same.version == 2
+        same.labelVersion == 1
+        organizations.version == 3
+        organizations.labelVersion == 2
+        organizations.tags.contains('U-ORG')
+        registry.current().is(organizations)
+        organizations.source == 'organizations'
+    }
+
+    def "a tagger taken before a swap keeps tagging with its model"(){
+        ModelRegistry registry = new ModelRegistry(new TaggerModel(crf), null)
+        DocumentTagger before = registry.current().newTagger()
+
+        when:
+        registry.swap(new TaggerModel(organizationCrf), null, 'organizations')
+
+        then:
+        before.tagDocument('I saw Utah.').toString() == 'I/O saw/O Utah/U-PLACE ./O'
+        before.tagDocument('I saw Utah.').modelVersion == 1
+        registry.current().newTagger().tagDocument('I saw Utah.').modelVersion == 2
+    }
+
+    def "a model swapped out is released once nothing uses it"(){
+        ModelRegistry registry = new ModelRegistry(new TaggerModel(crf), null)
+        WeakReference<TaggerModel> old = new WeakReference<TaggerModel>(registry.current().model)
+
+        when:
+        registry.swap(new TaggerModel(crf), null, 'retrained')
+        for (int i = 0; i < 50 && old.get() != null; i++) {
+            System.gc()
+            Thread.sleep(20)
+        }
+
+        then:
+        old.get() == null
+    }
+
+    def "a model is loaded and swapped in in the background"(){
+        ModelRegistry registry = new ModelRegistry(new TaggerModel(organizationCrf), null)
+
+        when:
+        ModelVersion loaded = registry.reload(file, null).get()
+
+        then:
+        loaded.version == 2
+        loaded.labelVersion == 2
+        loaded.source == file.path
+        loaded.model.pipe.dataAlphabet instanceof MappedAlphabet
+        registry.current().is(loaded)
+
+        cleanup:
+        registry.close()
+    }
+
+    def "a model which can't be loaded leaves the current one in place"(){
+        ModelRegistry registry = new ModelRegistry(new TaggerModel(crf), null)
+        File bad = File.createTempFile('model', '.rvlm')
+        bad.setText('not a model')
+
+        when:
+        registry.reload(bad, null).get()
+
+        then:
+        ExecutionException e = thrown()
+        e.cause instanceof IOException
+        registry.current().version == 1
+
+        cleanup:
+        registry.close()
+        bad.delete()
+    }
+
+    def "a watched model file is swapped in when it changes"(){
+        File watched = File.createTempFile('model', '.rvlm')
+        new TaggerModel(crf).save(watched)
+        ModelRegistry registry = ModelRegistry.load(watched, null)
+        registry.warmUpRounds = 1
+        registry.watch(watched, null, 20)
+
+        when:
+        File next = File.createTempFile('model', '.rvlm', watched.parentFile)
+        new TaggerModel(organizationCrf).save(next)
+        next.setLastModified(watched.lastModified() + 2000)
+        assert next.renameTo(watched)
+        for (int i = 0; i < 250 && registry.current().version == 1; i++) {
+            Thread.sleep(20)
+        }
+
+        then:
+        registry.current().version == 2
+        registry.current().tags.contains('U-ORG')
+
+        cleanup:
+        registry.close()
+        watched.delete()
+    }
+
+    def "warm up rounds can't be negative"(){
+        when:
+        new ModelRegistry(new TaggerModel(crf), null).warmUpRounds = -1
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
@@ -0,0 +1,189 @@
+package revelations.revelio.tagger
+
+import cc.mallet.fst.CRF
+import cc.mallet.types.Alphabet
+import cc.mallet.types.FeatureVectorSequence
+import cc.mallet.types.Instance
+import revelations.revelio.features.HashedAlphabet
+import revelations.revelio.train.CrfTrainingDriver
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+
+public class TaggerModelTest extends Specification {
+
+    @Shared CRF crf
+    @Shared File file
+    @Shared List<String> documents = ['I went to Salt Lake City today.', 'Lynch went home.', 'Zyzzyva saw Utah.', '',
+            'I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX> today.', 'Süß 東京 went to Salt Lake City.']
+
+    def setupSpec() {
+        crf = DocumentTaggerTest.train(new CrfTrainingDriver(threads: 2, iterations: 100))
+        file = File.createTempFile('model', '.rvlm')
+        new TaggerModel(crf).save(file)
+    }
+
+    def cleanupSpec() {
+        file.delete()
+    }
+
+    def "a saved model is mapped and tags like the crf"(){
+        when:
+        TaggerModel model = TaggerModel.load(file)
+
+        then:
+        model.pipe.dataAlphabet instanceof MappedAlphabet
+        documents.collect { new DocumentTagger(model, null).tag(it) } ==
+                documents.collect { new DocumentTagger(crf).tag(it) }
+    }
+
+    def "a mapped model scores documents like the compiled one"(){
+        TaggerModel compiled = new TaggerModel(crf)
+        TaggerModel mapped = TaggerModel.load(file)
+        BilouDecoder.Lattice compiledLattice = compiled.decoder.lattice()
+        BilouDecoder.Lattice mappedLattice = mapped.decoder.lattice()
+
+        expect:
+        mapped.decoder.featureCount() == compiled.decoder.featureCount()
+        mapped.decoder.weightCount() == compiled.decoder.weightCount()
+        mapped.decoder.transitionCount() == compiled.decoder.transitionCount()
+        documents.each {
+            compiledLattice.decode(featurize(compiled, it))
+            mappedLattice.decode(featurize(mapped, it))
+            assert mappedLattice.score() == compiledLattice.score()
+        }
+    }
+
+    def "the mapped alphabet finds every feature of the crf by name and nothing else"(){
+        MappedAlphabet alphabet = TaggerModel.load(file).pipe.dataAlphabet
+
+        expect:
+        alphabet.size() == crf.inputAlphabet.size()
+        (0..<alphabet.size()).every { alphabet.lookupObject(it) == crf.inputAlphabet.lookupObject(it) }
+        (0..<alphabet.size()).every { alphabet.lookupIndex(crf.inputAlphabet.lookupObject(it)) == it }
+        alphabet.lookupIndex('W=Zyzzyva') == -1
+        alphabet.lookupIndex('W=Zyzzyva', true) == -1
+        alphabet.lookupIndex(42) == -1
+        alphabet.size() == crf.inputAlphabet.size()
+        alphabet.toArray() as List == crf.inputAlphabet.toArray() as List
+    }
+
+    def "names are found whatever chars they have"(){
+        Alphabet alphabet = new Alphabet()
+        List<String> names = ['W=Süß', 'W=東京', 'W=a\u0000b', '', 'W=\uD83D\uDE00', 'W=Sus', 'W=東']
+        names.each { alphabet.lookupIndex(it) }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+        MappedAlphabet.write(alphabet, new DataOutputStream(bytes))
+
+        when:
+        MappedAlphabet mapped = MappedAlphabet.map(ByteBuffer.wrap(bytes.toByteArray()))
+
+        then:
+        names.every { mapped.lookupIndex(it) == alphabet.lookupIndex(it) }
+        (0..<names.size()).every { mapped.lookupObject(it) == names[it] }
+        mapped.lookupIndex('W=Sü') == -1
+        mapped.lookupIndex('W=東京都') == -1
+    }
+
+    def "a mapped alphabet can't grow"(){
+        MappedAlphabet alphabet = TaggerModel.load(file).pipe.dataAlphabet
+
+        when:
+        alphabet.startGrowth()
+
+        then:
+        alphabet.growthStopped()
+        thrown(UnsupportedOperationException)
+    }
+
+    def "the pipe settings are saved with the model"(){
+        TaggerModel model = TaggerModel.load(file)
+
+        expect:
+        model.pipe.entityTags == crf.inputPipe.entityTags
+        model.pipe.termFeatures == crf.inputPipe.termFeatures
+        model.pipe.featureCacheSize == crf.inputPipe.featureCacheSize
+        model.pipe.maxSentenceLength == crf.inputPipe.maxSentenceLength
+    }
+
+    def "a crf written by the training driver is loaded and compiled"(){
+        File serialized = File.createTempFile('model', '.crf')
+        serialized.withObjectOutputStream { it.writeObject(crf) }
+
+        when:
+        TaggerModel model = TaggerModel.load(serialized)
+
+        then:
+        !(model.pipe.dataAlphabet instanceof MappedAlphabet)
+        new DocumentTagger(model, null).tag('I saw Utah.') == new DocumentTagger(crf).tag('I saw Utah.')
+
+        cleanup:
+        serialized.delete()
+    }
+
+    def "a model with hashed features saves the number of buckets instead of the alphabet"(){
+        CrfTrainingDriver driver = new CrfTrainingDriver(threads: 2, iterations: 100, hashBuckets: 1 << 12)
+        CRF hashedCrf = DocumentTaggerTest.train(driver)
+        File hashedFile = File.createTempFile('model', '.rvlm')
+        new TaggerModel(hashedCrf).save(hashedFile)
+
+        when:
+        TaggerModel model = TaggerModel.load(hashedFile)
+
+        then:
+        model.pipe.dataAlphabet instanceof HashedAlphabet
+        model.pipe.dataAlphabet.size() == 1 << 12
+        documents.collect { new DocumentTagger(model, null).tag(it) } ==
+                documents.collect { new DocumentTagger(hashedCrf).tag(it) }
+
+        cleanup:
+        hashedFile.delete()
+    }
+
+    def "a model trained on sentences is saved with the most tokens of a sentence"(){
+        CRF sentenceCrf = DocumentTaggerTest.train(new CrfTrainingDriver(threads: 2, iterations: 100,
+                maxSentenceLength: 20))
+        File sentenceFile = File.createTempFile('model', '.rvlm')
+        new TaggerModel(sentenceCrf).save(sentenceFile)
+        String document = 'I saw Utah. Lynch went to Salt Lake City today. Zyzzyva went home.'
+
+        when:
+        TaggerModel model = TaggerModel.load(sentenceFile)
+
+        then:
+        model.pipe.maxSentenceLength == 20
+        new DocumentTagger(model, null).tag(document) == new DocumentTagger(sentenceCrf).tag(document)
+
+        cleanup:
+        sentenceFile.delete()
+    }
+
+    def "a model of another version or a file which is not a model can't be loaded"(){
+        File other = File.createTempFile('model', '.rvlm')
+        byte[] bytes = file.bytes
+        bytes[7] = version
+        other.bytes = saved ? bytes : 'not a model'.bytes
+
+        when:
+        TaggerModel.load(other)
+
+        then:
+        thrown(IOException)
+
+        cleanup:
+        other.delete()
+
+        where:
+        saved | version
+        true  | 4
+        false | 1
+    }
+
+    private static FeatureVectorSequence featurize(TaggerModel model, String document) {
+        TermRecordingPipe pipe = new TermRecordingPipe(model.pipe)
+        pipe.targetProcessing = false
+        pipe.dataAlphabet.stopGrowth()
+        pipe.pipe(new Instance(document, null, null, null)).data
+    }
+}
@@ -0,0 +1,135 @@
+package revelations.revelio.train
+
+import cc.mallet.fst.CRF
+import cc.mallet.types.Alphabet
+import cc.mallet.types.Instance
+import cc.mallet.types.InstanceList
+import cc.mallet.types.Sequence
+import revelations.revelio.features.HashedAlphabet
+import revelations.revelio.gazetteer.Gazetteer
+import revelations.revelio.gazetteer.GazetteerBuilder
+import revelations.revelio.mallet.TokenStreamPipe
+import spock.lang.Specification
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+public class CrfTrainingDriverTest extends Specification {
+
+    CrfTrainingDriver driver = new CrfTrainingDriver(threads: 2, iterations: 100)
+    ExecutorService workers = Executors.newFixedThreadPool(2)
+    List<File> shards = []
+
+    def setup(){
+        shards << shard('I met <ENAMEX TYPE="PERSON">David Lynch</ENAMEX> today.',
+                '<ENAMEX TYPE="PERSON">Lynch</ENAMEX> went home.')
+        shards << shard('I went to <ENAMEX TYPE="PLACE">Salt Lake City</ENAMEX> today.',
+                '', 'I saw <ENAMEX TYPE="PLACE">Utah</ENAMEX>.')
+    }
+
+    def cleanup(){
+        workers.shutdownNow()
+        shards*.delete()
+    }
+
+    def "shards are featurized with their own alphabets"(){
+        when:
+        List<List<Instance>> featurized = driver.featurize(shards, workers)
+
+        then:
+        featurized*.size() == [2, 2]
+        !featurized[0][0].dataAlphabet.is(featurized[1][0].dataAlphabet)
+        featurized[1][1].name == 3
+        featurized[1][1].source == shards[1].name
+    }
+
+    def "merging shares one alphabet and keeps every feature and label of every shard"(){
+        when:
+        InstanceList merged = driver.merge(driver.featurize(shards, workers), workers)
+
+        then:
+        merged.size() == 4
+        merged.every { it.dataAlphabet.is(merged.dataAlphabet) && it.targetAlphabet.is(merged.targetAlphabet) }
+        tags(merged[0].target) == ['O', 'O', 'B-PERSON', 'L-PERSON', 'O', 'O']
+        tags(merged[2].target) == ['O', 'O', 'O', 'B-PLACE', 'I-PLACE', 'L-PLACE', 'O', 'O']
+        words(merged[2]) == ['I', 'went', 'to', 'Salt', 'Lake', 'City', 'today', '.']
+        merged.targetAlphabet.size() == 8
+        merged.dataAlphabet.growthStopped()
+    }
+
+    def "the trained crf labels its training data and every phase is timed"(){
+        when:
+        CRF crf = driver.train(shards)
+        InstanceList merged = driver.merge(driver.featurize(shards, workers), workers)
+
+        then:
+        driver.phaseMillis.keySet() as List == [CrfTrainingDriver.FEATURIZE, CrfTrainingDriver.MERGE, CrfTrainingDriver.TRAIN]
+        tags(crf.transduce(merged[0].data)) == tags(merged[0].target)
+    }
+
+    def "hashed features are shared by the shards and kept by the merge"(){
+        given:
+        driver.hashBuckets = 4096
+
+        when:
+        List<List<Instance>> featurized = driver.featurize(shards, workers)
+        List<Alphabet> shardAlphabets = featurized.collect { it[0].dataAlphabet }
+        InstanceList merged = driver.merge(featurized, workers)
+        CRF crf = driver.train(merged)
+
+        then:
+        shardAlphabets[0].is(shardAlphabets[1])
+        merged.dataAlphabet.is(shardAlphabets[0])
+        merged.dataAlphabet instanceof HashedAlphabet
+        merged.dataAlphabet.size() == 4096
+        merged.dataAlphabet.usedBuckets > 0
+        tags(merged[2].target) == ['O', 'O', 'O', 'B-PLACE', 'I-PLACE', 'L-PLACE', 'O', 'O']
+        tags(crf.transduce(merged[2].data)) == tags(merged[2].target)
+    }
+
+    def "the pipe of the merged instances marks names with the gazetteer of the shards"(){
+        given:
+        GazetteerBuilder builder = new GazetteerBuilder()
+        builder.add('Salt Lake City', 'PLACE')
+        Gazetteer gazetteer = builder.build()
+        driver.gazetteer = gazetteer
+
+        when:
+        InstanceList merged = driver.merge(driver.featurize(shards, workers), workers)
+        TokenStreamPipe pipe = (TokenStreamPipe) merged.pipe
+        Instance piped = pipe.instanceFrom(new Instance('I went to Salt Lake City.', null, 'x', null))
+
+        then:
+        pipe.gazetteer.is(gazetteer)
+        (0..<piped.data.size()).any { int i ->
+            def vector = piped.data.get(i)
+            (0..<vector.numLocations()).any { vector.alphabet.lookupObject(vector.indexAtLocation(it)).startsWith('G=') }
+        }
+    }
+
+    def "at least one thread is needed"(){
+        when:
+        driver.threads = 0
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    private static List<String> tags(Sequence sequence) {
+        (0..<sequence.size()).collect { sequence.get(it).toString() }
+    }
+
+    private static List<String> words(Instance instance) {
+        (0..<instance.data.size()).collect { int i ->
+            def vector = instance.data.get(i)
+            (0..<vector.numLocations()).collect { vector.alphabet.lookupObject(vector.indexAtLocation(it)) }
+                    .find { it.startsWith('W=') }.substring(2)
+        }
+    }
+
+    private static File shard(String... lines) {
+        File file = File.createTempFile('shard', '.txt')
+        file.setText(lines.join('\n'), 'UTF-8')
+        file
+    }
+}